@@ -0,0 +1,229 @@
+package org.osmdroid.tileprovider;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.osmdroid.tileprovider.constants.OpenStreetMapTileProviderConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * A pool of tile bitmaps that have been evicted from the {@link MapTileCache}, bucketed by size and
+ * config. Tile decoding uses {@link #applyReusableOptions(BitmapFactory.Options, int, int)} to decode
+ * into a pooled bitmap instead of allocating a new one.
+ *
+ * Decoding into an existing bitmap needs the <code>inBitmap</code> and <code>inMutable</code>
+ * options, which were added in Honeycomb, so they are looked up by reflection. On older platforms
+ * the pool holds nothing and returned bitmaps are recycled straight away to release their pixel
+ * memory.
+ */
+public class BitmapPool implements OpenStreetMapTileProviderConstants {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private static final Logger logger = LoggerFactory.getLogger(BitmapPool.class);
+
+	private static final Field IN_BITMAP_FIELD = getOptionsField("inBitmap");
+	private static final Field IN_MUTABLE_FIELD = getOptionsField("inMutable");
+
+	private static final BitmapPool INSTANCE = new BitmapPool(CACHE_BITMAP_POOL_SIZE_BYTES);
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final HashMap<Long, LinkedList<Bitmap>> mBuckets = new HashMap<Long, LinkedList<Bitmap>>();
+
+	/** all pooled bitmaps, oldest first */
+	private final LinkedList<Bitmap> mBitmaps = new LinkedList<Bitmap>();
+
+	private long mMaximumSizeBytes;
+	private long mSizeBytes;
+
+	private long mReuseCount;
+	private long mMissCount;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public BitmapPool(final long pMaximumSizeBytes) {
+		mMaximumSizeBytes = pMaximumSizeBytes;
+	}
+
+	public static BitmapPool getInstance() {
+		return INSTANCE;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return true if this platform can decode into an existing bitmap
+	 */
+	public static boolean isReuseSupported() {
+		return IN_BITMAP_FIELD != null && IN_MUTABLE_FIELD != null;
+	}
+
+	public synchronized void setMaximumSizeBytes(final long pMaximumSizeBytes) {
+		mMaximumSizeBytes = pMaximumSizeBytes;
+		trim();
+	}
+
+	public synchronized long getSizeInBytes() {
+		return mSizeBytes;
+	}
+
+	/**
+	 * @return the number of decodes that were given a pooled bitmap
+	 */
+	public synchronized long getReuseCount() {
+		return mReuseCount;
+	}
+
+	/**
+	 * @return the number of decodes that had to allocate a new bitmap
+	 */
+	public synchronized long getMissCount() {
+		return mMissCount;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Set up the options to decode a bitmap of the specified size, using a pooled bitmap if there
+	 * is one. The decoded bitmap will be mutable so that it can be pooled in turn. If decoding with
+	 * these options throws an {@link IllegalArgumentException} then the pooled bitmap was not
+	 * suitable, so call {@link #clearReusableOptions(BitmapFactory.Options)} and decode again.
+	 */
+	public void applyReusableOptions(final BitmapFactory.Options pOptions, final int pWidth,
+			final int pHeight) {
+		if (!isReuseSupported()) {
+			return;
+		}
+		pOptions.inSampleSize = 1;
+		final Bitmap bitmap = obtain(pWidth, pHeight, Bitmap.Config.ARGB_8888);
+		try {
+			IN_MUTABLE_FIELD.setBoolean(pOptions, true);
+			IN_BITMAP_FIELD.set(pOptions, bitmap);
+		} catch (final IllegalAccessException e) {
+			logger.warn("Unable to set reusable bitmap options", e);
+		}
+	}
+
+	/**
+	 * Remove the pooled bitmap from the options. The bitmap is discarded.
+	 */
+	public void clearReusableOptions(final BitmapFactory.Options pOptions) {
+		if (!isReuseSupported()) {
+			return;
+		}
+		try {
+			IN_BITMAP_FIELD.set(pOptions, null);
+		} catch (final IllegalAccessException e) {
+			logger.warn("Unable to clear reusable bitmap options", e);
+		}
+	}
+
+	/**
+	 * Take a bitmap of the specified size and config out of the pool.
+	 *
+	 * @return the bitmap, or null if there isn't one
+	 */
+	public synchronized Bitmap obtain(final int pWidth, final int pHeight,
+			final Bitmap.Config pConfig) {
+		final LinkedList<Bitmap> bucket = mBuckets.get(getBucketKey(pWidth, pHeight, pConfig));
+		if (bucket == null || bucket.isEmpty()) {
+			mMissCount++;
+			return null;
+		}
+		final Bitmap bitmap = bucket.removeLast();
+		mBitmaps.remove(bitmap);
+		mSizeBytes -= sizeOf(bitmap);
+		mReuseCount++;
+		return bitmap;
+	}
+
+	/**
+	 * Put the bitmap of the drawable into the pool, unless the drawable is still being used.
+	 */
+	public void returnDrawableToPool(final ReusableBitmapDrawable pDrawable) {
+		final Bitmap bitmap = pDrawable.tryRecycle();
+		if (bitmap == null || bitmap.isRecycled()) {
+			return;
+		}
+		if (!isReuseSupported() || !bitmap.isMutable()) {
+			bitmap.recycle();
+			return;
+		}
+		synchronized (this) {
+			final Long key = getBucketKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+			LinkedList<Bitmap> bucket = mBuckets.get(key);
+			if (bucket == null) {
+				bucket = new LinkedList<Bitmap>();
+				mBuckets.put(key, bucket);
+			}
+			bucket.addLast(bitmap);
+			mBitmaps.addLast(bitmap);
+			mSizeBytes += sizeOf(bitmap);
+			trim();
+		}
+	}
+
+	/**
+	 * Recycle all pooled bitmaps, for example when memory is low.
+	 */
+	public synchronized void clear() {
+		for (final Bitmap bitmap : mBitmaps) {
+			bitmap.recycle();
+		}
+		mBitmaps.clear();
+		mBuckets.clear();
+		mSizeBytes = 0;
+	}
+
+	/**
+	 * Recycle the oldest bitmaps until the pool is within its maximum size.
+	 */
+	private void trim() {
+		while (mSizeBytes > mMaximumSizeBytes && !mBitmaps.isEmpty()) {
+			final Bitmap bitmap = mBitmaps.removeFirst();
+			final Iterator<LinkedList<Bitmap>> buckets = mBuckets.values().iterator();
+			while (buckets.hasNext()) {
+				if (buckets.next().remove(bitmap)) {
+					break;
+				}
+			}
+			mSizeBytes -= sizeOf(bitmap);
+			bitmap.recycle();
+		}
+	}
+
+	private static int sizeOf(final Bitmap pBitmap) {
+		return pBitmap.getRowBytes() * pBitmap.getHeight();
+	}
+
+	private static Long getBucketKey(final int pWidth, final int pHeight,
+			final Bitmap.Config pConfig) {
+		return Long.valueOf(((long) pWidth << 32) | ((long) pHeight << 8)
+				| (pConfig == null ? 0xFF : pConfig.ordinal()));
+	}
+
+	private static Field getOptionsField(final String pName) {
+		try {
+			return BitmapFactory.Options.class.getField(pName);
+		} catch (final NoSuchFieldException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package org.osmdroid.tileprovider;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.osmdroid.tileprovider.constants.OpenStreetMapTileProviderConstants;
+import org.osmdroid.tileprovider.tilesource.ITileSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A second level in-memory tile cache that holds tiles as they were downloaded or read from
+ * storage, i.e. compressed PNG or JPEG data, rather than decoded bitmaps. A compressed tile is
+ * typically a tenth of the size of its bitmap, so many more tiles can be kept in memory. Tiles
+ * evicted from the {@link MapTileCache} can then be decoded again without going back to the file
+ * system or the network.
+ *
+ * The least recently used tiles are evicted when the total size exceeds the maximum size.
+ *
+ * @see org.osmdroid.tileprovider.modules.MapTileCompressedCacheProvider
+ */
+public class CompressedMapTileCache implements OpenStreetMapTileProviderConstants {
+
+	private static final Logger logger = LoggerFactory.getLogger(CompressedMapTileCache.class);
+
+	private final LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<Long, Entry>(64, 0.75f, true);
+
+	private long mMaximumSizeBytes;
+	private long mSizeBytes;
+
+	private long mHitCount;
+	private long mMissCount;
+
+	public CompressedMapTileCache() {
+		this(CACHE_COMPRESSED_MAPTILE_SIZE_BYTES);
+	}
+
+	public CompressedMapTileCache(final long pMaximumSizeBytes) {
+		mMaximumSizeBytes = pMaximumSizeBytes;
+	}
+
+	/**
+	 * Get the compressed data of a tile.
+	 *
+	 * @return the data, which must not be modified, or null if the tile is not in the cache
+	 */
+	public synchronized byte[] get(final ITileSource pTileSource, final MapTile pTile) {
+		final Entry entry = mEntries.get(pTile.getTileId());
+		if (entry == null || !entry.tileSourceName.equals(pTileSource.name())) {
+			mMissCount++;
+			return null;
+		}
+		mHitCount++;
+		return entry.data;
+	}
+
+	/**
+	 * Add the compressed data of a tile. The data must not be modified afterwards.
+	 */
+	public synchronized void put(final ITileSource pTileSource, final MapTile pTile,
+			final byte[] pData) {
+		if (pData.length > mMaximumSizeBytes) {
+			return;
+		}
+		final Entry previous = mEntries.put(pTile.getTileId(), new Entry(pTileSource.name(), pData));
+		if (previous != null) {
+			mSizeBytes -= previous.data.length;
+		}
+		mSizeBytes += pData.length;
+		trim();
+	}
+
+	public synchronized void remove(final MapTile pTile) {
+		final Entry previous = mEntries.remove(pTile.getTileId());
+		if (previous != null) {
+			mSizeBytes -= previous.data.length;
+		}
+	}
+
+	public synchronized void clear() {
+		mEntries.clear();
+		mSizeBytes = 0;
+	}
+
+	public synchronized void setMaximumSizeBytes(final long pMaximumSizeBytes) {
+		mMaximumSizeBytes = pMaximumSizeBytes;
+		trim();
+	}
+
+	public synchronized long getSizeInBytes() {
+		return mSizeBytes;
+	}
+
+	public synchronized int size() {
+		return mEntries.size();
+	}
+
+	public synchronized long getHitCount() {
+		return mHitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return mMissCount;
+	}
+
+	private void trim() {
+		if (mSizeBytes <= mMaximumSizeBytes) {
+			return;
+		}
+		if (DEBUGMODE) {
+			logger.debug("Trimming compressed tile cache from " + mSizeBytes + " bytes");
+		}
+		final Iterator<Entry> iterator = mEntries.values().iterator();
+		while (mSizeBytes > mMaximumSizeBytes && iterator.hasNext()) {
+			mSizeBytes -= iterator.next().data.length;
+			iterator.remove();
+		}
+	}
+
+	private static class Entry {
+		final String tileSourceName;
+		final byte[] data;
+
+		Entry(final String pTileSourceName, final byte[] pData) {
+			tileSourceName = pTileSourceName;
+			data = pData;
+		}
+	}
+}
@@ -0,0 +1,440 @@
+package org.osmdroid.tileprovider;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.osmdroid.tileprovider.constants.OpenStreetMapTileProviderConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.graphics.drawable.Drawable;
+
+/**
+ * A tile cache engine for many concurrent readers. Tiles are spread over lock-striped segments.
+ * Lookups never take a lock: a tile that is read is only marked as referenced, and the CLOCK
+ * algorithm uses that mark to choose the tiles to evict when the memory budget is exceeded. Only
+ * adding and removing tiles lock a segment, so lookups from the UI thread are not held up by tile
+ * loader threads.
+ *
+ * Like {@link java.util.concurrent.ConcurrentHashMap}, a lookup that overlaps an update may see
+ * the tile as it was just before the update.
+ */
+public class ConcurrentMapTileCache implements IMapTileCacheEngine,
+		OpenStreetMapTileProviderConstants {
+
+	private static final Logger logger = LoggerFactory.getLogger(ConcurrentMapTileCache.class);
+
+	/** default number of segments */
+	public static final int DEFAULT_CONCURRENCY_LEVEL = 4;
+
+	private static final int MINIMUM_TABLE_SIZE = 8;
+
+	private final Segment[] mSegments;
+	private final int mSegmentShift;
+
+	private final AtomicInteger mSize = new AtomicInteger();
+	private final AtomicLong mSizeBytes = new AtomicLong();
+
+	/** the segment to evict from next, so that eviction is spread evenly */
+	private final AtomicInteger mEvictionSegment = new AtomicInteger();
+
+	private volatile int mCapacity;
+	private volatile long mMaximumSizeBytes;
+	private volatile long mTrimSizeBytes;
+	private volatile IMapTileCacheEvictionListener mEvictionListener;
+
+	/**
+	 * @param aCapacity
+	 *            the minimum number of tiles to keep
+	 * @param aMaximumSizeBytes
+	 *            the size in bytes above which tiles are evicted
+	 * @param aTrimSizeBytes
+	 *            the size in bytes to trim down to when evicting
+	 */
+	public ConcurrentMapTileCache(final int aCapacity, final long aMaximumSizeBytes,
+			final long aTrimSizeBytes) {
+		this(DEFAULT_CONCURRENCY_LEVEL, aCapacity, aMaximumSizeBytes, aTrimSizeBytes);
+	}
+
+	/**
+	 * @param aConcurrencyLevel
+	 *            the number of segments, rounded up to a power of two
+	 * @param aCapacity
+	 *            the minimum number of tiles to keep
+	 * @param aMaximumSizeBytes
+	 *            the size in bytes above which tiles are evicted
+	 * @param aTrimSizeBytes
+	 *            the size in bytes to trim down to when evicting
+	 */
+	public ConcurrentMapTileCache(final int aConcurrencyLevel, final int aCapacity,
+			final long aMaximumSizeBytes, final long aTrimSizeBytes) {
+		int segmentCount = 1;
+		int segmentBits = 0;
+		while (segmentCount < aConcurrencyLevel) {
+			segmentCount <<= 1;
+			segmentBits++;
+		}
+		mSegmentShift = 32 - segmentBits;
+		mSegments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			mSegments[i] = new Segment();
+		}
+		mCapacity = aCapacity;
+		setMemoryLimits(aMaximumSizeBytes, aTrimSizeBytes);
+	}
+
+	@Override
+	public Drawable get(final long pTileId) {
+		final int hash = hash(pTileId);
+		return segmentFor(hash).get(pTileId, hash, true);
+	}
+
+	@Override
+	public boolean containsKey(final long pTileId) {
+		final int hash = hash(pTileId);
+		return segmentFor(hash).get(pTileId, hash, false) != null;
+	}
+
+	@Override
+	public Drawable put(final long pTileId, final Drawable pDrawable) {
+		final int hash = hash(pTileId);
+		final Drawable previous = segmentFor(hash).put(pTileId, hash, pDrawable, sizeOf(pDrawable));
+		trim();
+		return previous;
+	}
+
+	@Override
+	public Drawable remove(final long pTileId) {
+		final int hash = hash(pTileId);
+		return segmentFor(hash).remove(pTileId, hash);
+	}
+
+	@Override
+	public void clear() {
+		for (final Segment segment : mSegments) {
+			segment.clear();
+		}
+	}
+
+	@Override
+	public void ensureCapacity(final int pCapacity) {
+		if (pCapacity > mCapacity) {
+			logger.info("Tile cache increased from " + mCapacity + " to " + pCapacity);
+			mCapacity = pCapacity;
+		}
+	}
+
+	@Override
+	public void setMemoryLimits(final long pMaximumSizeBytes, final long pTrimSizeBytes) {
+		if (pTrimSizeBytes > pMaximumSizeBytes) {
+			throw new IllegalArgumentException("Trim size " + pTrimSizeBytes
+					+ " is greater than maximum size " + pMaximumSizeBytes);
+		}
+		mMaximumSizeBytes = pMaximumSizeBytes;
+		mTrimSizeBytes = pTrimSizeBytes;
+		trim();
+	}
+
+	@Override
+	public void setEvictionListener(final IMapTileCacheEvictionListener pListener) {
+		mEvictionListener = pListener;
+	}
+
+	@Override
+	public int size() {
+		return mSize.get();
+	}
+
+	@Override
+	public long sizeInBytes() {
+		return mSizeBytes.get();
+	}
+
+	/**
+	 * Get the number of bytes to account for the drawable. The default implementation is
+	 * {@link MapTileCache#sizeOf(Drawable)}.
+	 */
+	protected int sizeOf(final Drawable pDrawable) {
+		return MapTileCache.sizeOf(pDrawable);
+	}
+
+	/**
+	 * If the cache is above the maximum size then evict tiles until it is down to the trim size.
+	 * One tile at a time is evicted from each segment in turn.
+	 */
+	private void trim() {
+		if (mSizeBytes.get() <= mMaximumSizeBytes) {
+			return;
+		}
+		if (DEBUGMODE) {
+			logger.debug("Trimming tile cache from " + mSizeBytes.get() + " bytes");
+		}
+		int emptySegments = 0;
+		while (mSizeBytes.get() > mTrimSizeBytes && mSize.get() > mCapacity
+				&& emptySegments < mSegments.length) {
+			final int index = mEvictionSegment.getAndIncrement() & (mSegments.length - 1);
+			if (mSegments[index].evictOne()) {
+				emptySegments = 0;
+			} else {
+				emptySegments++;
+			}
+		}
+	}
+
+	private Segment segmentFor(final int pHash) {
+		return mSegments[mSegments.length == 1 ? 0 : pHash >>> mSegmentShift];
+	}
+
+	private static int hash(final long pTileId) {
+		// spread the bits because the low bits of the tile id are the low bits of x and y
+		final int hash = MapTile.hashCode(pTileId) * 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * A hash table entry. The key and the chain are final so that readers can walk a chain
+	 * without locking. Removing an entry copies the entries in front of it in its chain.
+	 */
+	private static final class Entry {
+		final long key;
+		final int hash;
+		final Entry next;
+		volatile Drawable value;
+		volatile boolean referenced;
+		/** guarded by the segment lock */
+		int size;
+		/** guarded by the segment lock */
+		ClockNode node;
+
+		Entry(final long pKey, final int pHash, final Drawable pValue, final int pSize,
+				final Entry pNext) {
+			key = pKey;
+			hash = pHash;
+			value = pValue;
+			size = pSize;
+			next = pNext;
+		}
+	}
+
+	/**
+	 * A position on the CLOCK of a segment. It is separate from the entry so that an entry can be
+	 * copied without losing its position.
+	 */
+	private static final class ClockNode {
+		Entry entry;
+		ClockNode before;
+		ClockNode after;
+	}
+
+	@SuppressWarnings("serial")
+	private final class Segment extends ReentrantLock {
+
+		/** written after every change to the table so that readers see the change */
+		private volatile int mCount;
+		private volatile Entry[] mTable = new Entry[MINIMUM_TABLE_SIZE];
+
+		/** the next node to consider for eviction, guarded by the lock */
+		private ClockNode mHand;
+
+		Drawable get(final long pKey, final int pHash, final boolean pReference) {
+			if (mCount != 0) {
+				final Entry[] table = mTable;
+				for (Entry entry = table[pHash & (table.length - 1)]; entry != null; entry = entry.next) {
+					if (entry.key == pKey) {
+						if (pReference && !entry.referenced) {
+							entry.referenced = true;
+						}
+						return entry.value;
+					}
+				}
+			}
+			return null;
+		}
+
+		Drawable put(final long pKey, final int pHash, final Drawable pValue, final int pSize) {
+			Drawable previous = null;
+			int previousSize = 0;
+			lock();
+			try {
+				Entry[] table = mTable;
+				for (Entry entry = table[pHash & (table.length - 1)]; entry != null; entry = entry.next) {
+					if (entry.key == pKey) {
+						previous = entry.value;
+						previousSize = entry.size;
+						entry.value = pValue;
+						entry.size = pSize;
+						entry.referenced = true;
+						mSizeBytes.addAndGet(pSize - previousSize);
+						if (previous != pValue) {
+							onRemoved(pKey, previous, previousSize);
+						}
+						return previous;
+					}
+				}
+
+				final int count = mCount;
+				if (count >= table.length - (table.length >> 2)) {
+					table = rehash();
+				}
+				final int index = pHash & (table.length - 1);
+				final Entry entry = new Entry(pKey, pHash, pValue, pSize, table[index]);
+				entry.referenced = true;
+				final ClockNode node = new ClockNode();
+				node.entry = entry;
+				entry.node = node;
+				linkBehindHand(node);
+				table[index] = entry;
+				mSize.incrementAndGet();
+				mSizeBytes.addAndGet(pSize);
+				mCount = count + 1;
+				return null;
+			} finally {
+				unlock();
+			}
+		}
+
+		Drawable remove(final long pKey, final int pHash) {
+			lock();
+			try {
+				final Entry entry = removeEntry(pKey, pHash);
+				if (entry == null) {
+					return null;
+				}
+				onRemoved(pKey, entry.value, entry.size);
+				return entry.value;
+			} finally {
+				unlock();
+			}
+		}
+
+		/**
+		 * Evict the first unreferenced tile found by the CLOCK hand, clearing the referenced mark
+		 * of the tiles it passes.
+		 *
+		 * @return false if the segment is empty
+		 */
+		boolean evictOne() {
+			lock();
+			try {
+				// two turns of the clock are enough to find an unreferenced entry
+				for (int i = mCount * 2; i >= 0 && mHand != null; i--) {
+					final Entry entry = mHand.entry;
+					if (entry.referenced) {
+						entry.referenced = false;
+						mHand = mHand.after;
+					} else {
+						removeEntry(entry.key, entry.hash);
+						onRemoved(entry.key, entry.value, entry.size);
+						return true;
+					}
+				}
+				return false;
+			} finally {
+				unlock();
+			}
+		}
+
+		void clear() {
+			lock();
+			try {
+				while (mHand != null) {
+					final Entry entry = mHand.entry;
+					removeEntry(entry.key, entry.hash);
+					onRemoved(entry.key, entry.value, entry.size);
+				}
+				mTable = new Entry[MINIMUM_TABLE_SIZE];
+				mCount = 0;
+			} finally {
+				unlock();
+			}
+		}
+
+		/**
+		 * Remove the entry from the table and the clock. Must be called with the lock held.
+		 */
+		private Entry removeEntry(final long pKey, final int pHash) {
+			final Entry[] table = mTable;
+			final int index = pHash & (table.length - 1);
+			final Entry first = table[index];
+			Entry entry = first;
+			while (entry != null && entry.key != pKey) {
+				entry = entry.next;
+			}
+			if (entry == null) {
+				return null;
+			}
+
+			// copy the entries in front of the removed one
+			Entry newFirst = entry.next;
+			for (Entry p = first; p != entry; p = p.next) {
+				newFirst = copy(p, newFirst);
+			}
+			table[index] = newFirst;
+			unlink(entry.node);
+			entry.node = null;
+			mSize.decrementAndGet();
+			mSizeBytes.addAndGet(-entry.size);
+			mCount = mCount - 1;
+			return entry;
+		}
+
+		/**
+		 * Double the size of the table. Must be called with the lock held.
+		 */
+		private Entry[] rehash() {
+			final Entry[] oldTable = mTable;
+			final Entry[] newTable = new Entry[oldTable.length << 1];
+			for (Entry entry : oldTable) {
+				for (; entry != null; entry = entry.next) {
+					final int index = entry.hash & (newTable.length - 1);
+					newTable[index] = copy(entry, newTable[index]);
+				}
+			}
+			mTable = newTable;
+			return newTable;
+		}
+
+		private Entry copy(final Entry pEntry, final Entry pNext) {
+			final Entry copy = new Entry(pEntry.key, pEntry.hash, pEntry.value, pEntry.size, pNext);
+			copy.referenced = pEntry.referenced;
+			copy.node = pEntry.node;
+			copy.node.entry = copy;
+			return copy;
+		}
+
+		private void linkBehindHand(final ClockNode pNode) {
+			if (mHand == null) {
+				pNode.before = pNode;
+				pNode.after = pNode;
+				mHand = pNode;
+			} else {
+				pNode.after = mHand;
+				pNode.before = mHand.before;
+				mHand.before.after = pNode;
+				mHand.before = pNode;
+			}
+		}
+
+		private void unlink(final ClockNode pNode) {
+			if (pNode.after == pNode) {
+				mHand = null;
+			} else {
+				if (mHand == pNode) {
+					mHand = pNode.after;
+				}
+				pNode.before.after = pNode.after;
+				pNode.after.before = pNode.before;
+			}
+			pNode.before = null;
+			pNode.after = null;
+		}
+
+		private void onRemoved(final long pKey, final Drawable pDrawable, final int pSize) {
+			final IMapTileCacheEvictionListener listener = mEvictionListener;
+			if (listener != null) {
+				listener.onTileEvicted(pKey, pDrawable, pSize);
+			}
+		}
+	}
+}
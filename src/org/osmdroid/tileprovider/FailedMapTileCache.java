@@ -0,0 +1,103 @@
+package org.osmdroid.tileprovider;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.osmdroid.tileprovider.constants.OpenStreetMapTileProviderConstants;
+import org.osmdroid.tileprovider.util.ExponentialBackoff;
+
+/**
+ * Remembers the tiles that recently failed to load, so that they aren't requested again every time
+ * the map is drawn. A failed tile may be requested again after a randomised delay which doubles each
+ * time the tile fails, up to {@link #FAILED_TILE_MAXIMUM_RETRY_MILLISECONDS}.
+ *
+ * This class is thread-safe.
+ */
+public class FailedMapTileCache implements OpenStreetMapTileProviderConstants {
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final LinkedHashMap<Long, Failure> mFailures;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public FailedMapTileCache() {
+		this(FAILED_TILE_CACHE_SIZE);
+	}
+
+	/**
+	 * @param pMaximumSize
+	 *            the number of failed tiles above which the least recently failed are forgotten
+	 */
+	public FailedMapTileCache(final int pMaximumSize) {
+		mFailures = new LinkedHashMap<Long, Failure>(pMaximumSize + 2, 0.75f, false) {
+			private static final long serialVersionUID = -6590829004838407262L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<Long, Failure> pEldest) {
+				return size() > pMaximumSize;
+			}
+		};
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * @return true if the tile failed to load and it's too soon to request it again
+	 */
+	public synchronized boolean isFailed(final long pTileId) {
+		if (mFailures.isEmpty()) {
+			return false;
+		}
+		final Failure failure = mFailures.get(pTileId);
+		return failure != null && System.currentTimeMillis() < failure.retryTime;
+	}
+
+	/**
+	 * Record that the tile failed to load.
+	 */
+	public synchronized void onFailure(final long pTileId) {
+		Failure failure = mFailures.remove(pTileId);
+		if (failure == null) {
+			failure = new Failure();
+		}
+		failure.retryTime = System.currentTimeMillis()
+				+ ExponentialBackoff.getDelay(FAILED_TILE_RETRY_MILLISECONDS,
+						FAILED_TILE_MAXIMUM_RETRY_MILLISECONDS, failure.count);
+		failure.count++;
+		// put it back so that it's the most recent failure
+		mFailures.put(pTileId, failure);
+	}
+
+	/**
+	 * Record that the tile loaded, so forget its failures.
+	 */
+	public synchronized void onSuccess(final long pTileId) {
+		if (!mFailures.isEmpty()) {
+			mFailures.remove(pTileId);
+		}
+	}
+
+	public synchronized void clear() {
+		mFailures.clear();
+	}
+
+	public synchronized int size() {
+		return mFailures.size();
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	private static class Failure {
+		long retryTime;
+		int count;
+	}
+}
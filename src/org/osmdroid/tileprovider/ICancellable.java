@@ -0,0 +1,14 @@
+package org.osmdroid.tileprovider;
+
+/**
+ * Something that may be cancelled while a tile is being fetched for it, such as a tile request or
+ * a bulk download.
+ */
+public interface ICancellable {
+
+	/**
+	 * @return true if the work has been cancelled and should stop as soon as possible
+	 */
+	boolean isCancelled();
+
+}
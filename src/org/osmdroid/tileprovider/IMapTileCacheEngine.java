@@ -0,0 +1,60 @@
+package org.osmdroid.tileprovider;
+
+import android.graphics.drawable.Drawable;
+
+/**
+ * The storage behind a {@link MapTileCache}. Implementations map tile ids (see
+ * {@link MapTile#getTileId()}) to drawables within a memory budget and must be thread safe.
+ *
+ * @see LRUMapTileCache
+ * @see ConcurrentMapTileCache
+ */
+public interface IMapTileCacheEngine {
+
+	/**
+	 * Get the tile and record that it has been used.
+	 *
+	 * @return the drawable, or null if the tile is not in the cache
+	 */
+	Drawable get(long pTileId);
+
+	boolean containsKey(long pTileId);
+
+	/**
+	 * Add the tile, evicting other tiles if the memory budget is exceeded.
+	 *
+	 * @return the previous drawable for the tile, or null if there was none
+	 */
+	Drawable put(long pTileId, Drawable pDrawable);
+
+	/**
+	 * @return the removed drawable, or null if the tile was not in the cache
+	 */
+	Drawable remove(long pTileId);
+
+	void clear();
+
+	/**
+	 * Make sure that at least this many tiles are kept, even if that exceeds the memory budget.
+	 */
+	void ensureCapacity(int pCapacity);
+
+	/**
+	 * Set the memory budget.
+	 *
+	 * @param pMaximumSizeBytes
+	 *            the size in bytes above which tiles are evicted
+	 * @param pTrimSizeBytes
+	 *            the size in bytes to trim down to when evicting
+	 */
+	void setMemoryLimits(long pMaximumSizeBytes, long pTrimSizeBytes);
+
+	void setEvictionListener(IMapTileCacheEvictionListener pListener);
+
+	int size();
+
+	/**
+	 * @return the total accounted size of the cached drawables in bytes
+	 */
+	long sizeInBytes();
+}
@@ -0,0 +1,23 @@
+package org.osmdroid.tileprovider;
+
+import android.graphics.drawable.Drawable;
+
+/**
+ * Notified when a tile is removed from the {@link MapTileCache}, either because the cache has
+ * exceeded its memory budget or because the cache has been cleared.
+ */
+public interface IMapTileCacheEvictionListener {
+
+	/**
+	 * A tile has been removed from the cache. This is called while the cache is locked, so the
+	 * implementation should be quick and must not call back into the cache.
+	 *
+	 * @param pTileId
+	 *            the tile id, see {@link MapTile#getTileId()}
+	 * @param pDrawable
+	 *            the drawable that was removed
+	 * @param pSizeInBytes
+	 *            the number of bytes the drawable was accounted for
+	 */
+	void onTileEvicted(long pTileId, Drawable pDrawable, int pSizeInBytes);
+}
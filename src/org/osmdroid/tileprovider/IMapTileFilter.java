@@ -0,0 +1,14 @@
+package org.osmdroid.tileprovider;
+
+/**
+ * Selects tiles, for example the tile requests to cancel.
+ */
+public interface IMapTileFilter {
+
+	/**
+	 * @param pTileId
+	 *            a tile id as returned by {@link MapTile#getTileId()}
+	 * @return true if the tile is selected
+	 */
+	boolean accept(long pTileId);
+}
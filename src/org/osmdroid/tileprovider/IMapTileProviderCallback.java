@@ -33,6 +33,15 @@ public interface IMapTileProviderCallback {
 	 */
 	void mapTileRequestFailed(MapTileRequestState aState);
 
+	/**
+	 * The map tile request was dropped by a provider before the tile was loaded, for example
+	 * because the provider's queue was full. The tile may be requested again.
+	 * 
+	 * @param aState
+	 *            a state object
+	 */
+	void mapTileRequestDropped(MapTileRequestState aState);
+
 	/**
 	 * Returns true if the network connection should be used, false if not.
 	 * 
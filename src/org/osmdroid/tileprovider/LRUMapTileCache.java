@@ -1,50 +1,352 @@
 package org.osmdroid.tileprovider;
 
-import java.util.LinkedHashMap;
-import java.util.Map.Entry;
-
+import org.osmdroid.tileprovider.constants.OpenStreetMapTileProviderConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import android.graphics.drawable.Drawable;
 
-public class LRUMapTileCache extends LinkedHashMap<MapTile, Drawable> {
+/**
+ * An access-ordered hash map from tile id (see {@link MapTile#getTileId()}) to {@link Drawable}
+ * with a memory budget. Each drawable is accounted for by the size of its pixel data. When the
+ * total exceeds the maximum size, the least recently used tiles are evicted until the total is
+ * down to the trim size, but never below the minimum tile count set by
+ * {@link #ensureCapacity(int)}. The keys are primitive longs so that lookups don't allocate. All
+ * access is serialised on this object, including {@link #get(long)} because it changes the order.
+ */
+public class LRUMapTileCache implements IMapTileCacheEngine, OpenStreetMapTileProviderConstants {
 
 	private static final Logger logger = LoggerFactory.getLogger(LRUMapTileCache.class);
 
-	private static final long serialVersionUID = -541142277575493335L;
+	private static final int MINIMUM_TABLE_SIZE = 16;
 
+	/** the number of tiles to keep regardless of the memory budget */
 	private int mCapacity;
 
-	public LRUMapTileCache(final int aCapacity) {
-		super(aCapacity + 2, 0.1f, true);
+	private long mMaximumSizeBytes;
+	private long mTrimSizeBytes;
+	private long mSizeBytes;
+
+	private IMapTileCacheEvictionListener mEvictionListener;
+
+	private Entry[] mTable;
+	private int mSize;
+
+	/** the least recently used entry */
+	private Entry mEldest;
+	/** the most recently used entry */
+	private Entry mYoungest;
+
+	/**
+	 * @param aCapacity
+	 *            the minimum number of tiles to keep
+	 * @param aMaximumSizeBytes
+	 *            the size in bytes above which tiles are evicted
+	 * @param aTrimSizeBytes
+	 *            the size in bytes to trim down to when evicting
+	 */
+	public LRUMapTileCache(final int aCapacity, final long aMaximumSizeBytes,
+			final long aTrimSizeBytes) {
 		mCapacity = aCapacity;
+		setMemoryLimits(aMaximumSizeBytes, aTrimSizeBytes);
+		mTable = new Entry[tableSizeFor(aCapacity)];
 	}
 
-	public void ensureCapacity(final int aCapacity) {
+	/**
+	 * Make sure that at least this many tiles are kept, even if that exceeds the memory budget.
+	 */
+	@Override
+	public synchronized void ensureCapacity(final int aCapacity) {
 		if (aCapacity > mCapacity) {
 			logger.info("Tile cache increased from " + mCapacity + " to " + aCapacity);
 			mCapacity = aCapacity;
 		}
 	}
 
+	/**
+	 * Set the memory budget. If the cache is already above the maximum size it is trimmed
+	 * immediately.
+	 *
+	 * @param aMaximumSizeBytes
+	 *            the size in bytes above which tiles are evicted
+	 * @param aTrimSizeBytes
+	 *            the size in bytes to trim down to when evicting
+	 */
+	@Override
+	public synchronized void setMemoryLimits(final long aMaximumSizeBytes,
+			final long aTrimSizeBytes) {
+		if (aTrimSizeBytes > aMaximumSizeBytes) {
+			throw new IllegalArgumentException("Trim size " + aTrimSizeBytes
+					+ " is greater than maximum size " + aMaximumSizeBytes);
+		}
+		mMaximumSizeBytes = aMaximumSizeBytes;
+		mTrimSizeBytes = aTrimSizeBytes;
+		trim(null);
+	}
+
+	public synchronized long getMaximumSizeBytes() {
+		return mMaximumSizeBytes;
+	}
+
+	public synchronized long getTrimSizeBytes() {
+		return mTrimSizeBytes;
+	}
+
+	@Override
+	public synchronized void setEvictionListener(final IMapTileCacheEvictionListener aListener) {
+		mEvictionListener = aListener;
+	}
+
 	@Override
-	public void clear() {
+	public synchronized int size() {
+		return mSize;
+	}
+
+	/**
+	 * @return the total accounted size of the cached drawables in bytes
+	 */
+	@Override
+	public synchronized long sizeInBytes() {
+		return mSizeBytes;
+	}
+
+	public Drawable get(final MapTile aTile) {
+		return get(aTile.getTileId());
+	}
+
+	/**
+	 * Get the tile and mark it as the most recently used.
+	 *
+	 * @return the drawable, or null if the tile is not in the cache
+	 */
+	@Override
+	public synchronized Drawable get(final long aTileId) {
+		final Entry entry = getEntry(aTileId);
+		if (entry == null) {
+			return null;
+		}
+		moveToYoungest(entry);
+		return entry.value;
+	}
+
+	public boolean containsKey(final MapTile aTile) {
+		return containsKey(aTile.getTileId());
+	}
+
+	@Override
+	public synchronized boolean containsKey(final long aTileId) {
+		return getEntry(aTileId) != null;
+	}
+
+	public Drawable put(final MapTile aTile, final Drawable aDrawable) {
+		return put(aTile.getTileId(), aDrawable);
+	}
+
+	/**
+	 * Add the tile as the most recently used, evicting the least recently used tile if the
+	 * capacity is exceeded.
+	 *
+	 * @return the previous drawable for the tile, or null if there was none
+	 */
+	@Override
+	public synchronized Drawable put(final long aTileId, final Drawable aDrawable) {
+		final int size = sizeOf(aDrawable);
+		Entry entry = getEntry(aTileId);
+		if (entry != null) {
+			final Drawable previous = entry.value;
+			final int previousSize = entry.size;
+			entry.value = aDrawable;
+			entry.size = size;
+			mSizeBytes += size - previousSize;
+			moveToYoungest(entry);
+			if (previous != aDrawable) {
+				onRemoved(aTileId, previous, previousSize);
+			}
+			trim(entry);
+			return previous;
+		}
+
+		if (mSize >= mTable.length) {
+			resize(mTable.length << 1);
+		}
+		final int index = indexFor(aTileId, mTable.length);
+		entry = new Entry(aTileId, aDrawable, size, mTable[index]);
+		mTable[index] = entry;
+		linkYoungest(entry);
+		mSize++;
+		mSizeBytes += size;
+
+		trim(entry);
+		return null;
+	}
+
+	public Drawable remove(final MapTile aTile) {
+		return remove(aTile.getTileId());
+	}
+
+	/**
+	 * Remove the tile.
+	 *
+	 * @return the removed drawable, or null if the tile was not in the cache
+	 */
+	@Override
+	public synchronized Drawable remove(final long aTileId) {
+		final Entry entry = removeEntry(aTileId);
+		if (entry == null) {
+			return null;
+		}
+		onRemoved(aTileId, entry.value, entry.size);
+		return entry.value;
+	}
+
+	private Entry removeEntry(final long aTileId) {
+		final int index = indexFor(aTileId, mTable.length);
+		Entry previous = null;
+		for (Entry entry = mTable[index]; entry != null; entry = entry.next) {
+			if (entry.key == aTileId) {
+				if (previous == null) {
+					mTable[index] = entry.next;
+				} else {
+					previous.next = entry.next;
+				}
+				unlink(entry);
+				mSize--;
+				mSizeBytes -= entry.size;
+				return entry;
+			}
+			previous = entry;
+		}
+		return null;
+	}
+
+	@Override
+	public synchronized void clear() {
 		// remove them all individually so that they get recycled
-		while (size() > 0) {
-			remove(keySet().iterator().next());
+		while (mEldest != null) {
+			remove(mEldest.key);
 		}
 
 		// and then clear
-		super.clear();
+		mTable = new Entry[tableSizeFor(mCapacity)];
+		mSize = 0;
+		mSizeBytes = 0;
 	}
 
-	@Override
-	protected boolean removeEldestEntry(final Entry<MapTile, Drawable> aEldest) {
-		if (size() > mCapacity) {
-			remove(aEldest.getKey());
-			// don't return true because we've already removed it
+	/**
+	 * Get the number of bytes to account for the drawable. The default implementation is
+	 * {@link MapTileCache#sizeOf(Drawable)}.
+	 */
+	protected int sizeOf(final Drawable aDrawable) {
+		return MapTileCache.sizeOf(aDrawable);
+	}
+
+	/**
+	 * If the cache is above the maximum size then evict the least recently used tiles until it is
+	 * down to the trim size.
+	 *
+	 * @param aKeep
+	 *            an entry that must not be evicted, or null
+	 */
+	private void trim(final Entry aKeep) {
+		if (mSizeBytes <= mMaximumSizeBytes) {
+			return;
+		}
+		if (DEBUGMODE) {
+			logger.debug("Trimming tile cache from " + mSizeBytes + " bytes");
+		}
+		while (mSizeBytes > mTrimSizeBytes && mSize > mCapacity && mEldest != null
+				&& mEldest != aKeep) {
+			remove(mEldest.key);
+		}
+	}
+
+	private void onRemoved(final long aTileId, final Drawable aDrawable, final int aSize) {
+		if (mEvictionListener != null) {
+			mEvictionListener.onTileEvicted(aTileId, aDrawable, aSize);
+		}
+	}
+
+	private Entry getEntry(final long aTileId) {
+		for (Entry entry = mTable[indexFor(aTileId, mTable.length)]; entry != null; entry = entry.next) {
+			if (entry.key == aTileId) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	private void resize(final int aTableSize) {
+		final Entry[] table = new Entry[aTableSize];
+		for (Entry entry = mEldest; entry != null; entry = entry.after) {
+			final int index = indexFor(entry.key, aTableSize);
+			entry.next = table[index];
+			table[index] = entry;
+		}
+		mTable = table;
+	}
+
+	private void moveToYoungest(final Entry aEntry) {
+		if (aEntry != mYoungest) {
+			unlink(aEntry);
+			linkYoungest(aEntry);
+		}
+	}
+
+	private void linkYoungest(final Entry aEntry) {
+		aEntry.before = mYoungest;
+		aEntry.after = null;
+		if (mYoungest == null) {
+			mEldest = aEntry;
+		} else {
+			mYoungest.after = aEntry;
+		}
+		mYoungest = aEntry;
+	}
+
+	private void unlink(final Entry aEntry) {
+		if (aEntry.before == null) {
+			mEldest = aEntry.after;
+		} else {
+			aEntry.before.after = aEntry.after;
+		}
+		if (aEntry.after == null) {
+			mYoungest = aEntry.before;
+		} else {
+			aEntry.after.before = aEntry.before;
+		}
+		aEntry.before = null;
+		aEntry.after = null;
+	}
+
+	private static int indexFor(final long aTileId, final int aTableSize) {
+		// spread the bits because the low bits of the tile id are the low bits of x and y
+		final int hash = MapTile.hashCode(aTileId) * 0x9E3779B9;
+		return (hash ^ (hash >>> 16)) & (aTableSize - 1);
+	}
+
+	private static int tableSizeFor(final int aCapacity) {
+		int size = MINIMUM_TABLE_SIZE;
+		while (size < aCapacity) {
+			size <<= 1;
+		}
+		return size;
+	}
+
+	private static class Entry {
+		final long key;
+		Drawable value;
+		int size;
+		/** next entry in the same hash bucket */
+		Entry next;
+		/** neighbours in least recently used order */
+		Entry before;
+		Entry after;
+
+		Entry(final long pKey, final Drawable pValue, final int pSize, final Entry pNext) {
+			key = pKey;
+			value = pValue;
+			size = pSize;
+			next = pNext;
 		}
-		return false;
 	}
 }
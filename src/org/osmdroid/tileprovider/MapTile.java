@@ -8,22 +8,40 @@ import org.osmdroid.views.overlay.TilesOverlay;
  * (i.e. a descendant of {@link MapTileModuleProviderBase} or
  * {@link MapTileProviderBase} to a consumer of tiles (e.g. descendant of
  * {@link TilesOverlay}). Tiles are typically images (e.g. png or jpeg).
+ *
+ * Every tile also has a packed 64-bit tile id (see {@link #getTileId(int, int, int)}) which can be
+ * used in place of a {@link MapTile} object where allocations should be avoided, e.g. when
+ * drawing.
  */
 public class MapTile {
 
 	public static final int MAPTILE_SUCCESS_ID = 0;
 	public static final int MAPTILE_FAIL_ID = MAPTILE_SUCCESS_ID + 1;
 
+	/** number of bits of each of x and y in a tile id */
+	private static final int TILE_ID_COORDINATE_BITS = 29;
+	private static final int TILE_ID_ZOOM_SHIFT = TILE_ID_COORDINATE_BITS * 2;
+	private static final long TILE_ID_COORDINATE_MASK = (1L << TILE_ID_COORDINATE_BITS) - 1;
+
 	// This class must be immutable because it's used as the key in the cache hash map
 	// (ie all the fields are final).
 	private final int x;
 	private final int y;
 	private final int zoomLevel;
+	private final long tileId;
 
 	public MapTile(final int zoomLevel, final int tileX, final int tileY) {
 		this.zoomLevel = zoomLevel;
 		this.x = tileX;
 		this.y = tileY;
+		this.tileId = getTileId(zoomLevel, tileX, tileY);
+	}
+
+	/**
+	 * Create a tile from a tile id previously returned by {@link #getTileId(int, int, int)}.
+	 */
+	public MapTile(final long pTileId) {
+		this(getZoomLevel(pTileId), getX(pTileId), getY(pTileId));
 	}
 
 	public int getZoomLevel() {
@@ -38,6 +56,66 @@ public class MapTile {
 		return y;
 	}
 
+	public long getTileId() {
+		return tileId;
+	}
+
+	/**
+	 * Pack a tile into a single long. The zoom level is held in the top 6 bits and the x and y
+	 * coordinates are bit-interleaved (Morton order) in the remaining 58 bits, so tiles that are
+	 * close on the map have ids that differ only in their low bits. Coordinates must be in the
+	 * range 0 to 2^29-1 and the zoom level in the range -32 to 31 to survive a round trip.
+	 *
+	 * @return the tile id
+	 */
+	public static long getTileId(final int pZoomLevel, final int pX, final int pY) {
+		return ((long) pZoomLevel << TILE_ID_ZOOM_SHIFT)
+				| spread(pX & TILE_ID_COORDINATE_MASK)
+				| (spread(pY & TILE_ID_COORDINATE_MASK) << 1);
+	}
+
+	public static int getZoomLevel(final long pTileId) {
+		return (int) (pTileId >> TILE_ID_ZOOM_SHIFT);
+	}
+
+	public static int getX(final long pTileId) {
+		return compact(pTileId);
+	}
+
+	public static int getY(final long pTileId) {
+		return compact(pTileId >>> 1);
+	}
+
+	public static String toString(final long pTileId) {
+		return "/" + getZoomLevel(pTileId) + "/" + getX(pTileId) + "/" + getY(pTileId);
+	}
+
+	/**
+	 * Insert a zero bit after each of the low 29 bits.
+	 */
+	private static long spread(final long pValue) {
+		long v = pValue;
+		v = (v | (v << 16)) & 0x0000FFFF0000FFFFL;
+		v = (v | (v << 8)) & 0x00FF00FF00FF00FFL;
+		v = (v | (v << 4)) & 0x0F0F0F0F0F0F0F0FL;
+		v = (v | (v << 2)) & 0x3333333333333333L;
+		v = (v | (v << 1)) & 0x5555555555555555L;
+		return v;
+	}
+
+	/**
+	 * Inverse of {@link #spread(long)}, ignoring the zoom level bits.
+	 */
+	private static int compact(final long pValue) {
+		long v = pValue & 0x5555555555555555L & ((1L << TILE_ID_ZOOM_SHIFT) - 1);
+		v = (v | (v >>> 1)) & 0x3333333333333333L;
+		v = (v | (v >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+		v = (v | (v >>> 4)) & 0x00FF00FF00FF00FFL;
+		v = (v | (v >>> 8)) & 0x0000FFFF0000FFFFL;
+		v = (v | (v >>> 16)) & 0x00000000FFFFFFFFL;
+		return (int) v;
+	}
+
 	@Override
 	public String toString() {
 		return "/" + zoomLevel + "/" + x + "/" + y;
@@ -57,10 +135,14 @@ public class MapTile {
 
 	@Override
 	public int hashCode() {
-		int code = 17;
-		code *= 37 + zoomLevel;
-		code *= 37 + x;
-		code *= 37 + y;
-		return code;
+		return hashCode(tileId);
+	}
+
+	/**
+	 * The hash code of a tile id. This is the same as the hash code of the equivalent
+	 * {@link MapTile}.
+	 */
+	public static int hashCode(final long pTileId) {
+		return (int) (pTileId ^ (pTileId >>> 32));
 	}
 }
@@ -1,17 +1,20 @@
 // Created by plusminus on 17:58:57 - 25.09.2008
 package org.osmdroid.tileprovider;
 
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-
 import org.osmdroid.tileprovider.constants.OpenStreetMapTileProviderConstants;
 
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 
 /**
- * 
+ * The in-memory tile cache. The tiles are held by an {@link IMapTileCacheEngine}, which is an
+ * {@link LRUMapTileCache} by default. A {@link ConcurrentMapTileCache} can be selected instead so
+ * that lookups from the UI thread never wait for tile loader threads adding tiles. The bitmaps of
+ * evicted tiles are returned to the {@link BitmapPool} for reuse.
+ *
  * @author Nicolas Gramlich
- * 
+ *
  */
 public final class MapTileCache implements OpenStreetMapTileProviderConstants {
 	// ===========================================================
@@ -22,48 +25,118 @@ public final class MapTileCache implements OpenStreetMapTileProviderConstants {
 	// Fields
 	// ===========================================================
 
-	protected LRUMapTileCache mCachedTiles;
+	protected volatile IMapTileCacheEngine mCachedTiles;
+
+	private volatile IMapTileCacheEvictionListener mEvictionListener;
 
-	private final ReadWriteLock mReadWriteLock = new ReentrantReadWriteLock();
+	/**
+	 * Passes evicted tiles on to {@link #mEvictionListener} and then returns their bitmaps to the
+	 * {@link BitmapPool}.
+	 */
+	private final IMapTileCacheEvictionListener mPoolingEvictionListener = new IMapTileCacheEvictionListener() {
+		@Override
+		public void onTileEvicted(final long pTileId, final Drawable pDrawable,
+				final int pSizeInBytes) {
+			final IMapTileCacheEvictionListener listener = mEvictionListener;
+			if (listener != null) {
+				listener.onTileEvicted(pTileId, pDrawable, pSizeInBytes);
+			}
+			if (pDrawable instanceof ReusableBitmapDrawable) {
+				BitmapPool.getInstance().returnDrawableToPool((ReusableBitmapDrawable) pDrawable);
+			}
+		}
+	};
 
 	// ===========================================================
 	// Constructors
 	// ===========================================================
 
 	public MapTileCache() {
-		this(CACHE_MAPTILECOUNT_DEFAULT);
+		this(CACHE_MAPTILE_MAX_SIZE_BYTES, CACHE_MAPTILE_TRIM_SIZE_BYTES);
 	}
 
 	/**
-	 * @param aMaximumCacheSize
-	 *            Maximum amount of MapTiles to be hold within.
+	 * @param aMaximumCacheSizeBytes
+	 *            Size in bytes of the tiles held within above which tiles are evicted.
+	 * @param aTrimCacheSizeBytes
+	 *            Size in bytes to trim down to when tiles are evicted.
 	 */
-	public MapTileCache(final int aMaximumCacheSize) {
-		this.mCachedTiles = new LRUMapTileCache(aMaximumCacheSize);
+	public MapTileCache(final long aMaximumCacheSizeBytes, final long aTrimCacheSizeBytes) {
+		this(new LRUMapTileCache(CACHE_MAPTILECOUNT_DEFAULT, aMaximumCacheSizeBytes,
+				aTrimCacheSizeBytes));
+	}
+
+	public MapTileCache(final IMapTileCacheEngine aEngine) {
+		aEngine.setEvictionListener(mPoolingEvictionListener);
+		this.mCachedTiles = aEngine;
 	}
 
 	// ===========================================================
 	// Getter & Setter
 	// ===========================================================
 
+	/**
+	 * Replace the engine that holds the tiles. The tiles in the current engine are discarded.
+	 */
+	public synchronized void setEngine(final IMapTileCacheEngine aEngine) {
+		final IMapTileCacheEngine previous = mCachedTiles;
+		aEngine.setEvictionListener(mPoolingEvictionListener);
+		mCachedTiles = aEngine;
+		previous.clear();
+		previous.setEvictionListener(null);
+	}
+
+	public IMapTileCacheEngine getEngine() {
+		return mCachedTiles;
+	}
+
 	public void ensureCapacity(final int aCapacity) {
-		mReadWriteLock.readLock().lock();
 		mCachedTiles.ensureCapacity(aCapacity);
-		mReadWriteLock.readLock().unlock();
+	}
+
+	/**
+	 * Set the memory budget of the cache.
+	 *
+	 * @param aMaximumCacheSizeBytes
+	 *            Size in bytes of the tiles held within above which tiles are evicted.
+	 * @param aTrimCacheSizeBytes
+	 *            Size in bytes to trim down to when tiles are evicted.
+	 */
+	public void setMemoryLimits(final long aMaximumCacheSizeBytes, final long aTrimCacheSizeBytes) {
+		mCachedTiles.setMemoryLimits(aMaximumCacheSizeBytes, aTrimCacheSizeBytes);
+	}
+
+	public void setEvictionListener(final IMapTileCacheEvictionListener aListener) {
+		mEvictionListener = aListener;
+	}
+
+	/**
+	 * @return the total size in bytes of the tiles held within
+	 */
+	public long getSizeInBytes() {
+		return mCachedTiles.sizeInBytes();
 	}
 
 	public Drawable getMapTile(final MapTile aTile) {
-		mReadWriteLock.readLock().lock();
-		final Drawable result = this.mCachedTiles.get(aTile);
-		mReadWriteLock.readLock().unlock();
-		return result;
+		return getMapTile(aTile.getTileId());
+	}
+
+	/**
+	 * @param aTileId
+	 *            a tile id as returned by {@link MapTile#getTileId()}
+	 * @return the cached drawable, or null if the tile is not in the cache
+	 */
+	public Drawable getMapTile(final long aTileId) {
+		return this.mCachedTiles.get(aTileId);
 	}
 
 	public void putTile(final MapTile aTile, final Drawable aDrawable) {
+		putTile(aTile.getTileId(), aDrawable);
+	}
+
+	public void putTile(final long aTileId, final Drawable aDrawable) {
 		if (aDrawable != null) {
-			mReadWriteLock.writeLock().lock();
-			this.mCachedTiles.put(aTile, aDrawable);
-			mReadWriteLock.writeLock().unlock();
+			this.mCachedTiles.put(aTileId, aDrawable);
 		}
 	}
 
@@ -76,16 +149,31 @@ public final class MapTileCache implements OpenStreetMapTileProviderConstants {
 	// ===========================================================
 
 	public boolean containsTile(final MapTile aTile) {
-		mReadWriteLock.readLock().lock();
-		final boolean result = this.mCachedTiles.containsKey(aTile);
-		mReadWriteLock.readLock().unlock();
-		return result;
+		return containsTile(aTile.getTileId());
+	}
+
+	public boolean containsTile(final long aTileId) {
+		return this.mCachedTiles.containsKey(aTileId);
 	}
 
 	public void clear() {
-		mReadWriteLock.writeLock().lock();
 		this.mCachedTiles.clear();
-		mReadWriteLock.writeLock().unlock();
+	}
+
+	/**
+	 * Get the number of bytes a cache engine should account for the drawable. This is the size of
+	 * the pixel data of a {@link BitmapDrawable}. Other drawables, such as a
+	 * {@link org.osmdroid.tileprovider.modules.MapTileInterpolator}, only reference other tiles
+	 * and are not counted.
+	 */
+	public static int sizeOf(final Drawable aDrawable) {
+		if (aDrawable instanceof BitmapDrawable) {
+			final Bitmap bitmap = ((BitmapDrawable) aDrawable).getBitmap();
+			if (bitmap != null) {
+				return bitmap.getRowBytes() * bitmap.getHeight();
+			}
+		}
+		return 0;
 	}
 
 	// ===========================================================
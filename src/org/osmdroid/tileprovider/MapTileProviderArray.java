@@ -31,7 +31,11 @@ import android.graphics.drawable.Drawable;
  */
 public class MapTileProviderArray extends MapTileProviderBase {
 
-	private final ConcurrentHashMap<MapTileRequestState, MapTile> mWorking;
+	/** the requests in progress, by tile */
+	private final ConcurrentHashMap<MapTile, MapTileRequestState> mWorking;
+
+	/** the tiles that recently failed to load */
+	protected final FailedMapTileCache mFailedTiles = new FailedMapTileCache();
 
 	private static final Logger logger = LoggerFactory.getLogger(MapTileProviderArray.class);
 
@@ -54,7 +58,7 @@ public class MapTileProviderArray extends MapTileProviderBase {
 			final MapTileModuleProviderBase[] pTileProviderArray) {
 		super(pTileSource);
 
-		mWorking = new ConcurrentHashMap<MapTileRequestState, MapTile>();
+		mWorking = new ConcurrentHashMap<MapTile, MapTileRequestState>();
 
 		mTileProviderList = new ArrayList<MapTileModuleProviderBase>();
 		Collections.addAll(mTileProviderList, pTileProviderArray);
@@ -70,74 +74,165 @@ public class MapTileProviderArray extends MapTileProviderBase {
 	}
 
 	@Override
-	public Drawable getMapTile(final MapTile pTile) {
-		if (mTileCache.containsTile(pTile)) {
-			if (DEBUGMODE)
-				logger.debug("MapTileCache succeeded for: " + pTile);
-			return mTileCache.getMapTile(pTile);
-		} else {
-			boolean alreadyInProgress = false;
-			synchronized (mWorking) {
-				alreadyInProgress = mWorking.containsValue(pTile);
+	public void setViewport(final MapTileViewport pViewport) {
+		super.setViewport(pViewport);
+		synchronized (mTileProviderList) {
+			for (final MapTileModuleProviderBase tileProvider : mTileProviderList) {
+				tileProvider.setViewport(pViewport);
 			}
+		}
+	}
 
-			if (!alreadyInProgress) {
+	@Override
+	public void cancelTileRequests(final IMapTileFilter pFilter) {
+		for (final MapTileRequestState state : mWorking.values()) {
+			if (pFilter.accept(state.getMapTile().getTileId())
+					&& mWorking.remove(state.getMapTile(), state)) {
 				if (DEBUGMODE)
-					logger.debug("Cache failed, trying from async providers: " + pTile);
-
-				MapTileRequestState state;
-				synchronized (mTileProviderList) {
-					final MapTileModuleProviderBase[] providerArray = new MapTileModuleProviderBase[mTileProviderList
-							.size()];
-					state = new MapTileRequestState(pTile,
-							mTileProviderList.toArray(providerArray), this);
+					logger.debug("Cancelling request for: " + state.getMapTile());
+				state.cancel();
+				final MapTileModuleProviderBase provider = state.getCurrentProvider();
+				if (provider != null) {
+					provider.cancelTileRequest(state);
 				}
+				for (final IMapTileProviderCallback waiter : state.finish()) {
+					waiter.mapTileRequestDropped(state);
+				}
+			}
+		}
+	}
 
-				synchronized (mWorking) {
-					// Check again
-					alreadyInProgress = mWorking.containsValue(pTile);
-					if (alreadyInProgress)
-						return null;
+	@Override
+	public Drawable getMapTile(final MapTile pTile) {
+		return getMapTile(pTile, null);
+	}
 
-					mWorking.put(state, pTile);
-				}
+	/**
+	 * Get the tile from the cache, or start loading it. If the tile is already being loaded then
+	 * the request in progress is used rather than starting another one.
+	 *
+	 * @param pWaiter
+	 *            if not null and the tile is not in the cache, this is told when the tile has
+	 *            loaded or failed to load
+	 * @return the cached tile, an interpolated stand-in, or null
+	 */
+	public Drawable getMapTile(final MapTile pTile, final IMapTileProviderCallback pWaiter) {
+		final Drawable cached = mTileCache.getMapTile(pTile);
+		if (cached != null) {
+			if (DEBUGMODE)
+				logger.debug("MapTileCache succeeded for: " + pTile);
+			return cached;
+		}
 
-				final MapTileModuleProviderBase provider = findNextAppropriateProvider(state);
-				if (provider != null)
-					provider.loadMapTileAsync(state);
-				else
-					mapTileRequestFailed(state);
-
-				// Default over to attempting to resize the tiles that we currently have
-				MapTileInterpolator interp = MapTileInterpolator.create(pTile, mTileCache);
-				if (interp != null) {
-					mTileCache.putTile(pTile, interp);
-					return interp;
-				}
+		final MapTileRequestState inProgress = mWorking.get(pTile);
+		if (inProgress != null) {
+			if (pWaiter == null || inProgress.addWaiter(pWaiter)) {
+				return interpolate(pTile);
 			}
+			// the request finished in the meantime, so look again
+			return getMapTile(pTile, pWaiter);
+		}
+
+		if (pWaiter == null && mFailedTiles.isFailed(pTile.getTileId())) {
+			// it failed recently so don't try again yet, but make do with what we have. The
+			// stand-in isn't cached, so the tile is requested again once the backoff expires.
+			if (DEBUGMODE)
+				logger.debug("Tile failed recently: " + pTile);
+			return interpolate(pTile);
+		}
+
+		if (DEBUGMODE)
+			logger.debug("Cache failed, trying from async providers: " + pTile);
 
-			return null;
+		MapTileRequestState state;
+		synchronized (mTileProviderList) {
+			final MapTileModuleProviderBase[] providerArray = new MapTileModuleProviderBase[mTileProviderList
+					.size()];
+			state = new MapTileRequestState(pTile,
+					mTileProviderList.toArray(providerArray), this);
+		}
+		if (pWaiter != null) {
+			state.addWaiter(pWaiter);
 		}
+
+		final MapTileRequestState existing = mWorking.putIfAbsent(pTile, state);
+		if (existing != null) {
+			// another thread started the same request
+			if (pWaiter != null && !existing.addWaiter(pWaiter)) {
+				return getMapTile(pTile, pWaiter);
+			}
+			return interpolate(pTile);
+		}
+
+		final MapTileModuleProviderBase provider = findNextAppropriateProvider(state);
+		if (provider != null)
+			provider.loadMapTileAsync(state);
+		else
+			mapTileRequestFailed(state);
+
+		return interpolate(pTile);
+	}
+
+	/**
+	 * Default over to attempting to resize the tiles that we currently have. The stand-in isn't
+	 * cached under the tile, so that the tile is requested again when it's next drawn if its
+	 * request is cancelled, dropped or fails.
+	 */
+	private Drawable interpolate(final MapTile pTile) {
+		return MapTileInterpolator.create(pTile, mTileCache);
+	}
+
+	/**
+	 * @return true if the tile is being loaded
+	 */
+	public boolean isTileInProgress(final MapTile pTile) {
+		return mWorking.containsKey(pTile);
 	}
 
 	@Override
 	public void mapTileRequestCompleted(final MapTileRequestState aState, final Drawable aDrawable) {
-		synchronized (mWorking) {
-			mWorking.remove(aState);
+		mWorking.remove(aState.getMapTile(), aState);
+		mFailedTiles.onSuccess(aState.getMapTile().getTileId());
+		super.mapTileRequestCompleted(aState, aDrawable);
+		for (final IMapTileProviderCallback waiter : aState.finish()) {
+			waiter.mapTileRequestCompleted(aState, aDrawable);
 		}
+	}
+
+	/**
+	 * Show the candidate tile but keep the request going, so that the tile isn't requested again
+	 * while a better one is being loaded.
+	 */
+	@Override
+	public void mapTileRequestCandidate(final MapTileRequestState aState, final Drawable aDrawable) {
 		super.mapTileRequestCompleted(aState, aDrawable);
 	}
 
 	@Override
 	public void mapTileRequestFailed(final MapTileRequestState aState) {
+		if (aState.isCancelled()) {
+			// the waiters have already been told
+			return;
+		}
 		final MapTileModuleProviderBase nextProvider = findNextAppropriateProvider(aState);
 		if (nextProvider != null) {
 			nextProvider.loadMapTileAsync(aState);
 		} else {
-			synchronized (mWorking) {
-				mWorking.remove(aState);
-			}
+			mWorking.remove(aState.getMapTile(), aState);
+			mFailedTiles.onFailure(aState.getMapTile().getTileId());
 			super.mapTileRequestFailed(aState);
+			for (final IMapTileProviderCallback waiter : aState.finish()) {
+				waiter.mapTileRequestFailed(aState);
+			}
+		}
+	}
+
+	@Override
+	public void mapTileRequestDropped(final MapTileRequestState aState) {
+		mWorking.remove(aState.getMapTile(), aState);
+		super.mapTileRequestDropped(aState);
+		for (final IMapTileProviderCallback waiter : aState.finish()) {
+			waiter.mapTileRequestDropped(aState);
 		}
 	}
 
@@ -195,5 +290,15 @@ public class MapTileProviderArray extends MapTileProviderBase {
 			tileProvider.setTileSource(aTileSource);
 			clearTileCache();
 		}
+		mFailedTiles.clear();
+	}
+
+	/**
+	 * Tiles that failed may load now, so forget the failures.
+	 */
+	@Override
+	public void setUseDataConnection(final boolean pMode) {
+		super.setUseDataConnection(pMode);
+		mFailedTiles.clear();
 	}
 }
@@ -1,6 +1,7 @@
 // Created by plusminus on 21:46:22 - 25.09.2008
 package org.osmdroid.tileprovider;
 
+
 import org.osmdroid.tileprovider.constants.OpenStreetMapTileProviderConstants;
 import org.osmdroid.tileprovider.tilesource.ITileSource;
 import org.slf4j.Logger;
@@ -32,8 +33,26 @@ public abstract class MapTileProviderBase implements IMapTileProviderCallback,
 
 	private ITileSource mTileSource;
 
+	private volatile MapTileViewport mViewport;
+
 	public abstract Drawable getMapTile(MapTile pTile);
 
+	/**
+	 * Get the tile with the specified tile id. This is the same as {@link #getMapTile(MapTile)}
+	 * except that a {@link MapTile} is only created if the tile is not already in the cache, so
+	 * it can be used in the draw loop without allocating.
+	 *
+	 * @param pTileId
+	 *            a tile id as returned by {@link MapTile#getTileId()}
+	 */
+	public Drawable getMapTile(final long pTileId) {
+		final Drawable cached = mTileCache.getMapTile(pTileId);
+		if (cached != null) {
+			return cached;
+		}
+		return getMapTile(new MapTile(pTileId));
+	}
+
 	public abstract void detach();
 
 	/*
@@ -58,6 +77,36 @@ public abstract class MapTileProviderBase implements IMapTileProviderCallback,
 		return (int) Math.ceil((double)getZoomHeight(zoomLevel)/(double)getTileSource().getTileSizePixels());
 	}
 
+	/**
+	 * Get the tiles that cover a rectangle of the world at a zoom level.
+	 *
+	 * @param pLeft
+	 *            the left of the rectangle in world coordinates
+	 * @param pTop
+	 *            the top of the rectangle in world coordinates
+	 * @param pRight
+	 *            the right of the rectangle in world coordinates, exclusive
+	 * @param pBottom
+	 *            the bottom of the rectangle in world coordinates, exclusive
+	 * @return the tiles, or null if the rectangle is outside the world
+	 */
+	public MapTileViewport getTiles(final int pZoomLevel, final int pLeft, final int pTop,
+			final int pRight, final int pBottom) {
+		final int left = Math.max(pLeft, 0);
+		final int top = Math.max(pTop, 0);
+		final int right = Math.min(pRight, getWorldWidth());
+		final int bottom = Math.min(pBottom, getWorldHeight());
+		if (left >= right || top >= bottom) {
+			return null;
+		}
+		final int zoomDelta = getMaximumZoomLevel() - pZoomLevel;
+		final int tileSize = getTileSource().getTileSizePixels();
+		return new MapTileViewport(pZoomLevel, (left >> zoomDelta) / tileSize,
+				(top >> zoomDelta) / tileSize,
+				Math.min(((right - 1) >> zoomDelta) / tileSize, getTileXCount(pZoomLevel) - 1),
+				Math.min(((bottom - 1) >> zoomDelta) / tileSize, getTileYCount(pZoomLevel) - 1));
+	}
+
 	/**
 	 * Gets the minimum zoom level this tile provider can provide
 	 *
@@ -161,6 +210,21 @@ public abstract class MapTileProviderBase implements IMapTileProviderCallback,
 		}
 	}
 
+	/**
+	 * Called by implementation class methods indicating that they have dropped the request before
+	 * the map tile was retrieved. Nothing is sent, the tile will be requested again when it is next
+	 * drawn.
+	 *
+	 * @param pState
+	 *            the map tile request state object
+	 */
+	@Override
+	public void mapTileRequestDropped(final MapTileRequestState pState) {
+		if (DEBUGMODE) {
+			logger.debug("MapTile request dropped: " + pState.getMapTile());
+		}
+	}
+
 	public void setTileRequestCompleteHandler(final Handler handler) {
 		mTileRequestCompleteHandler = handler;
 	}
@@ -169,10 +233,103 @@ public abstract class MapTileProviderBase implements IMapTileProviderCallback,
 		mTileCache.ensureCapacity(pCapacity);
 	}
 
+	/**
+	 * Set the memory budget of the tile cache. This is per tile provider, so each
+	 * {@link org.osmdroid.views.MapView} has its own budget.
+	 *
+	 * @param pMaximumCacheSizeBytes
+	 *            size in bytes of the cached tiles above which tiles are evicted
+	 * @param pTrimCacheSizeBytes
+	 *            size in bytes to trim down to when tiles are evicted
+	 */
+	public void setTileCacheMemoryLimits(final long pMaximumCacheSizeBytes,
+			final long pTrimCacheSizeBytes) {
+		mTileCache.setMemoryLimits(pMaximumCacheSizeBytes, pTrimCacheSizeBytes);
+	}
+
+	public void setTileCacheEvictionListener(final IMapTileCacheEvictionListener pListener) {
+		mTileCache.setEvictionListener(pListener);
+	}
+
+	/**
+	 * Replace the engine that holds the cached tiles, for example with a
+	 * {@link ConcurrentMapTileCache} so that the UI thread doesn't wait for the tile loader
+	 * threads. The tiles that are currently cached are discarded.
+	 */
+	public void setTileCacheEngine(final IMapTileCacheEngine pEngine) {
+		mTileCache.setEngine(pEngine);
+	}
+
 	public void clearTileCache() {
 		mTileCache.clear();
 	}
 
+	/**
+	 * Cancel the requests for the selected tiles. Requests waiting in the provider queues are
+	 * removed and tiles being downloaded are abandoned. The default implementation does nothing.
+	 *
+	 * @param pFilter
+	 *            selects the tiles whose requests to cancel
+	 */
+	public void cancelTileRequests(final IMapTileFilter pFilter) {
+	}
+
+	/**
+	 * Cancel the request for a tile.
+	 */
+	public void cancelTileRequest(final MapTile pTile) {
+		final long tileId = pTile.getTileId();
+		cancelTileRequests(new IMapTileFilter() {
+			@Override
+			public boolean accept(final long pTileId) {
+				return pTileId == tileId;
+			}
+		});
+	}
+
+	/**
+	 * Cancel the requests for the tiles at a zoom level.
+	 */
+	public void cancelTileRequests(final int pZoomLevel) {
+		cancelTileRequests(new IMapTileFilter() {
+			@Override
+			public boolean accept(final long pTileId) {
+				return MapTile.getZoomLevel(pTileId) == pZoomLevel;
+			}
+		});
+	}
+
+	/**
+	 * Cancel the requests for the tiles that are not within the specified tiles, including the
+	 * tiles at other zoom levels.
+	 */
+	public void cancelTileRequestsOutside(final MapTileViewport pTiles) {
+		cancelTileRequests(new IMapTileFilter() {
+			@Override
+			public boolean accept(final long pTileId) {
+				return !pTiles.contains(pTileId);
+			}
+		});
+	}
+
+	/**
+	 * Set the tiles that are currently visible, so that the tiles nearest the center are loaded
+	 * first.
+	 *
+	 * @param pViewport
+	 *            the viewport, or null if it isn't known
+	 */
+	public void setViewport(final MapTileViewport pViewport) {
+		mViewport = pViewport;
+	}
+
+	/**
+	 * @return the tiles that are currently visible, or null if they aren't known
+	 */
+	public MapTileViewport getViewport() {
+		return mViewport;
+	}
+
 	/**
 	 * Whether to use the network connection if it's available.
 	 */
@@ -1,6 +1,7 @@
 package org.osmdroid.tileprovider;
 
 import org.osmdroid.tileprovider.modules.INetworkAvailablityCheck;
+import org.osmdroid.tileprovider.modules.MapTileCompressedCacheProvider;
 import org.osmdroid.tileprovider.modules.MapTileDownloader;
 import org.osmdroid.tileprovider.modules.MapTileFileArchiveProvider;
 import org.osmdroid.tileprovider.modules.MapTileFilesystemProvider;
@@ -13,6 +14,7 @@ import android.content.Context;
 
 /**
  * This top-level tile provider implements a basic tile request chain which includes a
+ * {@link MapTileCompressedCacheProvider} (an in-memory cache of compressed tiles), a
  * {@link MapTileFilesystemProvider} (a file-system cache), a {@link MapTileFileArchiveProvider}
  * (archive provider), and a {@link MapTileDownloader} (downloads map tiles via tile source).
  *
@@ -37,17 +39,25 @@ public class MapTileProviderBasic extends MapTileProviderArray {
 		super(pTileSource);
 
 		final TileWriter tileWriter = new TileWriter();
+		final CompressedMapTileCache compressedTileCache = new CompressedMapTileCache();
+
+		final MapTileCompressedCacheProvider compressedCacheProvider = new MapTileCompressedCacheProvider(
+				compressedTileCache, pTileSource);
+		mTileProviderList.add(compressedCacheProvider);
 
 		final MapTileFilesystemProvider fileSystemProvider = new MapTileFilesystemProvider(
 				pRegisterReceiver, pTileSource);
+		fileSystemProvider.setCompressedTileCache(compressedTileCache);
 		mTileProviderList.add(fileSystemProvider);
 
 		final MapTileFileArchiveProvider archiveProvider = new MapTileFileArchiveProvider(
 				pRegisterReceiver, pTileSource);
+		archiveProvider.setCompressedTileCache(compressedTileCache);
 		mTileProviderList.add(archiveProvider);
 
 		final MapTileDownloader downloaderProvider = new MapTileDownloader(pTileSource, tileWriter,
 				aNetworkAvailablityCheck);
+		downloaderProvider.setCompressedTileCache(compressedTileCache);
 		mTileProviderList.add(downloaderProvider);
 	}
 }
@@ -1,17 +1,32 @@
 package org.osmdroid.tileprovider;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 
 import org.osmdroid.tileprovider.modules.MapTileModuleProviderBase;
 
-public class MapTileRequestState {
+import android.graphics.drawable.Drawable;
+
+public class MapTileRequestState implements ICancellable {
 
 	private final Queue<MapTileModuleProviderBase> mProviderQueue;
 	private final MapTile mMapTile;
 	private final IMapTileProviderCallback mCallback;
-	private MapTileModuleProviderBase mCurrentProvider;
+	private volatile MapTileModuleProviderBase mCurrentProvider;
+
+	/** other callbacks waiting for this request, guarded by this */
+	private List<IMapTileProviderCallback> mWaiters;
+	private boolean mFinished;
+
+	private volatile boolean mCancelled;
+
+	private volatile Drawable mCandidate;
+
+	/** the number of times the current provider has retried the request */
+	private volatile int mRetryCount;
 
 	public MapTileRequestState(final MapTile mapTile,
 			final MapTileModuleProviderBase[] providers,
@@ -36,10 +51,91 @@ public class MapTileRequestState {
 
 	public MapTileModuleProviderBase getNextProvider() {
 		mCurrentProvider = mProviderQueue.poll();
+		mRetryCount = 0;
 		return mCurrentProvider;
 	}
 
 	public MapTileModuleProviderBase getCurrentProvider() {
 		return mCurrentProvider;
 	}
+
+	/**
+	 * Cancel the request. Providers stop loading the tile as soon as they notice.
+	 */
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/**
+	 * Record that a provider has delivered a candidate tile for this request, such as an expired
+	 * tile from the file system cache.
+	 */
+	public void setCandidate(final Drawable pCandidate) {
+		mCandidate = pCandidate;
+	}
+
+	/**
+	 * @return the candidate tile delivered for this request, or null
+	 */
+	public Drawable getCandidate() {
+		return mCandidate;
+	}
+
+	/**
+	 * @return true if a candidate tile has been delivered for this request
+	 */
+	public boolean isCandidateLoaded() {
+		return mCandidate != null;
+	}
+
+	/**
+	 * @return the number of times the current provider has retried the request
+	 */
+	public int getRetryCount() {
+		return mRetryCount;
+	}
+
+	/**
+	 * Record that the current provider is going to retry the request.
+	 */
+	public void incrementRetryCount() {
+		mRetryCount++;
+	}
+
+	/**
+	 * Attach another callback to this request. It will be told when the request completes or
+	 * fails, after the request's own callback.
+	 *
+	 * @return false if the request has already finished, in which case the waiter won't be told
+	 */
+	public synchronized boolean addWaiter(final IMapTileProviderCallback pWaiter) {
+		if (mFinished) {
+			return false;
+		}
+		if (mWaiters == null) {
+			mWaiters = new ArrayList<IMapTileProviderCallback>(2);
+		}
+		mWaiters.add(pWaiter);
+		return true;
+	}
+
+	/**
+	 * Mark the request as finished so that no more waiters can be attached.
+	 *
+	 * @return the waiters to tell, possibly empty
+	 */
+	public synchronized List<IMapTileProviderCallback> finish() {
+		mFinished = true;
+		final List<IMapTileProviderCallback> waiters = mWaiters;
+		mWaiters = null;
+		if (waiters == null) {
+			return Collections.emptyList();
+		}
+		return waiters;
+	}
 }
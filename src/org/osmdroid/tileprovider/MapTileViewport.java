@@ -0,0 +1,160 @@
+package org.osmdroid.tileprovider;
+
+/**
+ * A rectangle of tiles at a zoom level. It is mostly used for the tiles that are currently
+ * visible, as published by {@link org.osmdroid.views.overlay.TilesOverlay}, to load the tiles
+ * nearest to the center of the view first.
+ *
+ * The tile coordinates may be beyond the edges of the world when the map wraps around, so distances
+ * are measured around the world.
+ */
+public final class MapTileViewport {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	/** the priority of tiles at other zoom levels, which are loaded after all visible tiles */
+	public static final long PRIORITY_OTHER_ZOOM_LEVEL = Long.MAX_VALUE;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final int mZoomLevel;
+	private final int mLeft;
+	private final int mTop;
+	private final int mRight;
+	private final int mBottom;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * @param pZoomLevel
+	 *            the zoom level of the visible tiles
+	 * @param pLeft
+	 *            the x of the left column of visible tiles
+	 * @param pTop
+	 *            the y of the top row of visible tiles
+	 * @param pRight
+	 *            the x of the right column of visible tiles, inclusive
+	 * @param pBottom
+	 *            the y of the bottom row of visible tiles, inclusive
+	 */
+	public MapTileViewport(final int pZoomLevel, final int pLeft, final int pTop,
+			final int pRight, final int pBottom) {
+		mZoomLevel = pZoomLevel;
+		mLeft = pLeft;
+		mTop = pTop;
+		mRight = pRight;
+		mBottom = pBottom;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public int getZoomLevel() {
+		return mZoomLevel;
+	}
+
+	public int getLeft() {
+		return mLeft;
+	}
+
+	public int getTop() {
+		return mTop;
+	}
+
+	public int getRight() {
+		return mRight;
+	}
+
+	public int getBottom() {
+		return mBottom;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * @return true if this viewport has the specified zoom level and tiles
+	 */
+	public boolean equals(final int pZoomLevel, final int pLeft, final int pTop, final int pRight,
+			final int pBottom) {
+		return mZoomLevel == pZoomLevel && mLeft == pLeft && mTop == pTop && mRight == pRight
+				&& mBottom == pBottom;
+	}
+
+	/**
+	 * @return true if the tile is at the zoom level of this viewport and within its tiles
+	 */
+	public boolean contains(final long pTileId) {
+		if (MapTile.getZoomLevel(pTileId) != mZoomLevel) {
+			return false;
+		}
+		final int world = 1 << mZoomLevel;
+		return contains(MapTile.getX(pTileId), mLeft, mRight, world)
+				&& contains(MapTile.getY(pTileId), mTop, mBottom, world);
+	}
+
+	/**
+	 * Get the loading priority of a tile, lower values are loaded first. This is the squared
+	 * distance in half tiles from the center of the tile to the center of the viewport, or
+	 * {@link #PRIORITY_OTHER_ZOOM_LEVEL} if the tile is at another zoom level.
+	 */
+	public long getPriority(final long pTileId) {
+		if (MapTile.getZoomLevel(pTileId) != mZoomLevel) {
+			return PRIORITY_OTHER_ZOOM_LEVEL;
+		}
+		final long dx = wrap(2L * MapTile.getX(pTileId) + 1 - (mLeft + mRight + 1));
+		final long dy = wrap(2L * MapTile.getY(pTileId) + 1 - (mTop + mBottom + 1));
+		return dx * dx + dy * dy;
+	}
+
+	@Override
+	public boolean equals(final Object pObject) {
+		if (!(pObject instanceof MapTileViewport)) {
+			return false;
+		}
+		final MapTileViewport other = (MapTileViewport) pObject;
+		return equals(other.mZoomLevel, other.mLeft, other.mTop, other.mRight, other.mBottom);
+	}
+
+	@Override
+	public int hashCode() {
+		return (((mZoomLevel * 31 + mLeft) * 31 + mTop) * 31 + mRight) * 31 + mBottom;
+	}
+
+	@Override
+	public String toString() {
+		return "/" + mZoomLevel + "/" + mLeft + "," + mTop + "-" + mRight + "," + mBottom;
+	}
+
+	private static boolean contains(final int pValue, final int pMinimum, final int pMaximum,
+			final int pWorld) {
+		if (pMaximum - pMinimum + 1 >= pWorld) {
+			return true;
+		}
+		int offset = (pValue - pMinimum) % pWorld;
+		if (offset < 0) {
+			offset += pWorld;
+		}
+		return offset <= pMaximum - pMinimum;
+	}
+
+	/**
+	 * @return the shortest distance around the world for a distance in half tiles
+	 */
+	private long wrap(final long pDistance) {
+		final long world = 2L << mZoomLevel;
+		long distance = pDistance % world;
+		if (distance < 0) {
+			distance += world;
+		}
+		return Math.min(distance, world - distance);
+	}
+}
@@ -0,0 +1,127 @@
+package org.osmdroid.tileprovider;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.osmdroid.tileprovider.constants.OpenStreetMapTileProviderConstants;
+import org.osmdroid.tileprovider.tilesource.ITileSource;
+
+/**
+ * Remembers the tiles of each tile source that were recently found to be missing from a storage,
+ * so that a provider doesn't look for them again every time they're requested. The least recently
+ * requested tiles are forgotten first.
+ *
+ * A tile may be saved while a provider is looking for it, so a provider reads the
+ * {@link #getSaveCount()} before it looks, and a tile is only remembered as missing if nothing has
+ * been saved since.
+ *
+ * This class is thread-safe.
+ */
+public class MissingMapTileCache implements OpenStreetMapTileProviderConstants {
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final int mMaximumSize;
+
+	/** the missing tiles of each tile source by name */
+	private final HashMap<String, LinkedHashMap<Long, Boolean>> mMissing = new HashMap<String, LinkedHashMap<Long, Boolean>>();
+
+	private long mSaveCount;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public MissingMapTileCache() {
+		this(MISSING_TILE_CACHE_SIZE);
+	}
+
+	/**
+	 * @param pMaximumSize
+	 *            the number of missing tiles of each tile source above which the least recently
+	 *            requested are forgotten
+	 */
+	public MissingMapTileCache(final int pMaximumSize) {
+		mMaximumSize = pMaximumSize;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return the number of tiles saved so far
+	 */
+	public synchronized long getSaveCount() {
+		return mSaveCount;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * @return true if the tile is known to be missing
+	 */
+	public synchronized boolean isMissing(final ITileSource pTileSource, final long pTileId) {
+		final LinkedHashMap<Long, Boolean> missing = mMissing.get(pTileSource.name());
+		return missing != null && missing.get(pTileId) != null;
+	}
+
+	/**
+	 * Record that the tile is missing.
+	 *
+	 * @param pSaveCount
+	 *            the {@link #getSaveCount()} before looking for the tile
+	 */
+	public synchronized void onMissing(final ITileSource pTileSource, final long pTileId,
+			final long pSaveCount) {
+		if (pSaveCount != mSaveCount) {
+			// it may have been saved in the meantime
+			return;
+		}
+		LinkedHashMap<Long, Boolean> missing = mMissing.get(pTileSource.name());
+		if (missing == null) {
+			missing = new LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+				private static final long serialVersionUID = 2170693370582616375L;
+
+				@Override
+				protected boolean removeEldestEntry(final Map.Entry<Long, Boolean> pEldest) {
+					return size() > mMaximumSize;
+				}
+			};
+			mMissing.put(pTileSource.name(), missing);
+		}
+		missing.put(pTileId, Boolean.TRUE);
+	}
+
+	/**
+	 * Record that the tile has been saved, so it's no longer missing.
+	 */
+	public synchronized void onSaved(final String pTileSourceName, final long pTileId) {
+		mSaveCount++;
+		final LinkedHashMap<Long, Boolean> missing = mMissing.get(pTileSourceName);
+		if (missing != null) {
+			missing.remove(pTileId);
+		}
+	}
+
+	/**
+	 * Forget all the missing tiles, because the storage has changed.
+	 */
+	public synchronized void clear() {
+		mSaveCount++;
+		mMissing.clear();
+	}
+
+	public synchronized int size() {
+		int size = 0;
+		for (final LinkedHashMap<Long, Boolean> missing : mMissing.values()) {
+			size += missing.size();
+		}
+		return size;
+	}
+}
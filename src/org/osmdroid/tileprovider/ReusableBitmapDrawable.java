@@ -0,0 +1,59 @@
+package org.osmdroid.tileprovider;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+
+/**
+ * A {@link BitmapDrawable} whose bitmap can be handed back to the {@link BitmapPool} once the tile
+ * has been evicted from the {@link MapTileCache}. Code that draws the drawable must bracket the
+ * drawing with {@link #beginUsingDrawable()} and {@link #finishUsingDrawable()} so that the bitmap
+ * isn't reused while it's being drawn.
+ */
+public class ReusableBitmapDrawable extends BitmapDrawable {
+
+	private boolean mBitmapRecycled = false;
+	private int mUsageCount = 0;
+
+	public ReusableBitmapDrawable(final Bitmap pBitmap) {
+		super(pBitmap);
+	}
+
+	/**
+	 * Start using the drawable.
+	 *
+	 * @return false if the bitmap has already been handed back to the pool, in which case the
+	 *         drawable must not be drawn and {@link #finishUsingDrawable()} must not be called
+	 */
+	public synchronized boolean beginUsingDrawable() {
+		if (mBitmapRecycled) {
+			return false;
+		}
+		mUsageCount++;
+		return true;
+	}
+
+	public synchronized void finishUsingDrawable() {
+		mUsageCount--;
+		if (mUsageCount < 0) {
+			throw new IllegalStateException("Unbalanced finishUsingDrawable() for " + this);
+		}
+	}
+
+	public synchronized boolean isBitmapValid() {
+		return !mBitmapRecycled;
+	}
+
+	/**
+	 * Give up the bitmap if nobody is using the drawable. After this the drawable is no longer
+	 * usable.
+	 *
+	 * @return the bitmap, or null if the drawable is in use or the bitmap has already been given up
+	 */
+	synchronized Bitmap tryRecycle() {
+		if (mUsageCount == 0 && !mBitmapRecycled) {
+			mBitmapRecycled = true;
+			return getBitmap();
+		}
+		return null;
+	}
+}
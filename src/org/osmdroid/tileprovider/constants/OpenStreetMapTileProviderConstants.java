@@ -34,12 +34,34 @@ public interface OpenStreetMapTileProviderConstants {
 	/** add an extension to files on sdcard so that gallery doesn't index them */
 	public static final String TILE_PATH_EXTENSION = ".tile";
 
+	/** added to the name of a tile file for the file holding its HTTP validators */
+	public static final String TILE_VALIDATORS_EXTENSION = ".validators";
+
+	/** the index of the tiles in the file system cache */
+	public static final File TILE_CACHE_INDEX_FILE = new File(OSMDROID_PATH, "tiles.db");
+
+	/** the directory of the pack files of the tile pack cache */
+	public static final File TILE_PACK_PATH = new File(OSMDROID_PATH, "packs");
+
 	/**
-	 * Initial tile cache size. The size will be increased as required by calling {@link
+	 * Initial minimum number of tiles kept by the tile cache regardless of its memory budget. The
+	 * number will be increased as required by calling {@link
 	 * LRUMapTileCache.ensureCapacity(int)} The tile cache will always be at least 3x3.
 	 */
 	public static final int CACHE_MAPTILECOUNT_DEFAULT = 9;
 
+	/** 8 Mb - the tile memory cache will be trimmed when it exceeds this */
+	public static final long CACHE_MAPTILE_MAX_SIZE_BYTES = 8L * 1024 * 1024;
+
+	/** 6 Mb - the tile memory cache will be trimmed to this */
+	public static final long CACHE_MAPTILE_TRIM_SIZE_BYTES = 6L * 1024 * 1024;
+
+	/** 2 Mb - maximum size of the bitmaps kept for reuse by the bitmap pool */
+	public static final long CACHE_BITMAP_POOL_SIZE_BYTES = 2L * 1024 * 1024;
+
+	/** 4 Mb - maximum size of the compressed tile data kept in memory */
+	public static final long CACHE_COMPRESSED_MAPTILE_SIZE_BYTES = 4L * 1024 * 1024;
+
 	/**
 	 * number of tile download threads, conforming to OSM policy:
 	 * http://wiki.openstreetmap.org/wiki/Tile_usage_policy
@@ -48,6 +70,42 @@ public interface OpenStreetMapTileProviderConstants {
 
 	public static final int NUMBER_OF_TILE_FILESYSTEM_THREADS = 8;
 
+	/** number of simultaneous tile downloads of a bulk download job */
+	public static final int NUMBER_OF_BULK_DOWNLOAD_THREADS = 2;
+
+	/** maximum number of simultaneous tile downloads from the same host */
+	public static final int HTTP_MAXIMUM_CONNECTIONS_PER_HOST = 2;
+
+	/** time to wait for a connection to a tile server */
+	public static final int HTTP_CONNECT_TIMEOUT_MILLISECONDS = 10 * 1000;
+
+	/** time to wait for data from a tile server */
+	public static final int HTTP_READ_TIMEOUT_MILLISECONDS = 20 * 1000;
+
+	/** number of times a tile download is retried after a network or server error */
+	public static final int HTTP_RETRY_COUNT = 2;
+
+	/** delay before the first retry of a tile download, doubled for each further retry */
+	public static final long HTTP_RETRY_BACKOFF_MILLISECONDS = 500;
+
+	/** failure rate of a tile server above which requests to it are suspended */
+	public static final double HTTP_CIRCUIT_BREAKER_FAILURE_RATE = 0.5;
+
+	/** time requests to a failing tile server are first suspended for */
+	public static final long HTTP_CIRCUIT_BREAKER_OPEN_MILLISECONDS = 10 * 1000;
+
+	/** maximum time requests to a failing tile server are suspended for */
+	public static final long HTTP_CIRCUIT_BREAKER_MAXIMUM_OPEN_MILLISECONDS = 5 * 60 * 1000;
+
+	/**
+	 * minimum share of the tiles sent to a slow mirror of a tile source, relative to the fastest
+	 * mirror, so that its response time keeps being measured
+	 */
+	public static final double HTTP_MIRROR_MINIMUM_WEIGHT = 0.05;
+
+	/** number of threads decoding tiles from the compressed in-memory tile cache */
+	public static final int NUMBER_OF_TILE_MEMORY_THREADS = 2;
+
 	public static final long ONE_SECOND = 1000;
 	public static final long ONE_MINUTE = ONE_SECOND * 60;
 	public static final long ONE_HOUR = ONE_MINUTE * 60;
@@ -56,8 +114,24 @@ public interface OpenStreetMapTileProviderConstants {
 	public static final long ONE_YEAR = ONE_DAY * 365;
 	public static final long DEFAULT_MAXIMUM_CACHED_FILE_AGE = ONE_WEEK;
 
+	/** time before a tile that failed to load is requested again, doubled for each failure */
+	public static final long FAILED_TILE_RETRY_MILLISECONDS = 5 * ONE_SECOND;
+
+	/** maximum time before a tile that failed to load is requested again */
+	public static final long FAILED_TILE_MAXIMUM_RETRY_MILLISECONDS = 5 * ONE_MINUTE;
+
+	/** number of tiles that failed to load that are remembered */
+	public static final int FAILED_TILE_CACHE_SIZE = 256;
+
+	/** number of tiles of each tile source remembered to be missing from a storage */
+	public static final int MISSING_TILE_CACHE_SIZE = 1024;
+
+	/** interval between saving the progress of a bulk download job */
+	public static final long BULK_DOWNLOAD_CHECKPOINT_MILLISECONDS = 5 * ONE_SECOND;
+
 	public static final int TILE_DOWNLOAD_MAXIMUM_QUEUE_SIZE = 40;
 	public static final int TILE_FILESYSTEM_MAXIMUM_QUEUE_SIZE = 40;
+	public static final int TILE_MEMORY_MAXIMUM_QUEUE_SIZE = 40;
 
 	/** 30 days */
 	public static final long TILE_EXPIRY_TIME_MILLISECONDS = 1000L * 60 * 60 * 24 * 30;
@@ -68,4 +142,22 @@ public interface OpenStreetMapTileProviderConstants {
 	/** 500 Mb */
 	public static final long TILE_TRIM_CACHE_SIZE_BYTES = 500L * 1024 * 1024;
 
+	/** maximum number of downloaded tiles waiting to be written to the file system cache */
+	public static final int TILE_WRITE_QUEUE_SIZE = 64;
+
+	/** number of tiles written to the file system cache at once */
+	public static final int TILE_WRITE_BATCH_SIZE = 16;
+
+	/** number of tiles deleted at once when the file system cache is trimmed */
+	public static final int TILE_TRIM_BATCH_SIZE = 64;
+
+	/** pause between the batches of tiles deleted when the file system cache is trimmed */
+	public static final long TILE_TRIM_BATCH_INTERVAL_MILLISECONDS = 50;
+
+	/** 32 Mb - a new pack file of the tile pack cache is started at this size */
+	public static final long TILE_PACK_MAXIMUM_FILE_SIZE_BYTES = 32L * 1024 * 1024;
+
+	/** share of live tiles in a pack file below which it is compacted */
+	public static final double TILE_PACK_COMPACTION_RATIO = 0.5;
+
 }
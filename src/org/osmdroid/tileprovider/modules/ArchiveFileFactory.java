@@ -34,6 +34,14 @@ public class ArchiveFileFactory {
 			}
 		}
 
+		if (pFile.getName().endsWith(".mbtiles")) {
+			try {
+				return MBTilesFileArchive.getMBTilesFileArchive(pFile);
+			} catch (final SQLiteException e) {
+				logger.error("Error opening MBTiles file", e);
+			}
+		}
+
 		if (pFile.getName().endsWith(".gemf")) {
 			try {
 				return GEMFFileArchive.getGEMFFileArchive(pFile);
@@ -42,6 +50,14 @@ public class ArchiveFileFactory {
 			}
 		}
 
+		if (pFile.getName().endsWith(".htiles")) {
+			try {
+				return HilbertTileFileArchive.getHilbertTileFileArchive(pFile);
+			} catch (final IOException e) {
+				logger.error("Error opening tile archive", e);
+			}
+		}
+
 		return null;
 	}
 
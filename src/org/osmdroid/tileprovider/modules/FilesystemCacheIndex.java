@@ -0,0 +1,461 @@
+package org.osmdroid.tileprovider.modules;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osmdroid.tileprovider.constants.OpenStreetMapTileProviderConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * A persistent index of the tiles in the file system cache, kept in an SQLite database next to it.
+ * For each tile it records the size of its files, when it was last accessed and when it was last
+ * modified, and it keeps the total size of the cache. {@link TileWriter} and
+ * {@link MapTileFilesystemProvider} keep it up to date as tiles are saved and read, so that the
+ * size of the cache is known at once at startup and the least recently accessed tiles can be found
+ * without listing the cache.
+ *
+ * The tiles are identified by their file names relative to the cache, without the extension. The
+ * first time the index is used it has to be built from the files in the cache with
+ * {@link #build()}. Access times are recorded in batches to save writes.
+ *
+ * This class is thread-safe.
+ */
+public class FilesystemCacheIndex implements OpenStreetMapTileProviderConstants {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private static final Logger logger = LoggerFactory.getLogger(FilesystemCacheIndex.class);
+
+	private static final int DATABASE_VERSION = 1;
+
+	private static final String TABLE_TILES = "tiles";
+	private static final String COLUMN_NAME = "name";
+	private static final String COLUMN_SIZE = "size";
+	private static final String COLUMN_ACCESSED = "accessed";
+	private static final String COLUMN_MODIFIED = "modified";
+
+	private static final String TABLE_INFO = "info";
+	private static final String COLUMN_KEY = "key";
+	private static final String COLUMN_VALUE = "value";
+	/** the total size of the tiles */
+	private static final String INFO_SIZE = "size";
+	/** 1 if the index has been built from the files in the cache */
+	private static final String INFO_BUILT = "built";
+
+	/** the number of access times that are recorded at once */
+	private static final int ACCESS_BATCH_SIZE = 64;
+
+	private static FilesystemCacheIndex mInstance;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final SQLiteDatabase mDatabase;
+	private final File mDirectory;
+
+	private long mSize;
+	private boolean mBuilt;
+
+	/** access times that haven't been recorded yet, by tile name */
+	private final HashMap<String, Long> mPendingAccesses = new HashMap<String, Long>();
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * @param pDatabaseFile
+	 *            the database file, which is created if it doesn't exist
+	 * @param pDirectory
+	 *            the directory of the cache
+	 * @throws SQLException
+	 *             if the database can't be opened
+	 */
+	public FilesystemCacheIndex(final File pDatabaseFile, final File pDirectory) {
+		mDirectory = pDirectory;
+		pDatabaseFile.getParentFile().mkdirs();
+		mDatabase = SQLiteDatabase.openOrCreateDatabase(pDatabaseFile, null);
+		try {
+			if (mDatabase.getVersion() != DATABASE_VERSION) {
+				createTables();
+			}
+			mSize = getInfo(INFO_SIZE);
+			mBuilt = getInfo(INFO_BUILT) == 1;
+		} catch (final SQLException e) {
+			mDatabase.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Get the index of the file system cache in {@link #TILE_PATH_BASE}.
+	 *
+	 * @return the index, or null if it can't be opened, e.g. because there is no sdcard
+	 */
+	public static synchronized FilesystemCacheIndex getInstance() {
+		if (mInstance == null) {
+			try {
+				mInstance = new FilesystemCacheIndex(TILE_CACHE_INDEX_FILE, TILE_PATH_BASE);
+			} catch (final SQLException e) {
+				// try again next time
+				logger.warn("Unable to open the tile cache index: " + e);
+			}
+		}
+		return mInstance;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return the total size in bytes of the tiles in the cache
+	 */
+	public synchronized long getSize() {
+		return mSize;
+	}
+
+	/**
+	 * @return true if the index has been built from the files in the cache
+	 */
+	public synchronized boolean isBuilt() {
+		return mBuilt;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Record that a tile has been saved.
+	 *
+	 * @param pName
+	 *            the name of the tile
+	 * @param pSize
+	 *            the size of the files of the tile
+	 */
+	public void onSaved(final String pName, final long pSize) {
+		onSaved(new String[] { pName }, new long[] { pSize });
+	}
+
+	/**
+	 * Record that tiles have been saved, in one transaction.
+	 *
+	 * @param pNames
+	 *            the names of the tiles
+	 * @param pSizes
+	 *            the sizes of the files of the tiles
+	 */
+	public synchronized void onSaved(final String[] pNames, final long[] pSizes) {
+		final long now = System.currentTimeMillis();
+		mDatabase.beginTransaction();
+		try {
+			long size = mSize;
+			for (int i = 0; i < pNames.length; i++) {
+				final String name = pNames[i];
+				mPendingAccesses.remove(name);
+				final long previousSize = getTileSize(name);
+				final ContentValues values = new ContentValues();
+				values.put(COLUMN_SIZE, pSizes[i]);
+				values.put(COLUMN_ACCESSED, now);
+				values.put(COLUMN_MODIFIED, now);
+				if (previousSize < 0) {
+					values.put(COLUMN_NAME, name);
+					mDatabase.insert(TABLE_TILES, null, values);
+					size += pSizes[i];
+				} else {
+					mDatabase.update(TABLE_TILES, values, COLUMN_NAME + " = ?",
+							new String[] { name });
+					size += pSizes[i] - previousSize;
+				}
+			}
+			setSize(size);
+			mDatabase.setTransactionSuccessful();
+		} catch (final SQLException e) {
+			logger.warn("Error updating the tile cache index", e);
+		} finally {
+			mDatabase.endTransaction();
+		}
+	}
+
+	/**
+	 * Record that a tile has been made fresh without being saved again.
+	 */
+	public synchronized void onRefreshed(final String pName) {
+		final ContentValues values = new ContentValues();
+		values.put(COLUMN_MODIFIED, System.currentTimeMillis());
+		try {
+			mDatabase.update(TABLE_TILES, values, COLUMN_NAME + " = ?", new String[] { pName });
+		} catch (final SQLException e) {
+			logger.warn("Error updating the tile cache index", e);
+		}
+	}
+
+	/**
+	 * Record that a tile has been read. The access time is recorded later with others.
+	 */
+	public synchronized void onAccessed(final String pName) {
+		mPendingAccesses.put(pName, System.currentTimeMillis());
+		if (mPendingAccesses.size() >= ACCESS_BATCH_SIZE) {
+			flush();
+		}
+	}
+
+	/**
+	 * Record that tiles have been deleted.
+	 *
+	 * @return the total size of the tiles
+	 */
+	public synchronized long onDeleted(final List<String> pNames) {
+		final long previousSize = mSize;
+		mDatabase.beginTransaction();
+		try {
+			long size = mSize;
+			for (final String name : pNames) {
+				mPendingAccesses.remove(name);
+				final long tileSize = getTileSize(name);
+				if (tileSize >= 0) {
+					mDatabase.delete(TABLE_TILES, COLUMN_NAME + " = ?", new String[] { name });
+					size -= tileSize;
+				}
+			}
+			setSize(size);
+			mDatabase.setTransactionSuccessful();
+		} catch (final SQLException e) {
+			logger.warn("Error updating the tile cache index", e);
+		} finally {
+			mDatabase.endTransaction();
+		}
+		return previousSize - mSize;
+	}
+
+	/**
+	 * Get the tiles that were accessed least recently.
+	 *
+	 * @param pCount
+	 *            the maximum number of tiles to get
+	 * @return the names of the tiles, least recently accessed first
+	 */
+	public synchronized List<String> getLeastRecentlyAccessed(final int pCount) {
+		flush();
+		final ArrayList<String> names = new ArrayList<String>(pCount);
+		try {
+			final Cursor cursor = mDatabase.query(TABLE_TILES, new String[] { COLUMN_NAME }, null,
+					null, null, null, COLUMN_ACCESSED, String.valueOf(pCount));
+			try {
+				while (cursor.moveToNext()) {
+					names.add(cursor.getString(0));
+				}
+			} finally {
+				cursor.close();
+			}
+		} catch (final SQLException e) {
+			logger.warn("Error reading the tile cache index", e);
+		}
+		return names;
+	}
+
+	/**
+	 * Record the access times that haven't been recorded yet. A tile that isn't in the index, e.g.
+	 * because it was copied into the cache, is added to it unless it's been deleted since.
+	 */
+	public synchronized void flush() {
+		if (mPendingAccesses.isEmpty()) {
+			return;
+		}
+		mDatabase.beginTransaction();
+		try {
+			long size = mSize;
+			for (final Map.Entry<String, Long> access : mPendingAccesses.entrySet()) {
+				final ContentValues values = new ContentValues();
+				values.put(COLUMN_ACCESSED, access.getValue());
+				if (mDatabase.update(TABLE_TILES, values, COLUMN_NAME + " = ?",
+						new String[] { access.getKey() }) == 0) {
+					final File file = new File(mDirectory, access.getKey() + TILE_PATH_EXTENSION);
+					if (!file.exists()) {
+						// it's been deleted since it was accessed
+						continue;
+					}
+					final long tileSize = getFilesSize(file);
+					values.put(COLUMN_NAME, access.getKey());
+					values.put(COLUMN_SIZE, tileSize);
+					values.put(COLUMN_MODIFIED, file.lastModified());
+					mDatabase.insert(TABLE_TILES, null, values);
+					size += tileSize;
+				}
+			}
+			setSize(size);
+			mDatabase.setTransactionSuccessful();
+		} catch (final SQLException e) {
+			logger.warn("Error updating the tile cache index", e);
+		} finally {
+			// if they couldn't be recorded then don't try again
+			mPendingAccesses.clear();
+			mDatabase.endTransaction();
+		}
+	}
+
+	/**
+	 * Build the index from the files in the cache, adding the tiles that aren't in it. This lists
+	 * the whole cache so it takes a long time, and should be done in the background. If it is
+	 * interrupted, e.g. because the process is killed, then it is done again next time.
+	 */
+	public void build() {
+		logger.info("Building tile cache index");
+		final ArrayList<String> names = new ArrayList<String>();
+		final ArrayList<File> files = new ArrayList<File>();
+		build(mDirectory, "", names, files);
+		addTiles(names, files);
+		synchronized (this) {
+			try {
+				// add up the sizes again in case tiles were saved while the files were listed
+				final Cursor cursor = mDatabase.rawQuery("SELECT SUM(" + COLUMN_SIZE + ") FROM "
+						+ TABLE_TILES, null);
+				try {
+					setSize(cursor.moveToFirst() ? cursor.getLong(0) : 0);
+				} finally {
+					cursor.close();
+				}
+				setInfo(INFO_BUILT, 1);
+				mBuilt = true;
+			} catch (final SQLException e) {
+				logger.warn("Error building the tile cache index", e);
+				return;
+			}
+		}
+		logger.info("Finished building tile cache index");
+	}
+
+	/**
+	 * Close the database. The index can't be used afterwards.
+	 */
+	public synchronized void close() {
+		flush();
+		mDatabase.close();
+		synchronized (FilesystemCacheIndex.class) {
+			if (mInstance == this) {
+				mInstance = null;
+			}
+		}
+	}
+
+	/**
+	 * @return the size of the tile file and its validators file
+	 */
+	static long getFilesSize(final File pFile) {
+		return pFile.length() + new File(pFile.getPath() + TILE_VALIDATORS_EXTENSION).length();
+	}
+
+	private void build(final File pDirectory, final String pPrefix,
+			final ArrayList<String> pNames, final ArrayList<File> pFiles) {
+		final File[] files = pDirectory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (final File file : files) {
+			final String name = file.getName();
+			if (file.isDirectory()) {
+				build(file, pPrefix + name + "/", pNames, pFiles);
+			} else if (name.endsWith(TILE_PATH_EXTENSION)) {
+				pNames.add(pPrefix
+						+ name.substring(0, name.length() - TILE_PATH_EXTENSION.length()));
+				pFiles.add(file);
+				if (pNames.size() >= ACCESS_BATCH_SIZE) {
+					addTiles(pNames, pFiles);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add the tiles that aren't in the index, using their modified times as their access times.
+	 */
+	private synchronized void addTiles(final ArrayList<String> pNames,
+			final ArrayList<File> pFiles) {
+		mDatabase.beginTransaction();
+		try {
+			for (int i = 0; i < pNames.size(); i++) {
+				final File file = pFiles.get(i);
+				final long modified = file.lastModified();
+				mDatabase.execSQL("INSERT OR IGNORE INTO " + TABLE_TILES + " (" + COLUMN_NAME
+						+ ", " + COLUMN_SIZE + ", " + COLUMN_ACCESSED + ", " + COLUMN_MODIFIED
+						+ ") VALUES (?, ?, ?, ?)", new Object[] { pNames.get(i),
+						getFilesSize(file), modified, modified });
+			}
+			mDatabase.setTransactionSuccessful();
+		} catch (final SQLException e) {
+			logger.warn("Error updating the tile cache index", e);
+		} finally {
+			mDatabase.endTransaction();
+		}
+		pNames.clear();
+		pFiles.clear();
+	}
+
+	private void createTables() {
+		mDatabase.beginTransaction();
+		try {
+			mDatabase.execSQL("DROP TABLE IF EXISTS " + TABLE_TILES);
+			mDatabase.execSQL("DROP TABLE IF EXISTS " + TABLE_INFO);
+			mDatabase.execSQL("CREATE TABLE " + TABLE_TILES + " (" + COLUMN_NAME
+					+ " TEXT PRIMARY KEY, " + COLUMN_SIZE + " INTEGER NOT NULL, "
+					+ COLUMN_ACCESSED + " INTEGER NOT NULL, " + COLUMN_MODIFIED
+					+ " INTEGER NOT NULL)");
+			mDatabase.execSQL("CREATE INDEX " + TABLE_TILES + "_" + COLUMN_ACCESSED + " ON "
+					+ TABLE_TILES + " (" + COLUMN_ACCESSED + ")");
+			mDatabase.execSQL("CREATE TABLE " + TABLE_INFO + " (" + COLUMN_KEY
+					+ " TEXT PRIMARY KEY, " + COLUMN_VALUE + " INTEGER NOT NULL)");
+			mDatabase.setVersion(DATABASE_VERSION);
+			mDatabase.setTransactionSuccessful();
+		} finally {
+			mDatabase.endTransaction();
+		}
+	}
+
+	/**
+	 * @return the size of the tile in the index, or -1 if it isn't in the index
+	 */
+	private long getTileSize(final String pName) {
+		final Cursor cursor = mDatabase.query(TABLE_TILES, new String[] { COLUMN_SIZE },
+				COLUMN_NAME + " = ?", new String[] { pName }, null, null, null);
+		try {
+			return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private void setSize(final long pSize) {
+		if (pSize != mSize) {
+			mSize = pSize;
+			setInfo(INFO_SIZE, pSize);
+		}
+	}
+
+	private long getInfo(final String pKey) {
+		final Cursor cursor = mDatabase.query(TABLE_INFO, new String[] { COLUMN_VALUE },
+				COLUMN_KEY + " = ?", new String[] { pKey }, null, null, null);
+		try {
+			return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private void setInfo(final String pKey, final long pValue) {
+		mDatabase.execSQL("INSERT OR REPLACE INTO " + TABLE_INFO + " (" + COLUMN_KEY + ", "
+				+ COLUMN_VALUE + ") VALUES (?, ?)", new Object[] { pKey, pValue });
+	}
+}
@@ -4,12 +4,14 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.List;
 
 import org.osmdroid.tileprovider.MapTile;
+import org.osmdroid.tileprovider.MapTileViewport;
 import org.osmdroid.tileprovider.tilesource.ITileSource;
 import org.osmdroid.util.GEMFFile;
 
-public class GEMFFileArchive implements IArchiveFile {
+public class GEMFFileArchive implements ITileRangeArchiveFile {
 
 	private final GEMFFile mFile;
 
@@ -26,6 +28,12 @@ public class GEMFFileArchive implements IArchiveFile {
 		return mFile.getInputStream(pTile.getX(), pTile.getY(), pTile.getZoomLevel());
 	}
 
+	@Override
+	public MapTileViewport[] getTileRanges(final ITileSource pTileSource) {
+		final List<MapTileViewport> ranges = mFile.getTileRanges();
+		return ranges.toArray(new MapTileViewport[ranges.size()]);
+	}
+
 	@Override
 	public String toString() {
 		return "GEMFFileArchive [mGEMFFile=" + mFile.getName() + "]";
@@ -0,0 +1,85 @@
+package org.osmdroid.tileprovider.modules;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import org.osmdroid.tileprovider.MapTile;
+import org.osmdroid.tileprovider.MapTileViewport;
+import org.osmdroid.tileprovider.tilesource.ITileSource;
+import org.osmdroid.util.HilbertTileFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An archive of tiles stored along a Hilbert curve, see {@link HilbertTileFile}. The archive
+ * holds a single tile set, so its tiles are served for any tile source.
+ */
+public class HilbertTileFileArchive implements IBatchArchiveFile, ITileRangeArchiveFile {
+
+	private static final Logger logger = LoggerFactory.getLogger(HilbertTileFileArchive.class);
+
+	private final HilbertTileFile mFile;
+
+	private HilbertTileFileArchive(final File pFile) throws IOException {
+		mFile = new HilbertTileFile(pFile);
+	}
+
+	public static HilbertTileFileArchive getHilbertTileFileArchive(final File pFile)
+			throws IOException {
+		return new HilbertTileFileArchive(pFile);
+	}
+
+	@Override
+	public InputStream getInputStream(final ITileSource pTileSource, final MapTile pTile) {
+		return getInputStreams(new MapTile[] { pTile })[0];
+	}
+
+	@Override
+	public MapTileViewport[] getTileRanges(final ITileSource pTileSource) {
+		final List<MapTileViewport> ranges = mFile.getTileRanges();
+		return ranges.toArray(new MapTileViewport[ranges.size()]);
+	}
+
+	/**
+	 * Read the tiles with as few reads as possible, because the tiles of a rectangle are mostly
+	 * close together along the curve.
+	 */
+	@Override
+	public InputStream[] getInputStreams(final ITileSource pTileSource,
+			final MapTileViewport pTiles) {
+		final int width = pTiles.getRight() - pTiles.getLeft() + 1;
+		final int height = pTiles.getBottom() - pTiles.getTop() + 1;
+		final MapTile[] tiles = new MapTile[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				tiles[y * width + x] = new MapTile(pTiles.getZoomLevel(), pTiles.getLeft() + x,
+						pTiles.getTop() + y);
+			}
+		}
+		return getInputStreams(tiles);
+	}
+
+	private InputStream[] getInputStreams(final MapTile[] pTiles) {
+		final InputStream[] streams = new InputStream[pTiles.length];
+		try {
+			final byte[][] tiles = mFile.getTiles(pTiles);
+			for (int i = 0; i < tiles.length; i++) {
+				if (tiles[i] != null) {
+					streams[i] = new ByteArrayInputStream(tiles[i]);
+				}
+			}
+		} catch (final IOException e) {
+			logger.warn("Error getting tile stream: " + mFile.getName(), e);
+		}
+		return streams;
+	}
+
+	@Override
+	public String toString() {
+		return "HilbertTileFileArchive [mFile=" + mFile.getName() + "]";
+	}
+
+}
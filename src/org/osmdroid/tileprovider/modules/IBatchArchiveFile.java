@@ -0,0 +1,24 @@
+package org.osmdroid.tileprovider.modules;
+
+import java.io.InputStream;
+
+import org.osmdroid.tileprovider.MapTileViewport;
+import org.osmdroid.tileprovider.tilesource.ITileSource;
+
+/**
+ * An archive that reads a rectangle of tiles more cheaply than each of its tiles on its own, so
+ * that {@link MapTileFileArchiveProvider} reads the visible tiles from it at once.
+ */
+public interface IBatchArchiveFile extends IArchiveFile {
+
+	/**
+	 * Get the input streams of a rectangle of tiles.
+	 *
+	 * @param pTiles
+	 *            the tiles, which must be within the world
+	 * @return the input stream of each tile by row from the top left, or null where the archive
+	 *         doesn't contain the tile
+	 */
+	InputStream[] getInputStreams(ITileSource pTileSource, MapTileViewport pTiles);
+
+}
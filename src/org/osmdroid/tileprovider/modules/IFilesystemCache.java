@@ -26,4 +26,37 @@ public interface IFilesystemCache {
 	 */
 	boolean saveFile(final ITileSource pTileSourceInfo, MapTile pTile,
 			final InputStream pStream);
+
+	/**
+	 * Save an InputStream as the specified tile in the file system cache for the specified tile
+	 * source, together with the HTTP validators it was downloaded with.
+	 * 
+	 * @param pTileSourceInfo
+	 *            a tile source
+	 * @param pTile
+	 *            a tile
+	 * @param pStream
+	 *            an InputStream
+	 * @param pValidators
+	 *            the validators, or null if there aren't any
+	 * @return true if the tile was saved
+	 */
+	boolean saveFile(final ITileSource pTileSourceInfo, MapTile pTile,
+			final InputStream pStream, final MapTileValidators pValidators);
+
+	/**
+	 * Get the HTTP validators that were saved with the specified tile.
+	 * 
+	 * @return the validators, or null if there aren't any
+	 */
+	MapTileValidators getValidators(final ITileSource pTileSourceInfo, MapTile pTile);
+
+	/**
+	 * Mark the specified tile as fresh, because the server has confirmed that it hasn't changed.
+	 * If that isn't possible then its validators are discarded, so that the tile is downloaded
+	 * again the next time.
+	 * 
+	 * @return true if the tile is now fresh
+	 */
+	boolean refreshFile(final ITileSource pTileSourceInfo, MapTile pTile);
 }
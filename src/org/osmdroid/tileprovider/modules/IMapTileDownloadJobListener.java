@@ -0,0 +1,19 @@
+package org.osmdroid.tileprovider.modules;
+
+/**
+ * Receives the progress of a {@link MapTileDownloadJob}. The methods are called on the download
+ * threads of the job, so they should return quickly.
+ */
+public interface IMapTileDownloadJobListener {
+
+	/**
+	 * A tile has been downloaded, or has failed to download.
+	 */
+	void onProgress(MapTileDownloadJob pJob);
+
+	/**
+	 * The job has finished, either because all the tiles have been downloaded or because it was
+	 * cancelled.
+	 */
+	void onFinished(MapTileDownloadJob pJob);
+}
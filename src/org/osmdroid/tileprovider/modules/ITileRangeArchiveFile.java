@@ -0,0 +1,20 @@
+package org.osmdroid.tileprovider.modules;
+
+import org.osmdroid.tileprovider.MapTileViewport;
+import org.osmdroid.tileprovider.tilesource.ITileSource;
+
+/**
+ * An archive that knows which tiles it holds without reading them, so that
+ * {@link MapTileFileArchiveProvider} only looks for a tile in the archives that may hold it.
+ */
+public interface ITileRangeArchiveFile extends IArchiveFile {
+
+	/**
+	 * Get the rectangles of tiles of the tile source in the archive. A rectangle may include tiles
+	 * that the archive doesn't hold.
+	 *
+	 * @return the rectangles, or null if any tile may be in the archive
+	 */
+	MapTileViewport[] getTileRanges(ITileSource pTileSource);
+
+}
@@ -0,0 +1,167 @@
+package org.osmdroid.tileprovider.modules;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import org.osmdroid.tileprovider.MapTile;
+import org.osmdroid.tileprovider.MapTileViewport;
+import org.osmdroid.tileprovider.tilesource.ITileSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
+/**
+ * An archive in the MBTiles format, which is an SQLite database with a <code>tiles</code> table
+ * of <code>zoom_level</code>, <code>tile_column</code>, <code>tile_row</code> and
+ * <code>tile_data</code>. The rows are numbered from the bottom of the map as in TMS. An MBTiles
+ * file holds a single tile set, so its tiles are served for any tile source.
+ *
+ * The queries are constant strings with bound arguments, so the database compiles each of them
+ * once rather than parsing a new string for every tile. A rectangle of tiles is read with a single
+ * query of ranges of columns and rows, which the database finds with the index on
+ * <code>zoom_level</code>, <code>tile_column</code> and <code>tile_row</code> rather than by
+ * scanning the table.
+ */
+public class MBTilesFileArchive implements IBatchArchiveFile, ITileRangeArchiveFile {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private static final Logger logger = LoggerFactory.getLogger(MBTilesFileArchive.class);
+
+	private static final String TILE_QUERY = "SELECT tile_data FROM tiles "
+			+ "WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+
+	/** a rectangle of tiles */
+	private static final String TILES_QUERY = "SELECT tile_column, tile_row, tile_data FROM tiles "
+			+ "WHERE zoom_level = ? AND tile_column BETWEEN ? AND ? AND tile_row BETWEEN ? AND ?";
+
+	private static final String RANGES_QUERY = "SELECT zoom_level, MIN(tile_column), "
+			+ "MAX(tile_column), MIN(tile_row), MAX(tile_row) FROM tiles GROUP BY zoom_level";
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final SQLiteDatabase mDatabase;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	private MBTilesFileArchive(final SQLiteDatabase pDatabase) {
+		mDatabase = pDatabase;
+	}
+
+	public static MBTilesFileArchive getMBTilesFileArchive(final File pFile)
+			throws SQLiteException {
+		return new MBTilesFileArchive(SQLiteDatabase.openDatabase(pFile.getAbsolutePath(), null,
+				SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS));
+	}
+
+	// ===========================================================
+	// Methods from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public InputStream getInputStream(final ITileSource pTileSource, final MapTile pTile) {
+		final int zoom = pTile.getZoomLevel();
+		try {
+			final Cursor cursor = mDatabase.rawQuery(TILE_QUERY, new String[] {
+					Integer.toString(zoom), Integer.toString(pTile.getX()),
+					Integer.toString(getRow(zoom, pTile.getY())) });
+			try {
+				if (cursor.moveToFirst()) {
+					return new ByteArrayInputStream(cursor.getBlob(0));
+				}
+			} finally {
+				cursor.close();
+			}
+		} catch (final SQLiteException e) {
+			logger.warn("Error getting MBTiles stream: " + pTile, e);
+		}
+		return null;
+	}
+
+	/**
+	 * Read a rectangle of tiles with a single query.
+	 */
+	@Override
+	public InputStream[] getInputStreams(final ITileSource pTileSource,
+			final MapTileViewport pTiles) {
+		final int zoom = pTiles.getZoomLevel();
+		final int width = pTiles.getRight() - pTiles.getLeft() + 1;
+		final int height = pTiles.getBottom() - pTiles.getTop() + 1;
+		final InputStream[] streams = new InputStream[width * height];
+		try {
+			final Cursor cursor = mDatabase.rawQuery(TILES_QUERY, new String[] {
+					Integer.toString(zoom), Integer.toString(pTiles.getLeft()),
+					Integer.toString(pTiles.getRight()),
+					Integer.toString(getRow(zoom, pTiles.getBottom())),
+					Integer.toString(getRow(zoom, pTiles.getTop())) });
+			try {
+				while (cursor.moveToNext()) {
+					final int x = cursor.getInt(0) - pTiles.getLeft();
+					final int y = getRow(zoom, cursor.getInt(1)) - pTiles.getTop();
+					streams[y * width + x] = new ByteArrayInputStream(cursor.getBlob(2));
+				}
+			} finally {
+				cursor.close();
+			}
+		} catch (final SQLiteException e) {
+			logger.warn("Error getting MBTiles streams: " + pTiles, e);
+		}
+		return streams;
+	}
+
+	/**
+	 * Find the extent of the tiles at each zoom level.
+	 */
+	@Override
+	public MapTileViewport[] getTileRanges(final ITileSource pTileSource) {
+		final ArrayList<MapTileViewport> ranges = new ArrayList<MapTileViewport>();
+		try {
+			final Cursor cursor = mDatabase.rawQuery(RANGES_QUERY, null);
+			try {
+				while (cursor.moveToNext()) {
+					final int zoom = cursor.getInt(0);
+					final int lastRow = (1 << zoom) - 1;
+					ranges.add(new MapTileViewport(zoom, cursor.getInt(1), lastRow
+							- cursor.getInt(4), cursor.getInt(2), lastRow - cursor.getInt(3)));
+				}
+			} finally {
+				cursor.close();
+			}
+		} catch (final SQLiteException e) {
+			logger.warn("Error getting MBTiles ranges: " + this, e);
+			return null;
+		}
+		return ranges.toArray(new MapTileViewport[ranges.size()]);
+	}
+
+	@Override
+	public String toString() {
+		return "MBTilesFileArchive [mDatabase=" + mDatabase.getPath() + "]";
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	public void close() {
+		mDatabase.close();
+	}
+
+	/**
+	 * @return the TMS row of a row of tiles, or the other way round
+	 */
+	private static int getRow(final int pZoom, final int pY) {
+		return (1 << pZoom) - 1 - pY;
+	}
+}
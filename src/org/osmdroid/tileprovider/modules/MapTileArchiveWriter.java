@@ -0,0 +1,145 @@
+package org.osmdroid.tileprovider.modules;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+
+import org.osmdroid.tileprovider.MapTile;
+import org.osmdroid.tileprovider.tilesource.ITileSource;
+import org.osmdroid.tileprovider.util.StreamUtils;
+import org.osmdroid.util.GEMFWriter;
+import org.osmdroid.util.HilbertTileWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link IFilesystemCache} that writes the tiles into a new archive rather than the file system
+ * cache, so that a {@link MapTileDownloadJob} can download a region straight into an archive to
+ * ship with an application. The format depends on the extension of the archive: a
+ * <code>.gemf</code> archive holds a source for each tile source, and a <code>.htiles</code>
+ * archive holds the tiles of a single tile source.
+ *
+ * The archive is only written by {@link #finish()}, so the tiles saved can't be read back until
+ * then, and the validators of the tiles aren't kept. A job that resumes from a checkpoint must
+ * therefore save into the same writer.
+ */
+public class MapTileArchiveWriter implements IFilesystemCache {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private static final Logger logger = LoggerFactory.getLogger(MapTileArchiveWriter.class);
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final GEMFWriter mGEMFWriter;
+	private final HilbertTileWriter mHilbertTileWriter;
+
+	/** the GEMF source of each tile source, by name */
+	private final HashMap<String, Integer> mSources = new HashMap<String, Integer>();
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * @param pLocation
+	 *            the path of the archive, ending with <code>.gemf</code> or <code>.htiles</code>
+	 * @throws IllegalArgumentException
+	 *             if the archive format isn't supported
+	 */
+	public MapTileArchiveWriter(final String pLocation) throws IOException {
+		if (pLocation.endsWith(".gemf")) {
+			mGEMFWriter = new GEMFWriter(pLocation);
+			mHilbertTileWriter = null;
+		} else if (pLocation.endsWith(".htiles")) {
+			mGEMFWriter = null;
+			mHilbertTileWriter = new HilbertTileWriter(pLocation);
+		} else {
+			throw new IllegalArgumentException("Unsupported archive format: " + pLocation);
+		}
+	}
+
+	// ===========================================================
+	// Methods from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public boolean saveFile(final ITileSource pTileSourceInfo, final MapTile pTile,
+			final InputStream pStream) {
+		return saveFile(pTileSourceInfo, pTile, pStream, null);
+	}
+
+	@Override
+	public boolean saveFile(final ITileSource pTileSourceInfo, final MapTile pTile,
+			final InputStream pStream, final MapTileValidators pValidators) {
+		try {
+			final byte[] data = StreamUtils.toByteArray(pStream);
+			if (mGEMFWriter != null) {
+				mGEMFWriter.addTile(getSource(pTileSourceInfo), pTile.getZoomLevel(),
+						pTile.getX(), pTile.getY(), data);
+			} else {
+				mHilbertTileWriter.addTile(pTile.getZoomLevel(), pTile.getX(), pTile.getY(),
+						data);
+			}
+			return true;
+		} catch (final IOException e) {
+			logger.warn("Unable to add tile to archive: " + pTile + " : " + e);
+			return false;
+		} catch (final IllegalStateException e) {
+			logger.warn("Unable to add tile to finished archive: " + pTile);
+			return false;
+		}
+	}
+
+	@Override
+	public MapTileValidators getValidators(final ITileSource pTileSourceInfo, final MapTile pTile) {
+		return null;
+	}
+
+	@Override
+	public boolean refreshFile(final ITileSource pTileSourceInfo, final MapTile pTile) {
+		return false;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Write the archive.
+	 */
+	public void finish() throws IOException {
+		if (mGEMFWriter != null) {
+			mGEMFWriter.finish();
+		} else {
+			mHilbertTileWriter.finish();
+		}
+	}
+
+	/**
+	 * Give up writing the archive.
+	 */
+	public void abort() {
+		if (mGEMFWriter != null) {
+			mGEMFWriter.abort();
+		} else {
+			mHilbertTileWriter.abort();
+		}
+	}
+
+	private int getSource(final ITileSource pTileSource) {
+		synchronized (mSources) {
+			final Integer source = mSources.get(pTileSource.name());
+			if (source != null) {
+				return source.intValue();
+			}
+			final int added = mGEMFWriter.addSource(pTileSource.name());
+			mSources.put(pTileSource.name(), Integer.valueOf(added));
+			return added;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package org.osmdroid.tileprovider.modules;
+
+import java.io.ByteArrayInputStream;
+
+import org.osmdroid.tileprovider.CompressedMapTileCache;
+import org.osmdroid.tileprovider.MapTile;
+import org.osmdroid.tileprovider.MapTileRequestState;
+import org.osmdroid.tileprovider.tilesource.ITileSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.graphics.drawable.Drawable;
+
+/**
+ * Serves tiles from a {@link CompressedMapTileCache} by decoding the compressed data held in
+ * memory. It should be the first provider in the chain so that a tile that has been evicted from
+ * the {@link org.osmdroid.tileprovider.MapTileCache} is decoded again without touching the file
+ * system or the network. The other providers in the chain fill the cache, see
+ * {@link MapTileModuleProviderBase#setCompressedTileCache(CompressedMapTileCache)}.
+ */
+public class MapTileCompressedCacheProvider extends MapTileModuleProviderBase {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private static final Logger logger = LoggerFactory.getLogger(MapTileCompressedCacheProvider.class);
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private ITileSource mTileSource;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public MapTileCompressedCacheProvider(final CompressedMapTileCache pCompressedTileCache,
+			final ITileSource pTileSource) {
+		super(NUMBER_OF_TILE_MEMORY_THREADS, TILE_MEMORY_MAXIMUM_QUEUE_SIZE);
+		mTileSource = pTileSource;
+		setCompressedTileCache(pCompressedTileCache);
+	}
+
+	// ===========================================================
+	// Methods from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public boolean getUsesDataConnection() {
+		return false;
+	}
+
+	@Override
+	protected String getName() {
+		return "Compressed Memory Cache Provider";
+	}
+
+	@Override
+	protected String getThreadGroupName() {
+		return "memory";
+	}
+
+	@Override
+	protected Runnable getTileLoader() {
+		return new TileLoader();
+	}
+
+	@Override
+	public int getMinimumZoomLevel() {
+		return mTileSource != null ? mTileSource.getMinimumZoomLevel() : MAXIMUM_ZOOMLEVEL;
+	}
+
+	@Override
+	public int getMaximumZoomLevel() {
+		return mTileSource != null ? mTileSource.getMaximumZoomLevel() : MINIMUM_ZOOMLEVEL;
+	}
+
+	@Override
+	public void setTileSource(final ITileSource pTileSource) {
+		mTileSource = pTileSource;
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	private class TileLoader extends MapTileModuleProviderBase.TileLoader {
+
+		@Override
+		public Drawable loadTile(final MapTileRequestState pState) {
+
+			final ITileSource tileSource = mTileSource;
+			if (tileSource == null || mCompressedTileCache == null) {
+				return null;
+			}
+
+			final MapTile tile = pState.getMapTile();
+			final byte[] data = mCompressedTileCache.get(tileSource, tile);
+			if (data == null) {
+				return null;
+			}
+
+			if (DEBUGMODE) {
+				logger.debug("Decoding tile from compressed cache: " + tile);
+			}
+			final Drawable drawable = tileSource.getDrawable(new ByteArrayInputStream(data));
+			if (drawable == null) {
+				// the data is bad so don't try it again
+				mCompressedTileCache.remove(tile);
+			}
+			return drawable;
+		}
+	}
+}
@@ -0,0 +1,628 @@
+package org.osmdroid.tileprovider.modules;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osmdroid.tileprovider.ICancellable;
+import org.osmdroid.tileprovider.MapTile;
+import org.osmdroid.tileprovider.MapTileProviderBase;
+import org.osmdroid.tileprovider.MapTileViewport;
+import org.osmdroid.tileprovider.constants.OpenStreetMapTileProviderConstants;
+import org.osmdroid.tileprovider.tilesource.ITileSource;
+import org.osmdroid.tileprovider.tilesource.OnlineTileSourceBase;
+import org.osmdroid.tileprovider.util.ConfigurablePriorityThreadFactory;
+import org.osmdroid.tileprovider.util.StreamUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Downloads all the tiles of a region into a file system cache, for example to ship a device with
+ * the region already cached. The region is a range of tiles at each of a number of zoom levels,
+ * see {@link #createDownloadJob}. The tiles are downloaded by a fixed number of low priority
+ * threads, and are saved to the cache without being decoded, so the cache may equally be a
+ * {@link TileWriter} or a {@link MapTileArchiveWriter}.
+ *
+ * Tiles that are already in the cache are revalidated with a conditional request if they were
+ * saved with validators. Tiles that don't exist on the server count as downloaded. Tiles that
+ * still fail after {@link #HTTP_RETRY_COUNT} retries count as failed. While the circuit breaker of
+ * a server is open the job waits for the server to recover rather than failing the remaining
+ * tiles.
+ *
+ * If a checkpoint file is specified then the progress of the job is saved to it regularly and when
+ * the job finishes. A job for the same tile source and region with the same checkpoint file
+ * continues where the last one stopped, whether it was cancelled or the process was killed, and
+ * retries the tiles that failed.
+ */
+public class MapTileDownloadJob implements ICancellable, OpenStreetMapTileProviderConstants {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private static final Logger logger = LoggerFactory.getLogger(MapTileDownloadJob.class);
+
+	/** the tile was downloaded, hasn't changed or doesn't exist */
+	private static final int TILE_DONE = 0;
+	private static final int TILE_FAILED = 1;
+	private static final int TILE_CANCELLED = 2;
+
+	private static final String CHECKPOINT_TILES = "tiles";
+	private static final String CHECKPOINT_NEXT = "next";
+	private static final String CHECKPOINT_FAILED = "failed";
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final OnlineTileSourceBase mTileSource;
+	private final MapTileViewport[] mRanges;
+	private final IFilesystemCache mCache;
+	private final File mCheckpointFile;
+	private final MapTileFetcher mFetcher;
+	private final int mThreadCount;
+	private final long mTileCount;
+
+	private volatile IMapTileDownloadJobListener mListener;
+	private volatile boolean mCancelled;
+	private final CountDownLatch mFinished = new CountDownLatch(1);
+	private final AtomicLong mByteCount = new AtomicLong();
+
+	// the fields below are guarded by this
+
+	private ExecutorService mExecutor;
+	private int mRunningThreadCount;
+
+	/** the index of the next tile in the region */
+	private long mNextIndex;
+	/** the index of the tile being downloaded by each thread, or -1 */
+	private final long[] mThreadIndices;
+	/** whether each thread is retrying a tile that failed in a previous job */
+	private final boolean[] mThreadRetrying;
+	/** the tiles that failed in a previous job and haven't been retried yet */
+	private final LinkedList<Long> mRetryIndices = new LinkedList<Long>();
+	/** the tiles that failed in this job */
+	private final ArrayList<Long> mFailedIndices = new ArrayList<Long>();
+
+	private long mCompletedCount;
+	/** the number of tiles completed or failed by this job, rather than by previous jobs */
+	private long mProcessedCount;
+	private long mStartTime;
+	private long mFinishTime;
+	private long mCheckpointTime;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * @param pTileSource
+	 *            the tile source to download from
+	 * @param pRanges
+	 *            the tiles to download, which must be within the world
+	 * @param pCache
+	 *            where to save the tiles
+	 * @param pCheckpointFile
+	 *            where to save the progress of the job, or null if it can't be resumed
+	 */
+	public MapTileDownloadJob(final OnlineTileSourceBase pTileSource,
+			final MapTileViewport[] pRanges, final IFilesystemCache pCache,
+			final File pCheckpointFile) {
+		this(pTileSource, pRanges, pCache, pCheckpointFile, new MapTileHttpClient(),
+				NUMBER_OF_BULK_DOWNLOAD_THREADS);
+	}
+
+	/**
+	 * @param pHttpClient
+	 *            the HTTP transport, which may be shared so that the job shares its connection
+	 *            limits
+	 * @param pThreadCount
+	 *            the number of tiles downloaded at once
+	 */
+	public MapTileDownloadJob(final OnlineTileSourceBase pTileSource,
+			final MapTileViewport[] pRanges, final IFilesystemCache pCache,
+			final File pCheckpointFile, final MapTileHttpClient pHttpClient, final int pThreadCount) {
+		if (pThreadCount < 1) {
+			throw new IllegalArgumentException("pThreadCount must be at least 1");
+		}
+		mTileSource = pTileSource;
+		mRanges = pRanges.clone();
+		mCache = pCache;
+		mCheckpointFile = pCheckpointFile;
+		mFetcher = new MapTileFetcher(pHttpClient);
+		mThreadCount = pThreadCount;
+
+		long tileCount = 0;
+		for (final MapTileViewport range : mRanges) {
+			tileCount += getTileCount(range);
+		}
+		mTileCount = tileCount;
+
+		mThreadIndices = new long[pThreadCount];
+		Arrays.fill(mThreadIndices, -1);
+		mThreadRetrying = new boolean[pThreadCount];
+	}
+
+	/**
+	 * Create a job that downloads the tiles that cover a rectangle of the world at a range of zoom
+	 * levels from the tile source of a provider. The job must be started with {@link #start()}.
+	 *
+	 * @param pLeft
+	 *            the left of the rectangle in world coordinates
+	 * @param pTop
+	 *            the top of the rectangle in world coordinates
+	 * @param pRight
+	 *            the right of the rectangle in world coordinates, exclusive
+	 * @param pBottom
+	 *            the bottom of the rectangle in world coordinates, exclusive
+	 * @param pCache
+	 *            where to save the tiles
+	 * @param pCheckpointFile
+	 *            where to save the progress of the job so that it can be resumed, or null
+	 * @throws IllegalArgumentException
+	 *             if the tile source of the provider isn't an {@link OnlineTileSourceBase}
+	 */
+	public static MapTileDownloadJob createDownloadJob(final MapTileProviderBase pProvider,
+			final int pLeft, final int pTop, final int pRight, final int pBottom,
+			final int pMinimumZoomLevel, final int pMaximumZoomLevel,
+			final IFilesystemCache pCache, final File pCheckpointFile) {
+		final ITileSource tileSource = pProvider.getTileSource();
+		if (!(tileSource instanceof OnlineTileSourceBase)) {
+			throw new IllegalArgumentException("Not an online tile source: " + tileSource);
+		}
+		final ArrayList<MapTileViewport> ranges = new ArrayList<MapTileViewport>();
+		final int maximumZoomLevel = Math.min(pMaximumZoomLevel, pProvider.getMaximumZoomLevel());
+		for (int zoom = Math.max(pMinimumZoomLevel, pProvider.getMinimumZoomLevel());
+				zoom <= maximumZoomLevel; zoom++) {
+			final MapTileViewport tiles = pProvider.getTiles(zoom, pLeft, pTop, pRight, pBottom);
+			if (tiles != null) {
+				ranges.add(tiles);
+			}
+		}
+		return new MapTileDownloadJob((OnlineTileSourceBase) tileSource,
+				ranges.toArray(new MapTileViewport[ranges.size()]), pCache, pCheckpointFile);
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public OnlineTileSourceBase getTileSource() {
+		return mTileSource;
+	}
+
+	/**
+	 * Set the listener, which must be done before the job is started to hear about all of it.
+	 */
+	public void setListener(final IMapTileDownloadJobListener pListener) {
+		mListener = pListener;
+	}
+
+	/**
+	 * @return the number of tiles in the region
+	 */
+	public long getTileCount() {
+		return mTileCount;
+	}
+
+	/**
+	 * @return the number of tiles that have been downloaded, including by previous jobs
+	 */
+	public synchronized long getCompletedTileCount() {
+		return mCompletedCount;
+	}
+
+	/**
+	 * @return the number of tiles that failed to download and will be retried by the next job
+	 */
+	public synchronized long getFailedTileCount() {
+		return mFailedIndices.size();
+	}
+
+	/**
+	 * @return the number of bytes downloaded by this job
+	 */
+	public long getDownloadedByteCount() {
+		return mByteCount.get();
+	}
+
+	/**
+	 * @return the time since the job was started in milliseconds, or the time it took if it has
+	 *         finished
+	 */
+	public synchronized long getElapsedTime() {
+		if (mStartTime == 0) {
+			return 0;
+		}
+		return (mFinishTime != 0 ? mFinishTime : System.currentTimeMillis()) - mStartTime;
+	}
+
+	/**
+	 * @return the number of tiles processed per second by this job
+	 */
+	public synchronized double getTilesPerSecond() {
+		final long elapsed = getElapsedTime();
+		return elapsed == 0 ? 0 : mProcessedCount * 1000.0 / elapsed;
+	}
+
+	/**
+	 * @return the number of bytes downloaded per second by this job
+	 */
+	public double getBytesPerSecond() {
+		final long elapsed = getElapsedTime();
+		return elapsed == 0 ? 0 : mByteCount.get() * 1000.0 / elapsed;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	public boolean isFinished() {
+		return mFinished.getCount() == 0;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Start downloading, continuing from the checkpoint file if there is one.
+	 *
+	 * @throws IllegalStateException
+	 *             if the job has already been started
+	 */
+	public synchronized void start() {
+		if (mExecutor != null) {
+			throw new IllegalStateException("The job has already been started");
+		}
+		loadCheckpoint();
+		mStartTime = System.currentTimeMillis();
+		mCheckpointTime = mStartTime;
+		if (DEBUGMODE) {
+			logger.debug("Starting download of " + (mTileCount - mCompletedCount) + " of "
+					+ mTileCount + " tiles from " + mTileSource.name());
+		}
+		mExecutor = Executors.newFixedThreadPool(mThreadCount,
+				new ConfigurablePriorityThreadFactory(Thread.MIN_PRIORITY, "bulkdownload"));
+		mRunningThreadCount = mThreadCount;
+		for (int i = 0; i < mThreadCount; i++) {
+			mExecutor.execute(new Downloader(i));
+		}
+		mExecutor.shutdown();
+	}
+
+	/**
+	 * Stop downloading. Tiles being downloaded are abandoned, and the progress is saved to the
+	 * checkpoint file when the download threads have stopped.
+	 */
+	public synchronized void cancel() {
+		mCancelled = true;
+		if (mExecutor != null) {
+			// interrupt the threads waiting to retry
+			mExecutor.shutdownNow();
+		} else {
+			mFinished.countDown();
+		}
+	}
+
+	/**
+	 * Wait for the job to finish.
+	 *
+	 * @return true if it finished, false if the timeout elapsed first
+	 */
+	public boolean await(final long pTimeoutMillis) throws InterruptedException {
+		return mFinished.await(pTimeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private static long getTileCount(final MapTileViewport pRange) {
+		return (long) (pRange.getRight() - pRange.getLeft() + 1)
+				* (pRange.getBottom() - pRange.getTop() + 1);
+	}
+
+	/**
+	 * @return the tile with the specified index in the region
+	 */
+	private MapTile getTile(final long pIndex) {
+		long index = pIndex;
+		for (final MapTileViewport range : mRanges) {
+			final long count = getTileCount(range);
+			if (index < count) {
+				final int width = range.getRight() - range.getLeft() + 1;
+				return new MapTile(range.getZoomLevel(), range.getLeft() + (int) (index % width),
+						range.getTop() + (int) (index / width));
+			}
+			index -= count;
+		}
+		throw new IllegalArgumentException("No tile with index " + pIndex);
+	}
+
+	/**
+	 * @return the index of the next tile for the thread to download, or -1 if there are none
+	 */
+	private synchronized long nextTile(final int pThread) {
+		final long index;
+		if (!mRetryIndices.isEmpty()) {
+			index = mRetryIndices.removeFirst();
+			mThreadRetrying[pThread] = true;
+		} else if (mNextIndex < mTileCount) {
+			index = mNextIndex++;
+			mThreadRetrying[pThread] = false;
+		} else {
+			return -1;
+		}
+		mThreadIndices[pThread] = index;
+		return index;
+	}
+
+	private synchronized void tileProcessed(final int pThread, final boolean pSucceeded) {
+		if (pSucceeded) {
+			mCompletedCount++;
+		} else {
+			mFailedIndices.add(mThreadIndices[pThread]);
+		}
+		mProcessedCount++;
+		mThreadIndices[pThread] = -1;
+
+		final long now = System.currentTimeMillis();
+		if (now - mCheckpointTime >= BULK_DOWNLOAD_CHECKPOINT_MILLISECONDS) {
+			mCheckpointTime = now;
+			saveCheckpoint();
+		}
+	}
+
+	private void threadFinished() {
+		synchronized (this) {
+			if (--mRunningThreadCount > 0) {
+				return;
+			}
+			mFinishTime = System.currentTimeMillis();
+			saveCheckpoint();
+		}
+		if (DEBUGMODE) {
+			logger.debug("Finished download from " + mTileSource.name() + ": "
+					+ getCompletedTileCount() + " of " + mTileCount + " tiles, "
+					+ getFailedTileCount() + " failed");
+		}
+		final IMapTileDownloadJobListener listener = mListener;
+		if (listener != null) {
+			listener.onFinished(this);
+		}
+		mFinished.countDown();
+	}
+
+	/**
+	 * @return a description of the tiles of the job, to check that a checkpoint belongs to it
+	 */
+	private String getCheckpointTiles() {
+		return mTileSource.name() + Arrays.toString(mRanges);
+	}
+
+	private synchronized void loadCheckpoint() {
+		if (mCheckpointFile == null || !mCheckpointFile.exists()) {
+			return;
+		}
+		final Properties checkpoint = new Properties();
+		InputStream in = null;
+		try {
+			in = new FileInputStream(mCheckpointFile);
+			checkpoint.load(in);
+		} catch (final IOException e) {
+			logger.warn("Unable to read download checkpoint " + mCheckpointFile + " : " + e);
+			return;
+		} finally {
+			StreamUtils.closeStream(in);
+		}
+
+		if (!getCheckpointTiles().equals(checkpoint.getProperty(CHECKPOINT_TILES))) {
+			logger.warn("Ignoring download checkpoint for other tiles: " + mCheckpointFile);
+			return;
+		}
+		try {
+			final long next = Long.parseLong(checkpoint.getProperty(CHECKPOINT_NEXT, "0"));
+			if (next < 0 || next > mTileCount) {
+				throw new NumberFormatException("Bad next tile: " + next);
+			}
+			// ignore duplicates and the tiles from next onwards, which are downloaded anyway
+			final LinkedHashSet<Long> failed = new LinkedHashSet<Long>();
+			for (final String index : checkpoint.getProperty(CHECKPOINT_FAILED, "").split(",")) {
+				if (index.length() > 0) {
+					final Long value = Long.valueOf(index);
+					if (value.longValue() >= 0 && value.longValue() < next) {
+						failed.add(value);
+					}
+				}
+			}
+			mNextIndex = next;
+			mRetryIndices.addAll(failed);
+			mCompletedCount = next - failed.size();
+		} catch (final NumberFormatException e) {
+			logger.warn("Ignoring bad download checkpoint " + mCheckpointFile + " : " + e);
+		}
+	}
+
+	/**
+	 * Save the index of the first tile that hasn't been processed and the tiles that need to be
+	 * retried. The tiles being downloaded are saved as not processed.
+	 */
+	private synchronized void saveCheckpoint() {
+		if (mCheckpointFile == null) {
+			return;
+		}
+		long next = mNextIndex;
+		for (int i = 0; i < mThreadCount; i++) {
+			if (mThreadIndices[i] >= 0 && !mThreadRetrying[i]) {
+				next = Math.min(next, mThreadIndices[i]);
+			}
+		}
+		// the tiles from next onwards are downloaded again anyway, including those that failed
+		final StringBuilder failed = new StringBuilder();
+		for (final Long index : mFailedIndices) {
+			appendFailed(failed, index.longValue(), next);
+		}
+		for (final Long index : mRetryIndices) {
+			appendFailed(failed, index.longValue(), next);
+		}
+		for (int i = 0; i < mThreadCount; i++) {
+			if (mThreadIndices[i] >= 0 && mThreadRetrying[i]) {
+				appendFailed(failed, mThreadIndices[i], next);
+			}
+		}
+
+		final Properties checkpoint = new Properties();
+		checkpoint.setProperty(CHECKPOINT_TILES, getCheckpointTiles());
+		checkpoint.setProperty(CHECKPOINT_NEXT, String.valueOf(next));
+		checkpoint.setProperty(CHECKPOINT_FAILED, failed.toString());
+
+		// write a new file and then replace the old one, so that there is always a whole one
+		final File tempFile = new File(mCheckpointFile.getPath() + ".tmp");
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(tempFile);
+			checkpoint.store(out, null);
+			out.close();
+			out = null;
+			if (!tempFile.renameTo(mCheckpointFile)) {
+				// some platforms don't replace an existing file
+				mCheckpointFile.delete();
+				if (!tempFile.renameTo(mCheckpointFile)) {
+					throw new IOException("Unable to rename " + tempFile);
+				}
+			}
+		} catch (final IOException e) {
+			logger.warn("Unable to save download checkpoint " + mCheckpointFile + " : " + e);
+		} finally {
+			StreamUtils.closeStream(out);
+		}
+	}
+
+	private static void appendFailed(final StringBuilder pFailed, final long pIndex,
+			final long pNext) {
+		if (pIndex < pNext) {
+			pFailed.append(pIndex).append(',');
+		}
+	}
+
+	/**
+	 * @return false if the thread was interrupted, because the job has been cancelled
+	 */
+	private static boolean sleep(final long pMillis) {
+		try {
+			Thread.sleep(pMillis);
+			return true;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Download a tile and save it to the cache, retrying after network and server errors.
+	 *
+	 * @return {@link #TILE_DONE}, {@link #TILE_FAILED} or {@link #TILE_CANCELLED}
+	 */
+	private int downloadTile(final MapTile pTile) {
+		int waitCount = 0;
+		for (int retry = 0;; retry++) {
+			if (mCancelled) {
+				return TILE_CANCELLED;
+			}
+
+			final MapTileFetcher.Result result;
+			try {
+				result = mFetcher.fetch(mTileSource, pTile,
+						mCache.getValidators(mTileSource, pTile), this);
+				switch (result.getStatus()) {
+				case MapTileFetcher.FETCH_OK:
+					final byte[] data = result.getData();
+					mByteCount.addAndGet(data.length);
+					if (!mCache.saveFile(mTileSource, pTile, new ByteArrayInputStream(data),
+							result.getValidators())) {
+						logger.warn("Unable to save MapTile: " + pTile);
+						return TILE_FAILED;
+					}
+					return TILE_DONE;
+				case MapTileFetcher.FETCH_NOT_MODIFIED:
+					mCache.refreshFile(mTileSource, pTile);
+					return TILE_DONE;
+				case MapTileFetcher.FETCH_NOT_FOUND:
+					return TILE_DONE;
+				case MapTileFetcher.FETCH_FAILED:
+					return TILE_FAILED;
+				case MapTileFetcher.FETCH_CANCELLED:
+					return TILE_CANCELLED;
+				}
+			} catch (final Throwable e) {
+				logger.error("Error downloading MapTile: " + pTile, e);
+				return TILE_FAILED;
+			}
+
+			final long delay;
+			if (result.getStatus() == MapTileFetcher.FETCH_SUSPENDED) {
+				// wait for the server to recover rather than failing all the remaining tiles, and
+				// don't count it as a retry
+				delay = MapTileFetcher.getSuspendedDelay(waitCount++);
+				retry--;
+			} else if (retry >= HTTP_RETRY_COUNT) {
+				logger.warn("Giving up downloading MapTile: " + pTile);
+				return TILE_FAILED;
+			} else {
+				if (DEBUGMODE) {
+					logger.debug("Retrying MapTile: " + pTile);
+				}
+				delay = MapTileFetcher.getRetryDelay(retry);
+			}
+			if (!sleep(delay)) {
+				return TILE_CANCELLED;
+			}
+		}
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	private class Downloader implements Runnable {
+
+		private final int mThread;
+
+		Downloader(final int pThread) {
+			mThread = pThread;
+		}
+
+		@Override
+		public void run() {
+			try {
+				long index;
+				while (!mCancelled && (index = nextTile(mThread)) >= 0) {
+					final int result = downloadTile(getTile(index));
+					if (result == TILE_CANCELLED) {
+						// leave the tile in progress so that it's saved as not processed
+						break;
+					}
+					tileProcessed(mThread, result == TILE_DONE);
+					final IMapTileDownloadJobListener listener = mListener;
+					if (listener != null) {
+						listener.onProgress(MapTileDownloadJob.this);
+					}
+				}
+			} finally {
+				threadFinished();
+			}
+		}
+	}
+}
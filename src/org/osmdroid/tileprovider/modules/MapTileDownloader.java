@@ -1,21 +1,12 @@
 package org.osmdroid.tileprovider.modules;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.URL;
-import java.net.UnknownHostException;
 
 import org.osmdroid.tileprovider.MapTile;
 import org.osmdroid.tileprovider.MapTileRequestState;
+import org.osmdroid.tileprovider.ReusableBitmapDrawable;
 import org.osmdroid.tileprovider.tilesource.ITileSource;
 import org.osmdroid.tileprovider.tilesource.OnlineTileSourceBase;
-import org.osmdroid.tileprovider.util.StreamUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,6 +39,8 @@ public class MapTileDownloader extends MapTileModuleProviderBase {
 
 	private final INetworkAvailablityCheck mNetworkAvailablityCheck;
 
+	private final MapTileFetcher mFetcher;
+
 	// ===========================================================
 	// Constructors
 	// ===========================================================
@@ -63,10 +56,23 @@ public class MapTileDownloader extends MapTileModuleProviderBase {
 	public MapTileDownloader(final ITileSource pTileSource,
 			final IFilesystemCache pFilesystemCache,
 			final INetworkAvailablityCheck pNetworkAvailablityCheck) {
+		this(pTileSource, pFilesystemCache, pNetworkAvailablityCheck, new MapTileHttpClient());
+	}
+
+	/**
+	 * @param pHttpClient
+	 *            the HTTP transport, which may be shared with other downloaders so that they share
+	 *            its connection limits
+	 */
+	public MapTileDownloader(final ITileSource pTileSource,
+			final IFilesystemCache pFilesystemCache,
+			final INetworkAvailablityCheck pNetworkAvailablityCheck,
+			final MapTileHttpClient pHttpClient) {
 		super(NUMBER_OF_TILE_DOWNLOAD_THREADS, TILE_DOWNLOAD_MAXIMUM_QUEUE_SIZE);
 
 		mFilesystemCache = pFilesystemCache;
 		mNetworkAvailablityCheck = pNetworkAvailablityCheck;
+		mFetcher = new MapTileFetcher(pHttpClient);
 		setTileSource(pTileSource);
 	}
 
@@ -78,6 +84,10 @@ public class MapTileDownloader extends MapTileModuleProviderBase {
 		return mTileSource;
 	}
 
+	public MapTileHttpClient getHttpClient() {
+		return mFetcher.getHttpClient();
+	}
+
 	// ===========================================================
 	// Methods from SuperClass/Interfaces
 	// ===========================================================
@@ -123,72 +133,97 @@ public class MapTileDownloader extends MapTileModuleProviderBase {
 	}
 
 	// ===========================================================
-	// Inner and Anonymous Classes
+	// Methods
 	// ===========================================================
 
 	private class TileLoader extends MapTileModuleProviderBase.TileLoader {
 
 		@Override
-		public Drawable loadTile(final MapTileRequestState aState) throws CantContinueException {
+		public Drawable loadTile(final MapTileRequestState aState) {
 
-			if (mTileSource == null)
+			final OnlineTileSourceBase tileSource = mTileSource;
+			if (tileSource == null)
 				return null;
 
-			InputStream in = null;
-			OutputStream out = null;
 			final MapTile tile = aState.getMapTile();
 
-			try {
+			if (mNetworkAvailablityCheck != null
+					&& !mNetworkAvailablityCheck.getNetworkAvailable()) {
+				if (DEBUGMODE)
+					logger.debug("Skipping " + getName() + " due to NetworkAvailabliltyCheck.");
+				return null;
+			}
 
-				if (mNetworkAvailablityCheck != null
-						&& !mNetworkAvailablityCheck.getNetworkAvailable()) {
-					if (DEBUGMODE)
-						logger.debug("Skipping " + getName() + " due to NetworkAvailabliltyCheck.");
+			// If the file system cache has already delivered its expired copy of the tile then
+			// only download the tile if it has changed
+			final MapTileValidators validators = mFilesystemCache != null
+					&& aState.isCandidateLoaded() ? mFilesystemCache.getValidators(tileSource,
+					tile) : null;
+
+			final MapTileFetcher.Result result = mFetcher.fetch(tileSource, tile, validators,
+					aState);
+			switch (result.getStatus()) {
+			case MapTileFetcher.FETCH_OK:
+				return onDownloaded(aState, tileSource, result);
+			case MapTileFetcher.FETCH_NOT_MODIFIED:
+				return onNotModified(aState, tileSource);
+			case MapTileFetcher.FETCH_RETRY:
+				final int retry = aState.getRetryCount();
+				if (retry >= HTTP_RETRY_COUNT) {
+					logger.warn("Giving up downloading MapTile: " + tile);
 					return null;
 				}
-
-				final String tileURLString = mTileSource.getTileURLString(tile);
-
 				if (DEBUGMODE)
-					logger.debug("Downloading Maptile from url: " + tileURLString);
+					logger.debug("Retrying MapTile: " + tile);
+				// put the tile back in the queue later rather than keep this thread waiting
+				retryTile(MapTileFetcher.getRetryDelay(retry));
+				return null;
+			default:
+				return null;
+			}
+		}
 
-				// TODO consider using apache HttpClient instead of openStream()
-				// - see http://groups.google.com/d/msg/osmdroid/uDK_SUNeyhs/obv4V2w3cZoJ
+		/**
+		 * @return the tile, which is the candidate tile, or null if that is no longer valid
+		 */
+		private Drawable onNotModified(final MapTileRequestState aState,
+				final OnlineTileSourceBase aTileSource) {
+			// The expired copy has been drawn already, so just make it fresh. If that fails then
+			// the validators have been discarded and the tile is downloaded next time.
+			mFilesystemCache.refreshFile(aTileSource, aState.getMapTile());
+			final Drawable candidate = aState.getCandidate();
+			if (candidate instanceof ReusableBitmapDrawable
+					&& !((ReusableBitmapDrawable) candidate).isBitmapValid()) {
+				// it was evicted meanwhile, so let the fresh file be loaded next time
+				dropTile();
+				return null;
+			}
+			return candidate;
+		}
 
-				in = new BufferedInputStream(new URL(tileURLString).openStream(),
-						StreamUtils.IO_BUFFER_SIZE);
+		/**
+		 * Decode the downloaded tile and save it.
+		 */
+		private Drawable onDownloaded(final MapTileRequestState aState,
+				final OnlineTileSourceBase aTileSource, final MapTileFetcher.Result aResult) {
+			final MapTile tile = aState.getMapTile();
+			final byte[] data = aResult.getData();
 
-				final ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-				out = new BufferedOutputStream(dataStream, StreamUtils.IO_BUFFER_SIZE);
-				StreamUtils.copy(in, out);
-				out.flush();
-				final byte[] data = dataStream.toByteArray();
-				final ByteArrayInputStream byteStream = new ByteArrayInputStream(data);
+			// Keep the data in memory so that it can be decoded again without downloading
+			if (mCompressedTileCache != null) {
+				mCompressedTileCache.put(aTileSource, tile, data);
+			}
 
-				// Save the data to the filesystem cache
+			// Decode the tile before saving it, so that it isn't kept waiting for the disk. The
+			// filesystem cache only queues the tile to be written.
+			try {
+				return aTileSource.getDrawable(new ByteArrayInputStream(data));
+			} finally {
 				if (mFilesystemCache != null) {
-					mFilesystemCache.saveFile(mTileSource, tile, byteStream);
-					byteStream.reset();
+					mFilesystemCache.saveFile(aTileSource, tile, new ByteArrayInputStream(data),
+							aResult.getValidators());
 				}
-				final Drawable result = mTileSource.getDrawable(byteStream);
-
-				return result;
-			} catch (final UnknownHostException e) {
-				// no network connection so empty the queue
-				logger.warn("UnknownHostException downloading MapTile: " + tile + " : " + e);
-				throw new CantContinueException(e);
-			} catch (final FileNotFoundException e) {
-				logger.warn("Tile not found: " + tile + " : " + e);
-			} catch (final IOException e) {
-				logger.warn("IOException downloading MapTile: " + tile + " : " + e);
-			} catch (final Throwable e) {
-				logger.error("Error downloading MapTile: " + tile, e);
-			} finally {
-				StreamUtils.closeStream(in);
-				StreamUtils.closeStream(out);
 			}
-
-			return null;
 		}
 	}
 }
@@ -0,0 +1,290 @@
+package org.osmdroid.tileprovider.modules;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.UnknownHostException;
+
+import org.osmdroid.tileprovider.ICancellable;
+import org.osmdroid.tileprovider.MapTile;
+import org.osmdroid.tileprovider.constants.OpenStreetMapTileProviderConstants;
+import org.osmdroid.tileprovider.tilesource.OnlineTileSourceBase;
+import org.osmdroid.tileprovider.util.ExponentialBackoff;
+import org.osmdroid.tileprovider.util.StreamUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches tiles from the servers of online tile sources, for the {@link MapTileDownloader} and the
+ * {@link MapTileDownloadJob}.
+ *
+ * Each call of {@link #fetch(OnlineTileSourceBase, MapTile, MapTileValidators, ICancellable)}
+ * makes a single attempt: it chooses a mirror, leaves a server alone while its circuit breaker is
+ * open, sends the request, tells the {@link TileServerMonitor} how it went and sorts the response
+ * into one of the FETCH_ results. The caller decides whether and when to try again, with
+ * {@link #getRetryDelay(int)} and {@link #getSuspendedDelay(int)}.
+ *
+ * This class is thread-safe.
+ */
+public class MapTileFetcher implements OpenStreetMapTileProviderConstants {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private static final Logger logger = LoggerFactory.getLogger(MapTileFetcher.class);
+
+	/** not defined by {@link HttpURLConnection} */
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+	/** the tile was downloaded */
+	public static final int FETCH_OK = 0;
+	/** the tile hasn't changed since the validators were received */
+	public static final int FETCH_NOT_MODIFIED = 1;
+	/** the tile doesn't exist on the server */
+	public static final int FETCH_NOT_FOUND = 2;
+	/** there was a network or server error, so it's worth trying again */
+	public static final int FETCH_RETRY = 3;
+	/** requests to the server are suspended by its circuit breaker */
+	public static final int FETCH_SUSPENDED = 4;
+	/** the tile can't be downloaded */
+	public static final int FETCH_FAILED = 5;
+	public static final int FETCH_CANCELLED = 6;
+
+	private static final Result NOT_MODIFIED = new Result(FETCH_NOT_MODIFIED, null, null);
+	private static final Result NOT_FOUND = new Result(FETCH_NOT_FOUND, null, null);
+	private static final Result RETRY = new Result(FETCH_RETRY, null, null);
+	private static final Result SUSPENDED = new Result(FETCH_SUSPENDED, null, null);
+	private static final Result FAILED = new Result(FETCH_FAILED, null, null);
+	private static final Result CANCELLED = new Result(FETCH_CANCELLED, null, null);
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final MapTileHttpClient mHttpClient;
+
+	private final TileServerMonitor mServerMonitor = new TileServerMonitor();
+
+	/** the hosts of the base urls of the last tile source */
+	private volatile MirrorHosts mMirrorHosts;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * @param pHttpClient
+	 *            the HTTP transport, which may be shared with other fetchers so that they share its
+	 *            connection limits
+	 */
+	public MapTileFetcher(final MapTileHttpClient pHttpClient) {
+		mHttpClient = pHttpClient;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public MapTileHttpClient getHttpClient() {
+		return mHttpClient;
+	}
+
+	public TileServerMonitor getServerMonitor() {
+		return mServerMonitor;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * @return the delay before the specified retry after {@link #FETCH_RETRY}, starting at zero
+	 */
+	public static long getRetryDelay(final int pRetry) {
+		return ExponentialBackoff.getDelay(HTTP_RETRY_BACKOFF_MILLISECONDS, Long.MAX_VALUE, pRetry);
+	}
+
+	/**
+	 * @return the delay before trying a server again after the specified number of
+	 *         {@link #FETCH_SUSPENDED} results in a row, starting at zero
+	 */
+	public static long getSuspendedDelay(final int pWaitCount) {
+		return ExponentialBackoff.getDelay(HTTP_RETRY_BACKOFF_MILLISECONDS,
+				HTTP_CIRCUIT_BREAKER_OPEN_MILLISECONDS, pWaitCount);
+	}
+
+	/**
+	 * Download a tile once.
+	 *
+	 * @param pValidators
+	 *            the validators of the copy of the tile that the caller already has, in which case
+	 *            the tile is only downloaded if it has changed, or null
+	 * @param pCancellable
+	 *            checked while the tile is downloaded, so that it's abandoned if nobody wants it
+	 * @return the result, whose data and validators are set if it's {@link #FETCH_OK}
+	 */
+	public Result fetch(final OnlineTileSourceBase pTileSource, final MapTile pTile,
+			final MapTileValidators pValidators, final ICancellable pCancellable) {
+
+		// Choose the mirror each time so that a retry goes to another mirror if this one is failing
+		final int mirror = mServerMonitor.chooseMirror(pTile.getTileId(),
+				getMirrorHosts(pTileSource));
+		final String tileURLString = pTileSource.getTileURLString(pTile,
+				pTileSource.getBaseUrl(mirror));
+		final String host;
+		try {
+			host = new URL(tileURLString).getHost();
+		} catch (final MalformedURLException e) {
+			logger.error("Bad tile URL: " + tileURLString, e);
+			return FAILED;
+		}
+		if (!mServerMonitor.allowRequest(host)) {
+			if (DEBUGMODE) {
+				logger.debug("Requests suspended to " + host + " for tile: " + pTile);
+			}
+			return SUSPENDED;
+		}
+
+		try {
+			final Result result = download(pTile, tileURLString, host, pValidators, pCancellable);
+			mServerMonitor.onSuccess(host);
+			return result;
+		} catch (final UnknownHostException e) {
+			// no network connection or no such server, so suspend the other requests at once
+			logger.warn("UnknownHostException downloading MapTile: " + pTile + " : " + e);
+			mServerMonitor.onUnreachable(host);
+			return RETRY;
+		} catch (final IOException e) {
+			if (pCancellable.isCancelled()) {
+				return CANCELLED;
+			}
+			mServerMonitor.onFailure(host);
+			if (DEBUGMODE) {
+				logger.debug("IOException downloading MapTile: " + pTile + " : " + e);
+			}
+			return RETRY;
+		}
+	}
+
+	/**
+	 * @throws IOException
+	 *             if there was a network error or a server error
+	 */
+	private Result download(final MapTile pTile, final String pTileURLString, final String pHost,
+			final MapTileValidators pValidators, final ICancellable pCancellable)
+			throws IOException {
+		if (DEBUGMODE) {
+			logger.debug("Downloading Maptile from url: " + pTileURLString);
+		}
+		final MapTileHttpClient.Response response = mHttpClient.get(pTileURLString, pValidators);
+		try {
+			mServerMonitor.onResponse(pHost, response.getResponseTime());
+			final int statusCode = response.getStatusCode();
+			if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED && pValidators != null) {
+				if (DEBUGMODE) {
+					logger.debug("Tile not modified: " + pTile);
+				}
+				return NOT_MODIFIED;
+			}
+			if (statusCode >= HttpURLConnection.HTTP_INTERNAL_ERROR
+					|| statusCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+					|| statusCode == HTTP_TOO_MANY_REQUESTS) {
+				throw new IOException("HTTP response: " + statusCode);
+			}
+			if (statusCode == HttpURLConnection.HTTP_NOT_FOUND) {
+				if (DEBUGMODE) {
+					logger.debug("Tile not found: " + pTile);
+				}
+				return NOT_FOUND;
+			}
+			if (statusCode != HttpURLConnection.HTTP_OK) {
+				logger.warn("Problem downloading MapTile: " + pTile + " HTTP response: "
+						+ statusCode);
+				return FAILED;
+			}
+
+			final InputStream in = response.getInputStream();
+			final ByteArrayOutputStream data = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[StreamUtils.IO_BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				// abandon the download if nobody wants the tile any more
+				if (pCancellable.isCancelled()) {
+					if (DEBUGMODE) {
+						logger.debug("Download cancelled: " + pTile);
+					}
+					return CANCELLED;
+				}
+				data.write(buffer, 0, read);
+			}
+			return new Result(FETCH_OK, data.toByteArray(), response.getValidators());
+		} finally {
+			// this also closes the input stream
+			response.close();
+		}
+	}
+
+	private String[] getMirrorHosts(final OnlineTileSourceBase pTileSource) {
+		final MirrorHosts mirrorHosts = mMirrorHosts;
+		if (mirrorHosts != null && mirrorHosts.mTileSource == pTileSource) {
+			return mirrorHosts.mHosts;
+		}
+		final String[] hosts = TileServerMonitor.getMirrorHosts(pTileSource);
+		mMirrorHosts = new MirrorHosts(pTileSource, hosts);
+		return hosts;
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	/**
+	 * The outcome of an attempt to download a tile.
+	 */
+	public static class Result {
+		private final int mStatus;
+		private final byte[] mData;
+		private final MapTileValidators mValidators;
+
+		private Result(final int pStatus, final byte[] pData, final MapTileValidators pValidators) {
+			mStatus = pStatus;
+			mData = pData;
+			mValidators = pValidators;
+		}
+
+		/**
+		 * @return one of the FETCH_ constants
+		 */
+		public int getStatus() {
+			return mStatus;
+		}
+
+		/**
+		 * @return the tile, or null unless the status is {@link MapTileFetcher#FETCH_OK}
+		 */
+		public byte[] getData() {
+			return mData;
+		}
+
+		/**
+		 * @return the validators of the tile, or null
+		 */
+		public MapTileValidators getValidators() {
+			return mValidators;
+		}
+	}
+
+	private static class MirrorHosts {
+		final OnlineTileSourceBase mTileSource;
+		final String[] mHosts;
+
+		MirrorHosts(final OnlineTileSourceBase pTileSource, final String[] pHosts) {
+			mTileSource = pTileSource;
+			mHosts = pHosts;
+		}
+	}
+}
@@ -1,14 +1,19 @@
 // Created by plusminus on 21:46:41 - 25.09.2008
 package org.osmdroid.tileprovider.modules;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.osmdroid.tileprovider.IRegisterReceiver;
 import org.osmdroid.tileprovider.MapTile;
 import org.osmdroid.tileprovider.MapTileProviderBase;
 import org.osmdroid.tileprovider.MapTileRequestState;
+import org.osmdroid.tileprovider.MapTileViewport;
+import org.osmdroid.tileprovider.MissingMapTileCache;
 import org.osmdroid.tileprovider.tilesource.ITileSource;
 import org.osmdroid.tileprovider.util.StreamUtils;
 import org.slf4j.Logger;
@@ -36,10 +41,21 @@ public class MapTileFileArchiveProvider extends MapTileFileStorageProviderBase {
 	// Fields
 	// ===========================================================
 
-	private final ArrayList<IArchiveFile> mArchiveFiles = new ArrayList<IArchiveFile>();
+	/** replaced when the archives are found again, so that it can be read without locking */
+	private volatile ArchiveFiles mArchiveFiles = new ArchiveFiles(new IArchiveFile[0]);
+
+	/** the tiles that none of the archives have */
+	private final MissingMapTileCache mMissingTileCache = new MissingMapTileCache();
 
 	protected ITileSource mTileSource;
 
+	/** the tiles that are currently visible, or null */
+	private volatile MapTileViewport mViewport;
+
+	/** the visible tiles read from the archives that read them at once, guarded by the lock */
+	private ViewportTiles mViewportTiles;
+	private final Object mViewportTilesLock = new Object();
+
 	// ===========================================================
 	// Constructors
 	// ===========================================================
@@ -111,33 +127,57 @@ public class MapTileFileArchiveProvider extends MapTileFileStorageProviderBase {
 		mTileSource = pTileSource;
 	}
 
+	@Override
+	public void setViewport(final MapTileViewport pViewport) {
+		super.setViewport(pViewport);
+		mViewport = pViewport;
+	}
+
 	// ===========================================================
 	// Methods
 	// ===========================================================
 
-	private void findArchiveFiles() {
-
-		mArchiveFiles.clear();
+	private synchronized void findArchiveFiles() {
 
-		if (!getSdCardAvailable()) {
-			return;
-		}
+		final ArrayList<IArchiveFile> archiveFiles = new ArrayList<IArchiveFile>();
 
 		// path should be optionally configurable
-		final File[] files = OSMDROID_PATH.listFiles();
+		final File[] files = getSdCardAvailable() ? OSMDROID_PATH.listFiles() : null;
 		if (files != null) {
 			for (final File file : files) {
 				final IArchiveFile archiveFile = ArchiveFileFactory.getArchiveFile(file);
 				if (archiveFile != null) {
-					mArchiveFiles.add(archiveFile);
+					archiveFiles.add(archiveFile);
 				}
 			}
 		}
+		mArchiveFiles = new ArchiveFiles(archiveFiles.toArray(new IArchiveFile[archiveFiles
+				.size()]));
+
+		// forget the missing tiles once the archives that may have them are known
+		mMissingTileCache.clear();
 	}
 
-	private synchronized InputStream getInputStream(final MapTile pTile) {
-		for (final IArchiveFile archiveFile : mArchiveFiles) {
-			final InputStream in = archiveFile.getInputStream(mTileSource, pTile);
+	/**
+	 * Look for the tile in the archives that may hold it, in order. If the tile is visible then
+	 * the archives that implement {@link IBatchArchiveFile} read all the visible tiles at once, and
+	 * the other visible tiles are then served from memory.
+	 */
+	private InputStream getInputStream(final ITileSource pTileSource, final MapTile pTile) {
+		final ArchiveFiles archiveFiles = mArchiveFiles;
+		final int[][][] ranges = archiveFiles.getRanges(pTileSource);
+		final ViewportTiles viewportTiles = getViewportTiles(archiveFiles, pTileSource, pTile);
+		for (int i = 0; i < archiveFiles.mArchiveFiles.length; i++) {
+			if (!ArchiveFiles.contains(ranges[i], pTile)) {
+				continue;
+			}
+			final IArchiveFile archiveFile = archiveFiles.mArchiveFiles[i];
+			final InputStream in;
+			if (viewportTiles != null && archiveFile instanceof IBatchArchiveFile) {
+				in = viewportTiles.getInputStream(i, pTile);
+			} else {
+				in = archiveFile.getInputStream(pTileSource, pTile);
+			}
 			if (in != null) {
 				if (DEBUGMODE) {
 					logger.debug("Found tile " + pTile + " in " + archiveFile);
@@ -149,6 +189,30 @@ public class MapTileFileArchiveProvider extends MapTileFileStorageProviderBase {
 		return null;
 	}
 
+	/**
+	 * @return the visible tiles, or null if the tile isn't visible or none of the archives read
+	 *         tiles at once
+	 */
+	private ViewportTiles getViewportTiles(final ArchiveFiles pArchiveFiles,
+			final ITileSource pTileSource, final MapTile pTile) {
+		final MapTileViewport viewport = mViewport;
+		if (viewport == null || !pArchiveFiles.mBatched) {
+			return null;
+		}
+		ViewportTiles viewportTiles;
+		synchronized (mViewportTilesLock) {
+			viewportTiles = mViewportTiles;
+			if (viewportTiles == null || viewportTiles.mViewport != viewport
+					|| viewportTiles.mArchiveFiles != pArchiveFiles
+					|| viewportTiles.mTileSource != pTileSource) {
+				// forget the tiles that are no longer visible
+				viewportTiles = new ViewportTiles(viewport, pArchiveFiles, pTileSource);
+				mViewportTiles = viewportTiles;
+			}
+		}
+		return viewportTiles.contains(pTile) ? viewportTiles : null;
+	}
+
 	// ===========================================================
 	// Inner and Anonymous Classes
 	// ===========================================================
@@ -172,17 +236,32 @@ public class MapTileFileArchiveProvider extends MapTileFileStorageProviderBase {
 				return null;
 			}
 
+			if (mMissingTileCache.isMissing(mTileSource, pTile.getTileId())) {
+				return null;
+			}
+			final long saveCount = mMissingTileCache.getSaveCount();
+
 			InputStream inputStream = null;
 			try {
 				if (DEBUGMODE) {
 					logger.debug("Tile doesn't exist: " + pTile);
 				}
 
-				inputStream = getInputStream(pTile);
-				if (inputStream != null) {
+				inputStream = getInputStream(mTileSource, pTile);
+				if (inputStream == null) {
+					mMissingTileCache.onMissing(mTileSource, pTile.getTileId(), saveCount);
+				} else {
 					if (DEBUGMODE) {
 						logger.debug("Use tile from archive: " + pTile);
 					}
+					if (mCompressedTileCache != null) {
+						final byte[] data = StreamUtils.toByteArray(inputStream);
+						final Drawable drawable = mTileSource.getDrawable(new ByteArrayInputStream(data));
+						if (drawable != null) {
+							mCompressedTileCache.put(mTileSource, pTile, data);
+						}
+						return drawable;
+					}
 					final Drawable drawable = mTileSource.getDrawable(inputStream);
 					return drawable;
 				}
@@ -197,4 +276,175 @@ public class MapTileFileArchiveProvider extends MapTileFileStorageProviderBase {
 			return null;
 		}
 	}
+
+	/**
+	 * The archives, and for each tile source the rectangles of tiles that each of them may hold.
+	 * The rectangles of a tile source are found the first time it is used.
+	 */
+	private static class ArchiveFiles {
+
+		final IArchiveFile[] mArchiveFiles;
+
+		/** true if any of the archives reads tiles at once */
+		final boolean mBatched;
+
+		/**
+		 * by tile source name, then by archive, then by zoom level the left, top, right and bottom
+		 * of each rectangle. The rectangles of an archive are null if it may hold any tile.
+		 */
+		private final ConcurrentHashMap<String, int[][][]> mRanges = new ConcurrentHashMap<String, int[][][]>();
+
+		ArchiveFiles(final IArchiveFile[] pArchiveFiles) {
+			mArchiveFiles = pArchiveFiles;
+			boolean batched = false;
+			for (final IArchiveFile archiveFile : pArchiveFiles) {
+				batched |= archiveFile instanceof IBatchArchiveFile;
+			}
+			mBatched = batched;
+		}
+
+		int[][][] getRanges(final ITileSource pTileSource) {
+			int[][][] ranges = mRanges.get(pTileSource.name());
+			if (ranges == null) {
+				ranges = new int[mArchiveFiles.length][][];
+				for (int i = 0; i < mArchiveFiles.length; i++) {
+					if (mArchiveFiles[i] instanceof ITileRangeArchiveFile) {
+						ranges[i] = getRanges(((ITileRangeArchiveFile) mArchiveFiles[i])
+								.getTileRanges(pTileSource));
+					}
+				}
+				mRanges.putIfAbsent(pTileSource.name(), ranges);
+			}
+			return ranges;
+		}
+
+		private static int[][] getRanges(final MapTileViewport[] pViewports) {
+			if (pViewports == null) {
+				return null;
+			}
+			final int[][] ranges = new int[MAXIMUM_ZOOMLEVEL + 1][];
+			for (final MapTileViewport viewport : pViewports) {
+				final int zoom = viewport.getZoomLevel();
+				if (zoom < 0 || zoom >= ranges.length) {
+					continue;
+				}
+				final int length = ranges[zoom] == null ? 0 : ranges[zoom].length;
+				final int[] range = new int[length + 4];
+				if (length > 0) {
+					System.arraycopy(ranges[zoom], 0, range, 0, length);
+				}
+				range[length] = viewport.getLeft();
+				range[length + 1] = viewport.getTop();
+				range[length + 2] = viewport.getRight();
+				range[length + 3] = viewport.getBottom();
+				ranges[zoom] = range;
+			}
+			return ranges;
+		}
+
+		/**
+		 * @return true if the tile is within the rectangles
+		 */
+		static boolean contains(final int[][] pRanges, final MapTile pTile) {
+			if (pRanges == null) {
+				return true;
+			}
+			final int zoom = pTile.getZoomLevel();
+			final int[] range = zoom < pRanges.length ? pRanges[zoom] : null;
+			if (range == null) {
+				return false;
+			}
+			final int x = pTile.getX();
+			final int y = pTile.getY();
+			for (int i = 0; i < range.length; i += 4) {
+				if (x >= range[i] && y >= range[i + 1] && x <= range[i + 2] && y <= range[i + 3]) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * The visible tiles of a tile source, read from each archive that implements
+	 * {@link IBatchArchiveFile} the first time one of them is needed. The tiles beyond the edges
+	 * of the world aren't included.
+	 */
+	private static class ViewportTiles {
+
+		final MapTileViewport mViewport;
+		final ArchiveFiles mArchiveFiles;
+		final ITileSource mTileSource;
+
+		/** the visible tiles within the world, or null if there are none */
+		private final MapTileViewport mTiles;
+
+		/** by archive, the tiles by row from the top left, guarded by this */
+		private final byte[][][] mData;
+
+		ViewportTiles(final MapTileViewport pViewport, final ArchiveFiles pArchiveFiles,
+				final ITileSource pTileSource) {
+			mViewport = pViewport;
+			mArchiveFiles = pArchiveFiles;
+			mTileSource = pTileSource;
+			mData = new byte[pArchiveFiles.mArchiveFiles.length][][];
+
+			final int zoom = pViewport.getZoomLevel();
+			final int last = (1 << zoom) - 1;
+			final int left = Math.max(pViewport.getLeft(), 0);
+			final int top = Math.max(pViewport.getTop(), 0);
+			final int right = Math.min(pViewport.getRight(), last);
+			final int bottom = Math.min(pViewport.getBottom(), last);
+			mTiles = left <= right && top <= bottom ? new MapTileViewport(zoom, left, top, right,
+					bottom) : null;
+		}
+
+		boolean contains(final MapTile pTile) {
+			return mTiles != null && pTile.getZoomLevel() == mTiles.getZoomLevel()
+					&& pTile.getX() >= mTiles.getLeft() && pTile.getX() <= mTiles.getRight()
+					&& pTile.getY() >= mTiles.getTop() && pTile.getY() <= mTiles.getBottom();
+		}
+
+		/**
+		 * @return the input stream of a visible tile, or null if the archive doesn't hold it
+		 */
+		InputStream getInputStream(final int pArchive, final MapTile pTile) {
+			final byte[][] data;
+			synchronized (this) {
+				if (mData[pArchive] == null) {
+					mData[pArchive] = read((IBatchArchiveFile) mArchiveFiles
+							.mArchiveFiles[pArchive]);
+				}
+				data = mData[pArchive];
+			}
+			final int width = mTiles.getRight() - mTiles.getLeft() + 1;
+			final byte[] tile = data[(pTile.getY() - mTiles.getTop()) * width + pTile.getX()
+					- mTiles.getLeft()];
+			return tile == null ? null : new ByteArrayInputStream(tile);
+		}
+
+		private byte[][] read(final IBatchArchiveFile pArchiveFile) {
+			final InputStream[] streams = pArchiveFile.getInputStreams(mTileSource, mTiles);
+			final byte[][] data = new byte[streams.length][];
+			int count = 0;
+			for (int i = 0; i < streams.length; i++) {
+				if (streams[i] == null) {
+					continue;
+				}
+				try {
+					data[i] = StreamUtils.toByteArray(streams[i]);
+					count++;
+				} catch (final IOException e) {
+					logger.warn("Error reading tile from " + pArchiveFile + " : " + e);
+				} finally {
+					StreamUtils.closeStream(streams[i]);
+				}
+			}
+			if (DEBUGMODE) {
+				logger.debug("Read " + count + " visible tiles " + mTiles + " from "
+						+ pArchiveFile);
+			}
+			return data;
+		}
+	}
 }
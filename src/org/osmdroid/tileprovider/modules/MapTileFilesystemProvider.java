@@ -1,11 +1,17 @@
 package org.osmdroid.tileprovider.modules;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 
 import org.osmdroid.tileprovider.IRegisterReceiver;
 import org.osmdroid.tileprovider.MapTile;
 import org.osmdroid.tileprovider.MapTileRequestState;
+import org.osmdroid.tileprovider.MissingMapTileCache;
 import org.osmdroid.tileprovider.tilesource.ITileSource;
+import org.osmdroid.tileprovider.util.StreamUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -102,6 +108,20 @@ public class MapTileFilesystemProvider extends MapTileFileStorageProviderBase {
 		mTileSource = pTileSource;
 	}
 
+	@Override
+	protected void onMediaMounted() {
+		TileWriter.getMissingTileCache().clear();
+	}
+
+	@Override
+	public void detach() {
+		super.detach();
+		final FilesystemCacheIndex index = FilesystemCacheIndex.getInstance();
+		if (index != null) {
+			index.flush();
+		}
+	}
+
 	// ===========================================================
 	// Inner and Anonymous Classes
 	// ===========================================================
@@ -125,12 +145,25 @@ public class MapTileFilesystemProvider extends MapTileFileStorageProviderBase {
 				return null;
 			}
 
+			// the tiles written by any TileWriter are forgotten by the missing tile cache
+			final MissingMapTileCache missingTileCache = TileWriter.getMissingTileCache();
+			if (missingTileCache.isMissing(mTileSource, pTile.getTileId())) {
+				return null;
+			}
+			final long saveCount = missingTileCache.getSaveCount();
+
 			// Check the tile source to see if its file is available and if so, then render the
 			// drawable and return the tile
-			final File file = new File(TILE_PATH_BASE,
-					mTileSource.getTileRelativeFilenameString(pTile) + TILE_PATH_EXTENSION);
+			final String name = mTileSource.getTileRelativeFilenameString(pTile);
+			final File file = new File(TILE_PATH_BASE, name + TILE_PATH_EXTENSION);
 			if (file.exists()) {
 
+				// Keep the least recently used tiles first in line when the cache is trimmed
+				final FilesystemCacheIndex index = FilesystemCacheIndex.getInstance();
+				if (index != null) {
+					index.onAccessed(name);
+				}
+
 				// Check to see if file has expired
 				final long now = System.currentTimeMillis();
 				final long lastModified = file.lastModified();
@@ -138,6 +171,9 @@ public class MapTileFilesystemProvider extends MapTileFileStorageProviderBase {
 
 				if (!fileExpired) {
 					// If the file has not expired, then render it and return it!
+					if (mCompressedTileCache != null) {
+						return getDrawableAndKeepData(file, pTile);
+					}
 					final Drawable drawable = mTileSource.getDrawable(file.getPath());
 					return drawable;
 				} else {
@@ -151,7 +187,29 @@ public class MapTileFilesystemProvider extends MapTileFileStorageProviderBase {
 			}
 
 			// If we get here then there is no file in the file cache
+			missingTileCache.onMissing(mTileSource, pTile.getTileId(), saveCount);
 			return null;
 		}
+
+		/**
+		 * Read the file into the compressed tile cache and render it from there.
+		 */
+		private Drawable getDrawableAndKeepData(final File pFile, final MapTile pTile) {
+			InputStream in = null;
+			try {
+				in = new FileInputStream(pFile);
+				final byte[] data = StreamUtils.toByteArray(in);
+				final Drawable drawable = mTileSource.getDrawable(new ByteArrayInputStream(data));
+				if (drawable != null) {
+					mCompressedTileCache.put(mTileSource, pTile, data);
+				}
+				return drawable;
+			} catch (final IOException e) {
+				logger.warn("Error reading tile file: " + pFile, e);
+				return null;
+			} finally {
+				StreamUtils.closeStream(in);
+			}
+		}
 	}
 }
@@ -0,0 +1,326 @@
+package org.osmdroid.tileprovider.modules;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+import org.osmdroid.tileprovider.constants.OpenStreetMapTileProviderConstants;
+import org.osmdroid.tileprovider.util.StreamUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The HTTP transport used by {@link MapTileDownloader}. It limits the number of simultaneous
+ * requests to each host and applies connect and read timeouts.
+ *
+ * Connections are kept alive and reused by the platform's {@link HttpURLConnection} connection
+ * pool, provided that each response body is read to the end and the response is closed. A
+ * response that is closed before the end of its body has been read is disconnected instead, so
+ * that a half read connection is never reused.
+ *
+ * This class is thread-safe and may be shared by several downloaders.
+ */
+public class MapTileHttpClient implements OpenStreetMapTileProviderConstants {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private static final Logger logger = LoggerFactory.getLogger(MapTileHttpClient.class);
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final int mMaximumConnectionsPerHost;
+	private final int mConnectTimeout;
+	private final int mReadTimeout;
+
+	/** permits for the requests to each host, by host and port */
+	private final ConcurrentHashMap<String, Semaphore> mHostPermits = new ConcurrentHashMap<String, Semaphore>();
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public MapTileHttpClient() {
+		this(HTTP_MAXIMUM_CONNECTIONS_PER_HOST, HTTP_CONNECT_TIMEOUT_MILLISECONDS,
+				HTTP_READ_TIMEOUT_MILLISECONDS);
+	}
+
+	/**
+	 * @param pMaximumConnectionsPerHost
+	 *            the maximum number of simultaneous requests to the same host
+	 * @param pConnectTimeout
+	 *            the connect timeout in milliseconds, or 0 to wait forever
+	 * @param pReadTimeout
+	 *            the read timeout in milliseconds, or 0 to wait forever
+	 */
+	public MapTileHttpClient(final int pMaximumConnectionsPerHost, final int pConnectTimeout,
+			final int pReadTimeout) {
+		if (pMaximumConnectionsPerHost < 1) {
+			throw new IllegalArgumentException("pMaximumConnectionsPerHost must be at least 1");
+		}
+		mMaximumConnectionsPerHost = pMaximumConnectionsPerHost;
+		mConnectTimeout = pConnectTimeout;
+		mReadTimeout = pReadTimeout;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public int getMaximumConnectionsPerHost() {
+		return mMaximumConnectionsPerHost;
+	}
+
+	public int getConnectTimeout() {
+		return mConnectTimeout;
+	}
+
+	public int getReadTimeout() {
+		return mReadTimeout;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Send a GET request. This waits while the maximum number of requests to the host are in
+	 * progress. The response must be closed, whatever its status.
+	 *
+	 * @param pUrl
+	 *            the URL to get
+	 * @return the response
+	 * @throws IOException
+	 *             if the request couldn't be sent or the status couldn't be read
+	 */
+	public Response get(final String pUrl) throws IOException {
+		return get(pUrl, null);
+	}
+
+	/**
+	 * Send a conditional GET request. If the resource hasn't changed then the status of the
+	 * response is {@link HttpURLConnection#HTTP_NOT_MODIFIED} and it has no body.
+	 *
+	 * @param pUrl
+	 *            the URL to get
+	 * @param pValidators
+	 *            the validators of the copy that we have, or null to send an unconditional request
+	 * @return the response
+	 * @throws IOException
+	 *             if the request couldn't be sent or the status couldn't be read
+	 * @see #get(String)
+	 */
+	public Response get(final String pUrl, final MapTileValidators pValidators)
+			throws IOException {
+		final URL url = new URL(pUrl);
+		final Semaphore permits = getHostPermits(url);
+		try {
+			permits.acquire();
+		} catch (final InterruptedException e) {
+			throw new InterruptedIOException("Interrupted waiting for a connection to "
+					+ url.getHost());
+		}
+
+		boolean opened = false;
+		try {
+			final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+			connection.setConnectTimeout(mConnectTimeout);
+			connection.setReadTimeout(mReadTimeout);
+			connection.setUseCaches(false);
+			connection.setInstanceFollowRedirects(true);
+			connection.setRequestProperty("Connection", "keep-alive");
+			if (pValidators != null) {
+				if (pValidators.getETag() != null) {
+					connection.setRequestProperty("If-None-Match", pValidators.getETag());
+				}
+				if (pValidators.getLastModified() != null) {
+					connection.setRequestProperty("If-Modified-Since",
+							pValidators.getLastModified());
+				}
+			}
+			final long start = System.currentTimeMillis();
+			final Response response = new Response(connection, permits);
+			response.mResponseTime = System.currentTimeMillis() - start;
+			opened = true;
+			return response;
+		} finally {
+			if (!opened) {
+				permits.release();
+			}
+		}
+	}
+
+	private Semaphore getHostPermits(final URL pUrl) {
+		final String host = pUrl.getHost() + ":" + pUrl.getPort();
+		Semaphore permits = mHostPermits.get(host);
+		if (permits == null) {
+			permits = new Semaphore(mMaximumConnectionsPerHost, true);
+			final Semaphore existing = mHostPermits.putIfAbsent(host, permits);
+			if (existing != null) {
+				permits = existing;
+			}
+		}
+		return permits;
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	/**
+	 * The response to a request. Closing it releases the connection.
+	 */
+	public static class Response {
+
+		private final HttpURLConnection mConnection;
+		private final Semaphore mPermits;
+		private final int mStatusCode;
+		private long mResponseTime;
+		private BodyInputStream mBody;
+		private boolean mClosed;
+
+		private Response(final HttpURLConnection pConnection, final Semaphore pPermits)
+				throws IOException {
+			mConnection = pConnection;
+			mPermits = pPermits;
+			try {
+				mStatusCode = pConnection.getResponseCode();
+			} catch (final IOException e) {
+				pConnection.disconnect();
+				throw e;
+			}
+		}
+
+		public int getStatusCode() {
+			return mStatusCode;
+		}
+
+		/**
+		 * @return the time from sending the request to receiving the status in milliseconds, not
+		 *         counting the time spent waiting for a connection to the host to become free
+		 */
+		public long getResponseTime() {
+			return mResponseTime;
+		}
+
+		/**
+		 * @return the value of the response header, or null if there isn't one
+		 */
+		public String getHeader(final String pName) {
+			return mConnection.getHeaderField(pName);
+		}
+
+		/**
+		 * @return the ETag and Last-Modified headers of the response, or null if there are neither
+		 */
+		public MapTileValidators getValidators() {
+			final MapTileValidators validators = new MapTileValidators(getHeader("ETag"),
+					getHeader("Last-Modified"));
+			return validators.isEmpty() ? null : validators;
+		}
+
+		/**
+		 * @return the response body, which is the error body if the status is not successful. The
+		 *         stream may be empty but is never null.
+		 */
+		public synchronized InputStream getInputStream() throws IOException {
+			if (mBody == null) {
+				InputStream in;
+				try {
+					in = mConnection.getInputStream();
+				} catch (final IOException e) {
+					in = mConnection.getErrorStream();
+				}
+				mBody = new BodyInputStream(in);
+			}
+			return mBody;
+		}
+
+		/**
+		 * Release the connection. If the body has been read to the end then the connection is
+		 * kept alive for the next request to the host, otherwise it is disconnected.
+		 */
+		public synchronized void close() {
+			if (mClosed) {
+				return;
+			}
+			mClosed = true;
+			try {
+				if (mStatusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+					// there is no body, so the connection can be reused
+					closeNotModified();
+				} else if (mBody != null && mBody.mEndOfStream) {
+					StreamUtils.closeStream(mBody);
+				} else {
+					if (DEBUGMODE) {
+						logger.debug("Disconnecting unread response from " + mConnection.getURL());
+					}
+					mConnection.disconnect();
+				}
+			} finally {
+				mPermits.release();
+			}
+		}
+
+		private void closeNotModified() {
+			try {
+				StreamUtils.closeStream(getInputStream());
+			} catch (final IOException e) {
+				mConnection.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Remembers whether the end of the body has been reached.
+	 */
+	private static class BodyInputStream extends FilterInputStream {
+
+		private volatile boolean mEndOfStream;
+
+		BodyInputStream(final InputStream pIn) {
+			super(pIn);
+			mEndOfStream = pIn == null;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (in == null) {
+				return -1;
+			}
+			final int b = super.read();
+			if (b == -1) {
+				mEndOfStream = true;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] pBuffer, final int pOffset, final int pLength)
+				throws IOException {
+			if (in == null) {
+				return -1;
+			}
+			final int count = super.read(pBuffer, pOffset, pLength);
+			if (count == -1) {
+				mEndOfStream = true;
+			}
+			return count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (in != null) {
+				super.close();
+			}
+		}
+	}
+}
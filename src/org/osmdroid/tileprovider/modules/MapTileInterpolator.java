@@ -2,6 +2,7 @@ package org.osmdroid.tileprovider.modules;
 
 import org.osmdroid.tileprovider.MapTile;
 import org.osmdroid.tileprovider.MapTileCache;
+import org.osmdroid.tileprovider.ReusableBitmapDrawable;
 
 import android.graphics.Canvas;
 import android.graphics.ColorFilter;
@@ -24,17 +25,12 @@ public class MapTileInterpolator extends Drawable {
 		int belowZoom = mapTile.getZoomLevel()+1;
 		int belowX = mapTile.getX()<<1;
 		int belowY = mapTile.getY()<<1;
-		MapTile belowNW = new MapTile(belowZoom, belowX,   belowY);
-		MapTile belowNE = new MapTile(belowZoom, belowX+1, belowY);
-		MapTile belowSW = new MapTile(belowZoom, belowX,   belowY+1);
-		MapTile belowSE = new MapTile(belowZoom, belowX+1, belowY+1);
-		if (cache.containsTile(belowNW) && cache.containsTile(belowNE)
-				&& cache.containsTile(belowSW) && cache.containsTile(belowSE)) {
-			Drawable belowNWTile = cache.getMapTile(belowNW);
-			Drawable belowNETile = cache.getMapTile(belowNE);
-			Drawable belowSWTile = cache.getMapTile(belowSW);
-			Drawable belowSETile = cache.getMapTile(belowSE);
-
+		Drawable belowNWTile = cache.getMapTile(MapTile.getTileId(belowZoom, belowX,   belowY));
+		Drawable belowNETile = cache.getMapTile(MapTile.getTileId(belowZoom, belowX+1, belowY));
+		Drawable belowSWTile = cache.getMapTile(MapTile.getTileId(belowZoom, belowX,   belowY+1));
+		Drawable belowSETile = cache.getMapTile(MapTile.getTileId(belowZoom, belowX+1, belowY+1));
+		if (belowNWTile != null && belowNETile != null
+				&& belowSWTile != null && belowSETile != null) {
 			if (!(belowNWTile instanceof MapTileInterpolator) && !(belowNETile instanceof MapTileInterpolator)
 					&& !(belowSWTile instanceof MapTileInterpolator) && !(belowSETile instanceof MapTileInterpolator)) {
 				return new MapTileInterpolator(mapTile, null, new Drawable[] { belowNWTile, belowNETile, belowSWTile, belowSETile});
@@ -42,9 +38,8 @@ public class MapTileInterpolator extends Drawable {
 		}
 
 		// Attempt to pull data from the level above us
-		MapTile above = new MapTile(mapTile.getZoomLevel()-1, mapTile.getX()>>1, mapTile.getY()>>1);
-		if (cache.containsTile(above)) {
-			Drawable aboveTile = cache.getMapTile(above);
+		Drawable aboveTile = cache.getMapTile(MapTile.getTileId(mapTile.getZoomLevel()-1, mapTile.getX()>>1, mapTile.getY()>>1));
+		if (aboveTile != null) {
 			if (!(aboveTile instanceof MapTileInterpolator)) {
 				return new MapTileInterpolator(mapTile, aboveTile, null);
 			}
@@ -78,7 +73,7 @@ public class MapTileInterpolator extends Drawable {
 
 			canvas.save();
 			canvas.clipRect(bounds);
-			above.draw(canvas);
+			drawComponent(canvas, above);
 			canvas.restore();
 		}
 		if (below != null) {
@@ -87,16 +82,35 @@ public class MapTileInterpolator extends Drawable {
 			final int midY = bounds.top + tileSize/2;
 
 			below[0].setBounds(bounds.left, bounds.top, midX, midY);
-			below[0].draw(canvas);
+			drawComponent(canvas, below[0]);
 
 			below[1].setBounds(midX, bounds.top, bounds.right, midY);
-			below[1].draw(canvas);
+			drawComponent(canvas, below[1]);
 
 			below[2].setBounds(bounds.left, midY, midX, bounds.bottom);
-			below[2].draw(canvas);
+			drawComponent(canvas, below[2]);
 
 			below[3].setBounds(midX, midY, bounds.right, bounds.bottom);
-			below[3].draw(canvas);
+			drawComponent(canvas, below[3]);
+		}
+	}
+
+	/**
+	 * Draw one of the tiles we interpolate from, unless it has since been evicted from the cache
+	 * and its bitmap reused.
+	 */
+	private static void drawComponent(Canvas canvas, Drawable component) {
+		if (component instanceof ReusableBitmapDrawable) {
+			final ReusableBitmapDrawable reusable = (ReusableBitmapDrawable) component;
+			if (reusable.beginUsingDrawable()) {
+				try {
+					reusable.draw(canvas);
+				} finally {
+					reusable.finishUsingDrawable();
+				}
+			}
+		} else {
+			component.draw(canvas);
 		}
 	}
 
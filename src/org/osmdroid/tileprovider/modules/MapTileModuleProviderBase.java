@@ -1,15 +1,20 @@
 package org.osmdroid.tileprovider.modules;
 
-import java.util.ConcurrentModificationException;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
-
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.osmdroid.tileprovider.CompressedMapTileCache;
 import org.osmdroid.tileprovider.MapTile;
 import org.osmdroid.tileprovider.MapTileRequestState;
+import org.osmdroid.tileprovider.MapTileViewport;
 import org.osmdroid.tileprovider.constants.OpenStreetMapTileProviderConstants;
 import org.osmdroid.tileprovider.tilesource.ITileSource;
+import org.osmdroid.tileprovider.util.ConfigurablePriorityThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,7 +36,7 @@ public abstract class MapTileModuleProviderBase implements OpenStreetMapTileProv
 	protected abstract String getName();
 
 	/**
-	 * Gets the name assigned to the thread for this provider.
+	 * Gets the name assigned to the worker threads for this provider.
 	 *
 	 * @return the thread name
 	 */
@@ -78,74 +83,216 @@ public abstract class MapTileModuleProviderBase implements OpenStreetMapTileProv
 
 	private static final Logger logger = LoggerFactory.getLogger(MapTileModuleProviderBase.class);
 
+	/**
+	 * Puts the requests that are retried back in the queue of their provider when their delay has
+	 * elapsed, so that no tile loader waits for the delay. Shared by all providers.
+	 */
+	private static final ScheduledExecutorService mRetryExecutor = Executors
+			.newSingleThreadScheduledExecutor(new ConfigurablePriorityThreadFactory(
+					Thread.NORM_PRIORITY, "tileretry"));
+
 	private final int mThreadPoolSize;
-	private final ThreadGroup mThreadPool = new ThreadGroup(getThreadGroupName());
-	private final ConcurrentHashMap<MapTile, MapTileRequestState> mWorking;
-	final LinkedHashMap<MapTile, MapTileRequestState> mPending;
+	private final ExecutorService mExecutor;
+	private final boolean mOwnsExecutor;
+	/** the number of tile loaders submitted to the executor that haven't finished */
+	private final AtomicInteger mActiveLoaders = new AtomicInteger();
+	/** the requests waiting for a tile loader, guarded by itself */
+	private final PendingTileQueue mPending;
+
+	private volatile boolean mDetached;
+
+	/** where to keep the compressed data of the tiles this provider loads, or null */
+	protected CompressedMapTileCache mCompressedTileCache;
 
+	/**
+	 * Creates a provider with its own pool of worker threads.
+	 *
+	 * @param pThreadPoolSize
+	 *            the number of worker threads
+	 * @param pPendingQueueSize
+	 *            the maximum number of tiles waiting to be loaded
+	 */
 	public MapTileModuleProviderBase(final int pThreadPoolSize,	final int pPendingQueueSize) {
+		this(null, pThreadPoolSize, pPendingQueueSize);
+	}
+
+	/**
+	 * Creates a provider that runs its tile loaders on the specified executor, which may be shared
+	 * with other providers. The executor is not shut down by {@link #detach()}.
+	 *
+	 * @param pExecutor
+	 *            the executor, or null to create a pool of worker threads for this provider
+	 * @param pThreadPoolSize
+	 *            the maximum number of tile loaders this provider runs at the same time
+	 * @param pPendingQueueSize
+	 *            the maximum number of tiles waiting to be loaded
+	 */
+	public MapTileModuleProviderBase(final ExecutorService pExecutor, final int pThreadPoolSize,
+			final int pPendingQueueSize) {
 		mThreadPoolSize = pThreadPoolSize;
-		mWorking = new ConcurrentHashMap<MapTile, MapTileRequestState>();
-		mPending = new LinkedHashMap<MapTile, MapTileRequestState>(pPendingQueueSize + 2, 0.1f, true) {
-			private static final long serialVersionUID = 6455337315681858866L;
-			@Override
-			protected boolean removeEldestEntry(final Entry<MapTile, MapTileRequestState> pEldest) {
-				return size() > pPendingQueueSize;
-			}
-		};
+		if (pExecutor != null) {
+			mExecutor = pExecutor;
+			mOwnsExecutor = false;
+		} else {
+			mExecutor = Executors.newFixedThreadPool(pThreadPoolSize,
+					new ConfigurablePriorityThreadFactory(Thread.NORM_PRIORITY,
+							getThreadGroupName()));
+			mOwnsExecutor = true;
+		}
+		mPending = new PendingTileQueue(pPendingQueueSize);
 	}
 
-	public void loadMapTileAsync(final MapTileRequestState pState) {
+	/**
+	 * Set the cache in which this provider keeps the compressed data of the tiles it loads, so that
+	 * a {@link MapTileCompressedCacheProvider} can serve them again later.
+	 *
+	 * @param pCompressedTileCache
+	 *            the cache, or null to not keep the data
+	 */
+	public void setCompressedTileCache(final CompressedMapTileCache pCompressedTileCache) {
+		mCompressedTileCache = pCompressedTileCache;
+	}
 
-		final int activeCount = mThreadPool.activeCount();
+	public void loadMapTileAsync(final MapTileRequestState pState) {
 
+		final MapTileRequestState evicted;
 		synchronized (mPending) {
 			// this will put the tile in the queue, or move it to the front of
 			// the queue if it's already present
-			mPending.put(pState.getMapTile(), pState);
+			evicted = mPending.push(pState);
+		}
+		if (evicted != null) {
+			evicted.getCallback().mapTileRequestDropped(evicted);
 		}
 
+		startTileLoader();
+	}
+
+	/**
+	 * Submit a tile loader to the executor unless {@link #mThreadPoolSize} loaders are already
+	 * running.
+	 */
+	private void startTileLoader() {
+		int active;
+		do {
+			active = mActiveLoaders.get();
+			if (active >= mThreadPoolSize) {
+				return;
+			}
+		} while (!mActiveLoaders.compareAndSet(active, active + 1));
+
 		if (DEBUGMODE) {
-			logger.debug(activeCount + " active threads");
+			logger.debug((active + 1) + " active tile loaders");
+		}
+		try {
+			mExecutor.execute(getTileLoader());
+		} catch (final RejectedExecutionException e) {
+			// we've been detached
+			mActiveLoaders.decrementAndGet();
 		}
-		if (activeCount < mThreadPoolSize) {
-			final Thread t = new Thread(mThreadPool, getTileLoader());
-			t.start();
+	}
+
+	/**
+	 * @return true if there are tiles waiting for a tile loader
+	 */
+	private boolean hasWaitingTiles() {
+		synchronized (mPending) {
+			return !mPending.isEmpty();
 		}
 	}
 
+	/**
+	 * Load the requested tile again when the delay has elapsed, unless it has been cancelled
+	 * meanwhile.
+	 */
+	private void scheduleRetry(final MapTileRequestState pState, final long pDelay) {
+		pState.incrementRetryCount();
+		mRetryExecutor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (pState.isCancelled()) {
+					return;
+				}
+				if (mDetached) {
+					pState.getCallback().mapTileRequestDropped(pState);
+					return;
+				}
+				loadMapTileAsync(pState);
+			}
+		}, pDelay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Drop the requests that are waiting to be loaded. Tiles that are being loaded are left to
+	 * finish.
+	 */
 	private void clearQueue() {
+		final List<MapTileRequestState> dropped;
 		synchronized (mPending) {
-			mPending.clear();
+			dropped = mPending.clear();
+		}
+		for (final MapTileRequestState state : dropped) {
+			state.getCallback().mapTileRequestDropped(state);
 		}
-		mWorking.clear();
 	}
 
 	/**
-	 * Detach, we're shutting down - Stops all workers.
+	 * Detach, we're shutting down - Stops all workers. The executor is shut down unless it was
+	 * supplied to the constructor.
 	 */
 	public void detach() {
+		mDetached = true;
 		this.clearQueue();
-		this.mThreadPool.interrupt();
+		if (mOwnsExecutor) {
+			this.mExecutor.shutdownNow();
+		}
 	}
 
-	private void removeTileFromQueues(final MapTile mapTile) {
+	/**
+	 * Set the tiles that are currently visible, so that the tiles nearest the center are loaded
+	 * first. Waiting requests for the zoom level the viewport has left are dropped.
+	 *
+	 * @param pViewport
+	 *            the viewport, or null to load the most recently requested tiles first
+	 */
+	public void setViewport(final MapTileViewport pViewport) {
+		final List<MapTileRequestState> dropped;
 		synchronized (mPending) {
-			mPending.remove(mapTile);
+			dropped = mPending.setViewport(pViewport);
+		}
+		for (final MapTileRequestState state : dropped) {
+			state.getCallback().mapTileRequestDropped(state);
+		}
+	}
+
+	/**
+	 * Remove a cancelled request from the queue. If the tile is already being loaded then the tile
+	 * loader may notice the cancellation and stop early, see
+	 * {@link MapTileRequestState#isCancelled()}.
+	 */
+	public void cancelTileRequest(final MapTileRequestState pState) {
+		synchronized (mPending) {
+			mPending.remove(pState);
 		}
-		mWorking.remove(mapTile);
 	}
 
 	/**
 	 * Load the requested tile. An abstract internal class whose objects are used by worker threads
-	 * to acquire tiles from servers. It processes tiles from the 'pending' set to the 'working' set
-	 * as they become available. The key unimplemented method is 'loadTile'.
+	 * to acquire tiles from servers. It takes the tile nearest the center of the viewport from the
+	 * 'pending' queue as tile loaders become available. The key unimplemented method is
+	 * 'loadTile'.
 	 *
 	 * @param aTile
 	 *            the tile to load
 	 */
 	protected abstract class TileLoader implements Runnable {
 
+		/** set by {@link #dropTile()} while a tile is being loaded */
+		private boolean mDropped;
+
+		/** set by {@link #retryTile(long)} while a tile is being loaded, or -1 */
+		private long mRetryDelay;
+
 		/**
 		 * The key unimplemented method.
 		 *
@@ -158,42 +305,8 @@ public abstract class MapTileModuleProviderBase implements OpenStreetMapTileProv
 		protected abstract Drawable loadTile(MapTileRequestState pState) throws CantContinueException;
 
 		private MapTileRequestState nextTile() {
-
 			synchronized (mPending) {
-				MapTile result = null;
-
-				// get the most recently accessed tile
-				// - the last item in the iterator that's not already being
-				// processed
-				Iterator<MapTile> iterator = mPending.keySet().iterator();
-
-				// TODO this iterates the whole list, make this faster...
-				while (iterator.hasNext()) {
-					try {
-						final MapTile tile = iterator.next();
-						if (!mWorking.containsKey(tile)) {
-							result = tile;
-						}
-					} catch (final ConcurrentModificationException e) {
-						if (DEBUGMODE) {
-							logger.warn("ConcurrentModificationException break: "
-									+ (result != null));
-						}
-
-						// if we've got a result return it, otherwise try again
-						if (result != null) {
-							break;
-						} else {
-							iterator = mPending.keySet().iterator();
-						}
-					}
-				}
-
-				if (result != null) {
-					mWorking.put(result, mPending.get(result));
-				}
-
-				return (result != null ? mPending.get(result) : null);
+				return mPending.poll();
 			}
 		}
 
@@ -201,19 +314,37 @@ public abstract class MapTileModuleProviderBase implements OpenStreetMapTileProv
 		 * A tile has loaded.
 		 */
 		private void tileLoaded(final MapTileRequestState pState, final Drawable pDrawable) {
-			removeTileFromQueues(pState.getMapTile());
-
 			pState.getCallback().mapTileRequestCompleted(pState, pDrawable);
 		}
 
 		protected void tileCandidateLoaded(final MapTileRequestState pState,
 				final Drawable pDrawable) {
+			if (pDrawable != null) {
+				pState.setCandidate(pDrawable);
+			}
 			pState.getCallback().mapTileRequestCandidate(pState, pDrawable);
 		}
 
-		private void tileLoadedFailed(final MapTileRequestState pState) {
-			removeTileFromQueues(pState.getMapTile());
+		/**
+		 * Drop the tile being loaded rather than fail it if {@link #loadTile(MapTileRequestState)}
+		 * returns null, because there's nothing wrong with the tile although it can't be delivered
+		 * now. It's requested again when it's next drawn.
+		 */
+		protected void dropTile() {
+			mDropped = true;
+		}
 
+		/**
+		 * Load the tile being loaded again after the specified delay rather than fail it if
+		 * {@link #loadTile(MapTileRequestState)} returns null, for example after a network error.
+		 * The tile loader goes on to the next tile meanwhile, and the request counts the retry,
+		 * see {@link MapTileRequestState#getRetryCount()}.
+		 */
+		protected void retryTile(final long pDelay) {
+			mRetryDelay = pDelay;
+		}
+
+		private void tileLoadedFailed(final MapTileRequestState pState) {
 			pState.getCallback().mapTileRequestFailed(pState);
 		}
 
@@ -222,15 +353,33 @@ public abstract class MapTileModuleProviderBase implements OpenStreetMapTileProv
 		 */
 		@Override
 		final public void run() {
+			try {
+				loadTiles();
+			} finally {
+				mActiveLoaders.decrementAndGet();
+				// a tile may have been queued after we found the queue empty
+				if (hasWaitingTiles()) {
+					startTileLoader();
+				}
+			}
+		}
+
+		private void loadTiles() {
 
 			MapTileRequestState state;
 			Drawable result = null;
 			while ((state = nextTile()) != null) {
+				if (state.isCancelled()) {
+					// it was cancelled while being passed to this provider
+					continue;
+				}
 				if (DEBUGMODE) {
 					logger.debug("Next tile: " + state);
 				}
 				try {
 					result = null;
+					mDropped = false;
+					mRetryDelay = -1;
 					result = loadTile(state);
 				} catch (final CantContinueException e) {
 					logger.info("Tile loader can't continue", e);
@@ -241,6 +390,10 @@ public abstract class MapTileModuleProviderBase implements OpenStreetMapTileProv
 
 				if (result != null) {
 					tileLoaded(state, result);
+				} else if (mRetryDelay >= 0) {
+					scheduleRetry(state, mRetryDelay);
+				} else if (mDropped) {
+					state.getCallback().mapTileRequestDropped(state);
 				} else {
 					tileLoadedFailed(state);
 				}
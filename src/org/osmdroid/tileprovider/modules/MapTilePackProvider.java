@@ -0,0 +1,138 @@
+package org.osmdroid.tileprovider.modules;
+
+import java.io.ByteArrayInputStream;
+
+import org.osmdroid.tileprovider.IRegisterReceiver;
+import org.osmdroid.tileprovider.MapTile;
+import org.osmdroid.tileprovider.MapTileRequestState;
+import org.osmdroid.tileprovider.tilesource.ITileSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.graphics.drawable.Drawable;
+
+/**
+ * Provides the tiles cached in a {@link TilePackCache}. It takes the place of a
+ * {@link MapTileFilesystemProvider} when the pack cache is given to the {@link MapTileDownloader}
+ * instead of a {@link TileWriter}.
+ */
+public class MapTilePackProvider extends MapTileFileStorageProviderBase {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private static final Logger logger = LoggerFactory.getLogger(MapTilePackProvider.class);
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final TilePackCache mPackCache;
+
+	private final long mMaximumCachedFileAge;
+
+	private ITileSource mTileSource;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public MapTilePackProvider(final IRegisterReceiver pRegisterReceiver,
+			final ITileSource pTileSource, final TilePackCache pPackCache) {
+		this(pRegisterReceiver, pTileSource, pPackCache, DEFAULT_MAXIMUM_CACHED_FILE_AGE);
+	}
+
+	public MapTilePackProvider(final IRegisterReceiver pRegisterReceiver,
+			final ITileSource pTileSource, final TilePackCache pPackCache,
+			final long pMaximumCachedFileAge) {
+		super(pRegisterReceiver, NUMBER_OF_TILE_FILESYSTEM_THREADS,
+				TILE_FILESYSTEM_MAXIMUM_QUEUE_SIZE);
+		mTileSource = pTileSource;
+		mPackCache = pPackCache;
+		mMaximumCachedFileAge = pMaximumCachedFileAge;
+	}
+
+	// ===========================================================
+	// Methods from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public boolean getUsesDataConnection() {
+		return false;
+	}
+
+	@Override
+	protected String getName() {
+		return "Tile Pack Cache Provider";
+	}
+
+	@Override
+	protected String getThreadGroupName() {
+		return "tilepack";
+	}
+
+	@Override
+	protected Runnable getTileLoader() {
+		return new TileLoader();
+	}
+
+	@Override
+	public int getMinimumZoomLevel() {
+		return mTileSource != null ? mTileSource.getMinimumZoomLevel() : MAXIMUM_ZOOMLEVEL;
+	}
+
+	@Override
+	public int getMaximumZoomLevel() {
+		return mTileSource != null ? mTileSource.getMaximumZoomLevel() : MINIMUM_ZOOMLEVEL;
+	}
+
+	@Override
+	public void setTileSource(final ITileSource pTileSource) {
+		mTileSource = pTileSource;
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	private class TileLoader extends MapTileModuleProviderBase.TileLoader {
+
+		@Override
+		public Drawable loadTile(final MapTileRequestState pState) {
+
+			final ITileSource tileSource = mTileSource;
+			if (tileSource == null) {
+				return null;
+			}
+
+			final MapTile pTile = pState.getMapTile();
+
+			// if there's no sdcard then don't do anything
+			if (!getSdCardAvailable()) {
+				if (DEBUGMODE) {
+					logger.debug("No sdcard - do nothing for tile: " + pTile);
+				}
+				return null;
+			}
+
+			final TilePackCache.CachedTile tile = mPackCache.getTile(tileSource, pTile);
+			if (tile == null) {
+				return null;
+			}
+
+			final Drawable drawable = tileSource.getDrawable(new ByteArrayInputStream(tile
+					.getData()));
+			if (tile.getLastModified() < System.currentTimeMillis() - mMaximumCachedFileAge) {
+				// If the tile has expired then return it as a candidate and fail on the request,
+				// so that other tile providers can do a better job.
+				tileCandidateLoaded(pState, drawable);
+				return null;
+			}
+			if (drawable != null && mCompressedTileCache != null) {
+				mCompressedTileCache.put(tileSource, pTile, tile.getData());
+			}
+			return drawable;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package org.osmdroid.tileprovider.modules;
+
+/**
+ * The HTTP validators of a downloaded tile, i.e. the values of its ETag and Last-Modified response
+ * headers. They are kept with the tile in the file system cache so that an expired tile can be
+ * revalidated with a conditional request instead of being downloaded again.
+ */
+public class MapTileValidators {
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final String mETag;
+	private final String mLastModified;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * @param pETag
+	 *            the ETag header, or null
+	 * @param pLastModified
+	 *            the Last-Modified header, or null
+	 */
+	public MapTileValidators(final String pETag, final String pLastModified) {
+		mETag = pETag;
+		mLastModified = pLastModified;
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return the ETag header, or null
+	 */
+	public String getETag() {
+		return mETag;
+	}
+
+	/**
+	 * @return the Last-Modified header, or null
+	 */
+	public String getLastModified() {
+		return mLastModified;
+	}
+
+	/**
+	 * @return true if there is neither an ETag nor a Last-Modified header
+	 */
+	public boolean isEmpty() {
+		return mETag == null && mLastModified == null;
+	}
+
+	// ===========================================================
+	// Methods from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public String toString() {
+		return "ETag: " + mETag + " Last-Modified: " + mLastModified;
+	}
+}
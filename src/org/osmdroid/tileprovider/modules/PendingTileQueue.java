@@ -0,0 +1,313 @@
+package org.osmdroid.tileprovider.modules;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.osmdroid.tileprovider.MapTile;
+import org.osmdroid.tileprovider.MapTileRequestState;
+import org.osmdroid.tileprovider.MapTileViewport;
+
+/**
+ * The tile requests waiting to be loaded by a {@link MapTileModuleProviderBase}. Requests are taken
+ * in order of their distance from the center of the {@link MapTileViewport}, and the most recently
+ * requested first when there is no viewport or the distances are the same. Requests at other zoom
+ * levels are taken last.
+ *
+ * The requests are held in a binary heap, so adding, taking and moving a request to the front take
+ * logarithmic time. When the queue is full the least recently requested tile is evicted in constant
+ * time.
+ *
+ * This class is not thread-safe.
+ */
+final class PendingTileQueue {
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final HashMap<MapTile, Node> mNodes;
+
+	/** the requests in priority order, {@link #mHeap}[0] is taken next */
+	private Node[] mHeap;
+
+	/** the sentinel of the circular recency list, {@link Node#next} is the most recent request */
+	private final Node mHeader = new Node(null);
+
+	private final int mMaximumSize;
+
+	private MapTileViewport mViewport;
+
+	private long mSequence;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * @param pMaximumSize
+	 *            the number of requests above which the oldest request is evicted
+	 */
+	PendingTileQueue(final int pMaximumSize) {
+		mMaximumSize = pMaximumSize;
+		mNodes = new HashMap<MapTile, Node>(pMaximumSize + 2);
+		mHeap = new Node[Math.min(pMaximumSize + 1, 64)];
+		mHeader.next = mHeader;
+		mHeader.previous = mHeader;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Add the request to the queue as the most recent request. If the tile is already waiting then
+	 * its request is replaced.
+	 *
+	 * @return the request that was evicted to make room, or null
+	 */
+	MapTileRequestState push(final MapTileRequestState pState) {
+		Node node = mNodes.remove(pState.getMapTile());
+		if (node != null) {
+			node.unlink();
+			removeFromHeap(node);
+			node.state = pState;
+		} else {
+			node = new Node(pState);
+		}
+		mNodes.put(pState.getMapTile(), node);
+		node.linkAfter(mHeader);
+		node.sequence = mSequence++;
+		node.priority = getPriority(pState);
+		addToHeap(node);
+
+		if (mNodes.size() > mMaximumSize) {
+			final Node eldest = mHeader.previous;
+			remove(eldest);
+			return eldest.state;
+		}
+		return null;
+	}
+
+	/**
+	 * Take the request with the highest priority out of the queue.
+	 *
+	 * @return the request, or null if the queue is empty
+	 */
+	MapTileRequestState poll() {
+		if (mNodes.isEmpty()) {
+			return null;
+		}
+		final Node node = mHeap[0];
+		remove(node);
+		return node.state;
+	}
+
+	/**
+	 * @return the request that was waiting for the tile, or null
+	 */
+	MapTileRequestState remove(final MapTile pTile) {
+		final Node node = mNodes.get(pTile);
+		if (node == null) {
+			return null;
+		}
+		remove(node);
+		return node.state;
+	}
+
+	/**
+	 * Remove the request if it is waiting.
+	 *
+	 * @return true if the request was removed
+	 */
+	boolean remove(final MapTileRequestState pState) {
+		final Node node = mNodes.get(pState.getMapTile());
+		if (node == null || node.state != pState) {
+			return false;
+		}
+		remove(node);
+		return true;
+	}
+
+	/**
+	 * Empty the queue.
+	 *
+	 * @return the requests that were waiting
+	 */
+	List<MapTileRequestState> clear() {
+		final List<MapTileRequestState> states = new ArrayList<MapTileRequestState>(mNodes.size());
+		for (Node node = mHeader.next; node != mHeader; node = node.next) {
+			states.add(node.state);
+		}
+		mNodes.clear();
+		for (int i = 0; i < mHeap.length; i++) {
+			mHeap[i] = null;
+		}
+		mHeader.next = mHeader;
+		mHeader.previous = mHeader;
+		return states;
+	}
+
+	/**
+	 * Set the viewport and reorder the requests. If the zoom level has changed then the requests
+	 * at the previous zoom level are removed, because the user has left it.
+	 *
+	 * @param pViewport
+	 *            the viewport, or null to take the most recent request first
+	 * @return the requests that were removed, possibly empty
+	 */
+	List<MapTileRequestState> setViewport(final MapTileViewport pViewport) {
+		final MapTileViewport previous = mViewport;
+		mViewport = pViewport;
+
+		final List<MapTileRequestState> removed = new ArrayList<MapTileRequestState>();
+		if (previous != null && pViewport != null
+				&& previous.getZoomLevel() != pViewport.getZoomLevel()) {
+			Node node = mHeader.next;
+			while (node != mHeader) {
+				final Node next = node.next;
+				if (node.state.getMapTile().getZoomLevel() == previous.getZoomLevel()) {
+					remove(node);
+					removed.add(node.state);
+				}
+				node = next;
+			}
+		}
+
+		final int size = mNodes.size();
+		for (int i = 0; i < size; i++) {
+			mHeap[i].priority = getPriority(mHeap[i].state);
+		}
+		for (int i = size / 2 - 1; i >= 0; i--) {
+			siftDown(i);
+		}
+		return removed;
+	}
+
+	boolean isEmpty() {
+		return mNodes.isEmpty();
+	}
+
+	int size() {
+		return mNodes.size();
+	}
+
+	private long getPriority(final MapTileRequestState pState) {
+		final MapTileViewport viewport = mViewport;
+		return viewport == null ? 0 : viewport.getPriority(pState.getMapTile().getTileId());
+	}
+
+	private void remove(final Node pNode) {
+		mNodes.remove(pNode.state.getMapTile());
+		pNode.unlink();
+		removeFromHeap(pNode);
+	}
+
+	private void addToHeap(final Node pNode) {
+		final int index = mNodes.size() - 1;
+		if (index == mHeap.length) {
+			final Node[] heap = new Node[mHeap.length * 2];
+			System.arraycopy(mHeap, 0, heap, 0, mHeap.length);
+			mHeap = heap;
+		}
+		mHeap[index] = pNode;
+		pNode.index = index;
+		siftUp(index);
+	}
+
+	/**
+	 * Remove the node from the heap. The node must already have been removed from
+	 * {@link #mNodes}, so that the heap is one longer than {@link #mNodes}.
+	 */
+	private void removeFromHeap(final Node pNode) {
+		final int last = mNodes.size();
+		final int index = pNode.index;
+		final Node moved = mHeap[last];
+		mHeap[last] = null;
+		pNode.index = -1;
+		if (index != last) {
+			mHeap[index] = moved;
+			moved.index = index;
+			siftDown(index);
+			siftUp(moved.index);
+		}
+	}
+
+	private void siftUp(int pIndex) {
+		final Node node = mHeap[pIndex];
+		while (pIndex > 0) {
+			final int parent = (pIndex - 1) / 2;
+			if (!node.isBefore(mHeap[parent])) {
+				break;
+			}
+			mHeap[pIndex] = mHeap[parent];
+			mHeap[pIndex].index = pIndex;
+			pIndex = parent;
+		}
+		mHeap[pIndex] = node;
+		node.index = pIndex;
+	}
+
+	private void siftDown(int pIndex) {
+		final int size = mNodes.size();
+		final Node node = mHeap[pIndex];
+		while (true) {
+			int child = 2 * pIndex + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && mHeap[child + 1].isBefore(mHeap[child])) {
+				child++;
+			}
+			if (!mHeap[child].isBefore(node)) {
+				break;
+			}
+			mHeap[pIndex] = mHeap[child];
+			mHeap[pIndex].index = pIndex;
+			pIndex = child;
+		}
+		mHeap[pIndex] = node;
+		node.index = pIndex;
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	private static final class Node {
+		MapTileRequestState state;
+		long priority;
+		long sequence;
+		int index = -1;
+		Node previous;
+		Node next;
+
+		Node(final MapTileRequestState pState) {
+			state = pState;
+		}
+
+		/**
+		 * @return true if this request should be taken before the other one
+		 */
+		boolean isBefore(final Node pOther) {
+			if (priority != pOther.priority) {
+				return priority < pOther.priority;
+			}
+			return sequence > pOther.sequence;
+		}
+
+		void linkAfter(final Node pNode) {
+			previous = pNode;
+			next = pNode.next;
+			pNode.next.previous = this;
+			pNode.next = this;
+		}
+
+		void unlink() {
+			previous.next = next;
+			next.previous = previous;
+			previous = null;
+			next = null;
+		}
+	}
+}
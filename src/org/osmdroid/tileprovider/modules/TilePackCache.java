@@ -0,0 +1,987 @@
+package org.osmdroid.tileprovider.modules;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import org.osmdroid.tileprovider.MapTile;
+import org.osmdroid.tileprovider.constants.OpenStreetMapTileProviderConstants;
+import org.osmdroid.tileprovider.tilesource.ITileSource;
+import org.osmdroid.tileprovider.util.ConfigurablePriorityThreadFactory;
+import org.osmdroid.tileprovider.util.StreamUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An implementation of {@link IFilesystemCache} that appends tiles to a few large pack files
+ * instead of writing a file for each tile. The location of every tile is kept in memory, so finding
+ * a tile doesn't touch the file system and reading it is a single positioned read. The tiles are
+ * served by a {@link MapTilePackProvider}.
+ *
+ * A tile that is saved again is appended again, which makes the old copy garbage. When the current
+ * pack is full a new one is started, and the older packs that are mostly garbage are compacted by
+ * copying their live tiles to the new pack. If the cache exceeds 600 Mb then the oldest packs are
+ * deleted until it is 500 Mb. All of this happens on a low priority maintenance thread.
+ *
+ * The index is rebuilt from the record headers when the cache is opened, which also happens on the
+ * maintenance thread. Every record has a checksum, so a tile that was only partly written is
+ * treated as missing.
+ */
+public class TilePackCache implements IFilesystemCache, OpenStreetMapTileProviderConstants {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private static final Logger logger = LoggerFactory.getLogger(TilePackCache.class);
+
+	private static final String PACK_EXTENSION = ".pack";
+
+	/** the start of every record, "TPK1" */
+	private static final int RECORD_MAGIC = 0x54504B31;
+
+	/** a record holding a tile */
+	private static final byte RECORD_TILE = 1;
+
+	/** a record marking the latest copy of a tile as fresh */
+	private static final byte RECORD_REFRESH = 2;
+
+	// the record header, followed by the tile source name, the validators and the tile data
+	private static final int RECORD_TYPE = 4;
+	private static final int RECORD_TIME = 5;
+	private static final int RECORD_TILE_ID = 13;
+	private static final int RECORD_NAME_LENGTH = 21;
+	private static final int RECORD_VALIDATORS_LENGTH = 23;
+	private static final int RECORD_DATA_LENGTH = 25;
+	private static final int RECORD_CHECKSUM = 29;
+	private static final int RECORD_HEADER_SIZE = 33;
+
+	private static final byte[] EMPTY = new byte[0];
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final File mDirectory;
+	private final long mMaximumPackSize;
+
+	/** the packs from the oldest to the newest, which is the one being appended to */
+	private final ArrayList<Pack> mPacks = new ArrayList<Pack>();
+
+	/** the tiles of each tile source by name */
+	private final HashMap<String, TileIndex> mIndexes = new HashMap<String, TileIndex>();
+
+	/** the total size of the packs */
+	private long mSize;
+
+	private boolean mClosed;
+
+	/** held while a record is appended, before the cache */
+	private final Object mAppendLock = new Object();
+
+	private final CountDownLatch mOpened = new CountDownLatch(1);
+
+	private final ExecutorService mMaintenanceExecutor = Executors
+			.newSingleThreadExecutor(new ConfigurablePriorityThreadFactory(Thread.MIN_PRIORITY,
+					"tilepack"));
+
+	private final AtomicBoolean mMaintenanceScheduled = new AtomicBoolean();
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * Open the pack cache in {@link #TILE_PACK_PATH}.
+	 */
+	public TilePackCache() {
+		this(TILE_PACK_PATH, TILE_PACK_MAXIMUM_FILE_SIZE_BYTES);
+	}
+
+	/**
+	 * Open a pack cache. The packs are read in the background, and the methods of the cache wait
+	 * until that is done.
+	 *
+	 * @param pDirectory
+	 *            the directory holding the packs, which is created if necessary
+	 * @param pMaximumPackSize
+	 *            the size at which a new pack is started
+	 */
+	public TilePackCache(final File pDirectory, final long pMaximumPackSize) {
+		mDirectory = pDirectory;
+		mMaximumPackSize = pMaximumPackSize;
+		mMaintenanceExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				open();
+			}
+		});
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return the total size of the packs in bytes
+	 */
+	public long getSize() {
+		if (!awaitOpened()) {
+			return 0;
+		}
+		synchronized (this) {
+			return mSize;
+		}
+	}
+
+	/**
+	 * @return the number of tiles in the cache
+	 */
+	public int getTileCount() {
+		if (!awaitOpened()) {
+			return 0;
+		}
+		synchronized (this) {
+			int count = 0;
+			for (final TileIndex index : mIndexes.values()) {
+				count += index.mCount;
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * @return the number of pack files
+	 */
+	public int getPackCount() {
+		if (!awaitOpened()) {
+			return 0;
+		}
+		synchronized (this) {
+			return mPacks.size();
+		}
+	}
+
+	// ===========================================================
+	// Methods from SuperClass/Interfaces
+	// ===========================================================
+
+	@Override
+	public boolean saveFile(final ITileSource pTileSource, final MapTile pTile,
+			final InputStream pStream) {
+		return saveFile(pTileSource, pTile, pStream, null);
+	}
+
+	@Override
+	public boolean saveFile(final ITileSource pTileSource, final MapTile pTile,
+			final InputStream pStream, final MapTileValidators pValidators) {
+		if (!awaitOpened()) {
+			return false;
+		}
+		final byte[] data;
+		try {
+			data = StreamUtils.toByteArray(pStream);
+		} catch (final IOException e) {
+			return false;
+		}
+		final ByteBuffer record = createRecord(RECORD_TILE, System.currentTimeMillis(),
+				pTile.getTileId(), pTileSource.name(), encodeValidators(pValidators), data);
+		return append(pTileSource.name(), record);
+	}
+
+	@Override
+	public MapTileValidators getValidators(final ITileSource pTileSource, final MapTile pTile) {
+		final CachedTile tile = getTile(pTileSource, pTile);
+		return tile == null ? null : tile.getValidators();
+	}
+
+	@Override
+	public boolean refreshFile(final ITileSource pTileSource, final MapTile pTile) {
+		if (!awaitOpened()) {
+			return false;
+		}
+		synchronized (this) {
+			final TileIndex index = mIndexes.get(pTileSource.name());
+			if (index == null || index.find(pTile.getTileId()) < 0) {
+				return false;
+			}
+		}
+		final ByteBuffer record = createRecord(RECORD_REFRESH, System.currentTimeMillis(),
+				pTile.getTileId(), pTileSource.name(), EMPTY, EMPTY);
+		return append(pTileSource.name(), record);
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Read a tile from the cache.
+	 *
+	 * @return the tile, or null if it isn't in the cache
+	 */
+	public CachedTile getTile(final ITileSource pTileSource, final MapTile pTile) {
+		if (!awaitOpened()) {
+			return null;
+		}
+		final Pack pack;
+		final long offset;
+		final int length;
+		final long time;
+		synchronized (this) {
+			final TileIndex index = mIndexes.get(pTileSource.name());
+			final int slot = index == null ? -1 : index.find(pTile.getTileId());
+			if (slot < 0) {
+				return null;
+			}
+			pack = index.mPacks[slot];
+			offset = index.mOffsets[slot];
+			length = index.mLengths[slot];
+			time = index.mTimes[slot];
+		}
+
+		final ByteBuffer record = readRecord(pack, offset, length);
+		if (record == null) {
+			return null;
+		}
+		final int nameLength = record.getShort(RECORD_NAME_LENGTH) & 0xFFFF;
+		final int validatorsLength = record.getShort(RECORD_VALIDATORS_LENGTH) & 0xFFFF;
+		final int dataLength = record.getInt(RECORD_DATA_LENGTH);
+		final int validatorsOffset = RECORD_HEADER_SIZE + nameLength;
+		final byte[] data = new byte[dataLength];
+		System.arraycopy(record.array(), validatorsOffset + validatorsLength, data, 0, dataLength);
+		return new CachedTile(data, decodeValidators(record.array(), validatorsOffset,
+				validatorsLength), time);
+	}
+
+	/**
+	 * Close the packs. The cache can't be used afterwards.
+	 */
+	public void close() {
+		awaitOpened();
+		mMaintenanceExecutor.shutdownNow();
+		synchronized (this) {
+			mClosed = true;
+			for (final Pack pack : mPacks) {
+				pack.close();
+			}
+			mPacks.clear();
+			mIndexes.clear();
+			mSize = 0;
+		}
+	}
+
+	/**
+	 * @return false if the cache couldn't be opened or has been closed
+	 */
+	private boolean awaitOpened() {
+		try {
+			mOpened.await();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		synchronized (this) {
+			return !mClosed;
+		}
+	}
+
+	/**
+	 * Open the packs and index their records.
+	 */
+	private void open() {
+		try {
+			synchronized (this) {
+				if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+					throw new IOException("Unable to create " + mDirectory);
+				}
+				final File[] files = mDirectory.listFiles();
+				final ArrayList<Integer> numbers = new ArrayList<Integer>();
+				if (files != null) {
+					for (final File file : files) {
+						final String name = file.getName();
+						if (name.endsWith(PACK_EXTENSION)) {
+							try {
+								numbers.add(Integer.valueOf(name.substring(0, name.length()
+										- PACK_EXTENSION.length())));
+							} catch (final NumberFormatException e) {
+								logger.warn("Ignoring unexpected file in the tile pack cache: "
+										+ file);
+							}
+						}
+					}
+				}
+				final Integer[] sorted = numbers.toArray(new Integer[numbers.size()]);
+				Arrays.sort(sorted);
+				for (int i = 0; i < sorted.length; i++) {
+					final Pack pack = new Pack(sorted[i], getPackFile(sorted[i]));
+					mPacks.add(pack);
+					mSize += pack.mSize;
+					scan(pack, i == sorted.length - 1);
+				}
+				if (mPacks.isEmpty()) {
+					mPacks.add(new Pack(1, getPackFile(1)));
+				}
+				logger.info("Opened the tile pack cache with " + mPacks.size() + " packs, "
+						+ mSize + " bytes");
+			}
+		} catch (final IOException e) {
+			logger.error("Unable to open the tile pack cache: " + mDirectory, e);
+			abandon();
+		} catch (final RuntimeException e) {
+			logger.error("Unable to open the tile pack cache: " + mDirectory, e);
+			abandon();
+		} finally {
+			mOpened.countDown();
+		}
+		maintain();
+	}
+
+	/**
+	 * Close the packs opened so far when the cache couldn't be opened.
+	 */
+	private synchronized void abandon() {
+		mClosed = true;
+		for (final Pack pack : mPacks) {
+			pack.close();
+		}
+		mPacks.clear();
+		mIndexes.clear();
+		mSize = 0;
+	}
+
+	/**
+	 * Index the records of a pack. A damaged record ends the pack, and if it is the newest pack
+	 * then the damaged end is removed so that it can be appended to.
+	 */
+	private void scan(final Pack pPack, final boolean pNewest) throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(pPack.mFile), StreamUtils.IO_BUFFER_SIZE));
+		long offset = 0;
+		try {
+			while (offset + RECORD_HEADER_SIZE <= pPack.mSize) {
+				final int magic = in.readInt();
+				final byte type = in.readByte();
+				final long time = in.readLong();
+				final long tileId = in.readLong();
+				final int nameLength = in.readUnsignedShort();
+				final int validatorsLength = in.readUnsignedShort();
+				final int dataLength = in.readInt();
+				in.readInt(); // the checksum is checked when the tile is read
+				final long length = (long) RECORD_HEADER_SIZE + nameLength + validatorsLength
+						+ dataLength;
+				if (magic != RECORD_MAGIC || (type != RECORD_TILE && type != RECORD_REFRESH)
+						|| dataLength < 0 || offset + length > pPack.mSize) {
+					break;
+				}
+				final byte[] name = new byte[nameLength];
+				in.readFully(name);
+				skipFully(in, validatorsLength + dataLength);
+				onRecord(new String(name, "UTF-8"), tileId, type, time, pPack, offset,
+						(int) length);
+				offset += length;
+			}
+		} finally {
+			StreamUtils.closeStream(in);
+		}
+
+		if (offset < pPack.mSize) {
+			logger.warn("Damaged tile pack " + pPack.mFile + " at " + offset);
+			if (pNewest) {
+				pPack.getChannel().truncate(offset);
+				mSize -= pPack.mSize - offset;
+				pPack.mSize = offset;
+			}
+		}
+	}
+
+	private static void skipFully(final DataInputStream pIn, final int pCount) throws IOException {
+		int remaining = pCount;
+		while (remaining > 0) {
+			final int skipped = pIn.skipBytes(remaining);
+			if (skipped <= 0) {
+				throw new EOFException();
+			}
+			remaining -= skipped;
+		}
+	}
+
+	/**
+	 * Update the index for a record that has been read or written.
+	 */
+	private void onRecord(final String pName, final long pTileId, final byte pType,
+			final long pTime, final Pack pPack, final long pOffset, final int pLength) {
+		TileIndex index = mIndexes.get(pName);
+		if (pType == RECORD_REFRESH) {
+			final int slot = index == null ? -1 : index.find(pTileId);
+			if (slot >= 0) {
+				index.mTimes[slot] = pTime;
+			}
+			return;
+		}
+		if (index == null) {
+			index = new TileIndex();
+			mIndexes.put(pName, index);
+		}
+		final int slot = index.put(pTileId);
+		if (index.mPacks[slot] != null) {
+			index.mPacks[slot].mLiveSize -= index.mLengths[slot];
+		}
+		index.mPacks[slot] = pPack;
+		index.mOffsets[slot] = pOffset;
+		index.mLengths[slot] = pLength;
+		index.mTimes[slot] = pTime;
+		pPack.mLiveSize += pLength;
+	}
+
+	/**
+	 * Append a record to the newest pack, starting a new pack if it is full. The offset is
+	 * reserved and the record indexed while holding the cache, but the record is written without
+	 * it, so that reading tiles doesn't wait for the disk. Appends are serialized by
+	 * {@link #mAppendLock}, so the records are indexed in the order they are written.
+	 */
+	private boolean append(final String pName, final ByteBuffer pRecord) {
+		synchronized (mAppendLock) {
+			final int length = pRecord.remaining();
+			Pack pack;
+			final boolean full;
+			synchronized (this) {
+				if (mClosed) {
+					return false;
+				}
+				pack = mPacks.get(mPacks.size() - 1);
+				full = pack.mSize > 0 && pack.mSize + length > mMaximumPackSize;
+			}
+			if (full) {
+				try {
+					pack = new Pack(pack.mNumber + 1, getPackFile(pack.mNumber + 1));
+				} catch (final IOException e) {
+					logger.warn("Unable to start a new tile pack", e);
+					return false;
+				}
+				synchronized (this) {
+					if (mClosed) {
+						pack.close();
+						return false;
+					}
+					mPacks.add(pack);
+				}
+				scheduleMaintenance();
+			}
+
+			final long offset;
+			synchronized (this) {
+				offset = pack.mSize;
+			}
+			if (!pack.reopen()) {
+				return false;
+			}
+			try {
+				final FileChannel channel = pack.getChannel();
+				while (pRecord.hasRemaining()) {
+					channel.write(pRecord, offset + pRecord.position());
+				}
+			} catch (final IOException e) {
+				logger.warn("Error saving tile to " + pack.mFile + " : " + e);
+				try {
+					// don't leave part of the record behind
+					if (pack.reopen()) {
+						pack.getChannel().truncate(offset);
+					}
+				} catch (final IOException e2) {
+					logger.warn("Unable to truncate " + pack.mFile, e2);
+				}
+				return false;
+			}
+
+			synchronized (this) {
+				if (mClosed) {
+					return false;
+				}
+				pack.mSize += length;
+				mSize += length;
+				onRecord(pName, pRecord.getLong(RECORD_TILE_ID), pRecord.get(RECORD_TYPE),
+						pRecord.getLong(RECORD_TIME), pack, offset, length);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Read a record and check it.
+	 *
+	 * @return the record, or null if it couldn't be read or is damaged
+	 */
+	private ByteBuffer readRecord(final Pack pPack, final long pOffset, final int pLength) {
+		final ByteBuffer record = ByteBuffer.allocate(pLength);
+		try {
+			while (record.hasRemaining()) {
+				if (pPack.getChannel().read(record, pOffset + record.position()) < 0) {
+					throw new EOFException();
+				}
+			}
+		} catch (final ClosedByInterruptException e) {
+			// the request has been cancelled
+			return null;
+		} catch (final ClosedChannelException e) {
+			// another thread has been interrupted while reading, or the pack has been deleted
+			if (record.position() == 0 && pPack.reopen()) {
+				return readRecord(pPack, pOffset, pLength);
+			}
+			return null;
+		} catch (final IOException e) {
+			logger.warn("Error reading tile from " + pPack.mFile + " : " + e);
+			return null;
+		}
+
+		final int checksum = checksum(record.array(), RECORD_HEADER_SIZE, pLength
+				- RECORD_HEADER_SIZE);
+		if (record.getInt(0) != RECORD_MAGIC || record.getInt(RECORD_CHECKSUM) != checksum) {
+			logger.warn("Damaged tile in " + pPack.mFile + " at " + pOffset);
+			return null;
+		}
+		record.flip();
+		return record;
+	}
+
+	private static ByteBuffer createRecord(final byte pType, final long pTime, final long pTileId,
+			final String pName, final byte[] pValidators, final byte[] pData) {
+		final byte[] name = getBytes(pName);
+		final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + name.length
+				+ pValidators.length + pData.length);
+		record.putInt(RECORD_MAGIC);
+		record.put(pType);
+		record.putLong(pTime);
+		record.putLong(pTileId);
+		record.putShort((short) name.length);
+		record.putShort((short) pValidators.length);
+		record.putInt(pData.length);
+		record.putInt(0);
+		record.put(name);
+		record.put(pValidators);
+		record.put(pData);
+		record.putInt(RECORD_CHECKSUM, checksum(record.array(), RECORD_HEADER_SIZE,
+				record.capacity() - RECORD_HEADER_SIZE));
+		record.flip();
+		return record;
+	}
+
+	private static int checksum(final byte[] pBytes, final int pOffset, final int pLength) {
+		final CRC32 crc = new CRC32();
+		crc.update(pBytes, pOffset, pLength);
+		return (int) crc.getValue();
+	}
+
+	private static byte[] getBytes(final String pString) {
+		try {
+			return pString.getBytes("UTF-8");
+		} catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] encodeValidators(final MapTileValidators pValidators) {
+		if (pValidators == null || pValidators.isEmpty()) {
+			return EMPTY;
+		}
+		return getBytes((pValidators.getETag() == null ? "" : pValidators.getETag()) + "\n"
+				+ (pValidators.getLastModified() == null ? "" : pValidators.getLastModified()));
+	}
+
+	private static MapTileValidators decodeValidators(final byte[] pBytes, final int pOffset,
+			final int pLength) {
+		if (pLength == 0) {
+			return null;
+		}
+		final String validators;
+		try {
+			validators = new String(pBytes, pOffset, pLength, "UTF-8");
+		} catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		final int separator = validators.indexOf('\n');
+		final String eTag = validators.substring(0, separator);
+		final String lastModified = validators.substring(separator + 1);
+		return new MapTileValidators(eTag.length() == 0 ? null : eTag,
+				lastModified.length() == 0 ? null : lastModified);
+	}
+
+	private File getPackFile(final int pNumber) {
+		return new File(mDirectory, pNumber + PACK_EXTENSION);
+	}
+
+	private void scheduleMaintenance() {
+		if (mMaintenanceScheduled.compareAndSet(false, true)) {
+			mMaintenanceExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					mMaintenanceScheduled.set(false);
+					maintain();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Compact the packs that are mostly garbage, and delete the oldest packs if the cache is too
+	 * large.
+	 */
+	private void maintain() {
+		while (true) {
+			Pack compact = null;
+			synchronized (this) {
+				for (int i = 0; i < mPacks.size() - 1; i++) {
+					final Pack pack = mPacks.get(i);
+					if (pack.mLiveSize < pack.mSize * TILE_PACK_COMPACTION_RATIO) {
+						compact = pack;
+						break;
+					}
+				}
+			}
+			if (compact == null) {
+				break;
+			}
+			compact(compact);
+		}
+
+		synchronized (this) {
+			if (mSize > TILE_MAX_CACHE_SIZE_BYTES) {
+				logger.info("Trimming tile pack cache from " + mSize + " bytes");
+				while (mSize > TILE_TRIM_CACHE_SIZE_BYTES && mPacks.size() > 1) {
+					delete(mPacks.get(0));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copy the live tiles of a pack to the newest pack, and delete it.
+	 */
+	private void compact(final Pack pPack) {
+		final ArrayList<String> names = new ArrayList<String>();
+		final ArrayList<long[]> tileIds = new ArrayList<long[]>();
+		synchronized (this) {
+			if (mClosed) {
+				return;
+			}
+			for (final Map.Entry<String, TileIndex> entry : mIndexes.entrySet()) {
+				final long[] ids = entry.getValue().getTileIds(pPack);
+				if (ids.length > 0) {
+					names.add(entry.getKey());
+					tileIds.add(ids);
+				}
+			}
+		}
+
+		int count = 0;
+		for (int i = 0; i < names.size(); i++) {
+			for (final long tileId : tileIds.get(i)) {
+				if (copy(pPack, names.get(i), tileId)) {
+					count++;
+				}
+			}
+		}
+
+		synchronized (this) {
+			if (!mClosed) {
+				delete(pPack);
+			}
+		}
+		if (DEBUGMODE) {
+			logger.debug("Compacted " + pPack.mFile + " - copied " + count + " tiles");
+		}
+	}
+
+	/**
+	 * Copy a tile to the newest pack, unless it has been saved again in the meantime.
+	 */
+	private boolean copy(final Pack pPack, final String pName, final long pTileId) {
+		final long offset;
+		final int length;
+		synchronized (this) {
+			final TileIndex index = mIndexes.get(pName);
+			final int slot = index == null ? -1 : index.find(pTileId);
+			if (slot < 0 || index.mPacks[slot] != pPack) {
+				return false;
+			}
+			offset = index.mOffsets[slot];
+			length = index.mLengths[slot];
+		}
+		final ByteBuffer record = readRecord(pPack, offset, length);
+		if (record == null) {
+			return false;
+		}
+		// no other record can be appended between the check and the copy
+		synchronized (mAppendLock) {
+			synchronized (this) {
+				final TileIndex index = mIndexes.get(pName);
+				final int slot = index == null ? -1 : index.find(pTileId);
+				if (slot < 0 || index.mPacks[slot] != pPack || index.mOffsets[slot] != offset) {
+					return false;
+				}
+				// keep the time it was last refreshed
+				record.putLong(RECORD_TIME, index.mTimes[slot]);
+			}
+			return append(pName, record);
+		}
+	}
+
+	/**
+	 * Delete a pack and forget its tiles. The newest pack is never deleted.
+	 */
+	private void delete(final Pack pPack) {
+		for (final TileIndex index : mIndexes.values()) {
+			index.remove(pPack);
+		}
+		mPacks.remove(pPack);
+		mSize -= pPack.mSize;
+		pPack.delete();
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	/**
+	 * A tile read from the cache.
+	 */
+	public static class CachedTile {
+
+		private final byte[] mData;
+		private final MapTileValidators mValidators;
+		private final long mLastModified;
+
+		CachedTile(final byte[] pData, final MapTileValidators pValidators,
+				final long pLastModified) {
+			mData = pData;
+			mValidators = pValidators;
+			mLastModified = pLastModified;
+		}
+
+		/**
+		 * @return the compressed tile
+		 */
+		public byte[] getData() {
+			return mData;
+		}
+
+		/**
+		 * @return the HTTP validators, or null if there aren't any
+		 */
+		public MapTileValidators getValidators() {
+			return mValidators;
+		}
+
+		/**
+		 * @return the time the tile was saved or last refreshed
+		 */
+		public long getLastModified() {
+			return mLastModified;
+		}
+	}
+
+	/**
+	 * A pack file. The sizes are guarded by the cache, and only change while the append lock is
+	 * held too. The channel is guarded by the pack.
+	 */
+	private static class Pack {
+
+		final int mNumber;
+		final File mFile;
+		private RandomAccessFile mRandomAccessFile;
+		private FileChannel mChannel;
+		private boolean mDeleted;
+
+		/** the size of the file */
+		long mSize;
+
+		/** the size of the records that haven't been replaced */
+		long mLiveSize;
+
+		Pack(final int pNumber, final File pFile) throws IOException {
+			mNumber = pNumber;
+			mFile = pFile;
+			mRandomAccessFile = new RandomAccessFile(pFile, "rw");
+			mChannel = mRandomAccessFile.getChannel();
+			mSize = mChannel.size();
+		}
+
+		synchronized FileChannel getChannel() {
+			return mChannel;
+		}
+
+		/**
+		 * Open the file again after an interrupted thread has closed the channel.
+		 *
+		 * @return false if the pack has been deleted or can't be opened
+		 */
+		synchronized boolean reopen() {
+			if (mDeleted) {
+				return false;
+			}
+			if (!mChannel.isOpen()) {
+				try {
+					mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+					mChannel = mRandomAccessFile.getChannel();
+				} catch (final IOException e) {
+					logger.warn("Unable to reopen " + mFile, e);
+					return false;
+				}
+			}
+			return true;
+		}
+
+		synchronized void close() {
+			mDeleted = true;
+			try {
+				mRandomAccessFile.close();
+			} catch (final IOException e) {
+				logger.warn("Error closing " + mFile, e);
+			}
+		}
+
+		void delete() {
+			close();
+			if (!mFile.delete()) {
+				logger.warn("Unable to delete " + mFile);
+			}
+		}
+	}
+
+	/**
+	 * Maps the tile ids of a tile source to the locations of their records. It uses open
+	 * addressing in primitive arrays, so that a large cache doesn't need an object per tile.
+	 */
+	private static class TileIndex {
+
+		private static final long NO_TILE = -1;
+
+		long[] mTileIds;
+		Pack[] mPacks;
+		long[] mOffsets;
+		int[] mLengths;
+		long[] mTimes;
+		int mCount;
+
+		TileIndex() {
+			allocate(64);
+		}
+
+		private void allocate(final int pCapacity) {
+			mTileIds = new long[pCapacity];
+			Arrays.fill(mTileIds, NO_TILE);
+			mPacks = new Pack[pCapacity];
+			mOffsets = new long[pCapacity];
+			mLengths = new int[pCapacity];
+			mTimes = new long[pCapacity];
+			mCount = 0;
+		}
+
+		private int getSlot(final long pTileId) {
+			return (int) ((pTileId * 0x9E3779B97F4A7C15L) >>> 32) & (mTileIds.length - 1);
+		}
+
+		/**
+		 * @return the slot of the tile, or -1 if it isn't in the index
+		 */
+		int find(final long pTileId) {
+			int slot = getSlot(pTileId);
+			while (true) {
+				final long tileId = mTileIds[slot];
+				if (tileId == pTileId) {
+					return slot;
+				}
+				if (tileId == NO_TILE) {
+					return -1;
+				}
+				slot = (slot + 1) & (mTileIds.length - 1);
+			}
+		}
+
+		/**
+		 * @return the slot of the tile, which has no pack if the tile is new
+		 */
+		int put(final long pTileId) {
+			if ((mCount + 1) * 4 > mTileIds.length * 3) {
+				rehash(mTileIds.length * 2, null);
+			}
+			int slot = getSlot(pTileId);
+			while (true) {
+				final long tileId = mTileIds[slot];
+				if (tileId == pTileId) {
+					return slot;
+				}
+				if (tileId == NO_TILE) {
+					mTileIds[slot] = pTileId;
+					mCount++;
+					return slot;
+				}
+				slot = (slot + 1) & (mTileIds.length - 1);
+			}
+		}
+
+		/**
+		 * Remove the tiles in the pack.
+		 */
+		void remove(final Pack pPack) {
+			rehash(mTileIds.length, pPack);
+		}
+
+		/**
+		 * @return the ids of the tiles in the pack
+		 */
+		long[] getTileIds(final Pack pPack) {
+			int count = 0;
+			for (int i = 0; i < mPacks.length; i++) {
+				if (mPacks[i] == pPack) {
+					count++;
+				}
+			}
+			final long[] tileIds = new long[count];
+			count = 0;
+			for (int i = 0; i < mPacks.length; i++) {
+				if (mPacks[i] == pPack) {
+					tileIds[count++] = mTileIds[i];
+				}
+			}
+			return tileIds;
+		}
+
+		private void rehash(final int pCapacity, final Pack pExcluded) {
+			final long[] tileIds = mTileIds;
+			final Pack[] packs = mPacks;
+			final long[] offsets = mOffsets;
+			final int[] lengths = mLengths;
+			final long[] times = mTimes;
+			allocate(pCapacity);
+			for (int i = 0; i < tileIds.length; i++) {
+				if (tileIds[i] != NO_TILE && packs[i] != pExcluded) {
+					final int slot = put(tileIds[i]);
+					mPacks[slot] = packs[i];
+					mOffsets[slot] = offsets[i];
+					mLengths[slot] = lengths[i];
+					mTimes[slot] = times[i];
+				}
+			}
+		}
+	}
+}
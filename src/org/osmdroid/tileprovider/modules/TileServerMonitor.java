@@ -0,0 +1,304 @@
+package org.osmdroid.tileprovider.modules;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+
+import org.osmdroid.tileprovider.MapTile;
+import org.osmdroid.tileprovider.constants.OpenStreetMapTileProviderConstants;
+import org.osmdroid.tileprovider.tilesource.OnlineTileSourceBase;
+import org.osmdroid.tileprovider.util.ExponentialBackoff;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the health of tile servers and suspends requests to a server that is failing, so
+ * that a struggling server isn't hammered and tiles from an unreachable server fail at once.
+ *
+ * Each host has a circuit breaker. The breaker opens when the exponentially weighted failure rate
+ * of the host exceeds {@link #HTTP_CIRCUIT_BREAKER_FAILURE_RATE}, or at once when the host can't be
+ * found. While it is open no requests are sent. When it has been open for a while one probe
+ * request is allowed through: if the probe succeeds the breaker closes, otherwise it opens again
+ * for twice as long, up to {@link #HTTP_CIRCUIT_BREAKER_MAXIMUM_OPEN_MILLISECONDS}. The open times
+ * are randomised so that the hosts of a tile source don't recover in lockstep.
+ *
+ * It also keeps the weighted response time of each host, which is used to choose between the
+ * mirrors of a tile source with {@link #chooseMirror(long, String[])}.
+ *
+ * This class is thread-safe.
+ */
+public class TileServerMonitor implements OpenStreetMapTileProviderConstants {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private static final Logger logger = LoggerFactory.getLogger(TileServerMonitor.class);
+
+	/** the weight of the latest request in the failure rate */
+	private static final double FAILURE_RATE_WEIGHT = 0.2;
+
+	/** the weight of the latest response in the response time */
+	private static final double RESPONSE_TIME_WEIGHT = 0.2;
+
+	/** the number of requests to a host before its failure rate is trusted */
+	private static final int MINIMUM_REQUEST_COUNT = 5;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final HashMap<String, HostState> mHosts = new HashMap<String, HostState>();
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Check whether a request may be sent to the host. If the host is being probed then the caller
+	 * must report the outcome of its request with {@link #onSuccess(String)} or
+	 * {@link #onFailure(String)}.
+	 *
+	 * @return false if requests to the host are suspended
+	 */
+	public synchronized boolean allowRequest(final String pHost) {
+		final HostState state = mHosts.get(pHost);
+		if (state == null || state.openUntil == 0) {
+			return true;
+		}
+		final long now = System.currentTimeMillis();
+		if (now < state.openUntil) {
+			return false;
+		}
+		if (DEBUGMODE) {
+			logger.debug("Probing tile server: " + pHost);
+		}
+		// allow another probe if we don't hear about this one, e.g. because it was cancelled
+		state.openUntil = now + HTTP_CONNECT_TIMEOUT_MILLISECONDS + HTTP_READ_TIMEOUT_MILLISECONDS;
+		state.probing = true;
+		return true;
+	}
+
+	/**
+	 * A request to the host succeeded, i.e. the server responded.
+	 */
+	public synchronized void onSuccess(final String pHost) {
+		final HostState state = getHostState(pHost);
+		state.update(0);
+		if (state.openUntil != 0) {
+			logger.info("Tile server has recovered: " + pHost);
+			// start afresh rather than letting the old failures open the breaker again
+			state.failureRate = 0;
+			state.requestCount = 0;
+			state.openUntil = 0;
+			state.openCount = 0;
+			state.probing = false;
+		}
+	}
+
+	/**
+	 * A request to the host failed with a network error or a server error.
+	 */
+	public synchronized void onFailure(final String pHost) {
+		final HostState state = getHostState(pHost);
+		state.update(1);
+		if (state.probing
+				|| (state.openUntil == 0 && state.requestCount >= MINIMUM_REQUEST_COUNT
+				&& state.failureRate > HTTP_CIRCUIT_BREAKER_FAILURE_RATE)) {
+			open(pHost, state);
+		}
+	}
+
+	/**
+	 * The host couldn't be found, so suspend requests to it straight away.
+	 */
+	public synchronized void onUnreachable(final String pHost) {
+		final HostState state = getHostState(pHost);
+		state.update(1);
+		if (state.openUntil == 0 || state.probing) {
+			open(pHost, state);
+		}
+	}
+
+	/**
+	 * The host responded to a request, whether successfully or not.
+	 *
+	 * @param pResponseTime
+	 *            the time it took to respond in milliseconds
+	 */
+	public synchronized void onResponse(final String pHost, final long pResponseTime) {
+		final HostState state = getHostState(pHost);
+		// don't let a response in under a millisecond make the host infinitely attractive
+		final double responseTime = Math.max(pResponseTime, 1);
+		if (state.responseTime == 0) {
+			state.responseTime = responseTime;
+		} else {
+			state.responseTime += RESPONSE_TIME_WEIGHT * (responseTime - state.responseTime);
+		}
+	}
+
+	/**
+	 * Choose which mirror of a tile source to download a tile from.
+	 *
+	 * Each mirror is weighted by its response time and failure rate, and the mirror is chosen by
+	 * weighted rendezvous hashing of the tile id. So a tile is always downloaded from the same
+	 * mirror while the weights don't change much, which keeps the caches along the way warm, and
+	 * each mirror gets a share of the tiles in proportion to its weight. No mirror gets less than
+	 * {@link #HTTP_MIRROR_MINIMUM_WEIGHT} of the share of the best one, so that a mirror which has
+	 * been slow is noticed when it gets faster. A mirror whose requests are suspended is only
+	 * chosen if all of them are.
+	 *
+	 * @param pTileId
+	 *            the tile id
+	 * @param pHosts
+	 *            the hosts of the mirrors
+	 * @return the index of the chosen mirror
+	 */
+	public synchronized int chooseMirror(final long pTileId, final String[] pHosts) {
+		final int count = pHosts.length;
+		if (count == 1) {
+			return 0;
+		}
+
+		// Hosts we haven't heard from yet are given the average response time so that they get
+		// their fair share
+		double totalResponseTime = 0;
+		int responseTimeCount = 0;
+		for (int i = 0; i < count; i++) {
+			final HostState state = mHosts.get(pHosts[i]);
+			if (state != null && state.responseTime != 0) {
+				totalResponseTime += state.responseTime;
+				responseTimeCount++;
+			}
+		}
+		final double defaultResponseTime = responseTimeCount == 0 ? 1 : totalResponseTime
+				/ responseTimeCount;
+
+		final long now = System.currentTimeMillis();
+		final double[] weights = new double[count];
+		double maximumWeight = 0;
+		for (int i = 0; i < count; i++) {
+			final HostState state = mHosts.get(pHosts[i]);
+			double weight;
+			if (state == null) {
+				weight = 1 / defaultResponseTime;
+			} else if (now < state.openUntil) {
+				weight = 0;
+			} else {
+				final double success = 1 - state.failureRate;
+				weight = success * success
+						/ (state.responseTime != 0 ? state.responseTime : defaultResponseTime);
+			}
+			weights[i] = weight;
+			maximumWeight = Math.max(maximumWeight, weight);
+		}
+		if (maximumWeight == 0) {
+			// all the mirrors are suspended, so the choice doesn't matter
+			return (MapTile.hashCode(pTileId) & Integer.MAX_VALUE) % count;
+		}
+
+		final double minimumWeight = maximumWeight * HTTP_MIRROR_MINIMUM_WEIGHT;
+		int best = 0;
+		double bestScore = -1;
+		for (int i = 0; i < count; i++) {
+			if (weights[i] == 0) {
+				continue;
+			}
+			final double score = Math.max(weights[i], minimumWeight) / -Math.log(hash(pTileId, i));
+			if (score > bestScore) {
+				bestScore = score;
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return the weighted response time of the host in milliseconds, or 0 if it hasn't responded
+	 */
+	public synchronized double getResponseTime(final String pHost) {
+		final HostState state = mHosts.get(pHost);
+		return state == null ? 0 : state.responseTime;
+	}
+
+	/**
+	 * @return the weighted failure rate of the host, between 0 and 1
+	 */
+	public synchronized double getFailureRate(final String pHost) {
+		final HostState state = mHosts.get(pHost);
+		return state == null ? 0 : state.failureRate;
+	}
+
+	private void open(final String pHost, final HostState pState) {
+		final long openTime = ExponentialBackoff.getDelay(HTTP_CIRCUIT_BREAKER_OPEN_MILLISECONDS,
+				HTTP_CIRCUIT_BREAKER_MAXIMUM_OPEN_MILLISECONDS, pState.openCount);
+		logger.warn("Suspending requests to failing tile server " + pHost + " for " + openTime
+				+ " ms");
+		pState.openUntil = System.currentTimeMillis() + openTime;
+		pState.openCount++;
+		pState.probing = false;
+	}
+
+	/**
+	 * @return the hosts of the base urls of the tile source, as used by
+	 *         {@link #chooseMirror(long, String[])}
+	 */
+	public static String[] getMirrorHosts(final OnlineTileSourceBase pTileSource) {
+		final String[] hosts = new String[pTileSource.getBaseUrlCount()];
+		for (int i = 0; i < hosts.length; i++) {
+			final String baseUrl = pTileSource.getBaseUrl(i);
+			try {
+				hosts[i] = new URL(baseUrl).getHost();
+			} catch (final MalformedURLException e) {
+				// the tile URL will be bad too, which is reported when downloading
+				hosts[i] = baseUrl;
+			}
+		}
+		return hosts;
+	}
+
+	/**
+	 * @return a pseudo-random number between 0 and 1 exclusive which depends on the tile and the
+	 *         mirror
+	 */
+	private static double hash(final long pTileId, final int pMirror) {
+		// the SplitMix64 finaliser
+		long h = pTileId * 31 + pMirror + 0x9E3779B97F4A7C15L;
+		h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+		h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+		h = h ^ (h >>> 31);
+		return ((h >>> 11) + 0.5) / (1L << 53);
+	}
+
+	private HostState getHostState(final String pHost) {
+		HostState state = mHosts.get(pHost);
+		if (state == null) {
+			state = new HostState();
+			mHosts.put(pHost, state);
+		}
+		return state;
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	private static class HostState {
+		double failureRate;
+		/** the weighted response time in milliseconds, or 0 if the host hasn't responded */
+		double responseTime;
+		int requestCount;
+		/** when the breaker may next be probed, or 0 if it is closed */
+		long openUntil;
+		/** the number of times the breaker has opened since it was last closed */
+		int openCount;
+		boolean probing;
+
+		void update(final double pFailure) {
+			failureRate += FAILURE_RATE_WEIGHT * (pFailure - failureRate);
+			if (requestCount < Integer.MAX_VALUE) {
+				requestCount++;
+			}
+		}
+	}
+}
@@ -1,25 +1,48 @@
 package org.osmdroid.tileprovider.modules;
 
-import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.osmdroid.tileprovider.MapTile;
+import org.osmdroid.tileprovider.MissingMapTileCache;
 import org.osmdroid.tileprovider.constants.OpenStreetMapTileProviderConstants;
 import org.osmdroid.tileprovider.tilesource.ITileSource;
+import org.osmdroid.tileprovider.util.ConfigurablePriorityThreadFactory;
 import org.osmdroid.tileprovider.util.StreamUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * An implementation of {@link IFilesystemCache}. It writes tiles to the file system cache. If the
- * cache exceeds 600 Mb then it will be trimmed to 500 Mb.
+ * cache exceeds 600 Mb then it will be trimmed to 500 Mb, deleting the least recently accessed
+ * tiles first. The size is calculated and the cache is trimmed on a low priority maintenance
+ * thread, so saving a tile never waits for it.
+ *
+ * The size of the cache and the access times of the tiles are kept in the
+ * {@link FilesystemCacheIndex}, which is only built from the files in the cache the first time. If
+ * the index can't be opened then the cache is listed at startup and when it is trimmed instead, and
+ * the least recently modified tiles are deleted first.
+ *
+ * Saved tiles are queued and written in batches by a writer thread, so that a downloader doesn't
+ * wait for the disk. Each file is written to a temporary file first and then renamed, so a reader
+ * never sees a partly written tile.
  *
  * @author Neil Boyd
  *
@@ -32,12 +55,66 @@ public class TileWriter implements IFilesystemCache, OpenStreetMapTileProviderCo
 
 	private static final Logger logger = LoggerFactory.getLogger(TileWriter.class);
 
+	/** the number of directories remembered to exist, so that they needn't be checked */
+	private static final int KNOWN_DIRECTORY_COUNT = 256;
+
+	/** added to the name of a file while it is being written */
+	private static final String TEMPORARY_EXTENSION = ".tmp";
+
+	private static final Runnable mWriter = new Runnable() {
+		@Override
+		public void run() {
+			writePendingTiles();
+		}
+	};
+
 	// ===========================================================
 	// Fields
 	// ===========================================================
 
-	/** amount of disk space used by tile cache **/
-	private static long mUsedCacheSpace;
+	/** amount of disk space used by tile cache if there is no index **/
+	private static final AtomicLong mUsedCacheSpace = new AtomicLong();
+
+	/** calculates the size of the cache and trims it, so that tile downloads don't wait for it */
+	private static final ExecutorService mMaintenanceExecutor = Executors
+			.newSingleThreadExecutor(new ConfigurablePriorityThreadFactory(Thread.MIN_PRIORITY,
+					"tilecache"));
+
+	private static final AtomicBoolean mTrimScheduled = new AtomicBoolean();
+
+	/** writes the tiles waiting in {@link #mPendingTiles} */
+	private static final ExecutorService mWriterExecutor = Executors
+			.newSingleThreadExecutor(new ConfigurablePriorityThreadFactory(
+					Thread.NORM_PRIORITY - 1, "tilewriter"));
+
+	/**
+	 * tiles waiting to be written by name, oldest first. A tile stays here until it has been
+	 * written, so that its validators can be found.
+	 */
+	private static final LinkedHashMap<String, PendingTile> mPendingTiles = new LinkedHashMap<String, PendingTile>();
+
+	/** whether the writer has been started, guarded by {@link #mPendingTiles} */
+	private static boolean mWriterScheduled;
+
+	/** directories that are known to exist */
+	private static final Map<String, Boolean> mDirectories = new LinkedHashMap<String, Boolean>(
+			64, 0.75f, true) {
+		private static final long serialVersionUID = 4377530154390734211L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, Boolean> pEldest) {
+			return size() > KNOWN_DIRECTORY_COUNT;
+		}
+	};
+
+	private static volatile boolean mTrimming;
+	private static final AtomicLong mTrimCount = new AtomicLong();
+	private static final AtomicLong mTrimmedTileCount = new AtomicLong();
+	private static final AtomicLong mTrimmedByteCount = new AtomicLong();
+	private static volatile long mLastTrimDuration;
+
+	/** the tiles known to be missing from the file system cache, forgotten once written */
+	private static final MissingMapTileCache mMissingTileCache = new MissingMapTileCache();
 
 	// ===========================================================
 	// Constructors
@@ -46,34 +123,106 @@ public class TileWriter implements IFilesystemCache, OpenStreetMapTileProviderCo
 	public TileWriter() {
 
 		// do this in the background because it takes a long time
-		final Thread t = new Thread() {
+		mMaintenanceExecutor.execute(new Runnable() {
 			@Override
 			public void run() {
-				calculateDirectorySize(TILE_PATH_BASE);
-				if (mUsedCacheSpace > TILE_MAX_CACHE_SIZE_BYTES) {
+				final FilesystemCacheIndex index = FilesystemCacheIndex.getInstance();
+				if (index == null) {
+					mUsedCacheSpace.set(calculateDirectorySize(TILE_PATH_BASE));
+				} else if (!index.isBuilt()) {
+					index.build();
+				}
+				if (getUsedCacheSpace() > TILE_MAX_CACHE_SIZE_BYTES) {
 					cutCurrentCache();
 				}
 				if(DEBUGMODE) {
-					logger.debug("Finished init thread");
+					logger.debug("Finished init task");
 				}
 			}
-		};
-		t.setPriority(Thread.MIN_PRIORITY);
-		t.start();
+		});
 	}
 
 	// ===========================================================
 	// Getter & Setter
 	// ===========================================================
 
+	/**
+	 * Get the cache of tiles known to be missing from the file system cache. Every
+	 * {@link TileWriter} tells it when a tile has been written, so that the tile is found again.
+	 */
+	public static MissingMapTileCache getMissingTileCache() {
+		return mMissingTileCache;
+	}
+
 	/**
 	 * Get the amount of disk space used by the tile cache.
-	 * This will initially be zero since the used space is calculated in the background.
+	 * This will initially be zero if the used space is being calculated in the background.
 	 *
 	 * @return size in bytes
 	 */
 	public static long getUsedCacheSpace() {
-		return mUsedCacheSpace;
+		final FilesystemCacheIndex index = FilesystemCacheIndex.getInstance();
+		return index != null ? index.getSize() : mUsedCacheSpace.get();
+	}
+
+	/**
+	 * @return true if the tile cache is being trimmed
+	 */
+	public static boolean isTrimming() {
+		return mTrimming;
+	}
+
+	/**
+	 * @return the number of saved tiles that haven't been written yet
+	 */
+	public static int getPendingTileCount() {
+		synchronized (mPendingTiles) {
+			return mPendingTiles.size();
+		}
+	}
+
+	/**
+	 * Wait until the tiles saved so far have been written.
+	 */
+	public static void flush() throws InterruptedException {
+		try {
+			// the writer runs one task at a time, so this runs after the queue has been written
+			mWriterExecutor.submit(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}).get();
+		} catch (final ExecutionException e) {
+			logger.warn("Error waiting for the tile writer", e);
+		}
+	}
+
+	/**
+	 * @return the number of times the tile cache has been trimmed
+	 */
+	public static long getTrimCount() {
+		return mTrimCount.get();
+	}
+
+	/**
+	 * @return the number of tiles deleted by trimming the tile cache
+	 */
+	public static long getTrimmedTileCount() {
+		return mTrimmedTileCount.get();
+	}
+
+	/**
+	 * @return the number of bytes freed by trimming the tile cache
+	 */
+	public static long getTrimmedByteCount() {
+		return mTrimmedByteCount.get();
+	}
+
+	/**
+	 * @return how long the last trim of the tile cache took in milliseconds
+	 */
+	public static long getLastTrimDuration() {
+		return mLastTrimDuration;
 	}
 
 	// ===========================================================
@@ -83,40 +232,270 @@ public class TileWriter implements IFilesystemCache, OpenStreetMapTileProviderCo
 	@Override
 	public boolean saveFile(final ITileSource pTileSource, final MapTile pTile,
 			final InputStream pStream) {
+		return saveFile(pTileSource, pTile, pStream, null);
+	}
 
-		final File file = new File(TILE_PATH_BASE,
-				pTileSource.getTileRelativeFilenameString(pTile) + TILE_PATH_EXTENSION);
+	/**
+	 * The tile is read from the stream and queued to be written by the writer thread, so this
+	 * returns before the tile is on disk. If too many tiles are waiting then it is written on this
+	 * thread instead. A tile is written to a temporary file which then replaces the old one, so
+	 * that a tile is never read half written.
+	 */
+	@Override
+	public boolean saveFile(final ITileSource pTileSource, final MapTile pTile,
+			final InputStream pStream, final MapTileValidators pValidators) {
 
-		final File parent = file.getParentFile();
-		if (!parent.exists() && !createFolderAndCheckIfExists(parent)) {
+		final PendingTile pendingTile;
+		try {
+			pendingTile = new PendingTile(pTileSource, pTile,
+					StreamUtils.toByteArray(pStream), pValidators);
+		} catch (final IOException e) {
 			return false;
 		}
 
-		BufferedOutputStream outputStream = null;
-		try {
-			outputStream = new BufferedOutputStream(new FileOutputStream(file.getPath()),
-					StreamUtils.IO_BUFFER_SIZE);
-			final long length = StreamUtils.copy(pStream, outputStream);
+		synchronized (mPendingTiles) {
+			if (mPendingTiles.size() < TILE_WRITE_QUEUE_SIZE
+					|| mPendingTiles.containsKey(pendingTile.mName)) {
+				mPendingTiles.put(pendingTile.mName, pendingTile);
+				if (!mWriterScheduled) {
+					mWriterScheduled = true;
+					mWriterExecutor.execute(mWriter);
+				}
+				return true;
+			}
+		}
 
-			mUsedCacheSpace += length;
-			if (mUsedCacheSpace > TILE_MAX_CACHE_SIZE_BYTES) {
-				cutCurrentCache(); // TODO perhaps we should do this in the background
+		// the writer is falling behind, so slow down the callers
+		final ArrayList<PendingTile> tiles = new ArrayList<PendingTile>(1);
+		tiles.add(pendingTile);
+		return writeTiles(tiles) == 1;
+	}
+
+	@Override
+	public MapTileValidators getValidators(final ITileSource pTileSource, final MapTile pTile) {
+		final String name = pTileSource.getTileRelativeFilenameString(pTile);
+		synchronized (mPendingTiles) {
+			final PendingTile pendingTile = mPendingTiles.get(name);
+			if (pendingTile != null) {
+				return pendingTile.mValidators;
 			}
+		}
+		final File validatorsFile = getValidatorsFile(getFile(name));
+		if (!validatorsFile.exists()) {
+			return null;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(validatorsFile),
+					"UTF-8"));
+			final String eTag = reader.readLine();
+			final String lastModified = reader.readLine();
+			final MapTileValidators validators = new MapTileValidators(
+					eTag == null || eTag.length() == 0 ? null : eTag,
+					lastModified == null || lastModified.length() == 0 ? null : lastModified);
+			return validators.isEmpty() ? null : validators;
 		} catch (final IOException e) {
-			return false;
+			logger.warn("Error reading tile validators: " + validatorsFile, e);
+			return null;
 		} finally {
-			if (outputStream != null) {
-				StreamUtils.closeStream(outputStream);
+			StreamUtils.closeStream(reader);
+		}
+	}
+
+	@Override
+	public boolean refreshFile(final ITileSource pTileSource, final MapTile pTile) {
+		final String name = pTileSource.getTileRelativeFilenameString(pTile);
+		synchronized (mPendingTiles) {
+			if (mPendingTiles.containsKey(name)) {
+				// it's about to be written, so it will be fresh
+				return true;
 			}
 		}
-		return true;
+		final File file = getFile(name);
+		final FilesystemCacheIndex index = FilesystemCacheIndex.getInstance();
+		if (file.setLastModified(System.currentTimeMillis())) {
+			if (index != null) {
+				index.onRefreshed(name);
+			}
+			return true;
+		}
+		if (DEBUGMODE) {
+			logger.debug("Unable to refresh " + file + " - discarding its validators");
+		}
+		final long previousSize = FilesystemCacheIndex.getFilesSize(file);
+		getValidatorsFile(file).delete();
+		if (index != null) {
+			index.onSaved(name, FilesystemCacheIndex.getFilesSize(file));
+		} else {
+			mUsedCacheSpace.addAndGet(FilesystemCacheIndex.getFilesSize(file) - previousSize);
+		}
+		return false;
 	}
 
 	// ===========================================================
 	// Methods
 	// ===========================================================
 
-	private boolean createFolderAndCheckIfExists(final File pFile) {
+	/**
+	 * @param pName
+	 *            the file name of the tile relative to the cache, without the extension
+	 */
+	private static File getFile(final String pName) {
+		return new File(TILE_PATH_BASE, pName + TILE_PATH_EXTENSION);
+	}
+
+	private static File getValidatorsFile(final File pFile) {
+		return new File(pFile.getPath() + TILE_VALIDATORS_EXTENSION);
+	}
+
+	/**
+	 * Write the tiles waiting in the queue in batches, until there are none left.
+	 */
+	private static void writePendingTiles() {
+		final ArrayList<PendingTile> batch = new ArrayList<PendingTile>(TILE_WRITE_BATCH_SIZE);
+		while (true) {
+			synchronized (mPendingTiles) {
+				if (mPendingTiles.isEmpty()) {
+					mWriterScheduled = false;
+					return;
+				}
+				for (final PendingTile pendingTile : mPendingTiles.values()) {
+					batch.add(pendingTile);
+					if (batch.size() == TILE_WRITE_BATCH_SIZE) {
+						break;
+					}
+				}
+			}
+
+			writeTiles(batch);
+
+			synchronized (mPendingTiles) {
+				for (final PendingTile pendingTile : batch) {
+					// unless it has been saved again in the meantime
+					if (mPendingTiles.get(pendingTile.mName) == pendingTile) {
+						mPendingTiles.remove(pendingTile.mName);
+					}
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Write the tiles and record them in the index in one go.
+	 *
+	 * @return the number of tiles that were written
+	 */
+	private static int writeTiles(final List<PendingTile> pTiles) {
+		final FilesystemCacheIndex index = FilesystemCacheIndex.getInstance();
+		final String[] names = new String[pTiles.size()];
+		final long[] sizes = new long[pTiles.size()];
+		int count = 0;
+		for (final PendingTile pendingTile : pTiles) {
+			final File file = getFile(pendingTile.mName);
+			if (!createDirectory(file.getParentFile())) {
+				continue;
+			}
+			// the index knows the previous size itself
+			final long previousSize = index == null ? FilesystemCacheIndex.getFilesSize(file) : 0;
+			try {
+				writeFile(file, pendingTile.mData);
+				saveValidators(file, pendingTile.mValidators);
+			} catch (final IOException e) {
+				logger.warn("Error saving tile: " + file + " : " + e);
+				continue;
+			}
+			final long size = FilesystemCacheIndex.getFilesSize(file);
+			if (index == null) {
+				mUsedCacheSpace.addAndGet(size - previousSize);
+			}
+			mMissingTileCache.onSaved(pendingTile.mTileSourceName, pendingTile.mTileId);
+			names[count] = pendingTile.mName;
+			sizes[count] = size;
+			count++;
+		}
+
+		if (index != null && count > 0) {
+			if (count < names.length) {
+				final String[] savedNames = new String[count];
+				final long[] savedSizes = new long[count];
+				System.arraycopy(names, 0, savedNames, 0, count);
+				System.arraycopy(sizes, 0, savedSizes, 0, count);
+				index.onSaved(savedNames, savedSizes);
+			} else {
+				index.onSaved(names, sizes);
+			}
+		}
+		if (getUsedCacheSpace() > TILE_MAX_CACHE_SIZE_BYTES) {
+			scheduleTrim();
+		}
+		return count;
+	}
+
+	/**
+	 * Write the data to a temporary file and then rename it to the file, so that the file is
+	 * either the old one or the new one and never partly written.
+	 */
+	private static void writeFile(final File pFile, final byte[] pData) throws IOException {
+		final File temporaryFile = new File(pFile.getPath() + TEMPORARY_EXTENSION);
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(temporaryFile);
+			out.write(pData);
+			out.close();
+			out = null;
+			if (!temporaryFile.renameTo(pFile)) {
+				// some platforms don't replace an existing file
+				pFile.delete();
+				if (!temporaryFile.renameTo(pFile)) {
+					throw new IOException("Unable to rename " + temporaryFile);
+				}
+			}
+		} finally {
+			if (out != null) {
+				StreamUtils.closeStream(out);
+			}
+			temporaryFile.delete();
+		}
+	}
+
+	/**
+	 * Save the validators next to the tile file, or delete the old ones if there aren't any.
+	 */
+	private static void saveValidators(final File pFile, final MapTileValidators pValidators)
+			throws IOException {
+		final File validatorsFile = getValidatorsFile(pFile);
+		if (pValidators == null || pValidators.isEmpty()) {
+			validatorsFile.delete();
+			return;
+		}
+		final String validators = (pValidators.getETag() == null ? "" : pValidators.getETag())
+				+ "\n"
+				+ (pValidators.getLastModified() == null ? "" : pValidators.getLastModified())
+				+ "\n";
+		writeFile(validatorsFile, validators.getBytes("UTF-8"));
+	}
+
+	/**
+	 * @return true if the directory exists or has been created
+	 */
+	private static boolean createDirectory(final File pDirectory) {
+		final String path = pDirectory.getPath();
+		synchronized (mDirectories) {
+			if (mDirectories.containsKey(path)) {
+				return true;
+			}
+		}
+		if (!pDirectory.exists() && !createFolderAndCheckIfExists(pDirectory)) {
+			return false;
+		}
+		synchronized (mDirectories) {
+			mDirectories.put(path, Boolean.TRUE);
+		}
+		return true;
+	}
+
+	private static boolean createFolderAndCheckIfExists(final File pFile) {
 		if (pFile.mkdirs()) {
 			return true;
 		}
@@ -143,21 +522,26 @@ public class TileWriter implements IFilesystemCache, OpenStreetMapTileProviderCo
 		}
 	}
 
-	private void calculateDirectorySize(final File aDirectory) {
+	/**
+	 * @return the total length of the files in the directory and its subdirectories
+	 */
+	private static long calculateDirectorySize(final File aDirectory) {
+		long size = 0;
 		final File[] z = aDirectory.listFiles();
 		if (z != null) {
 			for (final File file : z) {
 				if (file.isFile()) {
-					mUsedCacheSpace += file.length();
+					size += file.length();
 				}
 				if (file.isDirectory()) {
-					calculateDirectorySize(file);
+					size += calculateDirectorySize(file);
 				}
 			}
 		}
+		return size;
 	}
 
-	private List<File> getDirectoryFileList(final File aDirectory) {
+	private static List<File> getDirectoryFileList(final File aDirectory) {
 		final List<File> files = new ArrayList<File>();
 
 		final File[] z = aDirectory.listFiles();
@@ -176,43 +560,144 @@ public class TileWriter implements IFilesystemCache, OpenStreetMapTileProviderCo
 	}
 
 	/**
-	 * If the cache size is greater than the max then trim it down to the trim level. This method is
-	 * synchronized so that only one thread can run it at a time.
+	 * Trim the cache on the maintenance thread, unless that is already going to happen.
 	 */
-	private void cutCurrentCache() {
-
-		synchronized (TILE_PATH_BASE) {
+	private static void scheduleTrim() {
+		if (mTrimScheduled.compareAndSet(false, true)) {
+			mMaintenanceExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					mTrimScheduled.set(false);
+					cutCurrentCache();
+				}
+			});
+		}
+	}
 
-			if (mUsedCacheSpace > TILE_TRIM_CACHE_SIZE_BYTES) {
+	/**
+	 * If the cache size is greater than the max then trim it down to the trim level. This is only
+	 * run on the maintenance thread, so only one trim runs at a time and nothing waits for it. The
+	 * tiles are deleted in batches with a pause between them so that the trim doesn't hog the
+	 * sdcard.
+	 */
+	private static void cutCurrentCache() {
+		final FilesystemCacheIndex index = FilesystemCacheIndex.getInstance();
+		if (index != null && !index.isBuilt()) {
+			// the cache is trimmed when the index has been built
+			return;
+		}
+		final long size = getUsedCacheSpace();
+		if (size <= TILE_TRIM_CACHE_SIZE_BYTES) {
+			return;
+		}
 
-				logger.info("Trimming tile cache from " + mUsedCacheSpace + " to "
-						+ TILE_TRIM_CACHE_SIZE_BYTES);
+		logger.info("Trimming tile cache from " + size + " to " + TILE_TRIM_CACHE_SIZE_BYTES);
+		final long start = System.currentTimeMillis();
+		mTrimming = true;
+		try {
+			if (index != null) {
+				cutCurrentCache(index);
+			} else {
+				cutCurrentCacheWithoutIndex();
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			mTrimming = false;
+			mTrimCount.incrementAndGet();
+			mLastTrimDuration = System.currentTimeMillis() - start;
+		}
+		logger.info("Finished trimming tile cache in " + mLastTrimDuration + " ms");
+	}
 
-				final List<File> z = getDirectoryFileList(TILE_PATH_BASE);
+	/**
+	 * Trim the cache using the index, deleting the least recently accessed tiles first.
+	 */
+	private static void cutCurrentCache(final FilesystemCacheIndex pIndex)
+			throws InterruptedException {
+		while (pIndex.getSize() > TILE_TRIM_CACHE_SIZE_BYTES) {
+			final List<String> names = pIndex.getLeastRecentlyAccessed(TILE_TRIM_BATCH_SIZE);
+			if (names.isEmpty()) {
+				break;
+			}
+			for (final String name : names) {
+				final File file = getFile(name);
+				file.delete();
+				getValidatorsFile(file).delete();
+			}
+			mTrimmedByteCount.addAndGet(pIndex.onDeleted(names));
+			mTrimmedTileCount.addAndGet(names.size());
+			Thread.sleep(TILE_TRIM_BATCH_INTERVAL_MILLISECONDS);
+		}
+	}
 
-				// order list by files day created from old to new
-				final File[] files = z.toArray(new File[0]);
-				Arrays.sort(files, new Comparator<File>() {
-					@Override
-					public int compare(final File f1, final File f2) {
-						return (int)(f1.lastModified() - f2.lastModified());
-					}
-				});
+	/**
+	 * Trim the cache by listing it, deleting the least recently modified files first because the
+	 * access times are only known by the index.
+	 */
+	private static void cutCurrentCacheWithoutIndex() throws InterruptedException {
+		final List<File> z = getDirectoryFileList(TILE_PATH_BASE);
+
+		// order list by files day modified from old to new
+		final File[] files = z.toArray(new File[z.size()]);
+		final long[] lastModified = new long[files.length];
+		for (int i = 0; i < files.length; i++) {
+			lastModified[i] = files[i].lastModified();
+		}
+		final Integer[] order = new Integer[files.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer i1, final Integer i2) {
+				final long m1 = lastModified[i1];
+				final long m2 = lastModified[i2];
+				return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+			}
+		});
 
-				for (final File file : files) {
-					if (mUsedCacheSpace <= TILE_TRIM_CACHE_SIZE_BYTES) {
-						break;
-					}
+		int batch = 0;
+		for (final Integer i : order) {
+			if (mUsedCacheSpace.get() <= TILE_TRIM_CACHE_SIZE_BYTES) {
+				break;
+			}
 
-					final long length = file.length();
-					if (file.delete()) {
-						mUsedCacheSpace -= length;
-					}
+			final File file = files[i];
+			final long length = file.length();
+			if (file.delete()) {
+				mUsedCacheSpace.addAndGet(-length);
+				mTrimmedByteCount.addAndGet(length);
+				if (file.getName().endsWith(TILE_PATH_EXTENSION)) {
+					mTrimmedTileCount.incrementAndGet();
 				}
-
-				logger.info("Finished trimming tile cache");
+			}
+			if (++batch == TILE_TRIM_BATCH_SIZE) {
+				batch = 0;
+				Thread.sleep(TILE_TRIM_BATCH_INTERVAL_MILLISECONDS);
 			}
 		}
 	}
 
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	private static class PendingTile {
+		final String mName;
+		final String mTileSourceName;
+		final long mTileId;
+		final byte[] mData;
+		/** the validators, or null if there aren't any */
+		final MapTileValidators mValidators;
+
+		PendingTile(final ITileSource pTileSource, final MapTile pTile, final byte[] pData,
+				final MapTileValidators pValidators) {
+			mName = pTileSource.getTileRelativeFilenameString(pTile);
+			mTileSourceName = pTileSource.name();
+			mTileId = pTile.getTileId();
+			mData = pData;
+			mValidators = pValidators == null || pValidators.isEmpty() ? null : pValidators;
+		}
+	}
 }
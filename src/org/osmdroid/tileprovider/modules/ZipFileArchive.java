@@ -3,16 +3,19 @@ package org.osmdroid.tileprovider.modules;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Enumeration;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
 import org.osmdroid.tileprovider.MapTile;
+import org.osmdroid.tileprovider.MapTileViewport;
+import org.osmdroid.tileprovider.constants.OpenStreetMapTileProviderConstants;
 import org.osmdroid.tileprovider.tilesource.ITileSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class ZipFileArchive implements IArchiveFile {
+public class ZipFileArchive implements ITileRangeArchiveFile {
 
 	private static final Logger logger = LoggerFactory.getLogger(ZipFileArchive.class);
 
@@ -40,6 +43,75 @@ public class ZipFileArchive implements IArchiveFile {
 		return null;
 	}
 
+	/**
+	 * Find the tiles of the tile source from the names of the entries, which are all in memory. The
+	 * rectangles are the extent of the tiles at each zoom level.
+	 */
+	@Override
+	public MapTileViewport[] getTileRanges(final ITileSource pTileSource) {
+		// find the directory of the tile source from the name of a tile
+		final String path = pTileSource.getTileRelativeFilenameString(new MapTile(0, 0, 0));
+		final int end = path.lastIndexOf("/0/0/0");
+		if (end < 0) {
+			return null;
+		}
+		final String prefix = path.substring(0, end + 1);
+
+		// left, top, right and bottom at each zoom level
+		final int[][] extents = new int[OpenStreetMapTileProviderConstants.MAXIMUM_ZOOMLEVEL + 1][];
+		int count = 0;
+		final Enumeration<? extends ZipEntry> entries = mZipFile.entries();
+		while (entries.hasMoreElements()) {
+			final String name = entries.nextElement().getName();
+			if (!name.startsWith(prefix)) {
+				continue;
+			}
+			final int zoomEnd = name.indexOf('/', prefix.length());
+			final int xEnd = zoomEnd < 0 ? -1 : name.indexOf('/', zoomEnd + 1);
+			if (xEnd < 0) {
+				continue;
+			}
+			int yEnd = xEnd + 1;
+			while (yEnd < name.length() && Character.isDigit(name.charAt(yEnd))) {
+				yEnd++;
+			}
+			final int zoom;
+			final int x;
+			final int y;
+			try {
+				zoom = Integer.parseInt(name.substring(prefix.length(), zoomEnd));
+				x = Integer.parseInt(name.substring(zoomEnd + 1, xEnd));
+				y = Integer.parseInt(name.substring(xEnd + 1, yEnd));
+			} catch (final NumberFormatException e) {
+				continue;
+			}
+			if (zoom < 0 || zoom >= extents.length) {
+				continue;
+			}
+			final int[] extent = extents[zoom];
+			if (extent == null) {
+				extents[zoom] = new int[] { x, y, x, y };
+				count++;
+			} else {
+				extent[0] = Math.min(extent[0], x);
+				extent[1] = Math.min(extent[1], y);
+				extent[2] = Math.max(extent[2], x);
+				extent[3] = Math.max(extent[3], y);
+			}
+		}
+
+		final MapTileViewport[] ranges = new MapTileViewport[count];
+		count = 0;
+		for (int zoom = 0; zoom < extents.length; zoom++) {
+			final int[] extent = extents[zoom];
+			if (extent != null) {
+				ranges[count++] = new MapTileViewport(zoom, extent[0], extent[1], extent[2],
+						extent[3]);
+			}
+		}
+		return ranges;
+	}
+
 	@Override
 	public String toString() {
 		return "ZipFileArchive [mZipFile=" + mZipFile.getName() + "]";
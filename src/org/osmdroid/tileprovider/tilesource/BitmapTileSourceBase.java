@@ -1,17 +1,21 @@
 package org.osmdroid.tileprovider.tilesource;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Random;
 
+import org.osmdroid.tileprovider.BitmapPool;
 import org.osmdroid.tileprovider.MapTile;
+import org.osmdroid.tileprovider.ReusableBitmapDrawable;
 import org.osmdroid.tileprovider.constants.OpenStreetMapTileProviderConstants;
+import org.osmdroid.tileprovider.util.StreamUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 
 public abstract class BitmapTileSourceBase implements ITileSource, OpenStreetMapTileProviderConstants {
@@ -70,9 +74,18 @@ public abstract class BitmapTileSourceBase implements ITileSource, OpenStreetMap
 		try {
 			// default implementation will load the file as a bitmap and create
 			// a BitmapDrawable from it
-			final Bitmap bitmap = BitmapFactory.decodeFile(aFilePath);
+			final BitmapFactory.Options options = new BitmapFactory.Options();
+			BitmapPool.getInstance().applyReusableOptions(options, mTileSizePixels, mTileSizePixels);
+			Bitmap bitmap;
+			try {
+				bitmap = BitmapFactory.decodeFile(aFilePath, options);
+			} catch (final IllegalArgumentException e) {
+				// the pooled bitmap couldn't be reused for this image
+				BitmapPool.getInstance().clearReusableOptions(options);
+				bitmap = BitmapFactory.decodeFile(aFilePath, options);
+			}
 			if (bitmap != null) {
-				return new BitmapDrawable(bitmap);
+				return new ReusableBitmapDrawable(bitmap);
 			} else {
 				// if we couldn't load it then it's invalid - delete it
 				try {
@@ -83,6 +96,7 @@ public abstract class BitmapTileSourceBase implements ITileSource, OpenStreetMap
 			}
 		} catch (final OutOfMemoryError e) {
 			logger.error("OutOfMemoryError loading bitmap: " + aFilePath);
+			BitmapPool.getInstance().clear();
 			System.gc();
 		}
 		return null;
@@ -107,12 +121,28 @@ public abstract class BitmapTileSourceBase implements ITileSource, OpenStreetMap
 		try {
 			// default implementation will load the file as a bitmap and create
 			// a BitmapDrawable from it
-			final Bitmap bitmap = BitmapFactory.decodeStream(aFileInputStream);
+			final InputStream in = aFileInputStream.markSupported() ? aFileInputStream
+					: new BufferedInputStream(aFileInputStream, StreamUtils.IO_BUFFER_SIZE);
+			in.mark(Integer.MAX_VALUE);
+			final BitmapFactory.Options options = new BitmapFactory.Options();
+			BitmapPool.getInstance().applyReusableOptions(options, mTileSizePixels, mTileSizePixels);
+			Bitmap bitmap;
+			try {
+				bitmap = BitmapFactory.decodeStream(in, null, options);
+			} catch (final IllegalArgumentException e) {
+				// the pooled bitmap couldn't be reused for this image
+				BitmapPool.getInstance().clearReusableOptions(options);
+				in.reset();
+				bitmap = BitmapFactory.decodeStream(in, null, options);
+			}
 			if (bitmap != null) {
-				return new BitmapDrawable(bitmap);
+				return new ReusableBitmapDrawable(bitmap);
 			}
+		} catch (final IOException e) {
+			logger.error("IOException loading bitmap", e);
 		} catch (final OutOfMemoryError e) {
 			logger.error("OutOfMemoryError loading bitmap");
+			BitmapPool.getInstance().clear();
 			System.gc();
 		}
 		return null;
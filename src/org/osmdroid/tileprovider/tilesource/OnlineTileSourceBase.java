@@ -16,10 +16,41 @@ public abstract class OnlineTileSourceBase extends BitmapTileSourceBase {
 
 	public abstract String getTileURLString(MapTile aTile);
 
+	/**
+	 * Get the url of the tile on the specified mirror. Tile sources that support mirrors should
+	 * override this. The default implementation ignores the mirror.
+	 *
+	 * @param aBaseUrl
+	 *            one of the base urls of this tile source
+	 */
+	public String getTileURLString(final MapTile aTile, final String aBaseUrl) {
+		return getTileURLString(aTile);
+	}
+
 	/**
 	 * Get the base url, which will be a random one if there are more than one.
 	 */
 	protected String getBaseUrl() {
 		return mBaseUrls[random.nextInt(mBaseUrls.length)];
 	}
+
+	/**
+	 * Get the base url for the tile. If there are more than one then the same tile always gets the
+	 * same one, so that caches between us and the servers are used, and the tiles are spread
+	 * evenly over the base urls.
+	 */
+	protected String getBaseUrl(final MapTile aTile) {
+		if (mBaseUrls.length == 1) {
+			return mBaseUrls[0];
+		}
+		return mBaseUrls[(aTile.hashCode() & Integer.MAX_VALUE) % mBaseUrls.length];
+	}
+
+	public int getBaseUrlCount() {
+		return mBaseUrls.length;
+	}
+
+	public String getBaseUrl(final int aIndex) {
+		return mBaseUrls[aIndex];
+	}
 }
@@ -13,7 +13,12 @@ public abstract class XYTileSource extends OnlineTileSourceBase {
 
 	@Override
 	public String getTileURLString(final MapTile aTile) {
-		return getBaseUrl() + aTile.getZoomLevel() + "/" + aTile.getX() + "/" + aTile.getY()
+		return getTileURLString(aTile, getBaseUrl(aTile));
+	}
+
+	@Override
+	public String getTileURLString(final MapTile aTile, final String aBaseUrl) {
+		return aBaseUrl + aTile.getZoomLevel() + "/" + aTile.getX() + "/" + aTile.getY()
 				+ mImageFilenameEnding;
 	}
 }
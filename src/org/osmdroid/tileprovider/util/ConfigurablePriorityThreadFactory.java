@@ -0,0 +1,28 @@
+package org.osmdroid.tileprovider.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads with the specified priority, named after the specified name and a
+ * sequence number.
+ */
+public class ConfigurablePriorityThreadFactory implements ThreadFactory {
+
+	private final int mPriority;
+	private final String mName;
+	private final AtomicInteger mThreadNumber = new AtomicInteger(1);
+
+	public ConfigurablePriorityThreadFactory(final int pPriority, final String pName) {
+		mPriority = pPriority;
+		mName = pName;
+	}
+
+	@Override
+	public Thread newThread(final Runnable pRunnable) {
+		final Thread thread = new Thread(pRunnable, mName + "-" + mThreadNumber.getAndIncrement());
+		thread.setPriority(mPriority);
+		thread.setDaemon(true);
+		return thread;
+	}
+}
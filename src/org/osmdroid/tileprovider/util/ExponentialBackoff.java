@@ -0,0 +1,34 @@
+package org.osmdroid.tileprovider.util;
+
+import java.util.Random;
+
+/**
+ * Calculates randomised exponential backoff delays, so that clients that failed at the same time
+ * don't all try again at the same time.
+ */
+public class ExponentialBackoff {
+
+	private static final Random RANDOM = new Random();
+
+	/**
+	 * Get the delay before the specified retry. The delay doubles with each retry, up to the
+	 * maximum, and is then randomised to between half and one and a half times that.
+	 *
+	 * @param pDelay
+	 *            the delay before the first retry
+	 * @param pMaximumDelay
+	 *            the maximum delay before randomisation
+	 * @param pRetry
+	 *            the number of the retry, starting at zero
+	 * @return the delay
+	 */
+	public static long getDelay(final long pDelay, final long pMaximumDelay, final int pRetry) {
+		final long delay = pDelay << Math.min(pRetry, 30);
+		final long capped = delay <= 0 || delay > pMaximumDelay ? pMaximumDelay : delay;
+		final double jitter;
+		synchronized (RANDOM) {
+			jitter = 0.5 + RANDOM.nextDouble();
+		}
+		return (long) (capped * jitter);
+	}
+}
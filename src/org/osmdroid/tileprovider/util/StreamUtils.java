@@ -1,6 +1,7 @@
 // Created by plusminus on 19:14:08 - 20.10.2008
 package org.osmdroid.tileprovider.util;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
@@ -69,6 +70,22 @@ public class StreamUtils {
 		return length;
 	}
 
+	/**
+	 * Read the remaining content of the input stream into a byte array.
+	 * 
+	 * @param in
+	 *            The input stream to read from.
+	 * @return the content
+	 * 
+	 * @throws IOException
+	 *             If any error occurs during the read.
+	 */
+	public static byte[] toByteArray(final InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(IO_BUFFER_SIZE);
+		copy(in, out);
+		return out.toByteArray();
+	}
+
 	/**
 	 * Closes the specified stream.
 	 * 
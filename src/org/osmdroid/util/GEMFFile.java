@@ -1,18 +1,27 @@
 package org.osmdroid.util;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 
+import org.osmdroid.tileprovider.MapTileViewport;
+
 /**
  * GEMF File handler class.
  *
@@ -28,14 +37,13 @@ public class GEMFFile {
 	// Constants
 	// ===========================================================
 
-	private static final long FILE_SIZE_LIMIT = 1 * 1024 * 1024 * 1024; // 1GB
-	private static final int FILE_COPY_BUFFER_SIZE = 1024;
+	static final long FILE_SIZE_LIMIT = 1 * 1024 * 1024 * 1024; // 1GB
 
-	private static final int VERSION = 4;
-	private static final int TILE_SIZE = 256;
+	static final int VERSION = 4;
+	static final int TILE_SIZE = 256;
 
-	private static final int U32_SIZE = 4;
-	private static final int U64_SIZE = 8;
+	static final int U32_SIZE = 4;
+	static final int U64_SIZE = 8;
 
 
 	// ===========================================================
@@ -45,21 +53,33 @@ public class GEMFFile {
 	// Path to first GEMF file (additional files as <basename>-1, <basename>-2, ...
 	private String mLocation;
 
-	// All GEMF file parts for this archive
-	private List<RandomAccessFile> mFiles = new ArrayList<RandomAccessFile>();
-
-	// Tile ranges represented within this archive
-	private List<GEMFRange> mRangeData = new ArrayList<GEMFRange>();
+	// All GEMF file parts for this archive, read with positional reads so that several threads can
+	// read tiles at once. A channel is reopened if an interrupted thread closed it.
+	private File[] mFiles;
+	private FileChannel[] mChannels;
 
 	// File sizes for offset calculation
-	private List<Long> mFileSizes = new ArrayList<Long>();
+	private long[] mFileSizes;
+
+	// Tile ranges represented within this archive, by range index
+	private int mRangeCount;
+	private int[] mRangeZoom;
+	private int[] mRangeXMin;
+	private int[] mRangeXMax;
+	private int[] mRangeYMin;
+	private int[] mRangeYMax;
+	private int[] mRangeSource;
+	private long[] mRangeOffset;
+
+	// Indexes of the ranges at each zoom level
+	private int[][] mZoomRanges;
 
 	// List of tile sources within this archive
 	private HashMap<Integer, String> mSources = new HashMap<Integer, String>();
 
 	// Fields to restrict to a single source for reading
-	private boolean mSourceLimited = false;
-	private int mCurrentSource = 0;
+	private volatile boolean mSourceLimited = false;
+	private volatile int mCurrentSource = 0;
 
 
 	// ===========================================================
@@ -101,284 +121,24 @@ public class GEMFFile {
 	 * @param pSourceFolders
 	 * 		Each specified folder will be imported into the GEMF archive as a seperate
 	 * 		source. The name of the folder will be the name of the source in the archive.
+	 *
+	 * @see GEMFWriter
 	 */
-	@SuppressWarnings("boxing")
 	public GEMFFile (final String pLocation, final List<File> pSourceFolders)
 		throws FileNotFoundException, IOException {
-		/*
-		 * 1. For each source folder
-		 *   1. Create array of zoom levels, X rows, Y rows
-		 * 2. Build index data structure index[source][zoom][range]
-		 *   1. For each S-Z-X find list of Ys values
-		 *   2. For each S-Z-X-Ys set, find complete X ranges
-		 *   3. For each S-Z-Xr-Ys set, find complete Y ranges, create Range record
-		 * 3. Write out index
-		 *   1. Header
-		 *   2. Sources
-		 *   3. For each Range
-		 *     1. Write Range record
-		 * 4. For each Range record
-		 *   1. For each Range entry
-		 *     1. If over file size limit, start new data file
-		 *     2. Write tile data
-		 */
 
 		this.mLocation = pLocation;
 
-		// Create in-memory array of sources, X and Y values.
-		HashMap<String, HashMap<Integer, HashMap<Integer, HashMap<Integer, File>>>> dirIndex =
-			new HashMap<String, HashMap<Integer, HashMap<Integer, HashMap<Integer, File>>>>();
-
-		for (File sourceDir: pSourceFolders) {
-
-			HashMap<Integer, HashMap<Integer, HashMap<Integer, File>>> zList =
-				new HashMap<Integer, HashMap<Integer, HashMap<Integer, File>>>();
-
-			for (File zDir: sourceDir.listFiles()) {
-				// Make sure the directory name is just a number
-				try {
-					Integer.parseInt(zDir.getName());
-				} catch (NumberFormatException e) {
-					continue;
-				}
-
-				HashMap<Integer, HashMap<Integer, File>> xList =
-					new HashMap<Integer, HashMap<Integer, File>>();
-
-				for (File xDir: zDir.listFiles()) {
-
-					// Make sure the directory name is just a number
-					try {
-						Integer.parseInt(xDir.getName());
-					} catch (NumberFormatException e) {
-						continue;
-					}
-
-					HashMap<Integer, File> yList = new HashMap<Integer, File>();
-					for (File yFile: xDir.listFiles()) {
-
-						try {
-							Integer.parseInt(yFile.getName().substring(
-									0, yFile.getName().indexOf('.')));
-						} catch (NumberFormatException e) {
-							continue;
-						}
-
-						yList.put(Integer.parseInt(yFile.getName().substring(
-								0, yFile.getName().indexOf('.'))), yFile);
-					}
-
-					xList.put(new Integer(xDir.getName()), yList);
-				}
-
-				zList.put(Integer.parseInt(zDir.getName()), xList);
+		final GEMFWriter writer = new GEMFWriter(pLocation);
+		try {
+			for (File sourceDir: pSourceFolders) {
+				writer.addDirectory(sourceDir, Runtime.getRuntime().availableProcessors());
 			}
-
-			dirIndex.put(sourceDir.getName(), zList);
-		}
-
-		// Create a source index list
-		HashMap<String, Integer> sourceIndex = new HashMap<String, Integer>();
-		HashMap<Integer, String> indexSource = new HashMap<Integer, String>();
-		int si = 0;
-		for (String source: dirIndex.keySet()) {
-			sourceIndex.put(source, new Integer(si));
-			indexSource.put(new Integer(si), source);
-			++si;
+			writer.finish();
+		} finally {
+			writer.abort();
 		}
 
-		// Create the range objects
-		List<GEMFRange> ranges = new ArrayList<GEMFRange>();
-
-		for (String source: dirIndex.keySet()) {
-			for (Integer zoom: dirIndex.get(source).keySet()) {
-
-				// Get non-contiguous Y sets for each Z/X
-				HashMap<List<Integer>, List<Integer>> ySets =
-					new HashMap<List<Integer>, List<Integer>>();
-
-				for (Integer x: dirIndex.get(source).get(zoom).keySet()) {
-					List<Integer> ySet = new ArrayList<Integer>();
-					for (Integer y: dirIndex.get(source).get(zoom).get(x).keySet()) {
-						ySet.add(y);
-					}
-
-					if (! ySets.containsKey(ySet)) {
-						ySets.put(ySet, new ArrayList<Integer>());
-					}
-
-					ySets.get(ySet).add(x);
-				}
-
-				// For each Y set find contiguous X sets
-				HashMap<List<Integer>, List<Integer>> xSets =
-					new HashMap<List<Integer>, List<Integer>>();
-
-				for (List<Integer> ySet: ySets.keySet()) {
-					TreeSet<Integer> xList = new TreeSet<Integer>(ySets.get(ySet));
-
-					List<Integer> xSet = new ArrayList<Integer>();
-					for(int i = xList.first(); i < xList.last() + 1; ++i) {
-						if (xList.contains(new Integer(i))) {
-							xSet.add(new Integer(i));
-						} else {
-							if (xSet.size() > 0) {
-								xSets.put(ySet, xSet);
-								xSet = new ArrayList<Integer>();
-							}
-						}
-					}
-
-					xSets.put(ySet, xSet);
-				}
-
-				// For each contiguous X set, find contiguous Y sets and create GEMFRange object
-				for (List<Integer> xSet: xSets.keySet()) {
-					TreeSet<Integer> yList = new TreeSet<Integer>(xSet);
-					TreeSet<Integer> xList = new TreeSet<Integer>(ySets.get(xSet));
-
-					GEMFRange range = new GEMFFile.GEMFRange();
-					range.zoom = zoom;
-					range.sourceIndex = sourceIndex.get(source);
-					range.xMin = xList.first();
-					range.xMax = xList.last();
-
-					for(int i = yList.first(); i < yList.last() + 1; ++i) {
-						if (yList.contains(new Integer(i))) {
-							if (range.yMin == null) range.yMin = i;
-							range.yMax = i;
-						} else {
-							ranges.add(range);
-
-							range = new GEMFFile.GEMFRange();
-							range.zoom = zoom;
-							range.sourceIndex = sourceIndex.get(source);
-							range.xMin = xList.first();
-							range.xMax = xList.last();
-						}
-					}
-
-					ranges.add(range);
-				}
-			}
-		}
-
-
-		// Calculate size of header for computation of data offsets
-		int source_list_size = 0;
-		for (String source: sourceIndex.keySet())
-			source_list_size += (U32_SIZE + U32_SIZE + source.length());
-
-		long offset =
-			U32_SIZE + // GEMF Version
-			U32_SIZE + // Tile size
-			U32_SIZE + // Number of sources
-			source_list_size +
-			ranges.size() * ((U32_SIZE * 6) + U64_SIZE) +
-			U32_SIZE; // Number of ranges
-
-		// Calculate offset for each range in the data set
-		for (GEMFRange range: ranges) {
-			range.offset = offset;
-
-			for (int x = range.xMin; x < range.xMax + 1; ++x) {
-				for (int y = range.yMin; y < range.yMax + 1; ++y) {
-					offset += (U32_SIZE + U64_SIZE);
-				}
-			}
-		}
-
-		long headerSize = offset;
-
-		RandomAccessFile gemfFile = new RandomAccessFile(pLocation, "rw");
-
-		// Write version header
-		gemfFile.writeInt(VERSION);
-
-		// Write file size header
-		gemfFile.writeInt(TILE_SIZE);
-
-		// Write number of sources
-		gemfFile.writeInt(sourceIndex.size());
-
-		// Write source list
-		for (String source: sourceIndex.keySet()) {
-			gemfFile.writeInt(sourceIndex.get(source));
-			gemfFile.writeInt(source.length());
-			gemfFile.write(source.getBytes());
-		}
-
-		// Write number of ranges
-		gemfFile.writeInt(ranges.size());
-
-		// Write range objects
-		for (GEMFRange range: ranges) {
-			gemfFile.writeInt(range.zoom);
-			gemfFile.writeInt(range.xMin);
-			gemfFile.writeInt(range.xMax);
-			gemfFile.writeInt(range.yMin);
-			gemfFile.writeInt(range.yMax);
-			gemfFile.writeInt(range.sourceIndex);
-			gemfFile.writeLong(range.offset);
-		}
-
-		// Write file offset list
-		for (GEMFRange range: ranges) {
-			for (int x = range.xMin; x < range.xMax + 1; ++x) {
-				for (int y = range.yMin; y < range.yMax + 1; ++y) {
-					gemfFile.writeLong(offset);
-					long fileSize = dirIndex.get(
-							indexSource.get(
-									range.sourceIndex)).get(range.zoom).get(x).get(y).length();
-					gemfFile.writeInt((int)fileSize);
-					offset += fileSize;
-				}
-			}
-		}
-
-		//
-		// Write tiles
-		//
-
-		byte[] buf = new byte[FILE_COPY_BUFFER_SIZE];
-
-		long currentOffset = headerSize;
-		int fileIndex = 0;
-
-		for (GEMFRange range: ranges) {
-			for (int x = range.xMin; x < range.xMax + 1; ++x) {
-				for (int y = range.yMin; y < range.yMax + 1; ++y) {
-
-					long fileSize = dirIndex.get(
-							indexSource.get(range.sourceIndex)).get(range.zoom).get(x).get(y).length();
-
-					if (currentOffset + fileSize > FILE_SIZE_LIMIT) {
-						gemfFile.close();
-						++fileIndex;
-						gemfFile = new RandomAccessFile(pLocation + "-" + fileIndex, "rw");
-						currentOffset = 0;
-					} else {
-						currentOffset += fileSize;
-					}
-
-					FileInputStream tile = new FileInputStream(
-							dirIndex.get(
-									indexSource.get(
-											range.sourceIndex)).get(range.zoom).get(x).get(y));
-
-					int read = tile.read(buf, 0, FILE_COPY_BUFFER_SIZE);
-					while (read != -1) {
-						gemfFile.write(buf, 0, read);
-						read = tile.read(buf, 0, FILE_COPY_BUFFER_SIZE);
-					}
-
-					tile.close();
-				}
-			}
-		}
-
-		gemfFile.close();
-
 		// Complete construction of GEMFFile object
 		openFiles();
 		readHeader();
@@ -391,87 +151,162 @@ public class GEMFFile {
 
 
 	/*
-	 * Close open GEMF file handles.
+	 * Close open GEMF file handles. Closing again does nothing.
 	 */
 	public void close() throws IOException {
-		for (RandomAccessFile file: mFiles) {
-			file.close();
+		synchronized (mChannels) {
+			for (int i = 0; i < mChannels.length; i++) {
+				final FileChannel channel = mChannels[i];
+				if (channel != null) {
+					mChannels[i] = null;
+					channel.close();
+				}
+			}
 		}
 	}
 
 
 	/*
-	 * Find all files composing this GEMF archive, open them as RandomAccessFile
-	 * and add to the mFiles list.
+	 * Find all files composing this GEMF archive and open them.
 	 */
 	private void openFiles() throws FileNotFoundException {
 		// Populate the mFiles array
-
-		File base = new File(mLocation);
-		mFiles.add(new RandomAccessFile(base, "r"));
+		final List<File> files = new ArrayList<File>();
+		files.add(new File(mLocation));
 
 		int i = 0;
 		for(;;) {
 			i = i + 1;
 			File nextFile = new File(mLocation + "-" + i);
 			if (nextFile.exists()) {
-				mFiles.add(new RandomAccessFile(nextFile, "r"));
+				files.add(nextFile);
 			} else {
 				break;
 			}
 		}
+
+		mFiles = files.toArray(new File[files.size()]);
+		mChannels = new FileChannel[mFiles.length];
+		mFileSizes = new long[mFiles.length];
+		for (i = 0; i < mFiles.length; i++) {
+			mChannels[i] = new RandomAccessFile(mFiles[i], "r").getChannel();
+			mFileSizes[i] = mFiles[i].length();
+		}
 	}
 
 
 	/*
 	 * Read header of archive, cache Ranges.
 	 */
-	@SuppressWarnings("boxing")
 	private void readHeader() throws IOException {
-		final RandomAccessFile baseFile = mFiles.get(0);
+		final DataInputStream baseFile = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(mFiles[0]), 8192));
+		try {
+			// Version
+			int version = baseFile.readInt();
+			if (version != VERSION) {
+				throw new IOException("Bad file version: " + version);
+			}
 
-		// Get file sizes
-		for (RandomAccessFile file : mFiles) {
-			mFileSizes.add(file.length());
-		}
+			// Tile Size
+			int tile_size = baseFile.readInt();
+			if (tile_size != TILE_SIZE) {
+				throw new IOException("Bad tile size: " + tile_size);
+			}
 
-		// Version
-		int version = baseFile.readInt();
-		if (version != VERSION) {
-			throw new IOException("Bad file version: " + version);
-		}
+			// Read Source List
+			int sourceCount = baseFile.readInt();
 
-		// Tile Size
-		int tile_size = baseFile.readInt();
-		if (tile_size != TILE_SIZE) {
-			throw new IOException("Bad tile size: " + tile_size);
-		}
+			for (int i=0;i<sourceCount;i++) {
+				int sourceIndex = baseFile.readInt();
+				int sourceNameLength = baseFile.readInt();
+				byte[] nameData = new byte[sourceNameLength];
+				baseFile.readFully(nameData);
 
-		// Read Source List
-		int sourceCount = baseFile.readInt();
+				String sourceName = new String(nameData);
+				mSources.put(Integer.valueOf(sourceIndex), sourceName);
+			}
 
-		for (int i=0;i<sourceCount;i++) {
-			int sourceIndex = baseFile.readInt();
-			int sourceNameLength = baseFile.readInt();
-			byte[] nameData = new byte[sourceNameLength];
-			baseFile.read(nameData, 0, sourceNameLength);
+			// Read Ranges
+			mRangeCount = baseFile.readInt();
+			mRangeZoom = new int[mRangeCount];
+			mRangeXMin = new int[mRangeCount];
+			mRangeXMax = new int[mRangeCount];
+			mRangeYMin = new int[mRangeCount];
+			mRangeYMax = new int[mRangeCount];
+			mRangeSource = new int[mRangeCount];
+			mRangeOffset = new long[mRangeCount];
+			int maxZoom = -1;
+			for (int i=0;i<mRangeCount;i++) {
+				mRangeZoom[i] = baseFile.readInt();
+				mRangeXMin[i] = baseFile.readInt();
+				mRangeXMax[i] = baseFile.readInt();
+				mRangeYMin[i] = baseFile.readInt();
+				mRangeYMax[i] = baseFile.readInt();
+				mRangeSource[i] = baseFile.readInt();
+				mRangeOffset[i] = baseFile.readLong();
+				if (mRangeZoom[i] < 0) {
+					throw new IOException("Bad zoom level: " + mRangeZoom[i]);
+				}
+				maxZoom = Math.max(maxZoom, mRangeZoom[i]);
+			}
 
-			String sourceName = new String(nameData);
-			mSources.put(new Integer(sourceIndex), sourceName);
+			// Index the ranges by zoom level, in the order of the file
+			final int[] counts = new int[maxZoom + 1];
+			for (int i=0;i<mRangeCount;i++) {
+				counts[mRangeZoom[i]]++;
+			}
+			mZoomRanges = new int[maxZoom + 1][];
+			for (int zoom = 0; zoom <= maxZoom; zoom++) {
+				mZoomRanges[zoom] = new int[counts[zoom]];
+				counts[zoom] = 0;
+			}
+			for (int i=0;i<mRangeCount;i++) {
+				mZoomRanges[mRangeZoom[i]][counts[mRangeZoom[i]]++] = i;
+			}
+		} finally {
+			baseFile.close();
+		}
+	}
+
+
+	/*
+	 * Read from a GEMF part file at the position until the buffer is full.
+	 */
+	private void read(final int pFile, final ByteBuffer pBuffer, final long pPosition)
+			throws IOException {
+		boolean reopened = false;
+		while (pBuffer.hasRemaining()) {
+			FileChannel channel;
+			synchronized (mChannels) {
+				channel = mChannels[pFile];
+			}
+			if (channel == null) {
+				throw new ClosedChannelException();
+			}
+			try {
+				if (channel.read(pBuffer, pPosition + pBuffer.position()) < 0) {
+					throw new EOFException();
+				}
+			} catch (final ClosedByInterruptException e) {
+				throw e;
+			} catch (final ClosedChannelException e) {
+				// another thread was interrupted while reading
+				if (reopened) {
+					throw e;
+				}
+				reopen(pFile, channel);
+				reopened = true;
+			}
 		}
+	}
+
 
-		// Read Ranges
-		int num_ranges = baseFile.readInt();
-		for (int i=0;i<num_ranges;i++) {
-			GEMFRange rs = new GEMFRange();
-			rs.zoom = baseFile.readInt();
-			rs.xMin = baseFile.readInt();
-			rs.xMax = baseFile.readInt();
-			rs.yMin = baseFile.readInt();
-			rs.yMax = baseFile.readInt();
-			rs.sourceIndex = baseFile.readInt();
-			rs.offset = baseFile.readLong();
-			mRangeData.add(rs);
+	private void reopen(final int pFile, final FileChannel pClosed) throws IOException {
+		synchronized (mChannels) {
+			if (mChannels[pFile] == pClosed && pClosed != null) {
+				mChannels[pFile] = new RandomAccessFile(mFiles[pFile], "r").getChannel();
+			}
 		}
 	}
 
@@ -519,8 +354,10 @@ public class GEMFFile {
 	public Set<Integer> getZoomLevels() {
 		Set<Integer> zoomLevels = new TreeSet<Integer>();
 
-		for (GEMFRange rs: mRangeData) {
-			zoomLevels.add(rs.zoom);
+		for (int zoom = 0; zoom < mZoomRanges.length; zoom++) {
+			if (mZoomRanges[zoom].length > 0) {
+				zoomLevels.add(Integer.valueOf(zoom));
+			}
 		}
 
 		return zoomLevels;
@@ -528,106 +365,92 @@ public class GEMFFile {
 
 
 	/*
-	 * Get an InputStream for the tile data specified by the Z/X/Y coordinates.
+	 * Return the ranges of tiles within this archive, only those of the selected source if a
+	 * single source has been selected.
+	 */
+	public List<MapTileViewport> getTileRanges() {
+		final List<MapTileViewport> ranges = new ArrayList<MapTileViewport>();
+		for (int i = 0; i < mRangeCount; i++) {
+			if (( ! mSourceLimited) || (mRangeSource[i] == mCurrentSource)) {
+				ranges.add(new MapTileViewport(mRangeZoom[i], mRangeXMin[i], mRangeYMin[i],
+						mRangeXMax[i], mRangeYMax[i]));
+			}
+		}
+		return ranges;
+	}
+
+
+	/*
+	 * Get an InputStream for the tile data specified by the Z/X/Y coordinates. This may be called
+	 * by several threads at once.
 	 *
 	 * @return InputStream of tile data, or null if not found.
 	 */
-	@SuppressWarnings("boxing")
 	public InputStream getInputStream(int pX, int pY, int pZ) {
-		GEMFRange range = null;
-
-		for (GEMFRange rs: mRangeData)
-		{
-			if ((pZ == rs.zoom)
-					&& (pX >= rs.xMin)
-					&& (pX <= rs.xMax)
-					&& (pY >= rs.yMin)
-					&& (pY <= rs.yMax)
-					&& (( ! mSourceLimited) || (rs.sourceIndex == mCurrentSource))) {
+		if (pZ < 0 || pZ >= mZoomRanges.length) {
+			return null;
+		}
+
+		int range = -1;
+		final boolean sourceLimited = mSourceLimited;
+		final int currentSource = mCurrentSource;
+		for (final int rs : mZoomRanges[pZ]) {
+			if ((pX >= mRangeXMin[rs])
+					&& (pX <= mRangeXMax[rs])
+					&& (pY >= mRangeYMin[rs])
+					&& (pY <= mRangeYMax[rs])
+					&& (( ! sourceLimited) || (mRangeSource[rs] == currentSource))) {
 				range = rs;
 				break;
 			}
 		}
 
-		if (range == null)	{
+		if (range < 0)	{
 			return null;
 		}
 
-		byte[] dataBuf;
-		long dataOffset;
-		int dataLength;
+		final ByteBuffer dataBuf;
 
 		try	{
 
 			// Determine offset to requested tile record in the header
-			int numY = range.yMax + 1 - range.yMin;
-			int xIndex = pX - range.xMin;
-			int yIndex = pY - range.yMin;
+			long numY = mRangeYMax[range] + 1 - mRangeYMin[range];
+			long xIndex = pX - mRangeXMin[range];
+			long yIndex = pY - mRangeYMin[range];
 			long offset = (xIndex * numY) + yIndex;
 			offset *= (U32_SIZE + U64_SIZE);
-			offset += range.offset;
+			offset += mRangeOffset[range];
 
 
 			// Read tile record from header, get offset and size of data record
-			RandomAccessFile baseFile = mFiles.get(0);
-			baseFile.seek(offset);
-			dataOffset = baseFile.readLong();
-			dataLength = baseFile.readInt();
+			final ByteBuffer record = ByteBuffer.allocate(U64_SIZE + U32_SIZE);
+			read(0, record, offset);
+			long dataOffset = record.getLong(0);
+			final int dataLength = record.getInt(U64_SIZE);
+			if (dataLength <= 0) {
+				return null;
+			}
 
 
-			// Seek to correct data file and offset.
-			RandomAccessFile pDataFile = mFiles.get(0);
+			// Find the data file holding the offset
 			int index = 0;
-			if (dataOffset > mFileSizes.get(0))	{
-				int fileListCount = mFileSizes.size();
+			while ((index < (mFileSizes.length - 1)) &&
+					(dataOffset >= mFileSizes[index])) {
 
-				while ((index < (fileListCount - 1)) &&
-						(dataOffset > mFileSizes.get(index))) {
-
-					dataOffset -= mFileSizes.get(index);
-					index += 1;
-				}
-
-				pDataFile = mFiles.get(index);
+				dataOffset -= mFileSizes[index];
+				index += 1;
 			}
 
 
 			// Read data block into a byte array
-			dataBuf = new byte[dataLength];
-			pDataFile.seek(dataOffset);
-
-			int read = pDataFile.read(dataBuf, 0, dataLength);
-			while (read < dataLength) {
-				read += pDataFile.read(dataBuf, read, dataLength);
-			}
+			dataBuf = ByteBuffer.allocate(dataLength);
+			read(index, dataBuf, dataOffset);
 
 		} catch (java.io.IOException e) {
 			return null;
 		}
 
 		// Return byte array as InputStream as required by tile provider framework
-		return new ByteArrayInputStream(dataBuf, 0, dataLength);
-	}
-
-	// ===========================================================
-	// Inner and Anonymous Classes
-	// ===========================================================
-
-	// Class to represent a range of stored tiles within the archive.
-	private class GEMFRange	{
-		Integer zoom;
-		Integer xMin;
-		Integer xMax;
-		Integer yMin;
-		Integer yMax;
-		Integer sourceIndex;
-		Long offset;
-
-		@Override
-        public String toString() {
-			return String.format(
-					"GEMF Range: source=%d, zoom=%d, x=%d-%d, y=%d-%d, offset=0x%08X",
-					sourceIndex, zoom, xMin, xMax, yMin, yMax, offset);
-		}
+		return new ByteArrayInputStream(dataBuf.array(), 0, dataBuf.capacity());
 	}
 }
@@ -0,0 +1,562 @@
+package org.osmdroid.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.osmdroid.tileprovider.util.StreamUtils;
+
+/**
+ * Writes a GEMF archive from tiles given in any order, so that an archive can be built without
+ * holding the tree of tiles in memory.
+ *
+ * The tiles are appended to a temporary file as they're added, and only their coordinates and
+ * locations are kept, in primitive arrays. {@link #finish()} then sorts them, finds the ranges and
+ * writes the header and the tiles, starting another part file when a part would exceed
+ * {@link GEMFFile#FILE_SIZE_LIMIT}. Tiles may be added by several threads at once, and
+ * {@link #addDirectory(File, int)} reads a directory of tiles with several threads.
+ *
+ * Reference: https://sites.google.com/site/abudden/android-map-store
+ */
+public class GEMFWriter {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	// a tile is sorted by source, zoom level, x and y, packed into a long
+	private static final int KEY_COORDINATE_BITS = 23;
+	private static final int KEY_ZOOM_BITS = 5;
+	private static final long KEY_COORDINATE_MASK = (1L << KEY_COORDINATE_BITS) - 1;
+	private static final long KEY_ZOOM_MASK = (1L << KEY_ZOOM_BITS) - 1;
+	private static final int KEY_MAXIMUM_SOURCES = 1 << (63 - KEY_ZOOM_BITS - 2
+			* KEY_COORDINATE_BITS);
+
+	// the size of a range and of a tile record in the header
+	private static final int RANGE_SIZE = GEMFFile.U32_SIZE * 6 + GEMFFile.U64_SIZE;
+	private static final int TILE_RECORD_SIZE = GEMFFile.U64_SIZE + GEMFFile.U32_SIZE;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final String mLocation;
+	private final long mPartSizeLimit;
+	private final File mTemporaryFile;
+	private OutputStream mTemporaryOutput;
+	private long mTemporarySize;
+
+	private final List<String> mSources = new ArrayList<String>();
+
+	// the tiles in the order they were added
+	private int mTileCount;
+	private long[] mKeys = new long[1024];
+	private long[] mOffsets = new long[1024];
+	private int[] mLengths = new int[1024];
+
+	private boolean mFinished;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	/**
+	 * @param pLocation
+	 *            the path of the first part of the archive. Further parts are written to the same
+	 *            path with "-1", "-2" and so on appended.
+	 */
+	public GEMFWriter(final String pLocation) throws IOException {
+		this(pLocation, GEMFFile.FILE_SIZE_LIMIT);
+	}
+
+	/**
+	 * @param pPartSizeLimit
+	 *            the size a part of the archive may not exceed, unless it holds a single tile
+	 */
+	GEMFWriter(final String pLocation, final long pPartSizeLimit) throws IOException {
+		mLocation = pLocation;
+		mPartSizeLimit = pPartSizeLimit;
+		final File location = new File(pLocation).getAbsoluteFile();
+		mTemporaryFile = File.createTempFile("gemf", ".tmp", location.getParentFile());
+		mTemporaryOutput = new BufferedOutputStream(new FileOutputStream(mTemporaryFile),
+				BUFFER_SIZE);
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return the number of tiles added so far
+	 */
+	public synchronized int getTileCount() {
+		return mTileCount;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Add a source to the archive.
+	 *
+	 * @return the index of the source, for {@link #addTile(int, int, int, int, byte[])}
+	 */
+	public synchronized int addSource(final String pName) {
+		if (mSources.size() == KEY_MAXIMUM_SOURCES) {
+			throw new IllegalStateException("Too many sources");
+		}
+		mSources.add(pName);
+		return mSources.size() - 1;
+	}
+
+	/**
+	 * Add a tile. If the same tile is added more than once then the last one is kept.
+	 */
+	public synchronized void addTile(final int pSource, final int pZoom, final int pX,
+			final int pY, final byte[] pData) throws IOException {
+		if (mFinished) {
+			throw new IllegalStateException("The archive has been finished");
+		}
+		if (pSource < 0 || pSource >= mSources.size()) {
+			throw new IllegalArgumentException("Unknown source: " + pSource);
+		}
+		if (pZoom < 0 || pZoom > KEY_COORDINATE_BITS || pX < 0 || pY < 0 || pX >= 1 << pZoom
+				|| pY >= 1 << pZoom) {
+			throw new IllegalArgumentException("Bad tile: " + pZoom + "/" + pX + "/" + pY);
+		}
+		if (pData.length == 0) {
+			return;
+		}
+
+		mTemporaryOutput.write(pData);
+
+		if (mTileCount == mKeys.length) {
+			final int capacity = mTileCount * 2;
+			mKeys = copyOf(mKeys, capacity);
+			mOffsets = copyOf(mOffsets, capacity);
+			final int[] lengths = new int[capacity];
+			System.arraycopy(mLengths, 0, lengths, 0, mTileCount);
+			mLengths = lengths;
+		}
+		mKeys[mTileCount] = getKey(pSource, pZoom, pX, pY);
+		mOffsets[mTileCount] = mTemporarySize;
+		mLengths[mTileCount] = pData.length;
+		mTileCount++;
+		mTemporarySize += pData.length;
+	}
+
+	/**
+	 * Add a directory of tiles as a source named after the directory. The tiles are in
+	 * sub-directories by zoom level and x, and named after y, like the file system cache. The
+	 * tiles are read by several threads.
+	 */
+	public void addDirectory(final File pDirectory, final int pThreads) throws IOException {
+		final int source = addSource(pDirectory.getName());
+		final ExecutorService executor = Executors.newFixedThreadPool(pThreads);
+		try {
+			final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (final File zoomDirectory : listFiles(pDirectory)) {
+				final int zoom = parseInt(zoomDirectory.getName());
+				if (zoom < 0 || !zoomDirectory.isDirectory()) {
+					continue;
+				}
+				for (final File xDirectory : listFiles(zoomDirectory)) {
+					final int x = parseInt(xDirectory.getName());
+					if (x < 0 || !xDirectory.isDirectory()) {
+						continue;
+					}
+					futures.add(executor.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws IOException {
+							addColumn(source, zoom, x, xDirectory);
+							return null;
+						}
+					}));
+				}
+			}
+			for (final Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause().toString());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void addColumn(final int pSource, final int pZoom, final int pX,
+			final File pDirectory) throws IOException {
+		for (final File file : listFiles(pDirectory)) {
+			final String name = file.getName();
+			final int dot = name.indexOf('.');
+			final int y = parseInt(dot < 0 ? name : name.substring(0, dot));
+			if (y < 0 || !file.isFile()) {
+				continue;
+			}
+			final InputStream in = new FileInputStream(file);
+			try {
+				addTile(pSource, pZoom, pX, y, StreamUtils.toByteArray(in));
+			} finally {
+				StreamUtils.closeStream(in);
+			}
+		}
+	}
+
+	/**
+	 * Write the archive and delete the temporary file.
+	 */
+	public synchronized void finish() throws IOException {
+		if (mFinished) {
+			throw new IllegalStateException("The archive has been finished");
+		}
+		mFinished = true;
+		try {
+			mTemporaryOutput.close();
+			mTemporaryOutput = null;
+			write();
+		} finally {
+			abort();
+		}
+	}
+
+	/**
+	 * Give up writing the archive and delete the temporary file.
+	 */
+	public synchronized void abort() {
+		mFinished = true;
+		if (mTemporaryOutput != null) {
+			StreamUtils.closeStream(mTemporaryOutput);
+			mTemporaryOutput = null;
+		}
+		mTemporaryFile.delete();
+	}
+
+	private void write() throws IOException {
+		final int[] order = sortUnique(mKeys, mTileCount);
+		final int count = order.length;
+		final long[] keys = new long[count];
+		for (int i = 0; i < count; i++) {
+			keys[i] = mKeys[order[i]];
+		}
+
+		// the ranges as source, zoom, xMin, xMax, yMin, yMax
+		final int[] ranges = findRanges(keys);
+		final int rangeCount = ranges.length / 6;
+
+		final byte[][] sourceNames = new byte[mSources.size()][];
+		long headerSize = GEMFFile.U32_SIZE * 4;
+		for (int i = 0; i < sourceNames.length; i++) {
+			sourceNames[i] = mSources.get(i).getBytes("UTF-8");
+			headerSize += GEMFFile.U32_SIZE * 2 + sourceNames[i].length;
+		}
+		headerSize += (long) rangeCount * RANGE_SIZE + (long) count * TILE_RECORD_SIZE;
+
+		// the tiles are written in the order of the ranges, by x then y
+		final int[] tiles = new int[count];
+		int tile = 0;
+		for (int r = 0; r < ranges.length; r += 6) {
+			for (int x = ranges[r + 2]; x <= ranges[r + 3]; x++) {
+				final int first = find(keys, getKey(ranges[r], ranges[r + 1], x, ranges[r + 4]));
+				for (int y = 0; y <= ranges[r + 5] - ranges[r + 4]; y++) {
+					tiles[tile++] = order[first + y];
+				}
+			}
+		}
+
+		// find where each tile goes, starting a new part instead of exceeding the limit
+		final long[] offsets = new long[count];
+		final ArrayList<Long> partSizes = new ArrayList<Long>();
+		long partStart = 0;
+		long partSize = headerSize;
+		for (int i = 0; i < count; i++) {
+			final int length = mLengths[tiles[i]];
+			if (partSize + length > mPartSizeLimit
+					&& partSize > (partSizes.isEmpty() ? headerSize : 0)) {
+				partSizes.add(partSize);
+				partStart += partSize;
+				partSize = 0;
+			}
+			offsets[i] = partStart + partSize;
+			partSize += length;
+		}
+		partSizes.add(partSize);
+
+		deleteParts();
+		final RandomAccessFile temporary = new RandomAccessFile(mTemporaryFile, "r");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mLocation),
+					BUFFER_SIZE));
+			out.writeInt(GEMFFile.VERSION);
+			out.writeInt(GEMFFile.TILE_SIZE);
+			out.writeInt(sourceNames.length);
+			for (int i = 0; i < sourceNames.length; i++) {
+				out.writeInt(i);
+				out.writeInt(sourceNames[i].length);
+				out.write(sourceNames[i]);
+			}
+			out.writeInt(rangeCount);
+			long rangeOffset = GEMFFile.U32_SIZE * 4 + (long) rangeCount * RANGE_SIZE;
+			for (int i = 0; i < sourceNames.length; i++) {
+				rangeOffset += GEMFFile.U32_SIZE * 2 + sourceNames[i].length;
+			}
+			for (int r = 0; r < ranges.length; r += 6) {
+				out.writeInt(ranges[r + 1]);
+				out.writeInt(ranges[r + 2]);
+				out.writeInt(ranges[r + 3]);
+				out.writeInt(ranges[r + 4]);
+				out.writeInt(ranges[r + 5]);
+				out.writeInt(ranges[r]);
+				out.writeLong(rangeOffset);
+				rangeOffset += (long) (ranges[r + 3] - ranges[r + 2] + 1)
+						* (ranges[r + 5] - ranges[r + 4] + 1) * TILE_RECORD_SIZE;
+			}
+			for (int i = 0; i < count; i++) {
+				out.writeLong(offsets[i]);
+				out.writeInt(mLengths[tiles[i]]);
+			}
+
+			final FileChannel channel = temporary.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			int part = 0;
+			long written = headerSize;
+			for (int i = 0; i < count; i++) {
+				final int length = mLengths[tiles[i]];
+				if (written + length > partSizes.get(part).longValue()) {
+					out.close();
+					part++;
+					written = 0;
+					out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+							mLocation + "-" + part), BUFFER_SIZE));
+				}
+				if (buffer.capacity() < length) {
+					buffer = ByteBuffer.allocate(length);
+				}
+				buffer.clear();
+				buffer.limit(length);
+				final long position = mOffsets[tiles[i]];
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, position + buffer.position()) < 0) {
+						throw new EOFException();
+					}
+				}
+				out.write(buffer.array(), 0, length);
+				written += length;
+			}
+			out.close();
+		} finally {
+			StreamUtils.closeStream(out);
+			temporary.close();
+		}
+	}
+
+	/**
+	 * Delete the parts of a previous archive at the location, so that they aren't mistaken for
+	 * parts of this one.
+	 */
+	private void deleteParts() {
+		for (int i = 1; new File(mLocation + "-" + i).delete(); i++) {
+			// keep going
+		}
+	}
+
+	/**
+	 * Sort the first keys, and drop all but the last of equal keys, so that the last of the tiles
+	 * added more than once is kept.
+	 *
+	 * @return the indexes of the keys in order
+	 */
+	static int[] sortUnique(final long[] pKeys, final int pCount) {
+		int[] order = new int[pCount];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		// a stable merge sort, so that the last of equal keys is the last one added
+		int[] merged = new int[pCount];
+		for (int width = 1; width < order.length; width *= 2) {
+			for (int start = 0; start < order.length; start += 2 * width) {
+				final int middle = Math.min(start + width, order.length);
+				final int end = Math.min(start + 2 * width, order.length);
+				int left = start;
+				int right = middle;
+				for (int i = start; i < end; i++) {
+					if (left < middle
+							&& (right >= end || pKeys[order[left]] <= pKeys[order[right]])) {
+						merged[i] = order[left++];
+					} else {
+						merged[i] = order[right++];
+					}
+				}
+			}
+			final int[] swap = order;
+			order = merged;
+			merged = swap;
+		}
+
+		int count = 0;
+		for (int i = 0; i < order.length; i++) {
+			if (i + 1 < order.length && pKeys[order[i]] == pKeys[order[i + 1]]) {
+				continue;
+			}
+			order[count++] = order[i];
+		}
+		if (count == order.length) {
+			return order;
+		}
+		final int[] unique = new int[count];
+		System.arraycopy(order, 0, unique, 0, count);
+		return unique;
+	}
+
+	/**
+	 * Find rectangles that cover the sorted tiles exactly. Each column is split into runs of
+	 * consecutive rows, and a run is merged with the same run in the previous column.
+	 *
+	 * @return source, zoom, xMin, xMax, yMin and yMax of each range
+	 */
+	private static int[] findRanges(final long[] pKeys) {
+		int[] ranges = new int[6 * 64];
+		int rangeCount = 0;
+		// the ranges ending at the previous column by their first and last rows
+		HashMap<Long, Integer> previous = new HashMap<Long, Integer>();
+		HashMap<Long, Integer> current = new HashMap<Long, Integer>();
+		long previousColumn = -1;
+
+		int i = 0;
+		while (i < pKeys.length) {
+			final long column = pKeys[i] >>> KEY_COORDINATE_BITS;
+			if (column != previousColumn + 1) {
+				previous.clear();
+			}
+			current.clear();
+			while (i < pKeys.length && pKeys[i] >>> KEY_COORDINATE_BITS == column) {
+				final int first = getY(pKeys[i]);
+				int last = first;
+				i++;
+				while (i < pKeys.length && pKeys[i] == pKeys[i - 1] + 1
+						&& pKeys[i] >>> KEY_COORDINATE_BITS == column) {
+					last++;
+					i++;
+				}
+				final Long run = Long.valueOf(((long) first << 32) | last);
+				final Integer range = previous.get(run);
+				if (range != null) {
+					ranges[range.intValue() * 6 + 3]++;
+					current.put(run, range);
+				} else {
+					if ((rangeCount + 1) * 6 > ranges.length) {
+						final int[] grown = new int[ranges.length * 2];
+						System.arraycopy(ranges, 0, grown, 0, ranges.length);
+						ranges = grown;
+					}
+					final long key = pKeys[i - 1];
+					ranges[rangeCount * 6] = getSource(key);
+					ranges[rangeCount * 6 + 1] = getZoom(key);
+					ranges[rangeCount * 6 + 2] = getX(key);
+					ranges[rangeCount * 6 + 3] = getX(key);
+					ranges[rangeCount * 6 + 4] = first;
+					ranges[rangeCount * 6 + 5] = last;
+					current.put(run, Integer.valueOf(rangeCount));
+					rangeCount++;
+				}
+			}
+			final HashMap<Long, Integer> swap = previous;
+			previous = current;
+			current = swap;
+			previousColumn = column;
+		}
+
+		final int[] result = new int[rangeCount * 6];
+		System.arraycopy(ranges, 0, result, 0, result.length);
+		return result;
+	}
+
+	/**
+	 * @return the index of the key in the sorted keys
+	 */
+	private static int find(final long[] pKeys, final long pKey) {
+		int low = 0;
+		int high = pKeys.length - 1;
+		while (low <= high) {
+			final int middle = (low + high) >>> 1;
+			if (pKeys[middle] < pKey) {
+				low = middle + 1;
+			} else if (pKeys[middle] > pKey) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		throw new IllegalStateException("Missing tile");
+	}
+
+	private static long getKey(final int pSource, final int pZoom, final int pX, final int pY) {
+		return ((((long) pSource << KEY_ZOOM_BITS | pZoom) << KEY_COORDINATE_BITS | pX)
+				<< KEY_COORDINATE_BITS) | pY;
+	}
+
+	private static int getSource(final long pKey) {
+		return (int) (pKey >>> (KEY_ZOOM_BITS + 2 * KEY_COORDINATE_BITS));
+	}
+
+	private static int getZoom(final long pKey) {
+		return (int) ((pKey >>> (2 * KEY_COORDINATE_BITS)) & KEY_ZOOM_MASK);
+	}
+
+	private static int getX(final long pKey) {
+		return (int) ((pKey >>> KEY_COORDINATE_BITS) & KEY_COORDINATE_MASK);
+	}
+
+	private static int getY(final long pKey) {
+		return (int) (pKey & KEY_COORDINATE_MASK);
+	}
+
+	private static long[] copyOf(final long[] pArray, final int pLength) {
+		final long[] copy = new long[pLength];
+		System.arraycopy(pArray, 0, copy, 0, Math.min(pArray.length, pLength));
+		return copy;
+	}
+
+	private static File[] listFiles(final File pDirectory) {
+		final File[] files = pDirectory.listFiles();
+		return files == null ? new File[0] : files;
+	}
+
+	/**
+	 * @return the number, or -1 if the string isn't a number
+	 */
+	private static int parseInt(final String pString) {
+		try {
+			return Integer.parseInt(pString);
+		} catch (final NumberFormatException e) {
+			return -1;
+		}
+	}
+}
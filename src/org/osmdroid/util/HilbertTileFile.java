@@ -0,0 +1,448 @@
+package org.osmdroid.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osmdroid.tileprovider.MapTile;
+import org.osmdroid.tileprovider.MapTileViewport;
+
+/**
+ * Reads a single file archive of tiles of one tile set, written by {@link HilbertTileWriter}.
+ *
+ * The tiles are numbered along a Hilbert curve at each zoom level, after all the tiles of the
+ * lower zoom levels, and the tile data is stored in that order. Tiles that are close on the map
+ * are therefore close in the file, and the tiles of a viewport are read with a few positional
+ * reads by {@link #getTiles(MapTile[])}.
+ *
+ * The directory maps the tile numbers to the data. Each of its entries covers a run of
+ * consecutive tiles with the same data, and tiles with the same data share a single copy of it,
+ * so empty sea or blank margins take almost no space. The entries are encoded as varints, by
+ * column: the differences between tile numbers, the run lengths, the data lengths and the data
+ * offsets, where 0 means the data follows that of the previous entry. A large directory is split
+ * into leaf directories, listed by the root directory with entries whose run length is 0, and
+ * the leaves are read when needed.
+ *
+ * The layout of the file is the header, the root directory, the leaf directories and the data.
+ * The header is, in big-endian order:
+ * <ul>
+ * <li>int magic, int version</li>
+ * <li>long root directory offset, int root directory length</li>
+ * <li>long leaf directories offset, long leaf directories length</li>
+ * <li>long data offset, long data length</li>
+ * <li>long tile count, long entry count, long data count</li>
+ * <li>int zoom level count, and for each zoom level int zoom, left, top, right and bottom</li>
+ * </ul>
+ *
+ * This class is thread-safe.
+ */
+public class HilbertTileFile {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	static final int MAGIC = 0x48544C53; // "HTLS"
+	static final int VERSION = 1;
+
+	/** the highest zoom level whose tile numbers fit in a long */
+	static final int MAXIMUM_ZOOM = 30;
+
+	/** the number of leaf directories kept in memory */
+	private static final int LEAF_CACHE_SIZE = 32;
+
+	/** the largest gap between tiles that is read rather than skipped by another read */
+	private static final int MAXIMUM_READ_GAP = 16 * 1024;
+
+	/** the most data read at once, unless a single tile is larger */
+	private static final int MAXIMUM_READ_SIZE = 1024 * 1024;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final File mFile;
+
+	// reopened if an interrupted thread closed it
+	private final FileChannel[] mChannel = new FileChannel[1];
+
+	private final long mLeafOffset;
+	private final long mDataOffset;
+	private final long mTileCount;
+
+	// left, top, right and bottom at each zoom level, null where there's no tile
+	private final int[][] mExtents = new int[MAXIMUM_ZOOM + 1][];
+
+	private final Directory mRoot;
+
+	private final LinkedHashMap<Long, Directory> mLeaves = new LinkedHashMap<Long, Directory>(16,
+			0.75f, true) {
+		private static final long serialVersionUID = -4417355434417474537L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<Long, Directory> pEldest) {
+			return size() > LEAF_CACHE_SIZE;
+		}
+	};
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public HilbertTileFile(final File pFile) throws IOException {
+		mFile = pFile;
+
+		final long rootOffset;
+		final int rootLength;
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(pFile)));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a tile archive: " + pFile);
+			}
+			final int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported tile archive version " + version + ": " + pFile);
+			}
+			rootOffset = in.readLong();
+			rootLength = in.readInt();
+			mLeafOffset = in.readLong();
+			in.readLong(); // leaf directories length
+			mDataOffset = in.readLong();
+			in.readLong(); // data length
+			mTileCount = in.readLong();
+			in.readLong(); // entry count
+			in.readLong(); // data count
+			final int zoomCount = in.readInt();
+			for (int i = 0; i < zoomCount; i++) {
+				final int zoom = in.readInt();
+				final int[] extent = new int[] { in.readInt(), in.readInt(), in.readInt(),
+						in.readInt() };
+				if (zoom >= 0 && zoom <= MAXIMUM_ZOOM) {
+					mExtents[zoom] = extent;
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		mChannel[0] = new RandomAccessFile(pFile, "r").getChannel();
+		try {
+			mRoot = readDirectory(rootOffset, rootLength);
+		} catch (final IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	public String getName() {
+		return mFile.getPath();
+	}
+
+	/**
+	 * @return the number of tiles in the archive
+	 */
+	public long getTileCount() {
+		return mTileCount;
+	}
+
+	/**
+	 * @return the extent of the tiles at each zoom level
+	 */
+	public List<MapTileViewport> getTileRanges() {
+		final List<MapTileViewport> ranges = new ArrayList<MapTileViewport>();
+		for (int zoom = 0; zoom <= MAXIMUM_ZOOM; zoom++) {
+			final int[] extent = mExtents[zoom];
+			if (extent != null) {
+				ranges.add(new MapTileViewport(zoom, extent[0], extent[1], extent[2], extent[3]));
+			}
+		}
+		return ranges;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * @return the data of the tile, or null if the archive doesn't hold it
+	 */
+	public byte[] getTile(final int pZoom, final int pX, final int pY) throws IOException {
+		return getTiles(new MapTile[] { new MapTile(pZoom, pX, pY) })[0];
+	}
+
+	/**
+	 * Read several tiles. The tiles are read in the order of the file, and the data of tiles that
+	 * are close together is read at once.
+	 *
+	 * @return the data of each tile, or null where the archive doesn't hold the tile
+	 */
+	public byte[][] getTiles(final MapTile[] pTiles) throws IOException {
+		final byte[][] tiles = new byte[pTiles.length][];
+
+		// find where each tile is
+		final long[] offsets = new long[pTiles.length];
+		final int[] lengths = new int[pTiles.length];
+		final int[] found = new int[pTiles.length];
+		int count = 0;
+		for (int i = 0; i < pTiles.length; i++) {
+			final MapTile tile = pTiles[i];
+			final int zoom = tile.getZoomLevel();
+			if (zoom < 0 || zoom > MAXIMUM_ZOOM || mExtents[zoom] == null) {
+				continue;
+			}
+			final int[] extent = mExtents[zoom];
+			if (tile.getX() < extent[0] || tile.getX() > extent[2] || tile.getY() < extent[1]
+					|| tile.getY() > extent[3]) {
+				continue;
+			}
+			final long tileId = getTileId(zoom, tile.getX(), tile.getY());
+			Directory directory = mRoot;
+			int entry = directory.find(tileId);
+			while (entry >= 0 && directory.mRunLengths[entry] == 0) {
+				directory = getLeaf(directory.mOffsets[entry], directory.mLengths[entry]);
+				entry = directory.find(tileId);
+			}
+			if (entry < 0 || tileId >= directory.mTileIds[entry] + directory.mRunLengths[entry]) {
+				continue;
+			}
+			offsets[i] = directory.mOffsets[entry];
+			lengths[i] = directory.mLengths[entry];
+			found[count++] = i;
+		}
+		sortByOffset(found, count, offsets);
+
+		// read runs of tiles that are close together
+		int start = 0;
+		while (start < count) {
+			final long first = offsets[found[start]];
+			long last = first + lengths[found[start]];
+			int end = start + 1;
+			while (end < count) {
+				final int tile = found[end];
+				final long tileEnd = Math.max(last, offsets[tile] + lengths[tile]);
+				if (offsets[tile] - last > MAXIMUM_READ_GAP
+						|| tileEnd - first > MAXIMUM_READ_SIZE) {
+					break;
+				}
+				last = tileEnd;
+				end++;
+			}
+
+			final ByteBuffer buffer = ByteBuffer.allocate((int) (last - first));
+			read(buffer, mDataOffset + first);
+			for (int i = start; i < end; i++) {
+				final int tile = found[i];
+				final byte[] data = new byte[lengths[tile]];
+				System.arraycopy(buffer.array(), (int) (offsets[tile] - first), data, 0,
+						data.length);
+				tiles[tile] = data;
+			}
+			start = end;
+		}
+		return tiles;
+	}
+
+	/**
+	 * Close the file.
+	 */
+	public void close() throws IOException {
+		synchronized (mChannel) {
+			if (mChannel[0] != null) {
+				mChannel[0].close();
+				mChannel[0] = null;
+			}
+		}
+	}
+
+	/**
+	 * Get the number of a tile: the number of tiles at the lower zoom levels, plus the distance
+	 * of the tile along the Hilbert curve at its zoom level.
+	 */
+	static long getTileId(final int pZoom, final int pX, final int pY) {
+		long tileId = ((1L << 2 * pZoom) - 1) / 3;
+		long x = pX;
+		long y = pY;
+		for (int bit = pZoom - 1; bit >= 0; bit--) {
+			final long s = 1L << bit;
+			final long rx = (x & s) != 0 ? 1 : 0;
+			final long ry = (y & s) != 0 ? 1 : 0;
+			tileId += s * s * ((3 * rx) ^ ry);
+			// rotate the quadrant
+			if (ry == 0) {
+				if (rx == 1) {
+					x = s - 1 - (x & (s - 1));
+					y = s - 1 - (y & (s - 1));
+				}
+				final long swap = x;
+				x = y;
+				y = swap;
+			}
+		}
+		return tileId;
+	}
+
+	private Directory getLeaf(final long pOffset, final int pLength) throws IOException {
+		final Long key = Long.valueOf(pOffset);
+		synchronized (mLeaves) {
+			final Directory leaf = mLeaves.get(key);
+			if (leaf != null) {
+				return leaf;
+			}
+		}
+		final Directory leaf = readDirectory(mLeafOffset + pOffset, pLength);
+		synchronized (mLeaves) {
+			mLeaves.put(key, leaf);
+		}
+		return leaf;
+	}
+
+	private Directory readDirectory(final long pPosition, final int pLength) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(pLength);
+		read(buffer, pPosition);
+		buffer.flip();
+
+		final int count = (int) readVarint(buffer);
+		final Directory directory = new Directory(count);
+		long tileId = 0;
+		for (int i = 0; i < count; i++) {
+			tileId += readVarint(buffer);
+			directory.mTileIds[i] = tileId;
+		}
+		for (int i = 0; i < count; i++) {
+			directory.mRunLengths[i] = (int) readVarint(buffer);
+		}
+		for (int i = 0; i < count; i++) {
+			directory.mLengths[i] = (int) readVarint(buffer);
+		}
+		for (int i = 0; i < count; i++) {
+			final long offset = readVarint(buffer);
+			if (offset == 0 && i > 0) {
+				directory.mOffsets[i] = directory.mOffsets[i - 1] + directory.mLengths[i - 1];
+			} else {
+				directory.mOffsets[i] = offset - 1;
+			}
+		}
+		return directory;
+	}
+
+	private static long readVarint(final ByteBuffer pBuffer) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (!pBuffer.hasRemaining()) {
+				throw new EOFException();
+			}
+			final byte b = pBuffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				return value;
+			}
+		}
+		throw new IOException("Bad varint");
+	}
+
+	/**
+	 * Sort the indexes of the tiles by the offsets of their data.
+	 */
+	private static void sortByOffset(final int[] pIndexes, final int pCount, final long[] pOffsets) {
+		// an insertion sort, since the tiles of a viewport are mostly in order already
+		for (int i = 1; i < pCount; i++) {
+			final int index = pIndexes[i];
+			final long offset = pOffsets[index];
+			int j = i - 1;
+			while (j >= 0 && pOffsets[pIndexes[j]] > offset) {
+				pIndexes[j + 1] = pIndexes[j];
+				j--;
+			}
+			pIndexes[j + 1] = index;
+		}
+	}
+
+	/**
+	 * Fill the buffer from the position in the file.
+	 */
+	private void read(final ByteBuffer pBuffer, final long pPosition) throws IOException {
+		boolean reopened = false;
+		while (pBuffer.hasRemaining()) {
+			final FileChannel channel;
+			synchronized (mChannel) {
+				channel = mChannel[0];
+			}
+			if (channel == null) {
+				throw new ClosedChannelException();
+			}
+			try {
+				if (channel.read(pBuffer, pPosition + pBuffer.position()) < 0) {
+					throw new EOFException();
+				}
+			} catch (final ClosedByInterruptException e) {
+				throw e;
+			} catch (final ClosedChannelException e) {
+				// another thread was interrupted while reading
+				if (reopened) {
+					throw e;
+				}
+				synchronized (mChannel) {
+					if (mChannel[0] == channel) {
+						mChannel[0] = new RandomAccessFile(mFile, "r").getChannel();
+					}
+				}
+				reopened = true;
+			}
+		}
+	}
+
+	// ===========================================================
+	// Inner and Anonymous Classes
+	// ===========================================================
+
+	/**
+	 * The entries of a directory, sorted by tile number.
+	 */
+	private static class Directory {
+		private final long[] mTileIds;
+		private final long[] mOffsets;
+		private final int[] mLengths;
+		private final int[] mRunLengths;
+
+		private Directory(final int pCount) {
+			mTileIds = new long[pCount];
+			mOffsets = new long[pCount];
+			mLengths = new int[pCount];
+			mRunLengths = new int[pCount];
+		}
+
+		/**
+		 * @return the index of the last entry that starts at or before the tile, or -1
+		 */
+		private int find(final long pTileId) {
+			int low = 0;
+			int high = mTileIds.length - 1;
+			while (low <= high) {
+				final int middle = (low + high) >>> 1;
+				if (mTileIds[middle] <= pTileId) {
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+			return high;
+		}
+	}
+}
@@ -0,0 +1,389 @@
+package org.osmdroid.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.osmdroid.tileprovider.util.StreamUtils;
+
+/**
+ * Writes an archive of tiles read by {@link HilbertTileFile}, from tiles given in any order.
+ *
+ * The tiles are appended to a temporary file as they're added, and only their numbers and the
+ * location of their data are kept, in primitive arrays. Tiles with the same data share the first
+ * copy of it. {@link #finish()} then sorts the tiles along the Hilbert curve, writes the directory
+ * and copies the data in the order of the tiles.
+ */
+public class HilbertTileWriter {
+
+	// ===========================================================
+	// Constants
+	// ===========================================================
+
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	/** the most entries in the root directory before it's split into leaf directories */
+	static final int MAXIMUM_ROOT_ENTRIES = 4096;
+
+	/** the number of entries in each leaf directory */
+	static final int LEAF_ENTRIES = 4096;
+
+	// the magic, version, root length and zoom level count ints and 8 longs
+	private static final int HEADER_SIZE = 4 * 4 + 8 * 8;
+	private static final int ZOOM_EXTENT_SIZE = 5 * 4;
+
+	// ===========================================================
+	// Fields
+	// ===========================================================
+
+	private final String mLocation;
+	private final int mMaximumRootEntries;
+	private final File mTemporaryFile;
+	private OutputStream mTemporaryOutput;
+	private long mTemporarySize;
+
+	private final MessageDigest mDigest;
+
+	// the tiles in the order they were added, with the index of their data
+	private int mTileCount;
+	private long[] mTileIds = new long[1024];
+	private int[] mTileData = new int[1024];
+
+	// the distinct data in the temporary file, by the start of its digest
+	private int mDataCount;
+	private long[] mDataOffsets = new long[1024];
+	private int[] mDataLengths = new int[1024];
+	private final HashMap<Long, Integer> mDataByDigest = new HashMap<Long, Integer>();
+
+	// left, top, right and bottom at each zoom level
+	private final int[][] mExtents = new int[HilbertTileFile.MAXIMUM_ZOOM + 1][];
+
+	private boolean mFinished;
+
+	// ===========================================================
+	// Constructors
+	// ===========================================================
+
+	public HilbertTileWriter(final String pLocation) throws IOException {
+		this(pLocation, MAXIMUM_ROOT_ENTRIES);
+	}
+
+	/**
+	 * @param pMaximumRootEntries
+	 *            the most entries in the root directory before it's split into leaf directories
+	 */
+	HilbertTileWriter(final String pLocation, final int pMaximumRootEntries) throws IOException {
+		mLocation = pLocation;
+		mMaximumRootEntries = pMaximumRootEntries;
+		try {
+			mDigest = MessageDigest.getInstance("MD5");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IOException(e.toString());
+		}
+		final File location = new File(pLocation).getAbsoluteFile();
+		mTemporaryFile = File.createTempFile("tiles", ".tmp", location.getParentFile());
+		mTemporaryOutput = new BufferedOutputStream(new FileOutputStream(mTemporaryFile),
+				BUFFER_SIZE);
+	}
+
+	// ===========================================================
+	// Getter & Setter
+	// ===========================================================
+
+	/**
+	 * @return the number of tiles added so far
+	 */
+	public synchronized int getTileCount() {
+		return mTileCount;
+	}
+
+	// ===========================================================
+	// Methods
+	// ===========================================================
+
+	/**
+	 * Add a tile. If the same tile is added more than once then the last one is kept.
+	 */
+	public synchronized void addTile(final int pZoom, final int pX, final int pY,
+			final byte[] pData) throws IOException {
+		if (mFinished) {
+			throw new IllegalStateException("The archive has been finished");
+		}
+		if (pZoom < 0 || pZoom > HilbertTileFile.MAXIMUM_ZOOM || pX < 0 || pY < 0
+				|| pX >= 1 << pZoom || pY >= 1 << pZoom) {
+			throw new IllegalArgumentException("Bad tile: " + pZoom + "/" + pX + "/" + pY);
+		}
+		if (pData.length == 0) {
+			return;
+		}
+
+		if (mTileCount == mTileIds.length) {
+			final int capacity = mTileCount * 2;
+			final long[] tileIds = new long[capacity];
+			System.arraycopy(mTileIds, 0, tileIds, 0, mTileCount);
+			mTileIds = tileIds;
+			mTileData = copyOf(mTileData, capacity);
+		}
+		mTileIds[mTileCount] = HilbertTileFile.getTileId(pZoom, pX, pY);
+		mTileData[mTileCount] = addData(pData);
+		mTileCount++;
+
+		final int[] extent = mExtents[pZoom];
+		if (extent == null) {
+			mExtents[pZoom] = new int[] { pX, pY, pX, pY };
+		} else {
+			extent[0] = Math.min(extent[0], pX);
+			extent[1] = Math.min(extent[1], pY);
+			extent[2] = Math.max(extent[2], pX);
+			extent[3] = Math.max(extent[3], pY);
+		}
+	}
+
+	/**
+	 * @return the index of the data, which is only written if it's new
+	 */
+	private int addData(final byte[] pData) throws IOException {
+		final byte[] digest = mDigest.digest(pData);
+		long key = 0;
+		for (int i = 0; i < 8; i++) {
+			key = key << 8 | (digest[i] & 0xFF);
+		}
+		final Integer existing = mDataByDigest.get(Long.valueOf(key));
+		if (existing != null && mDataLengths[existing.intValue()] == pData.length) {
+			return existing.intValue();
+		}
+
+		mTemporaryOutput.write(pData);
+		if (mDataCount == mDataOffsets.length) {
+			final int capacity = mDataCount * 2;
+			final long[] offsets = new long[capacity];
+			System.arraycopy(mDataOffsets, 0, offsets, 0, mDataCount);
+			mDataOffsets = offsets;
+			mDataLengths = copyOf(mDataLengths, capacity);
+		}
+		mDataOffsets[mDataCount] = mTemporarySize;
+		mDataLengths[mDataCount] = pData.length;
+		mTemporarySize += pData.length;
+		if (existing == null) {
+			mDataByDigest.put(Long.valueOf(key), Integer.valueOf(mDataCount));
+		}
+		return mDataCount++;
+	}
+
+	/**
+	 * Write the archive and delete the temporary file.
+	 */
+	public synchronized void finish() throws IOException {
+		if (mFinished) {
+			throw new IllegalStateException("The archive has been finished");
+		}
+		mFinished = true;
+		try {
+			mTemporaryOutput.close();
+			mTemporaryOutput = null;
+			write();
+		} finally {
+			abort();
+		}
+	}
+
+	/**
+	 * Give up writing the archive and delete the temporary file.
+	 */
+	public synchronized void abort() {
+		mFinished = true;
+		if (mTemporaryOutput != null) {
+			StreamUtils.closeStream(mTemporaryOutput);
+			mTemporaryOutput = null;
+		}
+		mTemporaryFile.delete();
+	}
+
+	private void write() throws IOException {
+		final int[] order = GEMFWriter.sortUnique(mTileIds, mTileCount);
+
+		// the data is written in the order of the tiles that first use it
+		final long[] dataOffsets = new long[mDataCount];
+		Arrays.fill(dataOffsets, -1);
+		final int[] dataOrder = new int[mDataCount];
+		int dataCount = 0;
+		long dataLength = 0;
+
+		// consecutive tiles with the same data share an entry
+		final long[] tileIds = new long[order.length];
+		final long[] offsets = new long[order.length];
+		final int[] lengths = new int[order.length];
+		final int[] runLengths = new int[order.length];
+		int entryCount = 0;
+		for (int i = 0; i < order.length; i++) {
+			final long tileId = mTileIds[order[i]];
+			final int data = mTileData[order[i]];
+			if (dataOffsets[data] < 0) {
+				dataOffsets[data] = dataLength;
+				dataOrder[dataCount++] = data;
+				dataLength += mDataLengths[data];
+			}
+			if (entryCount > 0 && offsets[entryCount - 1] == dataOffsets[data]
+					&& tileIds[entryCount - 1] + runLengths[entryCount - 1] == tileId) {
+				runLengths[entryCount - 1]++;
+				continue;
+			}
+			tileIds[entryCount] = tileId;
+			offsets[entryCount] = dataOffsets[data];
+			lengths[entryCount] = mDataLengths[data];
+			runLengths[entryCount] = 1;
+			entryCount++;
+		}
+
+		// split the directory into leaves if it's large
+		final byte[] root;
+		final int leafCount;
+		final long[] leafOffsets;
+		final int[] leafLengths;
+		if (entryCount <= mMaximumRootEntries) {
+			leafCount = 0;
+			leafOffsets = new long[0];
+			leafLengths = new int[0];
+			root = encodeDirectory(tileIds, offsets, lengths, runLengths, 0, entryCount);
+		} else {
+			leafCount = (entryCount + LEAF_ENTRIES - 1) / LEAF_ENTRIES;
+			final long[] leafTileIds = new long[leafCount];
+			leafOffsets = new long[leafCount];
+			leafLengths = new int[leafCount];
+			long leafOffset = 0;
+			for (int i = 0; i < leafCount; i++) {
+				final int start = i * LEAF_ENTRIES;
+				leafTileIds[i] = tileIds[start];
+				leafOffsets[i] = leafOffset;
+				leafLengths[i] = encodeDirectory(tileIds, offsets, lengths, runLengths, start,
+						Math.min(start + LEAF_ENTRIES, entryCount)).length;
+				leafOffset += leafLengths[i];
+			}
+			root = encodeDirectory(leafTileIds, leafOffsets, leafLengths, new int[leafCount], 0,
+					leafCount);
+		}
+
+		int zoomCount = 0;
+		for (int zoom = 0; zoom < mExtents.length; zoom++) {
+			if (mExtents[zoom] != null) {
+				zoomCount++;
+			}
+		}
+		final long rootOffset = HEADER_SIZE + zoomCount * ZOOM_EXTENT_SIZE;
+		final long leafOffset = rootOffset + root.length;
+		final long leafLength = leafCount == 0 ? 0 : leafOffsets[leafCount - 1]
+				+ leafLengths[leafCount - 1];
+
+		final RandomAccessFile temporary = new RandomAccessFile(mTemporaryFile, "r");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mLocation),
+					BUFFER_SIZE));
+			out.writeInt(HilbertTileFile.MAGIC);
+			out.writeInt(HilbertTileFile.VERSION);
+			out.writeLong(rootOffset);
+			out.writeInt(root.length);
+			out.writeLong(leafOffset);
+			out.writeLong(leafLength);
+			out.writeLong(leafOffset + leafLength);
+			out.writeLong(dataLength);
+			out.writeLong(order.length);
+			out.writeLong(entryCount);
+			out.writeLong(dataCount);
+			out.writeInt(zoomCount);
+			for (int zoom = 0; zoom < mExtents.length; zoom++) {
+				final int[] extent = mExtents[zoom];
+				if (extent != null) {
+					out.writeInt(zoom);
+					out.writeInt(extent[0]);
+					out.writeInt(extent[1]);
+					out.writeInt(extent[2]);
+					out.writeInt(extent[3]);
+				}
+			}
+			out.write(root);
+			for (int i = 0; i < leafCount; i++) {
+				final int start = i * LEAF_ENTRIES;
+				out.write(encodeDirectory(tileIds, offsets, lengths, runLengths, start,
+						Math.min(start + LEAF_ENTRIES, entryCount)));
+			}
+
+			final FileChannel channel = temporary.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			for (int i = 0; i < dataCount; i++) {
+				final int length = mDataLengths[dataOrder[i]];
+				if (buffer.capacity() < length) {
+					buffer = ByteBuffer.allocate(length);
+				}
+				buffer.clear();
+				buffer.limit(length);
+				final long position = mDataOffsets[dataOrder[i]];
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, position + buffer.position()) < 0) {
+						throw new EOFException();
+					}
+				}
+				out.write(buffer.array(), 0, length);
+			}
+			out.close();
+		} finally {
+			StreamUtils.closeStream(out);
+			temporary.close();
+		}
+	}
+
+	/**
+	 * Encode the entries from start to end as described in {@link HilbertTileFile}.
+	 */
+	private static byte[] encodeDirectory(final long[] pTileIds, final long[] pOffsets,
+			final int[] pLengths, final int[] pRunLengths, final int pStart, final int pEnd) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream((pEnd - pStart) * 4 + 8);
+		writeVarint(out, pEnd - pStart);
+		long tileId = 0;
+		for (int i = pStart; i < pEnd; i++) {
+			writeVarint(out, pTileIds[i] - tileId);
+			tileId = pTileIds[i];
+		}
+		for (int i = pStart; i < pEnd; i++) {
+			writeVarint(out, pRunLengths[i]);
+		}
+		for (int i = pStart; i < pEnd; i++) {
+			writeVarint(out, pLengths[i]);
+		}
+		for (int i = pStart; i < pEnd; i++) {
+			if (i > pStart && pOffsets[i] == pOffsets[i - 1] + pLengths[i - 1]) {
+				writeVarint(out, 0);
+			} else {
+				writeVarint(out, pOffsets[i] + 1);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	private static void writeVarint(final ByteArrayOutputStream pOut, final long pValue) {
+		long value = pValue;
+		while ((value & ~0x7FL) != 0) {
+			pOut.write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		pOut.write((int) value);
+	}
+
+	private static int[] copyOf(final int[] pArray, final int pLength) {
+		final int[] copy = new int[pLength];
+		System.arraycopy(pArray, 0, copy, 0, Math.min(pArray.length, pLength));
+		return copy;
+	}
+}
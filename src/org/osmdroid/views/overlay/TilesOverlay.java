@@ -4,6 +4,8 @@ import org.osmdroid.DefaultResourceProxyImpl;
 import org.osmdroid.ResourceProxy;
 import org.osmdroid.tileprovider.MapTile;
 import org.osmdroid.tileprovider.MapTileProviderBase;
+import org.osmdroid.tileprovider.MapTileViewport;
+import org.osmdroid.tileprovider.ReusableBitmapDrawable;
 import org.osmdroid.util.MyMath;
 import org.osmdroid.views.MapView;
 import org.osmdroid.views.MapView.Projection;
@@ -153,13 +155,26 @@ public class TilesOverlay extends Overlay {
 				* (tileNeededToRightOfCenter - tileNeededToLeftOfCenter + 1);
 		mTileProvider.ensureCapacity(numNeeded);
 
+		// load the tiles nearest the center first, and stop loading tiles that have gone well out
+		// of view
+		final MapTileViewport viewport = mTileProvider.getViewport();
+		if (viewport == null
+				|| !viewport.equals(zoomLevel, tileNeededToLeftOfCenter, tileNeededToTopOfCenter,
+						tileNeededToRightOfCenter, tileNeededToBottomOfCenter)) {
+			mTileProvider.setViewport(new MapTileViewport(zoomLevel, tileNeededToLeftOfCenter,
+					tileNeededToTopOfCenter, tileNeededToRightOfCenter, tileNeededToBottomOfCenter));
+			mTileProvider.cancelTileRequestsOutside(new MapTileViewport(zoomLevel,
+					tileNeededToLeftOfCenter - 1, tileNeededToTopOfCenter - 1,
+					tileNeededToRightOfCenter + 1, tileNeededToBottomOfCenter + 1));
+		}
+
 		/* Draw all the MapTiles (from the upper left to the lower right). */
 		for (int y = tileNeededToTopOfCenter; y <= tileNeededToBottomOfCenter; y++) {
 			for (int x = tileNeededToLeftOfCenter; x <= tileNeededToRightOfCenter; x++) {
-				// Construct a MapTile to request from the tile provider.
+				// Construct a tile id to request from the tile provider.
 				final int tileY = mWrapMap ? y : MyMath.mod(y, mapTileUpperBoundY);
 				final int tileX = mWrapMap ? x : MyMath.mod(x, mapTileUpperBoundX);
-				final MapTile tile = new MapTile(zoomLevel, tileX, tileY);
+				final long tileId = MapTile.getTileId(zoomLevel, tileX, tileY);
 
 				Drawable currentMapTile = null;
 
@@ -174,14 +189,24 @@ public class TilesOverlay extends Overlay {
 
 				if (0 <= x && x < mapTileUpperBoundX
 						&& 0 <= y && y < mapTileUpperBoundY) {
-					currentMapTile = mTileProvider.getMapTile(tile);
-					if (currentMapTile != null) {
+					currentMapTile = mTileProvider.getMapTile(tileId);
+					if (currentMapTile instanceof ReusableBitmapDrawable) {
+						// make sure the bitmap isn't reused while we're drawing it
+						final ReusableBitmapDrawable reusable = (ReusableBitmapDrawable) currentMapTile;
+						if (reusable.beginUsingDrawable()) {
+							try {
+								onTileReadyToDraw(c, reusable, mTileRect);
+							} finally {
+								reusable.finishUsingDrawable();
+							}
+						}
+					} else if (currentMapTile != null) {
 						onTileReadyToDraw(c, currentMapTile, mTileRect);
 					}
 				}
 
 				if (DEBUGMODE) {
-					c.drawText(tile + " " + mTileRect + " x: " + x + " y: " + y, mTileRect.left + 1,
+					c.drawText(MapTile.toString(tileId) + " " + mTileRect + " x: " + x + " y: " + y, mTileRect.left + 1,
 							mTileRect.top + mPaint.getTextSize(), mPaint);
 					c.drawLine(mTileRect.left, mTileRect.top, mTileRect.right, mTileRect.top,
 							mPaint);
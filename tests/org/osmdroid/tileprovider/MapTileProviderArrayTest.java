@@ -0,0 +1,124 @@
+package org.osmdroid.tileprovider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osmdroid.tileprovider.modules.MapTileModuleProviderBase;
+import org.osmdroid.tileprovider.tilesource.ITileSource;
+
+/**
+ * Tests that {@link MapTileProviderArray} requests a tile again after its request ended without
+ * a tile.
+ */
+public class MapTileProviderArrayTest {
+
+	private static final MapTile TILE = new MapTile(3, 2, 5);
+
+	private RecordingProvider mProvider;
+	private MapTileProviderArray mArray;
+
+	@Before
+	public void setUp() {
+		mProvider = new RecordingProvider();
+		mArray = new MapTileProviderArray(null, new MapTileModuleProviderBase[] { mProvider });
+	}
+
+	@Test
+	public void test_cancelled_tile_is_requested_again() {
+		mArray.getMapTile(TILE);
+		assertEquals(1, mProvider.mRequests.size());
+
+		mArray.cancelTileRequest(TILE);
+		assertTrue(mProvider.mRequests.get(0).isCancelled());
+		assertFalse(mArray.isTileInProgress(TILE));
+
+		mArray.getMapTile(TILE);
+		assertEquals(2, mProvider.mRequests.size());
+		assertTrue(mArray.isTileInProgress(TILE));
+	}
+
+	@Test
+	public void test_dropped_tile_is_requested_again() {
+		mArray.getMapTile(TILE);
+		final MapTileRequestState state = mProvider.mRequests.get(0);
+		state.getCallback().mapTileRequestDropped(state);
+		assertFalse(mArray.isTileInProgress(TILE));
+
+		mArray.getMapTile(TILE);
+		assertEquals(2, mProvider.mRequests.size());
+	}
+
+	@Test
+	public void test_failed_tile_is_requested_again_after_backoff() {
+		mArray.getMapTile(TILE);
+		final MapTileRequestState state = mProvider.mRequests.get(0);
+		state.getCallback().mapTileRequestFailed(state);
+		assertFalse(mArray.isTileInProgress(TILE));
+
+		// too soon
+		mArray.getMapTile(TILE);
+		assertEquals(1, mProvider.mRequests.size());
+
+		// the backoff expires
+		mArray.mFailedTiles.clear();
+		mArray.getMapTile(TILE);
+		assertEquals(2, mProvider.mRequests.size());
+	}
+
+	/**
+	 * A provider that only records the requests it is given.
+	 */
+	private static class RecordingProvider extends MapTileModuleProviderBase {
+
+		final List<MapTileRequestState> mRequests = new ArrayList<MapTileRequestState>();
+
+		RecordingProvider() {
+			super(1, 10);
+		}
+
+		@Override
+		public void loadMapTileAsync(final MapTileRequestState pState) {
+			mRequests.add(pState);
+		}
+
+		@Override
+		protected String getName() {
+			return "Recording Provider";
+		}
+
+		@Override
+		protected String getThreadGroupName() {
+			return "recording";
+		}
+
+		@Override
+		protected Runnable getTileLoader() {
+			return null;
+		}
+
+		@Override
+		public boolean getUsesDataConnection() {
+			return false;
+		}
+
+		@Override
+		public int getMinimumZoomLevel() {
+			return 0;
+		}
+
+		@Override
+		public int getMaximumZoomLevel() {
+			return 18;
+		}
+
+		@Override
+		public void setTileSource(final ITileSource pTileSource) {
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package org.osmdroid.tileprovider.modules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osmdroid.tileprovider.MapTile;
+import org.osmdroid.tileprovider.MapTileViewport;
+import org.osmdroid.tileprovider.tilesource.ITileSource;
+import org.osmdroid.tileprovider.tilesource.OnlineTileSourceBase;
+import org.osmdroid.tileprovider.tilesource.XYTileSource;
+import org.osmdroid.tileprovider.util.StreamUtils;
+import org.osmdroid.util.HilbertTileFile;
+
+/**
+ * Tests {@link MapTileDownloadJob} against a local stand-in tile server.
+ */
+public class MapTileDownloadJobTest {
+
+	/** zoom levels 0 to 2 of the whole world */
+	private static final MapTileViewport[] WORLD = new MapTileViewport[] {
+			new MapTileViewport(0, 0, 0, 0, 0), new MapTileViewport(1, 0, 0, 1, 1),
+			new MapTileViewport(2, 0, 0, 3, 3) };
+
+	private StandInTileServer mServer;
+	private File mCheckpointFile;
+	private MemoryCache mCache;
+
+	@Before
+	public void setUp() throws IOException {
+		mServer = new StandInTileServer();
+		mCheckpointFile = File.createTempFile("download", ".checkpoint");
+		mCheckpointFile.delete();
+		mCache = new MemoryCache();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		mServer.close();
+		mCheckpointFile.delete();
+	}
+
+	@Test
+	public void test_download() throws Exception {
+		final MapTileDownloadJob job = createJob("/");
+		job.start();
+		assertTrue(job.await(10000));
+
+		assertEquals(21, job.getTileCount());
+		assertEquals(21, job.getCompletedTileCount());
+		assertEquals(0, job.getFailedTileCount());
+		assertEquals(21, mServer.getRequestCount());
+		assertEquals(21, mCache.size());
+		assertEquals("/2/3/1.png", mCache.get(new MapTile(2, 3, 1)));
+		assertTrue(job.getDownloadedByteCount() > 0);
+		assertTrue("At most two downloads at once", mServer.getMaximumConcurrentRequests() <= 2);
+	}
+
+	@Test
+	public void test_resume() throws Exception {
+		final MapTileDownloadJob job = createJob("/slow/");
+		job.setListener(new IMapTileDownloadJobListener() {
+			@Override
+			public void onProgress(final MapTileDownloadJob pJob) {
+				if (pJob.getCompletedTileCount() == 5) {
+					pJob.cancel();
+				}
+			}
+
+			@Override
+			public void onFinished(final MapTileDownloadJob pJob) {
+			}
+		});
+		job.start();
+		assertTrue(job.await(10000));
+		assertTrue(job.isCancelled());
+		assertTrue(job.getCompletedTileCount() < 21);
+		assertTrue(mCheckpointFile.exists());
+
+		final MapTileDownloadJob resumed = createJob("/slow/");
+		resumed.start();
+		assertTrue(resumed.await(10000));
+		assertEquals(21, resumed.getCompletedTileCount());
+		assertEquals(21, mCache.size());
+		assertTrue("Only the tiles in progress are downloaded again",
+				mServer.getRequestCount() <= 21 + 2);
+
+		// the region is complete, so there's nothing more to do
+		final MapTileDownloadJob again = createJob("/slow/");
+		again.start();
+		assertTrue(again.await(10000));
+		assertTrue(mServer.getRequestCount() <= 21 + 2);
+	}
+
+	@Test
+	public void test_resume_with_failures_ahead_of_slow_tile() throws Exception {
+		// one thread waits for the first tile while the other fails the tiles after it
+		final MapTileDownloadJob job = createJob("/mixed/");
+		job.setListener(new IMapTileDownloadJobListener() {
+			@Override
+			public void onProgress(final MapTileDownloadJob pJob) {
+				if (pJob.getFailedTileCount() == 5) {
+					pJob.cancel();
+				}
+			}
+
+			@Override
+			public void onFinished(final MapTileDownloadJob pJob) {
+			}
+		});
+		job.start();
+		assertTrue(job.await(10000));
+		assertTrue(job.getFailedTileCount() >= 5);
+
+		// the failed tiles are after the first tile, so they're downloaded again from there
+		final Properties checkpoint = new Properties();
+		final InputStream in = new FileInputStream(mCheckpointFile);
+		try {
+			checkpoint.load(in);
+		} finally {
+			in.close();
+		}
+		assertEquals("0", checkpoint.getProperty("next"));
+		assertEquals("", checkpoint.getProperty("failed"));
+
+		final int requestCount = mServer.getRequestCount();
+		final MapTileDownloadJob resumed = createJob("/");
+		resumed.start();
+		assertTrue(resumed.await(10000));
+		assertEquals(21, resumed.getCompletedTileCount());
+		assertEquals(0, resumed.getFailedTileCount());
+		assertEquals("Each tile is downloaded once", 21, mServer.getRequestCount() - requestCount);
+	}
+
+	@Test
+	public void test_not_found_counts_as_done() throws Exception {
+		final MapTileDownloadJob job = createJob("/missing/");
+		job.start();
+		assertTrue(job.await(10000));
+		assertEquals(21, job.getCompletedTileCount());
+		assertEquals(0, job.getFailedTileCount());
+		assertEquals(0, mCache.size());
+	}
+
+	@Test
+	public void test_download_into_archive() throws Exception {
+		final File archive = File.createTempFile("download", ".htiles");
+		try {
+			final MapTileArchiveWriter writer = new MapTileArchiveWriter(archive.getPath());
+			final MapTileDownloadJob job = createJob("/", writer);
+			job.start();
+			assertTrue(job.await(10000));
+			writer.finish();
+
+			final HilbertTileFile file = new HilbertTileFile(archive);
+			try {
+				assertEquals("/2/3/1.png", new String(file.getTile(2, 3, 1), "US-ASCII"));
+				assertEquals("/0/0/0.png", new String(file.getTile(0, 0, 0), "US-ASCII"));
+			} finally {
+				file.close();
+			}
+		} finally {
+			archive.delete();
+		}
+	}
+
+	private MapTileDownloadJob createJob(final String pPath) {
+		return createJob(pPath, mCache);
+	}
+
+	private MapTileDownloadJob createJob(final String pPath, final IFilesystemCache pCache) {
+		final OnlineTileSourceBase tileSource = new XYTileSource("Test", 0, 2, 256, ".png",
+				mServer.getUrl(pPath)) {
+			@Override
+			public int getWorldWidth() {
+				return 1024;
+			}
+
+			@Override
+			public int getWorldHeight() {
+				return 1024;
+			}
+		};
+		return new MapTileDownloadJob(tileSource, WORLD, pCache, mCheckpointFile,
+				new MapTileHttpClient(2, 5000, 5000), 2);
+	}
+
+	/**
+	 * Keeps the tiles as strings.
+	 */
+	private static class MemoryCache implements IFilesystemCache {
+
+		private final HashMap<MapTile, String> mTiles = new HashMap<MapTile, String>();
+
+		synchronized int size() {
+			return mTiles.size();
+		}
+
+		synchronized String get(final MapTile pTile) {
+			return mTiles.get(pTile);
+		}
+
+		@Override
+		public boolean saveFile(final ITileSource pTileSourceInfo, final MapTile pTile,
+				final InputStream pStream) {
+			return saveFile(pTileSourceInfo, pTile, pStream, null);
+		}
+
+		@Override
+		public synchronized boolean saveFile(final ITileSource pTileSourceInfo,
+				final MapTile pTile, final InputStream pStream, final MapTileValidators pValidators) {
+			try {
+				mTiles.put(pTile, new String(StreamUtils.toByteArray(pStream), "US-ASCII"));
+				return true;
+			} catch (final IOException e) {
+				return false;
+			}
+		}
+
+		@Override
+		public MapTileValidators getValidators(final ITileSource pTileSourceInfo,
+				final MapTile pTile) {
+			return null;
+		}
+
+		@Override
+		public boolean refreshFile(final ITileSource pTileSourceInfo, final MapTile pTile) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package org.osmdroid.tileprovider.modules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osmdroid.tileprovider.util.StreamUtils;
+
+/**
+ * Tests {@link MapTileHttpClient} against a local stand-in tile server.
+ */
+public class MapTileHttpClientTest {
+
+	private StandInTileServer mServer;
+
+	@Before
+	public void setUp() throws IOException {
+		mServer = new StandInTileServer();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		mServer.close();
+	}
+
+	@Test
+	public void test_get() throws IOException {
+		final MapTileHttpClient client = new MapTileHttpClient(2, 5000, 5000);
+		final MapTileHttpClient.Response response = client.get(mServer.getUrl("/1/0/0.png"));
+		try {
+			assertEquals(200, response.getStatusCode());
+			assertEquals("/1/0/0.png", new String(StreamUtils.toByteArray(response
+					.getInputStream()), "US-ASCII"));
+		} finally {
+			response.close();
+		}
+	}
+
+	@Test
+	public void test_get_not_found() throws IOException {
+		final MapTileHttpClient client = new MapTileHttpClient(2, 5000, 5000);
+		final MapTileHttpClient.Response response = client.get(mServer.getUrl("/missing"));
+		try {
+			assertEquals(404, response.getStatusCode());
+		} finally {
+			response.close();
+		}
+	}
+
+	@Test
+	public void test_conditional_get() throws IOException {
+		final MapTileHttpClient client = new MapTileHttpClient(2, 5000, 5000);
+		MapTileHttpClient.Response response = client.get(mServer.getUrl("/etag"));
+		final MapTileValidators validators = response.getValidators();
+		StreamUtils.toByteArray(response.getInputStream());
+		response.close();
+		assertEquals(200, response.getStatusCode());
+		assertEquals("\"v1\"", validators.getETag());
+
+		response = client.get(mServer.getUrl("/etag"), validators);
+		response.close();
+		assertEquals(304, response.getStatusCode());
+		assertEquals("Not modified response keeps the connection", 1, mServer
+				.getConnectionCount());
+	}
+
+	@Test
+	public void test_connection_is_reused() throws IOException {
+		final MapTileHttpClient client = new MapTileHttpClient(2, 5000, 5000);
+		for (int i = 0; i < 5; i++) {
+			final MapTileHttpClient.Response response = client.get(mServer.getUrl("/1/0/" + i
+					+ ".png"));
+			StreamUtils.toByteArray(response.getInputStream());
+			response.close();
+		}
+		assertEquals("Requests share one connection", 1, mServer.getConnectionCount());
+	}
+
+	@Test
+	public void test_connections_per_host_are_limited() throws Exception {
+		final MapTileHttpClient client = new MapTileHttpClient(2, 5000, 5000);
+		final AtomicInteger failures = new AtomicInteger();
+		final Thread[] threads = new Thread[6];
+		for (int i = 0; i < threads.length; i++) {
+			final int y = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						final MapTileHttpClient.Response response = client.get(mServer
+								.getUrl("/slow/0/" + y + ".png"));
+						StreamUtils.toByteArray(response.getInputStream());
+						response.close();
+					} catch (final IOException e) {
+						failures.incrementAndGet();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(0, failures.get());
+		assertEquals(6, mServer.getRequestCount());
+		assertTrue("At most two requests at once", mServer.getMaximumConcurrentRequests() <= 2);
+	}
+
+	@Test
+	public void test_read_timeout() throws IOException {
+		final MapTileHttpClient client = new MapTileHttpClient(2, 5000, 200);
+		try {
+			client.get(mServer.getUrl("/hang")).close();
+			fail("Expected a timeout");
+		} catch (final SocketTimeoutException e) {
+			// expected
+		}
+		// the permit was released, so the next request isn't blocked
+		final MapTileHttpClient.Response response = client.get(mServer.getUrl("/1/0/0.png"));
+		assertEquals(200, response.getStatusCode());
+		response.close();
+	}
+}
@@ -0,0 +1,136 @@
+package org.osmdroid.tileprovider.modules;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal HTTP/1.1 stand-in for a tile server, with persistent connections. It returns the
+ * request path as the body. "/missing" paths are not found, "/slow" paths take a while, "/hang"
+ * never responds and "/etag" is not modified if requested with its ETag. Under "/mixed/" the
+ * tile 0/0/0 takes a while and the other tiles are forbidden.
+ */
+class StandInTileServer implements Runnable {
+
+	private final ServerSocket mServerSocket;
+	private final AtomicInteger mConnectionCount = new AtomicInteger();
+	private final AtomicInteger mRequestCount = new AtomicInteger();
+	private final AtomicInteger mConcurrentRequests = new AtomicInteger();
+	private final AtomicInteger mMaximumConcurrentRequests = new AtomicInteger();
+
+	StandInTileServer() throws IOException {
+		mServerSocket = new ServerSocket(0);
+		final Thread thread = new Thread(this);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	String getUrl(final String pPath) {
+		return "http://127.0.0.1:" + mServerSocket.getLocalPort() + pPath;
+	}
+
+	int getConnectionCount() {
+		return mConnectionCount.get();
+	}
+
+	int getRequestCount() {
+		return mRequestCount.get();
+	}
+
+	int getMaximumConcurrentRequests() {
+		return mMaximumConcurrentRequests.get();
+	}
+
+	void close() throws IOException {
+		mServerSocket.close();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				final Socket socket = mServerSocket.accept();
+				mConnectionCount.incrementAndGet();
+				final Thread thread = new Thread() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				};
+				thread.setDaemon(true);
+				thread.start();
+			}
+		} catch (final IOException e) {
+			// closed
+		}
+	}
+
+	private void serve(final Socket pSocket) {
+		try {
+			final BufferedReader reader = new BufferedReader(new InputStreamReader(pSocket
+					.getInputStream(), "US-ASCII"));
+			final OutputStream out = pSocket.getOutputStream();
+			String requestLine;
+			while ((requestLine = reader.readLine()) != null) {
+				String header;
+				boolean ifNoneMatch = false;
+				while ((header = reader.readLine()) != null && header.length() > 0) {
+					if (header.equalsIgnoreCase("If-None-Match: \"v1\"")) {
+						ifNoneMatch = true;
+					}
+				}
+				final String path = requestLine.split(" ")[1];
+				mRequestCount.incrementAndGet();
+				final int concurrent = mConcurrentRequests.incrementAndGet();
+				int maximum;
+				while ((maximum = mMaximumConcurrentRequests.get()) < concurrent
+						&& !mMaximumConcurrentRequests.compareAndSet(maximum, concurrent)) {
+					// try again
+				}
+				try {
+					if (path.equals("/hang")) {
+						Thread.sleep(60 * 1000);
+					} else if (path.startsWith("/slow")) {
+						Thread.sleep(100);
+					} else if (path.equals("/mixed/0/0/0.png")) {
+						Thread.sleep(500);
+					}
+				} finally {
+					mConcurrentRequests.decrementAndGet();
+				}
+				if (path.equals("/etag")) {
+					if (ifNoneMatch) {
+						out.write("HTTP/1.1 304 Not Modified\r\nETag: \"v1\"\r\n\r\n"
+								.getBytes("US-ASCII"));
+						out.flush();
+						continue;
+					}
+					out.write(("HTTP/1.1 200 OK\r\nETag: \"v1\"\r\n"
+							+ "Content-Length: 1\r\n\r\nx").getBytes("US-ASCII"));
+					out.flush();
+					continue;
+				}
+				final byte[] body = path.getBytes("US-ASCII");
+				final String status = path.startsWith("/missing") ? "404 Not Found" : path
+						.startsWith("/mixed/") && !path.equals("/mixed/0/0/0.png") ? "403 Forbidden"
+						: "200 OK";
+				out.write(("HTTP/1.1 " + status + "\r\nContent-Type: image/png\r\n"
+						+ "Content-Length: " + body.length + "\r\n\r\n").getBytes("US-ASCII"));
+				out.write(body);
+				out.flush();
+			}
+		} catch (final Exception e) {
+			// the client has gone
+		} finally {
+			try {
+				pSocket.close();
+			} catch (final IOException e) {
+				// ignore
+			}
+		}
+	}
+}
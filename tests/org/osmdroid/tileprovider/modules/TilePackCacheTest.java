@@ -0,0 +1,148 @@
+package org.osmdroid.tileprovider.modules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osmdroid.tileprovider.MapTile;
+import org.osmdroid.tileprovider.tilesource.ITileSource;
+import org.osmdroid.tileprovider.tilesource.XYTileSource;
+
+/**
+ * Tests {@link TilePackCache} in a temporary directory.
+ */
+public class TilePackCacheTest {
+
+	private static final ITileSource TILE_SOURCE = new XYTileSource("Test", 0, 18, 256, ".png",
+			"http://localhost/") {
+		@Override
+		public int getWorldWidth() {
+			return 1 << 26;
+		}
+
+		@Override
+		public int getWorldHeight() {
+			return 1 << 26;
+		}
+	};
+
+	private File mDirectory;
+	private TilePackCache mCache;
+
+	@Before
+	public void setUp() throws IOException {
+		mDirectory = File.createTempFile("tilepack", "");
+		mDirectory.delete();
+		mCache = new TilePackCache(mDirectory, 4096);
+	}
+
+	@After
+	public void tearDown() {
+		mCache.close();
+		final File[] files = mDirectory.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				file.delete();
+			}
+		}
+		mDirectory.delete();
+	}
+
+	@Test
+	public void test_save_and_reopen() throws Exception {
+		final MapTile tile = new MapTile(3, 5, 6);
+		assertNull(mCache.getTile(TILE_SOURCE, tile));
+		assertTrue(save(tile, "first", new MapTileValidators("\"tag\"", null)));
+		assertTrue(save(tile, "second", null));
+		assertTrue(save(new MapTile(3, 6, 5), "other", null));
+
+		assertEquals("second", new String(mCache.getTile(TILE_SOURCE, tile).getData(), "UTF-8"));
+		assertNull(mCache.getValidators(TILE_SOURCE, tile));
+		assertEquals(2, mCache.getTileCount());
+
+		mCache.close();
+		mCache = new TilePackCache(mDirectory, 4096);
+		assertEquals(2, mCache.getTileCount());
+		assertEquals("second", new String(mCache.getTile(TILE_SOURCE, tile).getData(), "UTF-8"));
+		assertEquals("other", new String(mCache.getTile(TILE_SOURCE, new MapTile(3, 6, 5))
+				.getData(), "UTF-8"));
+	}
+
+	@Test
+	public void test_refresh() throws Exception {
+		final MapTile tile = new MapTile(1, 1, 0);
+		assertFalse(mCache.refreshFile(TILE_SOURCE, tile));
+		assertTrue(save(tile, "data", new MapTileValidators(null, "yesterday")));
+		final long saved = mCache.getTile(TILE_SOURCE, tile).getLastModified();
+		Thread.sleep(10);
+		assertTrue(mCache.refreshFile(TILE_SOURCE, tile));
+
+		mCache.close();
+		mCache = new TilePackCache(mDirectory, 4096);
+		final TilePackCache.CachedTile cached = mCache.getTile(TILE_SOURCE, tile);
+		assertTrue(cached.getLastModified() > saved);
+		assertEquals("yesterday", cached.getValidators().getLastModified());
+	}
+
+	@Test
+	public void test_compaction() throws Exception {
+		final MapTile kept = new MapTile(2, 0, 0);
+		assertTrue(save(kept, "kept", null));
+		// saving the same tile over and over fills packs with garbage
+		final MapTile replaced = new MapTile(2, 1, 1);
+		for (int i = 0; i < 200; i++) {
+			assertTrue(save(replaced, "replaced " + i, null));
+		}
+
+		// wait for the maintenance thread to compact the full packs
+		for (int i = 0; i < 100 && mCache.getPackCount() > 2; i++) {
+			Thread.sleep(20);
+		}
+		assertTrue(mCache.getPackCount() <= 2);
+		assertTrue(mCache.getSize() <= 2 * 4096);
+		assertEquals("kept", new String(mCache.getTile(TILE_SOURCE, kept).getData(), "UTF-8"));
+		assertEquals("replaced 199", new String(mCache.getTile(TILE_SOURCE, replaced).getData(),
+				"UTF-8"));
+	}
+
+	@Test
+	public void test_damaged_end_is_discarded() throws Exception {
+		final MapTile tile = new MapTile(4, 2, 2);
+		assertTrue(save(tile, "complete", null));
+		mCache.close();
+
+		// as if the app had been killed while appending a tile
+		final File pack = new File(mDirectory, "1.pack");
+		final RandomAccessFile file = new RandomAccessFile(pack, "rw");
+		try {
+			file.seek(file.length());
+			file.write(new byte[] { 0x54, 0x50, 0x4B, 0x31, 1, 0, 0 });
+		} finally {
+			file.close();
+		}
+
+		mCache = new TilePackCache(mDirectory, 4096);
+		assertNotNull(mCache.getTile(TILE_SOURCE, tile));
+		final long size = mCache.getSize();
+		assertTrue(save(new MapTile(4, 3, 3), "appended", null));
+		assertEquals("appended", new String(mCache.getTile(TILE_SOURCE, new MapTile(4, 3, 3))
+				.getData(), "UTF-8"));
+		assertTrue(mCache.getSize() > size);
+	}
+
+	private boolean save(final MapTile pTile, final String pData,
+			final MapTileValidators pValidators) throws IOException {
+		return mCache.saveFile(TILE_SOURCE, pTile,
+				new ByteArrayInputStream(pData.getBytes("UTF-8")), pValidators);
+	}
+}
@@ -0,0 +1,137 @@
+package org.osmdroid.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osmdroid.tileprovider.util.StreamUtils;
+
+/**
+ * Tests {@link GEMFFile} with an archive created from a temporary directory of tiles.
+ */
+public class GEMFFileTest {
+
+	private File mDirectory;
+	private File mArchive;
+
+	@Before
+	public void setUp() throws IOException {
+		mDirectory = File.createTempFile("gemf", "");
+		mDirectory.delete();
+		// zoom 1 is complete, zoom 2 has a hole at 1/1 and a tile at 3/3
+		for (int x = 0; x < 2; x++) {
+			for (int y = 0; y < 2; y++) {
+				writeTile("Source", 1, x, y);
+			}
+		}
+		for (int x = 0; x < 2; x++) {
+			for (int y = 0; y < 3; y++) {
+				if (x != 1 || y != 1) {
+					writeTile("Source", 2, x, y);
+				}
+			}
+		}
+		writeTile("Source", 2, 3, 3);
+		mArchive = new File(mDirectory, "test.gemf");
+	}
+
+	@After
+	public void tearDown() {
+		delete(mDirectory);
+	}
+
+	@Test
+	public void test_read() throws IOException {
+		new GEMFFile(mArchive.getPath(), Collections.singletonList(new File(mDirectory, "Source")))
+				.close();
+
+		final GEMFFile file = new GEMFFile(mArchive);
+		try {
+			assertEquals("[1, 2]", file.getZoomLevels().toString());
+			assertEquals("/Source/1/1/0", read(file, 1, 0, 1));
+			assertEquals("/Source/2/0/2", read(file, 0, 2, 2));
+			assertEquals("/Source/2/3/3", read(file, 3, 3, 2));
+			assertNull(file.getInputStream(1, 1, 2));
+			assertNull(file.getInputStream(2, 2, 2));
+			assertNull(file.getInputStream(0, 0, 3));
+		} finally {
+			file.close();
+		}
+		// closing again does nothing
+		file.close();
+	}
+
+	@Test
+	public void test_read_concurrently() throws Exception {
+		new GEMFFile(mArchive.getPath(), Collections.singletonList(new File(mDirectory, "Source")))
+				.close();
+
+		final GEMFFile file = new GEMFFile(mArchive);
+		final AtomicInteger errors = new AtomicInteger();
+		final List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 4; i++) {
+			final Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < 500; j++) {
+							final int x = j % 2;
+							final int y = (j / 2) % 2;
+							if (!("/Source/1/" + x + "/" + y).equals(read(file, x, y, 1))) {
+								errors.incrementAndGet();
+							}
+						}
+					} catch (final IOException e) {
+						errors.incrementAndGet();
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		file.close();
+		assertEquals(0, errors.get());
+	}
+
+	private static String read(final GEMFFile pFile, final int pX, final int pY, final int pZ)
+			throws IOException {
+		final InputStream in = pFile.getInputStream(pX, pY, pZ);
+		return in == null ? null : new String(StreamUtils.toByteArray(in), "US-ASCII");
+	}
+
+	private void writeTile(final String pSource, final int pZoom, final int pX, final int pY)
+			throws IOException {
+		final File directory = new File(mDirectory, pSource + "/" + pZoom + "/" + pX);
+		directory.mkdirs();
+		final FileOutputStream out = new FileOutputStream(new File(directory, pY + ".png"));
+		try {
+			out.write(("/" + pSource + "/" + pZoom + "/" + pX + "/" + pY).getBytes("US-ASCII"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void delete(final File pFile) {
+		final File[] files = pFile.listFiles();
+		if (files != null) {
+			for (final File file : files) {
+				delete(file);
+			}
+		}
+		pFile.delete();
+	}
+}
@@ -0,0 +1,89 @@
+package org.osmdroid.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osmdroid.tileprovider.util.StreamUtils;
+
+/**
+ * Tests {@link GEMFWriter} by reading the archives back with {@link GEMFFile}.
+ */
+public class GEMFWriterTest {
+
+	private File mArchive;
+
+	@Before
+	public void setUp() throws IOException {
+		mArchive = File.createTempFile("test", ".gemf");
+	}
+
+	@After
+	public void tearDown() {
+		mArchive.delete();
+		for (int i = 1; new File(mArchive.getPath() + "-" + i).delete(); i++) {
+			// keep going
+		}
+	}
+
+	@Test
+	public void test_tiles_in_any_order() throws IOException {
+		final GEMFWriter writer = new GEMFWriter(mArchive.getPath(), 200);
+		final int first = writer.addSource("First");
+		final int second = writer.addSource("Second");
+
+		// a scattered set of tiles, added in random order with some added twice
+		final boolean[][] added = new boolean[16][16];
+		final Random random = new Random(1);
+		for (int i = 0; i < 300; i++) {
+			final int x = random.nextInt(16);
+			final int y = random.nextInt(16);
+			if ((x + y) % 5 == 0) {
+				continue;
+			}
+			writer.addTile(first, 4, x, y, data("First", 4, x, y));
+			added[x][y] = true;
+		}
+		writer.addTile(second, 0, 0, 0, data("Old", 0, 0, 0));
+		writer.addTile(second, 0, 0, 0, data("Second", 0, 0, 0));
+		writer.finish();
+
+		assertTrue("The archive is split into parts", new File(mArchive.getPath() + "-1").exists());
+
+		final GEMFFile file = new GEMFFile(mArchive);
+		try {
+			file.selectSource(first);
+			for (int x = 0; x < 16; x++) {
+				for (int y = 0; y < 16; y++) {
+					assertEquals(added[x][y] ? "/First/4/" + x + "/" + y : null, read(file, x, y, 4));
+				}
+			}
+			assertNull(read(file, 0, 0, 0));
+
+			file.selectSource(second);
+			assertEquals("/Second/0/0/0", read(file, 0, 0, 0));
+			assertNull(read(file, 1, 1, 4));
+		} finally {
+			file.close();
+		}
+	}
+
+	private static byte[] data(final String pSource, final int pZoom, final int pX, final int pY)
+			throws IOException {
+		return ("/" + pSource + "/" + pZoom + "/" + pX + "/" + pY).getBytes("US-ASCII");
+	}
+
+	private static String read(final GEMFFile pFile, final int pX, final int pY, final int pZ)
+			throws IOException {
+		final InputStream in = pFile.getInputStream(pX, pY, pZ);
+		return in == null ? null : new String(StreamUtils.toByteArray(in), "US-ASCII");
+	}
+}
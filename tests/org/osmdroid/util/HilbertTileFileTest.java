@@ -0,0 +1,106 @@
+package org.osmdroid.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osmdroid.tileprovider.MapTile;
+
+/**
+ * Tests {@link HilbertTileFile} with archives written by {@link HilbertTileWriter}.
+ */
+public class HilbertTileFileTest {
+
+	private File mArchive;
+
+	@Before
+	public void setUp() throws IOException {
+		mArchive = File.createTempFile("test", ".htiles");
+	}
+
+	@After
+	public void tearDown() {
+		mArchive.delete();
+	}
+
+	@Test
+	public void test_tile_ids_follow_the_curve() {
+		// every tile has its own number, and consecutive numbers are neighbouring tiles
+		final int zoom = 4;
+		final int first = (int) HilbertTileFile.getTileId(zoom, 0, 0);
+		final int[] xs = new int[1 << 2 * zoom];
+		final int[] ys = new int[1 << 2 * zoom];
+		final boolean[] seen = new boolean[1 << 2 * zoom];
+		for (int x = 0; x < 1 << zoom; x++) {
+			for (int y = 0; y < 1 << zoom; y++) {
+				final int index = (int) HilbertTileFile.getTileId(zoom, x, y) - first;
+				assertFalse(seen[index]);
+				seen[index] = true;
+				xs[index] = x;
+				ys[index] = y;
+			}
+		}
+		for (int i = 1; i < xs.length; i++) {
+			assertEquals(1, Math.abs(xs[i] - xs[i - 1]) + Math.abs(ys[i] - ys[i - 1]));
+		}
+		assertEquals(0, HilbertTileFile.getTileId(0, 0, 0));
+		assertEquals(1 + 4 + 16 + 64, first);
+	}
+
+	@Test
+	public void test_write_and_read() throws IOException {
+		// a small root directory, so that the entries are in a leaf directory
+		final HilbertTileWriter writer = new HilbertTileWriter(mArchive.getPath(), 4);
+		final byte[] sea = new byte[1000];
+		final Random random = new Random(1);
+		final byte[][][] tiles = new byte[32][32][];
+		for (int i = 0; i < 2000; i++) {
+			final int x = random.nextInt(32);
+			final int y = random.nextInt(32);
+			if (x < 16) {
+				tiles[x][y] = ("/5/" + x + "/" + y + "/" + i).getBytes("US-ASCII");
+			} else if (y != 31) {
+				tiles[x][y] = sea;
+			}
+			if (tiles[x][y] != null) {
+				writer.addTile(5, x, y, tiles[x][y]);
+			}
+		}
+		writer.addTile(0, 0, 0, sea);
+		writer.finish();
+
+		// the sea is only stored once
+		assertTrue(mArchive.length() < 32 * 32 * 20 + 2 * sea.length);
+
+		final HilbertTileFile file = new HilbertTileFile(mArchive);
+		try {
+			final MapTile[] viewport = new MapTile[32 * 32];
+			for (int x = 0; x < 32; x++) {
+				for (int y = 0; y < 32; y++) {
+					viewport[x * 32 + y] = new MapTile(5, x, y);
+				}
+			}
+			final byte[][] read = file.getTiles(viewport);
+			for (int x = 0; x < 32; x++) {
+				for (int y = 0; y < 32; y++) {
+					assertArrayEquals(tiles[x][y], read[x * 32 + y]);
+					assertArrayEquals(tiles[x][y], file.getTile(5, x, y));
+				}
+			}
+			assertArrayEquals(sea, file.getTile(0, 0, 0));
+			assertNull(file.getTile(1, 0, 0));
+			assertNull(file.getTile(6, 0, 0));
+		} finally {
+			file.close();
+		}
+	}
+}